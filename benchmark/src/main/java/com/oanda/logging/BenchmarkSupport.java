@@ -0,0 +1,113 @@
+package com.oanda.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * Helpers shared by the benchmarks to set up and wait for the log file. The benchmarks keep the log
+ * file in a temporary directory with a FileLogStorage.
+ */
+final class BenchmarkSupport {
+
+    /**
+     * A typical line in the log file, used to fill it up before trimming or reading.
+     */
+    static final String SAMPLE_LINE = "2015-01-20 15:36:53.123-0500 [DEBUG] Benchmark " +
+            "The quick brown fox jumps over the lazy dog 0123456789";
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Creates a new, empty directory for a benchmark's files.
+     *
+     * @return The directory.
+     * @throws IOException If the directory could not be created.
+     */
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("log-benchmark", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Deletes a directory created by createTempDir() and everything in it.
+     *
+     * @param dir The directory to delete.
+     */
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Replaces the contents of the log file with a number of copies of SAMPLE_LINE.
+     *
+     * @param dir      The directory that the log file is kept in.
+     * @param numLines The number of lines to write.
+     * @throws IOException If the file could not be written.
+     */
+    static void writeLogFile(File dir, int numLines) throws IOException {
+        String newLine = System.getProperty("line.separator");
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, Log.FILENAME))));
+        try {
+            for (int i = 0; i < numLines; i++) {
+                writer.write(SAMPLE_LINE);
+                writer.write(newLine);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Replaces the contents of the framed records log file with a number of records of
+     * SAMPLE_LINE, written in batches of 100.
+     *
+     * @param dir        The directory that the log file is kept in.
+     * @param numRecords The number of records to write.
+     * @throws IOException If the file could not be written.
+     */
+    static void writeRecordsFile(File dir, int numRecords) throws IOException {
+        String newLine = System.getProperty("line.separator");
+        StringBuilder batch = new StringBuilder();
+        int[] ends = new int[100];
+        for (int i = 0; i < ends.length; i++) {
+            batch.append(SAMPLE_LINE).append(newLine);
+            ends[i] = batch.length();
+        }
+        byte[] batchBytes = LogRecords.encodeBatch(batch.toString(), ends, ends.length);
+
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(new File(dir, Log.RECORDS_FILENAME)));
+        try {
+            for (int i = 0; i < numRecords; i += ends.length) {
+                outputStream.write(batchBytes);
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Blocks until every entry that has been logged has been written to the log file. Unlike
+     * Log.waitUntilFinishedWriting(), this doesn't wait for the write thread to time out.
+     */
+    static void awaitWritten() throws InterruptedException {
+        while (Log.getStats().getQueueDepth() > 0) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.oanda.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of capturing the caller's location with Log.w calls, with capturing off, on
+ * for WARN and above, and on for one call in ten. logWarning measures the calling thread, as
+ * LogCallBenchmark does, and logWarningAndWrite includes the write thread resolving the location
+ * of each entry. The calls are made a few frames below the benchmark method, as they would be in
+ * an app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+public class CallerLocationBenchmark {
+
+    private static final int CALLS_PER_INVOCATION = 10000;
+
+    private static final String TAG = "CallerLocationBenchmark";
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+    /**
+     * The number of frames between the benchmark method and the call to Log.
+     */
+    private static final int DEPTH = 20;
+
+    @Param({"off", "warn", "sampled"})
+    public String capture;
+
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDir = BenchmarkSupport.createTempDir();
+        Log.init(new FileLogStorage(mDir));
+        if (!capture.equals("off")) {
+            Log.setCallerLocation(Log.WARN);
+        }
+        if (capture.equals("sampled")) {
+            Log.setCallerLocationSampling(10);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void awaitWritten() throws Exception {
+        BenchmarkSupport.awaitWritten();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.destroy();
+        Log.resetCallerLocation();
+        BenchmarkSupport.deleteDir(mDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS_PER_INVOCATION)
+    public void logWarning() {
+        logWarning(DEPTH);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS_PER_INVOCATION)
+    public void logWarningAndWrite() throws Exception {
+        logWarning(DEPTH);
+        BenchmarkSupport.awaitWritten();
+    }
+
+    private static void logWarning(int depth) {
+        if (depth > 0) {
+            logWarning(depth - 1);
+            return;
+        }
+        for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+            Log.w(TAG, MESSAGE);
+        }
+    }
+}
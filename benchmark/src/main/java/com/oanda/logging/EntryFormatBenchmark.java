@@ -0,0 +1,61 @@
+package com.oanda.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures formatting a single entry the way the write thread does, in the default layout and in
+ * the JSON Lines layout. Entries with a Throwable aren't measured because the android.util.Log
+ * stub doesn't build stack traces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class EntryFormatBenchmark {
+
+    private final Log.Entry mShortEntry = new Log.Entry(System.currentTimeMillis(), Log.DEBUG,
+            "EntryFormatBenchmark", "short message", null);
+
+    private final Log.Entry mLongEntry = new Log.Entry(System.currentTimeMillis(), Log.ERROR,
+            "EntryFormatBenchmark", BenchmarkSupport.SAMPLE_LINE + BenchmarkSupport.SAMPLE_LINE +
+            BenchmarkSupport.SAMPLE_LINE + BenchmarkSupport.SAMPLE_LINE, null);
+
+    @Param({"default", "json"})
+    public String layout;
+
+    private final StringBuilder mStringBuilder = new StringBuilder(1024);
+    private LogLayout mLayout;
+
+    @Setup
+    public void setUp() {
+        mLayout = layout.equals("json") ? LogLayout.jsonLines() : LogLayout.DEFAULT;
+    }
+
+    @Benchmark
+    public int formatShortEntry() {
+        mStringBuilder.setLength(0);
+        mShortEntry.appendTo(mStringBuilder, mLayout);
+        return mStringBuilder.length();
+    }
+
+    @Benchmark
+    public int formatLongEntry() {
+        mStringBuilder.setLength(0);
+        mLongEntry.appendTo(mStringBuilder, mLayout);
+        return mStringBuilder.length();
+    }
+}
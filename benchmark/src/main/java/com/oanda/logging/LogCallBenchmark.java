@@ -0,0 +1,87 @@
+package com.oanda.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of a Log.d call on the calling thread. Each invocation logs a burst of
+ * entries, and the write thread is allowed to catch up between iterations so that the queue
+ * doesn't grow without bound. The score is the time per call. Run with stripedBuffers=true to
+ * measure each thread queueing entries in a buffer of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+public class LogCallBenchmark {
+
+    private static final int CALLS_PER_INVOCATION = 10000;
+
+    private static final String TAG = "LogCallBenchmark";
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+
+    @Param({"false", "true"})
+    public boolean stripedBuffers;
+
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDir = BenchmarkSupport.createTempDir();
+        Log.init(new FileLogStorage(mDir), new LogConfig.Builder().setStripedBuffers(stripedBuffers).build());
+    }
+
+    @TearDown(Level.Iteration)
+    public void awaitWritten() throws Exception {
+        BenchmarkSupport.awaitWritten();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.destroy();
+        BenchmarkSupport.deleteDir(mDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS_PER_INVOCATION)
+    public void logDebug() {
+        for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+            Log.d(TAG, MESSAGE);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(CALLS_PER_INVOCATION)
+    public void logDebugFourThreads() {
+        for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+            Log.d(TAG, MESSAGE);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CALLS_PER_INVOCATION)
+    public void logDebugStructured() {
+        for (int i = 0; i < CALLS_PER_INVOCATION; i++) {
+            Log.d(TAG).msg(MESSAGE).kv("index", i).kv("px", 1.2345).log();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.oanda.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of Log.readLog() at several file sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ReadLogBenchmark {
+
+    @Param({"100", "500", "5000"})
+    public int numLines;
+
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDir = BenchmarkSupport.createTempDir();
+        Log.init(new FileLogStorage(mDir));
+
+        // Write the file after init() so that it isn't trimmed
+        BenchmarkSupport.writeLogFile(mDir, numLines);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.destroy();
+        BenchmarkSupport.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public String readLog() {
+        return Log.readLog();
+    }
+}
@@ -0,0 +1,95 @@
+package com.oanda.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the write thread, as WriterBenchmark does, while another thread reads
+ * the whole log over and over. The log is kept under a retention policy so that it grows to
+ * several megabytes and each read takes a while. Compare the scores with and without reading.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+public class ReadWhileWritingBenchmark {
+
+    private static final int ENTRIES_PER_INVOCATION = 10000;
+
+    /**
+     * The number of entries in the log before the benchmark starts.
+     */
+    private static final int INITIAL_ENTRIES = 50000;
+
+    private static final String TAG = "ReadWhileWritingBenchmark";
+
+    @Param({"false", "true"})
+    public boolean reading;
+
+    private File mDir;
+    private Thread mReadThread;
+    private volatile boolean mStopped;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDir = BenchmarkSupport.createTempDir();
+        Log.init(new FileLogStorage(mDir), new LogConfig.Builder()
+                .setRetentionPolicy(new RetentionPolicy.Builder()
+                        .setMaxTotalBytes(8 * 1024 * 1024)
+                        .build())
+                .build());
+
+        for (int i = 0; i < INITIAL_ENTRIES; i++) {
+            Log.d(TAG, BenchmarkSupport.SAMPLE_LINE);
+        }
+        BenchmarkSupport.awaitWritten();
+
+        if (reading) {
+            mReadThread = new Thread("ReadWhileWritingBenchmark reader") {
+                @Override
+                public void run() {
+                    while (!mStopped) {
+                        Log.readLog();
+                    }
+                }
+            };
+            mReadThread.start();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        if (mReadThread != null) {
+            mReadThread.join();
+        }
+        Log.destroy();
+        BenchmarkSupport.deleteDir(mDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES_PER_INVOCATION)
+    public void logAndWrite() throws Exception {
+        for (int i = 0; i < ENTRIES_PER_INVOCATION; i++) {
+            Log.d(TAG, BenchmarkSupport.SAMPLE_LINE);
+        }
+        BenchmarkSupport.awaitWritten();
+    }
+}
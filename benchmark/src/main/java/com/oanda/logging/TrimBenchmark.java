@@ -0,0 +1,77 @@
+package com.oanda.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures trimming the log file at several file sizes. The log file is rewritten before every
+ * invocation, and no entries are logged, so the write thread never runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 30)
+@Fork(1)
+public class TrimBenchmark {
+
+    /**
+     * The number of lines in the log file before trimming. Log.CIRCULAR_BUFFER_SIZE lines only
+     * need to be counted, the others need to be rewritten.
+     */
+    @Param({"500", "5000", "50000"})
+    public int numLines;
+
+    /**
+     * Whether the log file is kept as framed records, in which case each line is a record.
+     */
+    @Param({"false", "true"})
+    public boolean framedRecords;
+
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mDir = BenchmarkSupport.createTempDir();
+        Log.init(new FileLogStorage(mDir), new LogConfig.Builder().setFramedRecords(framedRecords).build());
+    }
+
+    @Setup(Level.Invocation)
+    public void writeLogFile() throws Exception {
+        if (framedRecords) {
+            BenchmarkSupport.writeRecordsFile(mDir, numLines);
+        } else {
+            BenchmarkSupport.writeLogFile(mDir, numLines);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.destroy();
+        BenchmarkSupport.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public void trimFileToSize() {
+        Log.trimFileToSize();
+    }
+
+    @Benchmark
+    public void removeHalfOfLines() {
+        Log.removeLines(numLines / 2);
+    }
+}
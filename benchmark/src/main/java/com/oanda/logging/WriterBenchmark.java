@@ -0,0 +1,68 @@
+package com.oanda.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the write thread: the time from logging a burst of entries until all
+ * of them are in the log file, per entry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+public class WriterBenchmark {
+
+    private static final int ENTRIES_PER_INVOCATION = 10000;
+
+    private static final String TAG = "WriterBenchmark";
+
+    @Param({"16", "256"})
+    public int messageLength;
+
+    private String mMessage;
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        char[] message = new char[messageLength];
+        Arrays.fill(message, 'x');
+        mMessage = new String(message);
+
+        mDir = BenchmarkSupport.createTempDir();
+        Log.init(new FileLogStorage(mDir));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Log.destroy();
+        BenchmarkSupport.deleteDir(mDir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES_PER_INVOCATION)
+    public void logAndWrite() throws Exception {
+        for (int i = 0; i < ENTRIES_PER_INVOCATION; i++) {
+            Log.d(TAG, mMessage);
+        }
+        BenchmarkSupport.awaitWritten();
+    }
+}
@@ -0,0 +1,250 @@
+package com.oanda.logging;
+
+import junit.framework.TestCase;
+
+import java.lang.reflect.Method;
+
+/**
+ * Checks how many bytes each logging call allocates on the calling thread, such as the UI
+ * thread, against a budget for each overload. The write thread's allocations aren't counted,
+ * since they don't cause GC pauses on the caller's thread any more than other threads' do.
+ * <p/>
+ * Allocations are measured with the JVM's per-thread allocation counter,
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes(), so these tests only measure
+ * anything under localTest. Where the counter isn't available, such as on a device, they pass
+ * without measuring. Each call is warmed up until it is compiled, and the fewest bytes of several
+ * rounds is taken, so that the numbers are those of the steady state.
+ * <p/>
+ * The budgets are in BUDGETS below, with some room over what the calls allocated when they were
+ * set. A change that takes a call over its budget should either be fixed or raise the budget
+ * with a reason in its commit.
+ */
+public class LogAllocationTests extends TestCase {
+
+    private static final String TAG = "LogAllocationTests";
+    private static final String MESSAGE = "The quick brown fox jumps over the lazy dog";
+    private static final Throwable THROWABLE = new Exception("LogAllocationTests");
+
+    /**
+     * The number of calls to warm up with, and to measure in each round.
+     */
+    private static final int WARMUP_CALLS = 20000;
+    private static final int CALLS_PER_ROUND = 10000;
+    private static final int ROUNDS = 5;
+
+    /**
+     * The most bytes that each call may allocate on the calling thread. Once Log is initialized,
+     * a call allocates its Entry and the queue's node for it, 80 bytes on a 64-bit JVM with
+     * compressed references, and the Throwable overloads allocate nothing more, since the
+     * Throwable is formatted on the write thread. Neither does the builder, which reuses itself
+     * and the fields that the write thread gives back, and leaves formatting them for the log
+     * file and for android.util.Log to the write thread. Before Log is initialized, a call only
+     * passes the entry on to android.util.Log, which allocates nothing.
+     */
+    private static final Object[][] BUDGETS = {
+            {"v", 112L},
+            {"d", 112L},
+            {"i", 112L},
+            {"w", 112L},
+            {"e", 112L},
+            {"println", 112L},
+            {"d with Throwable", 112L},
+            {"e with Throwable", 112L},
+            {"w with only Throwable", 112L},
+            {"builder", 112L},
+            {"d uninitialized", 0L},
+            {"e with Throwable uninitialized", 0L},
+    };
+
+    private Object mThreadMXBean;
+    private Method mGetThreadAllocatedBytes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // Reflection keeps this class loadable where java.lang.management doesn't exist
+        try {
+            Class<?> managementFactory = Class.forName("java.lang.management.ManagementFactory");
+            mThreadMXBean = managementFactory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> threadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (threadMXBean.isInstance(mThreadMXBean)) {
+                mGetThreadAllocatedBytes = threadMXBean.getMethod("getThreadAllocatedBytes", long.class);
+                threadMXBean.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(mThreadMXBean, true);
+            }
+        } catch (ClassNotFoundException e) {
+            mGetThreadAllocatedBytes = null;
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        Log.destroy();
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized
+     * When I log a message at each priority, and with println()
+     * Then each call allocates no more than its budget on the calling thread
+     */
+    public void testAllocationsAccepted() throws Exception {
+        Log.init(new MemoryLogStorage());
+
+        assertWithinBudget("v", new Runnable() {
+            @Override
+            public void run() {
+                Log.v(TAG, MESSAGE);
+            }
+        });
+        assertWithinBudget("d", new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, MESSAGE);
+            }
+        });
+        assertWithinBudget("i", new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, MESSAGE);
+            }
+        });
+        assertWithinBudget("w", new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, MESSAGE);
+            }
+        });
+        assertWithinBudget("e", new Runnable() {
+            @Override
+            public void run() {
+                Log.e(TAG, MESSAGE);
+            }
+        });
+        assertWithinBudget("println", new Runnable() {
+            @Override
+            public void run() {
+                Log.println(Log.INFO, TAG, MESSAGE);
+            }
+        });
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized
+     * When I log messages with a Throwable, and a Throwable on its own
+     * Then each call allocates no more than its budget on the calling thread
+     */
+    public void testAllocationsWithThrowable() throws Exception {
+        Log.init(new MemoryLogStorage());
+
+        assertWithinBudget("d with Throwable", new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, MESSAGE, THROWABLE);
+            }
+        });
+        assertWithinBudget("e with Throwable", new Runnable() {
+            @Override
+            public void run() {
+                Log.e(TAG, MESSAGE, THROWABLE);
+            }
+        });
+        assertWithinBudget("w with only Throwable", new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, THROWABLE);
+            }
+        });
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized
+     * When I log a structured entry with a LogBuilder
+     * Then the call allocates no more than its budget on the calling thread
+     */
+    public void testAllocationsBuilder() throws Exception {
+        Log.init(new MemoryLogStorage());
+
+        assertWithinBudget("builder", new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG).msg(MESSAGE).kv("count", 1).log();
+            }
+        });
+    }
+
+    /**
+     * Scenario:
+     * Given Log is uninitialized, so entries are only passed on to android.util.Log
+     * When I log a message, and a message with a Throwable
+     * Then each call allocates no more than its budget on the calling thread
+     */
+    public void testAllocationsUninitialized() throws Exception {
+        assertWithinBudget("d uninitialized", new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, MESSAGE);
+            }
+        });
+        assertWithinBudget("e with Throwable uninitialized", new Runnable() {
+            @Override
+            public void run() {
+                Log.e(TAG, MESSAGE, THROWABLE);
+            }
+        });
+    }
+
+    /**
+     * Measures the bytes that a call allocates on this thread, and fails if it is over its
+     * budget. Does nothing if the JVM can't count the bytes allocated by a thread.
+     *
+     * @param name The name of the call in BUDGETS.
+     * @param call The call.
+     */
+    private void assertWithinBudget(String name, Runnable call) throws Exception {
+        if (mGetThreadAllocatedBytes == null) {
+            return;
+        }
+
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            call.run();
+        }
+        // Don't let the queue grow from one round to the next
+        Log.flush(5000);
+
+        long threadId = Thread.currentThread().getId();
+        long fewestBytes = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startBytes = (Long) mGetThreadAllocatedBytes.invoke(mThreadMXBean, threadId);
+            for (int i = 0; i < CALLS_PER_ROUND; i++) {
+                call.run();
+            }
+            long endBytes = (Long) mGetThreadAllocatedBytes.invoke(mThreadMXBean, threadId);
+            // Rounding down leaves out what measuring allocates, which is far less than a byte
+            // per call
+            fewestBytes = Math.min(fewestBytes, (endBytes - startBytes) / CALLS_PER_ROUND);
+            Log.flush(5000);
+        }
+
+        long budget = getBudget(name);
+        assertTrue(name + " allocated " + fewestBytes + " bytes per call, over its budget of " + budget,
+                fewestBytes <= budget);
+    }
+
+    /**
+     * @param name The name of a call.
+     * @return The call's budget in BUDGETS.
+     */
+    private static long getBudget(String name) {
+        for (Object[] budget : BUDGETS) {
+            if (budget[0].equals(name)) {
+                return (Long) budget[1];
+            }
+        }
+        throw new IllegalArgumentException("No budget for " + name);
+    }
+}
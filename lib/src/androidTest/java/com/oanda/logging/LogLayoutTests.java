@@ -0,0 +1,273 @@
+package com.oanda.logging;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Testing class for the layouts in com.oanda.logging.LogLayout.
+ */
+public class LogLayoutTests extends TestCase {
+
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
+    /**
+     * 2015-01-20 15:36:53.123-0500
+     */
+    private static final long TIMESTAMP = 1421786213123L;
+
+    private TimeZone mTimeZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        TimeZone.setDefault(mTimeZone);
+        Log.destroy();
+    }
+
+    /**
+     * Scenario:
+     * Given I have times across several years, including around changes to daylight saving time,
+     * and in a time zone whose offset isn't a whole number of minutes
+     * When I append their timestamps
+     * Then each timestamp is the same as SimpleDateFormat's
+     */
+    public void testTimestamp() {
+        long[] times = {TIMESTAMP, TIMESTAMP + 1, TIMESTAMP + 59999, 0, -1, -60001,
+                1425798000000L - 1, 1425798000000L, 1446357600000L - 1, 1446357600000L, 4102444799999L};
+        for (long time : times) {
+            assertEquals(simpleDateFormat(time), timestamp(time));
+        }
+        for (long time = TIMESTAMP; time < TIMESTAMP + 7 * 24 * 3600 * 1000L; time += 7777777) {
+            assertEquals(simpleDateFormat(time), timestamp(time));
+        }
+
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Amsterdam"));
+        // 1900, when Amsterdam was 19 minutes and 32 seconds ahead of UTC
+        long time = -2208988800000L + 123456;
+        assertEquals(simpleDateFormat(time), timestamp(time));
+    }
+
+    /**
+     * Scenario:
+     * Given I have entries with and without a tag, message, fields and Throwable
+     * When I format them with the default layout
+     * Then each is written as Log has always written entries
+     */
+    public void testDefault() {
+        LogFields fields = new LogFields(2);
+        fields.add("orderId", LogFields.TYPE_LONG, 1234, null);
+        fields.add("note", LogFields.TYPE_STRING, 0, "two words");
+
+        assertEquals("2015-01-20 15:36:53.123-0500 [INFO] Tag message",
+                format(LogLayout.DEFAULT, Log.INFO, "Tag", "message", null, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 [WARNING] message",
+                format(LogLayout.DEFAULT, 42, null, "message", null, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 [ASSERT] Tag",
+                format(LogLayout.DEFAULT, Log.ASSERT, "Tag", null, null, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 [DEBUG] Tag message orderId=1234 note=\"two words\"",
+                format(LogLayout.DEFAULT, Log.DEBUG, "Tag", "message", fields, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 [DEBUG] Tag orderId=1234 note=\"two words\"",
+                format(LogLayout.DEFAULT, Log.DEBUG, "Tag", null, fields, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 [ERROR] Tag message" + NEW_LINE,
+                format(LogLayout.DEFAULT, Log.ERROR, "Tag", "message", null, new Exception()));
+    }
+
+    /**
+     * Scenario:
+     * Given I have entries with the caller's location, with and without a message and fields
+     * When I format them with the default layout and the JSON Lines layout
+     * Then the location follows the message and fields, or is a property of its own
+     */
+    public void testLocation() {
+        LogFields fields = new LogFields(1);
+        fields.add("orderId", LogFields.TYPE_LONG, 1234, null);
+        String location = "com.example.Foo.bar(Foo.java:12)";
+
+        assertEquals("2015-01-20 15:36:53.123-0500 [WARNING] Tag message " + location,
+                format(LogLayout.DEFAULT, Log.WARN, "Tag", "message", null, location, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 [WARNING] Tag message orderId=1234 " + location,
+                format(LogLayout.DEFAULT, Log.WARN, "Tag", "message", fields, location, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 [WARNING] Tag " + location,
+                format(LogLayout.DEFAULT, Log.WARN, "Tag", null, null, location, null));
+        assertEquals("2015-01-20 15:36:53.123-0500 WARNING:" + location,
+                format(LogLayout.pattern("%d %p:%l"), Log.WARN, "Tag", null, null, location, null));
+
+        assertEquals("{\"time\":\"2015-01-20 15:36:53.123-0500\",\"level\":\"WARNING\",\"tag\":\"Tag\"," +
+                        "\"message\":\"message\",\"location\":\"" + location + "\"}",
+                format(LogLayout.jsonLines(), Log.WARN, "Tag", "message", null, location, null));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a pattern with each conversion, literal text and a newline at its end
+     * When I compile it and format entries with it
+     * Then the conversions are replaced, the space before a missing tag or message is left out,
+     * and the newline at the end is left out
+     */
+    public void testPattern() {
+        LogLayout layout = LogLayout.pattern("%d|%p|100%% %t %m%n");
+
+        assertEquals("2015-01-20 15:36:53.123-0500|VERBOSE|100% Tag message",
+                format(layout, Log.VERBOSE, "Tag", "message", null, null));
+        assertEquals("2015-01-20 15:36:53.123-0500|VERBOSE|100% message",
+                format(layout, Log.VERBOSE, null, "message", null, null));
+        assertEquals("2015-01-20 15:36:53.123-0500|VERBOSE|100% Tag",
+                format(layout, Log.VERBOSE, "Tag", null, null, null));
+
+        assertEquals("2015-01-20 15:36:53.123-0500 Tag" + NEW_LINE + "message",
+                format(LogLayout.pattern("%d %t%n%m"), Log.INFO, "Tag", "message", null, null));
+    }
+
+    /**
+     * Scenario:
+     * Given I have patterns that end with %, have an unknown conversion, or don't begin with the
+     * timestamp
+     * When I compile them
+     * Then an IllegalArgumentException is thrown
+     */
+    public void testPatternInvalid() {
+        for (String pattern : new String[]{"%d %", "%d %x", "%p %d %m", "[%d] %m", "%m", ""}) {
+            try {
+                LogLayout.pattern(pattern);
+                fail("Compiled " + pattern);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given I have an entry with characters that need escaping, typed fields and a Throwable
+     * When I format it with the JSON Lines layout
+     * Then it is one line of JSON with its timestamp where the log is merged by, strings escaped
+     * and the fields' types kept
+     */
+    public void testJsonLines() {
+        LogFields fields = new LogFields(5);
+        fields.add("count", LogFields.TYPE_LONG, -12, null);
+        fields.add("px", LogFields.TYPE_DOUBLE, Double.doubleToRawLongBits(1.25), null);
+        fields.add("nan", LogFields.TYPE_DOUBLE, Double.doubleToRawLongBits(Double.NaN), null);
+        fields.add("ok", LogFields.TYPE_BOOLEAN, 1, null);
+        fields.add("note", LogFields.TYPE_STRING, 0, null);
+
+        String json = format(LogLayout.jsonLines(), Log.ERROR, "Tag", "say \"hi\"\\\n\t\u0001caf\u00e9",
+                fields, new Exception());
+        assertEquals("{\"time\":\"2015-01-20 15:36:53.123-0500\",\"level\":\"ERROR\",\"tag\":\"Tag\"," +
+                "\"message\":\"say \\\"hi\\\"\\\\\\n\\t\\u0001caf\u00e9\"," +
+                "\"fields\":{\"count\":-12,\"px\":1.25,\"nan\":\"NaN\",\"ok\":true,\"note\":null}," +
+                "\"exception\":\"\"}", json);
+        assertEquals(TIMESTAMP, LogSegments.parseTimestamp(json));
+
+        assertEquals("{\"time\":\"2015-01-20 15:36:53.123-0500\",\"level\":\"INFO\"}",
+                format(LogLayout.jsonLines(), Log.INFO, null, null, null, null));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with the JSON Lines layout, and another process has written
+     * entries in it from before and after now
+     * When I log an entry and read the log
+     * Then the entry is written as JSON, and merged between the other process's entries by time
+     */
+    public void testJsonLinesLog() throws IOException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+        long now = System.currentTimeMillis();
+        String before = format(LogLayout.jsonLines(), Log.INFO, "Sync", "before", null, null, now - 60000);
+        String after = format(LogLayout.jsonLines(), Log.INFO, "Sync", "after", null, null, now + 60000);
+        OutputStream outputStream = storage.openOutput("fxtrade_log-sync.txt");
+        outputStream.write((before + NEW_LINE + after + NEW_LINE).getBytes("UTF-8"));
+        outputStream.close();
+
+        Log.init(storage, new LogConfig.Builder().setLayout(LogLayout.jsonLines()).build());
+        Log.i("LogLayoutTests", "now");
+        Log.waitUntilFinishedWriting();
+
+        String[] lines = Log.readLog().split(NEW_LINE);
+        assertEquals(3, lines.length);
+        assertEquals(before, lines[0]);
+        assertTrue(lines[1], lines[1].startsWith("{\"time\":\""));
+        assertTrue(lines[1], lines[1].endsWith("\"level\":\"INFO\",\"tag\":\"LogLayoutTests\",\"message\":\"now\"}"));
+        assertEquals(after, lines[2]);
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with a pattern of its own and tag partitions, so that its entries
+     * are kept in two segments
+     * When I log entries of several lines to each segment in turn and read the log
+     * Then the segments are merged back into the same entries, in the order that they were logged
+     */
+    public void testPatternLogMerged() {
+        Log.init(new MemoryLogStorage(), new LogConfig.Builder()
+                .setLayout(LogLayout.pattern("%d | %p | %t%n  %m%e"))
+                .setTagPartitions(new TagPartitions.Builder().partition("net", 100, "Net").build())
+                .build());
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            String tag = i % 2 == 0 ? "Ui" : "Net";
+            Log.i(tag, "entry " + i + NEW_LINE + "  second line " + i);
+            // Keep the entries apart in time, so that they can only be merged in one order
+            Log.flush(5000);
+            sleep(2);
+            expected.append("| INFO | ").append(tag).append(NEW_LINE).append("  entry ").append(i)
+                    .append(NEW_LINE).append("  second line ").append(i).append(NEW_LINE);
+        }
+
+        String log = Log.readLog();
+        assertEquals(expected.toString(), log.replaceAll("(?m)^\\S+ \\S+ ", ""));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String format(LogLayout layout, int priority, String tag, String message, LogFields fields,
+                                 Throwable tr) {
+        return format(layout, priority, tag, message, fields, tr, TIMESTAMP);
+    }
+
+    private static String format(LogLayout layout, int priority, String tag, String message, LogFields fields,
+                                 String location, Throwable tr) {
+        StringBuilder stringBuilder = new StringBuilder();
+        layout.append(stringBuilder, TIMESTAMP, priority, tag, message, fields, location, tr);
+        return stringBuilder.toString();
+    }
+
+    private static String format(LogLayout layout, int priority, String tag, String message, LogFields fields,
+                                 Throwable tr, long timestamp) {
+        StringBuilder stringBuilder = new StringBuilder();
+        layout.append(stringBuilder, timestamp, priority, tag, message, fields, null, tr);
+        return stringBuilder.toString();
+    }
+
+    private static String timestamp(long time) {
+        StringBuilder stringBuilder = new StringBuilder();
+        LogLayout.appendTimestamp(stringBuilder, time);
+        return stringBuilder.toString();
+    }
+
+    private static String simpleDateFormat(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.US).format(new Date(time));
+    }
+}
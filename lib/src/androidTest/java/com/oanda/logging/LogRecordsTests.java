@@ -0,0 +1,295 @@
+package com.oanda.logging;
+
+import junit.framework.TestCase;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Testing class for the framed record format in com.oanda.logging.LogRecords.
+ */
+public class LogRecordsTests extends TestCase {
+
+    private static final String NAME = "records_test.records";
+
+    private MemoryLogStorage mStorage;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mStorage = new MemoryLogStorage();
+    }
+
+    /**
+     * Scenario:
+     * Given I have a file with two batches of records
+     * When I step through it with a Scanner
+     * Then I get the text of each entry in order, and the footers are skipped
+     */
+    public void testScan() throws IOException {
+        append(batch("first\n", "second\nwith a second line\n"));
+        append(batch("third\n"));
+
+        assertEquals(list("first\n", "second\nwith a second line\n", "third\n"), readAll());
+    }
+
+    /**
+     * Scenario:
+     * Given I have text with one, two, three and four byte characters in UTF-8
+     * When I count its bytes in UTF-8, all of it and part of it
+     * Then I get the length of the text encoded in UTF-8
+     */
+    public void testUtf8Length() throws IOException {
+        String text = "a\u00e9\u20ac\ud83d\ude00b";
+
+        assertEquals(text.getBytes("UTF-8").length, LogRecords.utf8Length(text, 0, text.length()));
+        assertEquals(5, LogRecords.utf8Length(text, 1, 3));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a file with two batches of records
+     * When I skip through it with a Scanner without reading the payloads
+     * Then each record's end offset is where the next record starts
+     */
+    public void testScanEndOffsets() throws IOException {
+        append(batch("first\n", "second\n"));
+
+        InputStream inputStream = mStorage.openInput(NAME);
+        try {
+            LogRecords.Scanner scanner = new LogRecords.Scanner(inputStream);
+            assertTrue(scanner.next());
+            assertEquals(LogRecords.HEADER_SIZE + 6, scanner.getEndOffset());
+            assertTrue(scanner.next());
+            assertEquals(2 * LogRecords.HEADER_SIZE + 13, scanner.getEndOffset());
+            assertFalse(scanner.next());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given I have a file with a record whose payload has been damaged
+     * When I step through it with a Scanner
+     * Then the damaged record's payload is reported as null
+     */
+    public void testScanDamagedRecord() throws IOException {
+        byte[] bytes = batch("first\n");
+        bytes[LogRecords.HEADER_SIZE] = 'F';
+        append(bytes);
+
+        InputStream inputStream = mStorage.openInput(NAME);
+        try {
+            LogRecords.Scanner scanner = new LogRecords.Scanner(inputStream);
+            assertTrue(scanner.next());
+            assertNull("A damaged record was read", scanner.readPayload());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given I have a file that ends with a complete batch
+     * When I recover it
+     * Then nothing is removed
+     */
+    public void testRecoverComplete() throws IOException {
+        append(batch("first\n", "second\n"));
+        append(batch("third\n"));
+        long length = mStorage.length(NAME);
+
+        assertEquals(0, LogRecords.recover(mStorage, NAME));
+        assertEquals(length, mStorage.length(NAME));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a file whose last batch was cut short at any point
+     * When I recover it
+     * Then the torn batch is removed and the batch before it is kept
+     */
+    public void testRecoverTornBatch() throws IOException {
+        byte[] complete = batch("first\n", "second\n");
+        byte[] torn = batch("third\n", "fourth\n");
+
+        for (int tornLength = 1; tornLength < torn.length; tornLength++) {
+            mStorage.delete(NAME);
+            append(complete);
+            OutputStream outputStream = mStorage.openOutput(NAME);
+            outputStream.write(torn, 0, tornLength);
+            outputStream.close();
+
+            assertEquals("Torn at " + tornLength, tornLength, LogRecords.recover(mStorage, NAME));
+            assertEquals(list("first\n", "second\n"), readAll());
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given I have a file with a single batch that was cut short
+     * When I recover it
+     * Then the file is left empty
+     */
+    public void testRecoverOnlyTornBatch() throws IOException {
+        byte[] torn = batch("first\n");
+        OutputStream outputStream = mStorage.openOutput(NAME);
+        outputStream.write(torn, 0, torn.length - 1);
+        outputStream.close();
+
+        assertEquals(torn.length - 1, LogRecords.recover(mStorage, NAME));
+        assertEquals(0, mStorage.length(NAME));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a file whose beginning was trimmed in the middle of its only batch
+     * When I recover it
+     * Then nothing is removed
+     */
+    public void testRecoverTrimmedBatch() throws IOException {
+        append(batch("first\n", "second\n", "third\n"));
+        mStorage.truncateHead(NAME, LogRecords.HEADER_SIZE + 6);
+        long length = mStorage.length(NAME);
+
+        assertEquals(0, LogRecords.recover(mStorage, NAME));
+        assertEquals(length, mStorage.length(NAME));
+        assertEquals(list("second\n", "third\n"), readAll());
+    }
+
+    /**
+     * Scenario:
+     * Given I have a large file whose last batch was cut short
+     * When I recover it
+     * Then only the end of the file is read
+     */
+    public void testRecoverReadsOnlyTail() throws IOException {
+        for (int i = 0; i < 10000; i++) {
+            append(batch("entry " + i + " The quick brown fox jumps over the lazy dog\n"));
+        }
+        byte[] torn = batch("torn\n");
+        OutputStream outputStream = mStorage.openOutput(NAME);
+        outputStream.write(torn, 0, torn.length / 2);
+        outputStream.close();
+
+        final long[] bytesRead = new long[1];
+        LogStorage countingStorage = new LogStorage() {
+            @Override
+            public InputStream openInput(String name) throws FileNotFoundException {
+                return new FilterInputStream(mStorage.openInput(name)) {
+                    @Override
+                    public int read() throws IOException {
+                        int read = super.read();
+                        if (read != -1) {
+                            bytesRead[0]++;
+                        }
+                        return read;
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int count) throws IOException {
+                        int read = super.read(buffer, offset, count);
+                        if (read > 0) {
+                            bytesRead[0] += read;
+                        }
+                        return read;
+                    }
+                };
+            }
+
+            @Override
+            public OutputStream openOutput(String name) throws FileNotFoundException {
+                return mStorage.openOutput(name);
+            }
+
+            @Override
+            public long length(String name) {
+                return mStorage.length(name);
+            }
+
+            @Override
+            public void truncateHead(String name, long numBytes) throws IOException {
+                mStorage.truncateHead(name, numBytes);
+            }
+
+            @Override
+            public void truncateTail(String name, long length) throws IOException {
+                mStorage.truncateTail(name, length);
+            }
+
+            @Override
+            public boolean delete(String name) {
+                return mStorage.delete(name);
+            }
+
+            @Override
+            public String[] list() {
+                return mStorage.list();
+            }
+
+            @Override
+            public Closeable lock(String name) {
+                return mStorage.lock(name);
+            }
+
+            @Override
+            public File getFile(String name) {
+                return null;
+            }
+        };
+
+        long length = mStorage.length(NAME);
+        assertEquals(torn.length / 2, LogRecords.recover(countingStorage, NAME));
+        assertTrue("Recovery read " + bytesRead[0] + " of " + length + " bytes", bytesRead[0] < 20000);
+    }
+
+    private static byte[] batch(String... entries) {
+        StringBuilder text = new StringBuilder();
+        int[] ends = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            text.append(entries[i]);
+            ends[i] = text.length();
+        }
+        return LogRecords.encodeBatch(text.toString(), ends, entries.length);
+    }
+
+    private static List<String> list(String... entries) {
+        List<String> list = new ArrayList<String>();
+        for (String entry : entries) {
+            list.add(entry);
+        }
+        return list;
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        OutputStream outputStream = mStorage.openOutput(NAME);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private List<String> readAll() throws IOException {
+        List<String> entries = new ArrayList<String>();
+        InputStream inputStream = mStorage.openInput(NAME);
+        try {
+            LogRecords.Scanner scanner = new LogRecords.Scanner(inputStream);
+            while (scanner.next()) {
+                entries.add(scanner.readPayload());
+            }
+        } finally {
+            inputStream.close();
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,253 @@
+package com.oanda.logging;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testing class for retention policies in com.oanda.logging.RetentionPolicy and
+ * com.oanda.logging.LogRetention.
+ */
+public class LogRetentionTests extends TestCase {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private MemoryLogStorage mStorage;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mStorage = new MemoryLogStorage() {
+            @Override
+            public synchronized void truncateHead(String name, long numBytes) {
+                throw new AssertionError("Retention rewrote " + name);
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        Log.destroy();
+    }
+
+    /**
+     * Scenario:
+     * Given I have a policy with tiers starting at DEBUG, INFO and ERROR
+     * When I get the tier of each priority
+     * Then each priority falls in the tier that starts at or below it, and VERBOSE has a tier of
+     * its own
+     */
+    public void testTiers() {
+        RetentionPolicy policy = new RetentionPolicy.Builder()
+                .keep(Log.DEBUG, 1, TimeUnit.HOURS)
+                .keep(Log.INFO, 1, TimeUnit.DAYS)
+                .keep(Log.ERROR, 7, TimeUnit.DAYS)
+                .build();
+
+        assertEquals(4, policy.getNumTiers());
+        assertEquals(0, policy.getTier(Log.VERBOSE));
+        assertEquals(1, policy.getTier(Log.DEBUG));
+        assertEquals(2, policy.getTier(Log.INFO));
+        assertEquals(2, policy.getTier(Log.WARN));
+        assertEquals(2, policy.getTier(42));
+        assertEquals(3, policy.getTier(Log.ERROR));
+        assertEquals(3, policy.getTier(Log.ASSERT));
+        assertEquals(Long.MAX_VALUE, policy.getMaxAgeMillis(0));
+        assertEquals(7 * DAY, policy.getMaxAgeMillis(3));
+    }
+
+    /**
+     * Scenario:
+     * Given I have chunks of a DEBUG tier and an ERROR tier spread over several hours
+     * When I apply the policy as time goes on
+     * Then only the chunks whose entries are all past their tier's age are deleted, and no file
+     * is rewritten
+     */
+    public void testExpireByAge() throws IOException {
+        LogRetention retention = new LogRetention(mStorage, Log.FILENAME, false, new RetentionPolicy.Builder()
+                .keep(Log.VERBOSE, 1, TimeUnit.HOURS)
+                .keep(Log.ERROR, 7, TimeUnit.DAYS)
+                .build());
+        retention.load(0);
+
+        long start = 100 * DAY;
+        retention.append(1, bytes("error\n"), start);
+        for (long time = start; time <= start + 3 * HOUR; time += 10 * 60 * 1000) {
+            retention.append(0, bytes("debug\n"), time);
+        }
+        assertEquals("Each chunk of debug entries was not started after its age", 20, mStorage.list().length);
+
+        assertEquals(0, retention.apply(start + HOUR));
+        assertEquals(20, mStorage.list().length);
+
+        assertTrue("No expired chunk was deleted", retention.apply(start + 3 * HOUR) > 0);
+        List<String> names = Arrays.asList(mStorage.list());
+        assertEquals("The wrong chunks were deleted: " + names, 8, names.size());
+        assertTrue("The error was deleted", names.contains("fxtrade_log+E+" + start + ".txt"));
+        assertTrue("A recent chunk was deleted", names.contains("fxtrade_log+V+" + (start + 2 * HOUR) + ".txt"));
+
+        retention.apply(start + 8 * DAY);
+        assertEquals(Arrays.asList(), Arrays.asList(mStorage.list()));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with a policy that keeps errors longer and a small total
+     * When I log an error followed by a burst of debug entries several times the total
+     * Then the log stays within its total, no chunk is larger than a chunk's size, and the error
+     * and the latest entries are still in it
+     */
+    public void testBurstKeepsErrors() {
+        final int maxTotalBytes = 16 * 1024;
+        Log.init(mStorage, new LogConfig.Builder().setRetentionPolicy(new RetentionPolicy.Builder()
+                .keep(Log.VERBOSE, 1, TimeUnit.HOURS)
+                .keep(Log.ERROR, 7, TimeUnit.DAYS)
+                .setMaxTotalBytes(maxTotalBytes)
+                .build()).build());
+
+        Log.e("LogRetentionTests", "the only error");
+        for (int i = 0; i < 2000; i++) {
+            Log.d("LogRetentionTests", "debug " + i);
+        }
+        Log.waitUntilFinishedWriting();
+
+        assertTrue("The log grew to " + totalBytes(), totalBytes() <= maxTotalBytes);
+        for (String name : mStorage.list()) {
+            assertTrue(name + " grew to " + mStorage.length(name), mStorage.length(name) <= maxTotalBytes / 16);
+        }
+        String log = Log.readLog();
+        assertTrue("The error was trimmed", log.contains("[ERROR] LogRetentionTests the only error"));
+        assertTrue("The latest entry is missing", log.contains("[DEBUG] LogRetentionTests debug 1999\n"));
+        assertFalse("The oldest entries were kept", log.contains("[DEBUG] LogRetentionTests debug 0\n"));
+        assertNull("getLogFile() returned a File for a log kept in chunks", Log.getLogFile());
+    }
+
+    /**
+     * Scenario:
+     * Given I have a policy whose total is a single chunk
+     * When I append an entry that is larger than the total on its own, and apply the policy
+     * Then the chunk that is being appended to is kept, and the older chunk is deleted
+     */
+    public void testBudgetKeepsChunkAppendedTo() throws IOException {
+        LogRetention retention = new LogRetention(mStorage, Log.FILENAME, false, new RetentionPolicy.Builder()
+                .setMaxTotalBytes(RetentionPolicy.MIN_CHUNK_BYTES)
+                .build());
+        retention.load(0);
+
+        long start = 100 * DAY;
+        retention.append(0, bytes("old\n"), start);
+        char[] large = new char[(int) (2 * RetentionPolicy.MIN_CHUNK_BYTES)];
+        Arrays.fill(large, 'x');
+        retention.append(0, bytes(new String(large) + "\n"), start + 1);
+        assertTrue(retention.isOverBudget());
+
+        retention.apply(start + 1);
+        assertEquals(Arrays.asList("fxtrade_log+V+" + (start + 1) + ".txt"), Arrays.asList(mStorage.list()));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a log file from before there was a policy and chunks of records from a
+     * previous run, the last of which was torn by a crash
+     * When I initialize Log with a policy and framed records and read the log
+     * Then every complete entry is read in order, and the old log file is the first to go when
+     * the log is over its total
+     */
+    public void testLoad() throws IOException {
+        // Within the errors' age, which the old log file is kept for too
+        long start = System.currentTimeMillis() - HOUR;
+        String debugChunk = "fxtrade_log+V+" + start + ".records";
+        String errorChunk = "fxtrade_log+E+" + (start + 100) + ".records";
+        write(Log.RECORDS_FILENAME, records("2015-01-20 15:36:53.100-0500 [INFO] Test old\n"));
+        write(debugChunk, records("2015-01-20 15:36:53.200-0500 [DEBUG] Test first\n"));
+        write(errorChunk, records("2015-01-20 15:36:53.300-0500 [ERROR] Test second\n"));
+        byte[] torn = records("2015-01-20 15:36:53.400-0500 [ERROR] Test torn\n");
+        OutputStream outputStream = mStorage.openOutput(errorChunk);
+        outputStream.write(torn, 0, torn.length - 1);
+        outputStream.close();
+
+        Log.init(mStorage, new LogConfig.Builder()
+                .setFramedRecords(true)
+                .setRetentionPolicy(new RetentionPolicy.Builder()
+                        .keep(Log.ERROR, 7, TimeUnit.DAYS)
+                        .build())
+                .build());
+
+        assertEquals("2015-01-20 15:36:53.100-0500 [INFO] Test old\n" +
+                "2015-01-20 15:36:53.200-0500 [DEBUG] Test first\n" +
+                "2015-01-20 15:36:53.300-0500 [ERROR] Test second\n", Log.readLog());
+
+        LogRetention retention = new LogRetention(mStorage, Log.RECORDS_FILENAME, true, new RetentionPolicy.Builder()
+                .setMaxTotalBytes(mStorage.length(errorChunk))
+                .build());
+        retention.load(System.currentTimeMillis());
+        retention.apply(System.currentTimeMillis());
+
+        List<String> names = new ArrayList<String>(Arrays.asList(mStorage.list()));
+        assertFalse("The old log file was kept", names.contains(Log.RECORDS_FILENAME));
+        assertTrue("The latest chunk was deleted", names.contains(errorChunk));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a log file from before there was a policy, which has an error in it, and
+     * chunks of debug entries and errors from after
+     * When I apply a policy that keeps errors longer, after the debug entries' age
+     * Then the debug chunk is deleted and the old log file, with its error, is kept for as long
+     * as the errors
+     */
+    public void testLoadKeepsOldSegmentWithErrors() throws IOException {
+        long start = 100 * DAY;
+        write(Log.FILENAME, bytes("old debug\nold error\n"));
+        write("fxtrade_log+V+" + start + ".txt", bytes("debug\n"));
+        write("fxtrade_log+E+" + start + ".txt", bytes("error\n"));
+
+        LogRetention retention = new LogRetention(mStorage, Log.FILENAME, false, new RetentionPolicy.Builder()
+                .keep(Log.VERBOSE, 1, TimeUnit.HOURS)
+                .keep(Log.ERROR, 7, TimeUnit.DAYS)
+                .build());
+        retention.load(start);
+        retention.apply(start + 2 * HOUR);
+
+        List<String> names = Arrays.asList(mStorage.list());
+        assertTrue("The old log file was deleted", names.contains(Log.FILENAME));
+        assertFalse("The expired debug chunk was kept", names.contains("fxtrade_log+V+" + start + ".txt"));
+
+        retention.apply(start + 8 * DAY);
+        assertEquals(Arrays.asList(), Arrays.asList(mStorage.list()));
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (String name : mStorage.list()) {
+            total += mStorage.length(name);
+        }
+        return total;
+    }
+
+    private void write(String name, byte[] bytes) throws IOException {
+        OutputStream outputStream = mStorage.openOutput(name);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static byte[] records(String entry) {
+        return LogRecords.encodeBatch(entry, new int[]{entry.length()}, 1);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes();
+    }
+}
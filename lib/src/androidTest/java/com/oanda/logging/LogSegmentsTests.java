@@ -0,0 +1,260 @@
+package com.oanda.logging;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testing class for the per-process segments of the log in com.oanda.logging.LogSegments.
+ */
+public class LogSegmentsTests extends TestCase {
+
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mDir = File.createTempFile("LogSegmentsTests", "");
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        Log.destroy();
+
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Scenario:
+     * Given I have process names
+     * When I get the names of their segments
+     * Then the main process keeps the log file's name and the others are named after themselves
+     */
+    public void testSegmentName() {
+        assertEquals(Log.FILENAME, LogSegments.segmentName(null, false));
+        assertEquals(Log.RECORDS_FILENAME, LogSegments.segmentName(null, true));
+        assertEquals("fxtrade_log-sync.txt", LogSegments.segmentName(":sync", false));
+        assertEquals("fxtrade_log-com.oandasync.records", LogSegments.segmentName("com.oanda:sync", true));
+    }
+
+    /**
+     * Scenario:
+     * Given I have segments and the names of partitions
+     * When I get the names of the partitions' files, and list them with the segments
+     * Then each is named after its segment and partition, and is listed with the segments, but
+     * the payload file is not
+     */
+    public void testPartitionName() throws IOException {
+        assertEquals("fxtrade_log=network.txt", LogSegments.partitionName(Log.FILENAME, "network"));
+        assertEquals("fxtrade_log-sync=network.records", LogSegments.partitionName("fxtrade_log-sync.records", "network"));
+        assertEquals("net.work", LogSegments.getPartition("fxtrade_log-sync=net.work.txt"));
+        assertNull(LogSegments.getPartition("fxtrade_log-sync.txt"));
+
+        MemoryLogStorage storage = new MemoryLogStorage();
+        for (String name : new String[]{Log.FILENAME, "fxtrade_log=network.txt", "fxtrade_log-sync=network.txt",
+                "fxtrade_log.payloads"}) {
+            storage.openOutput(name).close();
+        }
+        assertEquals(Arrays.asList("fxtrade_log-sync=network.txt", Log.FILENAME, "fxtrade_log=network.txt"),
+                Arrays.asList(LogSegments.list(storage, false)));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a storage with segments of both formats and other files
+     * When I list the segments of each format
+     * Then only the segments of that format are listed
+     */
+    public void testList() throws IOException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+        for (String name : new String[]{Log.FILENAME, "fxtrade_log-sync.txt", Log.TEMP_FILENAME,
+                Log.RECORDS_FILENAME, "fxtrade_log-sync.records", Log.LOCK_FILENAME, "fxtrade_log-.txt", "other.txt"}) {
+            storage.openOutput(name).close();
+        }
+
+        assertEquals(Arrays.asList("fxtrade_log-sync.txt", Log.FILENAME),
+                Arrays.asList(LogSegments.list(storage, false)));
+        assertEquals(Arrays.asList("fxtrade_log-sync.records", Log.RECORDS_FILENAME),
+                Arrays.asList(LogSegments.list(storage, true)));
+    }
+
+    /**
+     * Scenario:
+     * Given I have timestamps in the format of the log in several time zones
+     * When I parse them
+     * Then I get the same times as SimpleDateFormat, and text without a timestamp is recognized
+     */
+    public void testParseTimestamp() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.US);
+        long[] times = {0, 951782400000L, 1421786213123L, 4107542399999L, -86400001L};
+        for (String timeZone : new String[]{"UTC", "America/Toronto", "Asia/Kolkata", "Pacific/Chatham"}) {
+            format.setTimeZone(TimeZone.getTimeZone(timeZone));
+            for (long time : times) {
+                String text = format.format(new Date(time)) + " [INFO] Tag message";
+                assertEquals(text, time, LogSegments.parseTimestamp(text));
+            }
+        }
+
+        assertEquals(Long.MIN_VALUE, LogSegments.parseTimestamp("\tat com.oanda.logging.Log.d(Log.java:100)"));
+        assertEquals(Long.MIN_VALUE, LogSegments.parseTimestamp("2015-01-20 15:36:53.12x-0500 [INFO]"));
+        assertEquals(Long.MIN_VALUE, LogSegments.parseTimestamp(""));
+    }
+
+    /**
+     * Scenario:
+     * Given I have two text segments whose entries are interleaved in time, some spanning lines
+     * When I merge them
+     * Then the entries are ordered by time and each entry's lines stay together
+     */
+    public void testMergeText() throws IOException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+        write(storage, "a.txt", "2015-01-20 15:36:53.100-0500 [INFO] A 1\n" +
+                "2015-01-20 15:36:53.300-0500 [ERROR] A 2\n\tat first\n\tat second\n" +
+                "2015-01-20 15:36:53.500-0500 [INFO] A 3\n");
+        write(storage, "b.txt", "2015-01-20 20:36:53.200+0000 [INFO] B 1\n" +
+                "2015-01-20 15:36:53.300-0500 [INFO] B 2\n" +
+                "2015-01-20 15:36:53.600-0500 [INFO] B 3\n\tat third\n");
+
+        StringBuilder merged = new StringBuilder();
+        LogSegments.merge(storage, new String[]{"a.txt", "b.txt", "missing.txt"}, false, "\n", merged);
+
+        assertEquals("2015-01-20 15:36:53.100-0500 [INFO] A 1\n" +
+                "2015-01-20 20:36:53.200+0000 [INFO] B 1\n" +
+                "2015-01-20 15:36:53.300-0500 [ERROR] A 2\n\tat first\n\tat second\n" +
+                "2015-01-20 15:36:53.300-0500 [INFO] B 2\n" +
+                "2015-01-20 15:36:53.500-0500 [INFO] A 3\n" +
+                "2015-01-20 15:36:53.600-0500 [INFO] B 3\n\tat third\n", merged.toString());
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with framed records and another process has a segment of records
+     * When I log an entry and read the log
+     * Then the entries of both segments are merged by time
+     */
+    public void testMergeRecords() throws IOException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+        String other = "2000-01-01 00:00:00.000+0000 [INFO] Other process\n";
+        OutputStream outputStream = storage.openOutput(LogSegments.segmentName("other", true));
+        outputStream.write(LogRecords.encodeBatch(other, new int[]{other.length()}, 1));
+        outputStream.close();
+
+        Log.init(storage, new LogConfig.Builder().setFramedRecords(true).build());
+        Log.i("LogSegmentsTests", "this process");
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertTrue("The other process's entry was not first: " + log, log.startsWith(other));
+        assertTrue("This process's entry was not merged: " + log, log.contains("[INFO] LogSegmentsTests this process"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and another process logs to the same directory at the same time
+     * When both processes have finished logging
+     * Then each process wrote its own segment, and reading or exporting the log gives every entry
+     * of both in order of time
+     */
+    public void testTwoProcesses() throws Exception {
+        final int numEntries = 200;
+
+        Log.init(new FileLogStorage(mDir));
+
+        Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"), ChildProcess.class.getName(),
+                mDir.getPath(), String.valueOf(numEntries))
+                .redirectErrorStream(true)
+                .start();
+        try {
+            for (int i = 0; i < numEntries; i++) {
+                Log.i("LogSegmentsTests", "parent " + i);
+                if (i % 10 == 0) {
+                    Thread.sleep(2);
+                }
+            }
+            Log.waitUntilFinishedWriting();
+
+            assertEquals("The child process failed", 0, child.waitFor());
+        } finally {
+            child.destroy();
+        }
+
+        assertTrue("The child process did not write its own segment",
+                new File(mDir, LogSegments.segmentName("sync", false)).length() > 0);
+
+        String log = Log.readLog();
+        StringWriter exported = new StringWriter();
+        assertTrue(Log.exportLog(exported));
+        assertEquals("Exporting gave a different log than reading", log, exported.toString());
+
+        int numParent = 0, numChild = 0;
+        long lastTimestamp = Long.MIN_VALUE;
+        for (String line : log.split(NEW_LINE)) {
+            long timestamp = LogSegments.parseTimestamp(line);
+            assertTrue("Entries were out of order at " + line, timestamp >= lastTimestamp);
+            lastTimestamp = timestamp;
+
+            if (line.contains(" LogSegmentsTests parent ")) {
+                numParent++;
+            } else if (line.contains(" ChildProcess child ")) {
+                numChild++;
+            }
+        }
+        assertEquals("Entries from this process were lost", numEntries, numParent);
+        assertEquals("Entries from the other process were lost", numEntries, numChild);
+    }
+
+    private static void write(LogStorage storage, String name, String text) throws IOException {
+        OutputStream outputStream = storage.openOutput(name);
+        try {
+            outputStream.write(text.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * The other process in testTwoProcesses(). Logs as the "sync" process to the directory given
+     * as the first argument, as many entries as the second argument.
+     */
+    public static final class ChildProcess {
+
+        public static void main(String[] args) throws Exception {
+            int numEntries = Integer.parseInt(args[1]);
+
+            Log.init(new FileLogStorage(new File(args[0])), new LogConfig.Builder().setProcessName("sync").build());
+            for (int i = 0; i < numEntries; i++) {
+                Log.i("ChildProcess", "child " + i);
+                if (i % 10 == 0) {
+                    TimeUnit.MILLISECONDS.sleep(2);
+                }
+            }
+            Log.waitUntilFinishedWriting();
+
+            System.exit(0);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.oanda.logging;
+
+import android.content.Context;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Testing class for the LogStorage implementations.
+ */
+public class LogStorageTests extends TestCase {
+
+    private static final String NAME = "storage_test.txt";
+    private static final String LOCK_NAME = "storage_test.lock";
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mDir = File.createTempFile("LogStorageTests", "");
+        mDir.delete();
+        mDir.mkdir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    /**
+     * Scenario:
+     * Given I have a FileLogStorage
+     * When I append, read, truncate either end of, list, lock and delete a file
+     * Then each operation behaves as LogStorage describes
+     */
+    public void testFileLogStorage() throws IOException {
+        FileLogStorage storage = new FileLogStorage(mDir);
+
+        checkStorage(storage);
+        assertEquals(new File(mDir, NAME), storage.getFile(NAME));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a MemoryLogStorage
+     * When I append, read, truncate either end of, list, lock and delete a file
+     * Then each operation behaves as LogStorage describes
+     */
+    public void testMemoryLogStorage() throws IOException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+
+        checkStorage(storage);
+        assertNull("MemoryLogStorage returned a File", storage.getFile(NAME));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a ContextLogStorage
+     * When I append, read, truncate either end of, list, lock and delete a file
+     * Then each operation behaves as LogStorage describes
+     */
+    public void testContextLogStorage() throws IOException {
+        Context context = mock(Context.class);
+
+        // Mock the Context's file operations in the temporary directory
+        when(context.openFileInput(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new FileInputStream(new File(mDir, (String) invocationOnMock.getArguments()[0]));
+            }
+        });
+        when(context.openFileOutput(anyString(), anyInt())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new FileOutputStream(new File(mDir, (String) invocationOnMock.getArguments()[0]), true);
+            }
+        });
+        when(context.deleteFile(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new File(mDir, (String) invocationOnMock.getArguments()[0]).delete();
+            }
+        });
+        when(context.fileList()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return mDir.list();
+            }
+        });
+        when(context.getFileStreamPath(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new File(mDir, (String) invocationOnMock.getArguments()[0]);
+            }
+        });
+
+        checkStorage(new ContextLogStorage(context));
+    }
+
+    /**
+     * Run a storage through the LogStorage contract.
+     */
+    private void checkStorage(LogStorage storage) throws IOException {
+        // A file that doesn't exist can't be read and has no length
+        boolean caughtException = false;
+        try {
+            storage.openInput(NAME);
+        } catch (FileNotFoundException e) {
+            caughtException = true;
+        }
+        assertTrue("Opening a missing file did not throw an exception", caughtException);
+        assertEquals(0, storage.length(NAME));
+
+        // Appending creates the file, and appends to it after that
+        append(storage, "first\n");
+        append(storage, "second\n");
+        assertEquals("first\nsecond\n", read(storage.openInput(NAME)));
+        assertEquals(13, storage.length(NAME));
+
+        // A stream that is already open keeps its view of the file while it changes
+        InputStream snapshot = storage.openInput(NAME);
+        storage.truncateHead(NAME, 6);
+        append(storage, "third\n");
+        assertEquals("first\nsecond\n", read(snapshot));
+        assertEquals("second\nthird\n", read(storage.openInput(NAME)));
+
+        // Truncating the tail keeps the beginning of the file
+        storage.truncateTail(NAME, 7);
+        assertEquals("second\n", read(storage.openInput(NAME)));
+        storage.truncateTail(NAME, 100);
+        assertEquals(7, storage.length(NAME));
+        append(storage, "fourth\n");
+        assertEquals("second\nfourth\n", read(storage.openInput(NAME)));
+
+        // Truncating past the end leaves the file empty
+        storage.truncateHead(NAME, 100);
+        assertEquals("", read(storage.openInput(NAME)));
+        assertEquals(0, storage.length(NAME));
+
+        // Listing includes the file
+        assertTrue("The file was not listed", Arrays.asList(storage.list()).contains(NAME));
+
+        // A lock can be taken, released and taken again
+        storage.lock(LOCK_NAME).close();
+        storage.lock(LOCK_NAME).close();
+
+        // Deleting removes the file
+        assertTrue("The file was not deleted", storage.delete(NAME));
+        assertFalse("A missing file was deleted", storage.delete(NAME));
+        assertEquals(0, storage.length(NAME));
+        assertFalse("A deleted file was listed", Arrays.asList(storage.list()).contains(NAME));
+    }
+
+    private static void append(LogStorage storage, String text) throws IOException {
+        OutputStream outputStream = storage.openOutput(NAME);
+        try {
+            outputStream.write(text.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toString("UTF-8");
+        } finally {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.oanda.logging;
+
+import android.content.Context;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Load harness for com.oanda.logging.Log. Producer threads log at a target rate with mixed
+ * priorities, message sizes and Throwables while other threads read and clear the log, and the
+ * harness checks enqueue-to-disk latency, lost entries, ordering violations and whether the log
+ * file stayed within Log.CIRCULAR_BUFFER_SIZE lines, plus what was logged between trims. A
+ * failure's message has all of the run's numbers.
+ * <p/>
+ * The defaults run for a few seconds as part of localTest. Override them with system properties
+ * to validate capacity, for example:
+ * <pre>./gradlew localTest -Dlog.stress.threads=16 -Dlog.stress.rate=2000 -Dlog.stress.seconds=60</pre>
+ * <ul>
+ * <li>log.stress.threads: the number of producer threads (4)</li>
+ * <li>log.stress.rate: entries per second per producer thread, 0 for as fast as possible (500)</li>
+ * <li>log.stress.seconds: how long the producers run for (3)</li>
+ * <li>log.stress.throwableEvery: log a Throwable with every nth entry, 0 for never (50)</li>
+ * <li>log.stress.readMillis: the time between calls to readLog(), 0 for never (100)</li>
+ * <li>log.stress.clearMillis: the time between calls to clearLog(), 0 for never (1000)</li>
+ * <li>log.stress.maxP99Millis: the largest acceptable 99th percentile latency (5000)</li>
+ * </ul>
+ */
+public class LogStressTests extends TestCase {
+
+    private static final String TAG = "LogStress";
+
+    /**
+     * The message sizes that producers cycle through.
+     */
+    private static final int[] MESSAGE_SIZES = {16, 120, 1000};
+
+    /**
+     * The priorities that producers cycle through, weighted towards the verbose ones like a
+     * real app.
+     */
+    private static final int[] PRIORITIES = {Log.VERBOSE, Log.DEBUG, Log.DEBUG, Log.DEBUG,
+            Log.INFO, Log.INFO, Log.WARN, Log.ERROR};
+
+    /**
+     * Matches the priority, and the producer id and sequence number at the start of each message.
+     */
+    private static final Pattern SEQUENCE_PATTERN = Pattern.compile("\\[(\\w+)\\] " + TAG + " p(\\d+) (\\d+)");
+
+    private final int mNumThreads = Integer.getInteger("log.stress.threads", 4);
+    private final int mRate = Integer.getInteger("log.stress.rate", 500);
+    private final int mSeconds = Integer.getInteger("log.stress.seconds", 3);
+    private final int mThrowableEvery = Integer.getInteger("log.stress.throwableEvery", 50);
+    private final int mReadMillis = Integer.getInteger("log.stress.readMillis", 100);
+    private final int mClearMillis = Integer.getInteger("log.stress.clearMillis", 1000);
+    private final int mMaxP99Millis = Integer.getInteger("log.stress.maxP99Millis", 5000);
+
+    private final String dir = System.getProperty("user.dir");
+
+    private Context mMockContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mMockContext = mock(Context.class);
+
+        // Mock the Context's file operations on the file system where gradle is run
+        when(mMockContext.openFileInput(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new FileInputStream(new File(dir, (String) invocationOnMock.getArguments()[0]));
+            }
+        });
+        when(mMockContext.openFileOutput(anyString(), anyInt())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new FileOutputStream(new File(dir, (String) invocationOnMock.getArguments()[0]), true);
+            }
+        });
+        when(mMockContext.deleteFile(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new File(dir, (String) invocationOnMock.getArguments()[0]).delete();
+            }
+        });
+        when(mMockContext.getFileStreamPath(anyString())).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new File(dir, (String) invocationOnMock.getArguments()[0]);
+            }
+        });
+        when(mMockContext.fileList()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return new File(dir).list();
+            }
+        });
+        when(mMockContext.getFilesDir()).thenReturn(new File(dir));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        Log.destroy();
+
+        mMockContext = null;
+
+        new File(dir, Log.FILENAME).delete();
+        new File(dir, Log.TEMP_FILENAME).delete();
+        new File(dir, Log.LOCK_FILENAME).delete();
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When several threads log at a target rate while the log is being read and cleared
+     * Then no entry is lost, each thread's entries of each priority lane stay in order, the log
+     * file is trimmed to size and the 99th percentile latency is acceptable
+     */
+    public void testStress() throws Exception {
+        runStress(new LogConfig.Builder().build());
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with striped buffers and I have an empty log
+     * When several threads log at a target rate while the log is being read and cleared
+     * Then no entry is lost, each thread's entries of each priority lane stay in order, the log
+     * file is trimmed to size and the 99th percentile latency is acceptable
+     */
+    public void testStressStripedBuffers() throws Exception {
+        runStress(new LogConfig.Builder().setStripedBuffers(true).build());
+    }
+
+    /**
+     * Runs the producers, reader and clearer against Log initialized with the given options, and
+     * checks the results.
+     *
+     * @param config The options to initialize Log with.
+     */
+    private void runStress(LogConfig config) throws Exception {
+        Log.init(new ContextLogStorage(mMockContext), config);
+        Log.clearLog();
+        Log.waitUntilFinishedWriting();
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger orderingViolations = new AtomicInteger();
+        final AtomicInteger maxLinesSeen = new AtomicInteger();
+        final AtomicInteger numReads = new AtomicInteger();
+        final AtomicInteger numClears = new AtomicInteger();
+
+        final long endNanos = System.nanoTime() + mSeconds * 1000000000L;
+
+        // Producers log until endNanos, keeping to mRate entries per second
+        Thread[] producers = new Thread[mNumThreads];
+        final long[] produced = new long[mNumThreads];
+        for (int p = 0; p < mNumThreads; p++) {
+            final int id = p;
+            producers[p] = new Thread("LogStressProducer-" + p) {
+                @Override
+                public void run() {
+                    char[] padding = new char[MESSAGE_SIZES[MESSAGE_SIZES.length - 1]];
+                    Arrays.fill(padding, 'x');
+                    Throwable throwable = new Throwable("LogStress");
+
+                    long periodNanos = mRate > 0 ? 1000000000L / mRate : 0;
+                    long startNanos = System.nanoTime();
+
+                    long seq = 0;
+                    for (long now = startNanos; now < endNanos; now = System.nanoTime()) {
+                        long dueNanos = startNanos + seq * periodNanos;
+                        if (dueNanos > now) {
+                            LockSupport.parkNanos(dueNanos - now);
+                            continue;
+                        }
+
+                        String msg = "p" + id + " " + seq + " " +
+                                new String(padding, 0, MESSAGE_SIZES[(int) (seq % MESSAGE_SIZES.length)]);
+                        int priority = PRIORITIES[(int) (seq % PRIORITIES.length)];
+                        if (mThrowableEvery > 0 && seq % mThrowableEvery == 0) {
+                            switch (priority) {
+                                case Log.VERBOSE:
+                                    Log.v(TAG, msg, throwable);
+                                    break;
+                                case Log.DEBUG:
+                                    Log.d(TAG, msg, throwable);
+                                    break;
+                                case Log.INFO:
+                                    Log.i(TAG, msg, throwable);
+                                    break;
+                                case Log.WARN:
+                                    Log.w(TAG, msg, throwable);
+                                    break;
+                                default:
+                                    Log.e(TAG, msg, throwable);
+                                    break;
+                            }
+                        } else {
+                            Log.println(priority, TAG, msg);
+                        }
+                        seq++;
+                    }
+                    produced[id] = seq;
+                }
+            };
+        }
+
+        // The reader checks that each producer's entries are in order in every snapshot
+        Thread reader = new Thread("LogStressReader") {
+            @Override
+            public void run() {
+                while (running.get() && mReadMillis > 0) {
+                    String log = Log.readLog();
+                    numReads.incrementAndGet();
+
+                    int numLines = 0;
+                    for (int i = 0; i < log.length(); i++) {
+                        if (log.charAt(i) == '\n') {
+                            numLines++;
+                        }
+                    }
+                    if (numLines > maxLinesSeen.get()) {
+                        maxLinesSeen.set(numLines);
+                    }
+
+                    // High priority entries may be written ahead of lower priority ones that were
+                    // logged before them, so each priority lane is checked on its own
+                    long[][] lastSeq = new long[2][mNumThreads];
+                    Arrays.fill(lastSeq[0], -1);
+                    Arrays.fill(lastSeq[1], -1);
+                    Matcher matcher = SEQUENCE_PATTERN.matcher(log);
+                    while (matcher.find()) {
+                        String priority = matcher.group(1);
+                        int lane = priority.equals("WARNING") || priority.equals("ERROR") ||
+                                priority.equals("ASSERT") ? 1 : 0;
+                        int id = Integer.parseInt(matcher.group(2));
+                        long seq = Long.parseLong(matcher.group(3));
+                        if (seq <= lastSeq[lane][id]) {
+                            orderingViolations.incrementAndGet();
+                        }
+                        lastSeq[lane][id] = seq;
+                    }
+
+                    sleepQuietly(mReadMillis);
+                }
+            }
+        };
+
+        // The clearer wipes the log every now and then
+        Thread clearer = new Thread("LogStressClearer") {
+            @Override
+            public void run() {
+                while (running.get() && mClearMillis > 0) {
+                    sleepQuietly(mClearMillis);
+                    if (running.get()) {
+                        Log.clearLog();
+                        numClears.incrementAndGet();
+                    }
+                }
+            }
+        };
+
+        for (Thread producer : producers) {
+            producer.start();
+        }
+        reader.start();
+        clearer.start();
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        running.set(false);
+        reader.join();
+        clearer.join();
+
+        // Wait until all writing finishes, including the final trim
+        Log.waitUntilFinishedWriting();
+
+        LogStats stats = Log.getStats();
+
+        long totalProduced = 0;
+        for (long count : produced) {
+            totalProduced += count;
+        }
+        long accountedFor = stats.getWritten() + stats.getDropped() + stats.getFiltered();
+        long lost = totalProduced - accountedFor;
+
+        // The clearer has stopped, so the log can be filled past its size, and the trim that the
+        // write thread ends with has to bring it back to size
+        for (int i = 0; i < Log.CIRCULAR_BUFFER_SIZE + 1; i++) {
+            Log.i(TAG, "fill " + i);
+        }
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+        int finalLines = 0;
+        for (int i = 0; i < log.length(); i++) {
+            if (log.charAt(i) == '\n') {
+                finalLines++;
+            }
+        }
+
+        // The numbers of the run go in every assertion's message, so that a failure shows them
+        LogStats.Distribution latency = stats.getLatencyMillis();
+        String report = " (stripedBuffers=" + config.isStripedBuffers() +
+                " threads=" + mNumThreads + " rate=" + mRate + "/s seconds=" + mSeconds +
+                " produced=" + totalProduced + " written=" + stats.getWritten() +
+                " dropped=" + stats.getDropped() + " lost=" + lost +
+                " orderingViolations=" + orderingViolations.get() +
+                " reads=" + numReads.get() + " clears=" + numClears.get() +
+                " maxLinesSeen=" + maxLinesSeen.get() + " finalLines=" + finalLines +
+                " latencyMillis(p50=" + latency.getPercentile(50) + " p90=" + latency.getPercentile(90) +
+                " p99=" + latency.getPercentile(99) + " max=" + latency.getMax() + ")" +
+                " batchSizes=" + stats.getBatchSizes() + " writeMicros=" + stats.getWriteMicros() +
+                " trimMicros=" + stats.getTrimMicros() + ")";
+
+        assertEquals("Not every logged entry was enqueued" + report, totalProduced, stats.getEnqueued());
+        assertEquals("Entries were lost" + report, 0, lost);
+        assertEquals("Entries from a thread were out of order" + report, 0, orderingViolations.get());
+        assertEquals("The log file was not trimmed to size" + report, Log.CIRCULAR_BUFFER_SIZE, finalLines);
+        if (mRate > 0) {
+            // Between trims, the log grows by what is logged in TRIM_FILE_MILLIS, with up to two
+            // more lines for the stack trace of each entry with a Throwable
+            long maxLinesBetweenTrims = mNumThreads * mRate * Log.TRIM_FILE_MILLIS / 1000 *
+                    (mThrowableEvery > 0 ? mThrowableEvery + 2 : 1) / Math.max(mThrowableEvery, 1);
+            assertTrue("The log file grew to " + maxLinesSeen.get() + " lines between trims" + report,
+                    maxLinesSeen.get() <= Log.CIRCULAR_BUFFER_SIZE + maxLinesBetweenTrims);
+        }
+        assertTrue("The 99th percentile latency was too high" + report,
+                latency.getPercentile(99) <= mMaxP99Millis);
+    }
+
+    /**
+     * Sleep without being interrupted.
+     */
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
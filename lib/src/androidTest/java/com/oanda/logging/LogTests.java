@@ -1,21 +1,41 @@
 package com.oanda.logging;
 
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.os.Build;
 
 import junit.framework.TestCase;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -27,6 +47,7 @@ public class LogTests extends TestCase {
 
     private final File mLogFile = new File(dir, Log.FILENAME);
     private final File mLogFileTemp = new File(dir, Log.TEMP_FILENAME);
+    private final File mLockFile = new File(dir, Log.LOCK_FILENAME);
 
     private Context mMockContext;
 
@@ -50,17 +71,18 @@ public class LogTests extends TestCase {
             }
         });
 
-        // Mock opening output to the file system where gradle is run
+        // Mock opening output to the file system where gradle is run, appending like
+        // Context.MODE_APPEND does
         when(mMockContext.openFileOutput(Log.FILENAME, Context.MODE_APPEND)).thenAnswer(new Answer<Object>() {
             @Override
             public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-                return new FileOutputStream(mLogFile);
+                return new FileOutputStream(mLogFile, true);
             }
         });
         when(mMockContext.openFileOutput(Log.TEMP_FILENAME, Context.MODE_APPEND)).thenAnswer(new Answer<Object>() {
             @Override
             public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-                return new FileOutputStream(mLogFileTemp);
+                return new FileOutputStream(mLogFileTemp, true);
             }
         });
 
@@ -83,6 +105,15 @@ public class LogTests extends TestCase {
         // Mock getting the path of a file to the file system where gradle is run
         when(mMockContext.getFileStreamPath(Log.FILENAME)).thenReturn(mLogFile);
         when(mMockContext.getFileStreamPath(Log.TEMP_FILENAME)).thenReturn(mLogFileTemp);
+        when(mMockContext.getFileStreamPath(Log.LOCK_FILENAME)).thenReturn(mLockFile);
+
+        // Mock listing the files, of which only the log file is of interest
+        when(mMockContext.fileList()).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                return mLogFile.exists() ? new String[]{Log.FILENAME} : new String[0];
+            }
+        });
 
         // This makes the usefulness of testLogGetLogFile() questionable, it will never fail
         // because of this mock
@@ -94,11 +125,16 @@ public class LogTests extends TestCase {
         super.tearDown();
 
         Log.destroy();
+        Log.resetCoalesceDuplicates();
+        Log.resetCallerLocation();
+        Log.onForeground();
+        Log.mSdkInt = Build.VERSION.SDK_INT;
 
         mMockContext = null;
 
         mLogFile.delete();
         mLogFileTemp.delete();
+        mLockFile.delete();
     }
 
     /**
@@ -108,9 +144,25 @@ public class LogTests extends TestCase {
         Log.init(mMockContext);
 
         Log.clearLog();
+        // Wait for the write thread to stop, so that each test starts it again like a first call
         Log.waitUntilFinishedWriting();
     }
 
+    /**
+     * Count the number of times a String occurs in the log.
+     *
+     * @param log    The contents of the log.
+     * @param target The String to count.
+     * @return The number of non-overlapping occurrences of target in log.
+     */
+    private static int countOccurrences(String log, String target) {
+        int count = 0;
+        for (int i = log.indexOf(target); i >= 0; i = log.indexOf(target, i + target.length())) {
+            count++;
+        }
+        return count;
+    }
+
     /**
      * Scenario:
      * Given Log is uninitialized
@@ -130,7 +182,25 @@ public class LogTests extends TestCase {
      */
     public void testLogInitInvalidContext() {
         // Initialize Log with null
-        assertFalse("Log was initialized with invalid context", Log.init(null));
+        assertFalse("Log was initialized with invalid context", Log.init((Context) null));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is uninitialized
+     * When I call Log.init with a MemoryLogStorage and log an entry
+     * Then the log contains the entry, and there is no log File
+     */
+    public void testLogInitMemoryStorage() {
+        assertTrue("Could not initialize Log with a MemoryLogStorage", Log.init(new MemoryLogStorage()));
+
+        Log.i("LogTest", "testLogInitMemoryStorage");
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        assertTrue("Log.i could not write to a MemoryLogStorage", Log.readLog().contains("[INFO] LogTest testLogInitMemoryStorage"));
+        assertNull("Log.getLogFile() returned a File for a MemoryLogStorage", Log.getLogFile());
     }
 
     /**
@@ -216,6 +286,59 @@ public class LogTests extends TestCase {
         assertTrue("Log.init did not trim the log. numLines: " + numLines, numLines <= Log.CIRCULAR_BUFFER_SIZE);
     }
 
+    /**
+     * Scenario:
+     * Given Log is uninitialized and I have an overfull log file in a storage that is slow to open
+     * When I call init with an asynchronous init and log entries straight away
+     * Then init returns without touching the file, and the entries are kept until the write
+     * thread has trimmed the file and then written
+     */
+    public void testLogAsyncInit() throws Exception {
+        final Thread callerThread = Thread.currentThread();
+        final AtomicInteger callerFileAccesses = new AtomicInteger();
+        final CountDownLatch storageOpen = new CountDownLatch(1);
+        MemoryLogStorage storage = new MemoryLogStorage() {
+            @Override
+            public Closeable lock(String name) {
+                if (Thread.currentThread() == callerThread) {
+                    callerFileAccesses.incrementAndGet();
+                }
+                try {
+                    storageOpen.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.lock(name);
+            }
+        };
+
+        OutputStream outputStream = storage.openOutput(Log.FILENAME);
+        for (int i = 0; i < Log.CIRCULAR_BUFFER_SIZE + 205; i++) {
+            outputStream.write(" \n".getBytes("UTF-8"));
+        }
+        outputStream.close();
+
+        assertTrue(Log.init(storage, new LogConfig.Builder().setAsyncInit(true).build()));
+        for (int i = 0; i < 10; i++) {
+            Log.i("LogTest", "testLogAsyncInit " + i);
+        }
+
+        assertEquals("init touched the file on the caller's thread", 0, callerFileAccesses.get());
+        LogStats stats = Log.getStats();
+        assertTrue("init did not record its time", stats.getInitMicros() >= 0);
+        assertEquals("The file was prepared before the storage could be opened", -1, stats.getPrepareMicros());
+
+        storageOpen.countDown();
+        Log.waitUntilFinishedWriting();
+        String log = Log.readLog();
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue("An entry logged during init was lost: " + i, log.contains("[INFO] LogTest testLogAsyncInit " + i));
+        }
+        assertTrue("The write thread did not trim the log", countOccurrences(log, "\n") <= Log.CIRCULAR_BUFFER_SIZE);
+        assertTrue("The time to prepare the file was not recorded", Log.getStats().getPrepareMicros() >= 0);
+    }
+
     /**
      * Scenario:
      * Given Log is uninitialized
@@ -223,8 +346,9 @@ public class LogTests extends TestCase {
      * Then and empty String, null, or false is returned
      */
     public void testLogUninitialized() {
-        assertFalse("Log.init() returned true with a null Context", Log.init(null));
+        assertFalse("Log.init() returned true with a null Context", Log.init((Context) null));
         assertNull("Log.getLogFile() returned non-null without Log being initialized", Log.getLogFile());
+        assertNull("Log.getStats() returned non-null without Log being initialized", Log.getStats());
         assertEquals("Log.readLog() returned non-empty String without Log being initialized", "", Log.readLog());
         assertFalse("Log.clearLog() returned true without Log being initialized", Log.clearLog());
     }
@@ -669,4 +793,1313 @@ public class LogTests extends TestCase {
         assertTrue("Log.println could not write to the log with priority error", log.contains("[ERROR] LogTest testLogPrintln " + now));
         assertTrue("Log.println could not write to the log with priority assert", log.contains("[ASSERT] LogTest testLogPrintln " + now));
     }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When I log a structured entry with fields of each type
+     * Then the log contains the entry with its fields after the message, quoting the values that
+     * need it
+     */
+    public void testLogStructured() {
+        init();
+
+        long now = System.currentTimeMillis();
+
+        Log.i("LogTest").msg("testLogStructured " + now)
+                .kv("orderId", "A1234")
+                .kv("px", 1.2345)
+                .kv("ms", 17L)
+                .kv("units", 100)
+                .kv("filled", true)
+                .kv("note", "two \"words\"")
+                .kv("empty", "")
+                .log();
+        Log.w("LogTest").kv("testLogStructured", now).log();
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertTrue("The structured entry was not written: " + log, log.contains("[INFO] LogTest testLogStructured " + now +
+                " orderId=A1234 px=1.2345 ms=17 units=100 filled=true note=\"two \\\"words\\\"\" empty=\"\""));
+        assertTrue("The structured entry without a message was not written: " + log,
+                log.contains("[WARNING] LogTest testLogStructured=" + now));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When I log structured entries one after the other, and one while building another
+     * Then the thread's builder is reused for entries one after the other, and both entries built
+     * at the same time are logged with their own fields
+     */
+    public void testLogStructuredNested() {
+        init();
+
+        LogBuilder builder = Log.d("LogTest");
+        builder.log();
+        assertSame("The builder was not reused", builder, Log.d("LogTest"));
+
+        Log.d("LogTest").kv("outer", 1).kv("inner", logInner()).kv("after", 3).log();
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertTrue("The inner entry was not written: " + log, log.contains("[DEBUG] LogTest nested=2"));
+        assertTrue("The outer entry was not written: " + log, log.contains("[DEBUG] LogTest outer=1 inner=2 after=3"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When I log structured entries faster than they are written, pause until they are, and log
+     * more
+     * Then every entry is written with its own fields, though the builder reuses the fields that
+     * the write thread gives back
+     */
+    public void testLogStructuredFieldsReused() {
+        init();
+
+        int numEntries = Log.CIRCULAR_BUFFER_SIZE / 2;
+        for (int i = 0; i < numEntries / 2; i++) {
+            Log.i("LogTest").kv("testLogStructuredFieldsReused", i).kv("even", i % 2 == 0).log();
+        }
+        Log.flush(5000);
+        for (int i = numEntries / 2; i < numEntries; i++) {
+            Log.i("LogTest").kv("testLogStructuredFieldsReused", i).kv("even", i % 2 == 0).log();
+        }
+        Log.flush(5000);
+
+        String log = Log.readLog();
+
+        assertEquals("Not every entry was written once", numEntries,
+                countOccurrences(log, "testLogStructuredFieldsReused="));
+        for (int i = 0; i < numEntries; i++) {
+            assertTrue("Entry " + i + " was written with other fields",
+                    log.contains("[INFO] LogTest testLogStructuredFieldsReused=" + i + " even=" + (i % 2 == 0) + "\n"));
+        }
+    }
+
+    /**
+     * Logs a structured entry from within the building of another.
+     *
+     * @return The value that was logged.
+     */
+    private static int logInner() {
+        Log.d("LogTest").kv("nested", 2).log();
+        return 2;
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and duplicates are coalesced for a tag
+     * When I log the same entry many times followed by a different entry with that tag
+     * Then the log contains the first entry, a single repeat summary and the different entry
+     */
+    public void testLogCoalesceDuplicates() {
+        init();
+
+        final int numDuplicates = 50;
+
+        Log.setCoalesceDuplicates("LogTest", true);
+
+        for (int i = 0; i < numDuplicates; i++) {
+            Log.d("LogTest", "testLogCoalesceDuplicates");
+        }
+        Log.d("LogTest", "testLogCoalesceDuplicates done");
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertEquals("The duplicate entry was not coalesced", 1,
+                countOccurrences(log, "[DEBUG] LogTest testLogCoalesceDuplicates" + System.getProperty("line.separator")));
+        assertTrue("The repeat summary was not written", log.contains("[DEBUG] LogTest last message repeated " + (numDuplicates - 1) + " times ("));
+        assertTrue("The repeat summary was not written before the next entry",
+                log.indexOf("last message repeated") < log.indexOf("testLogCoalesceDuplicates done"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and duplicates are coalesced for a tag
+     * When I log the same entry many times and then nothing for longer than a run of duplicates
+     * lasts
+     * Then the repeat summary is written without waiting for another entry
+     */
+    public void testLogCoalesceDuplicatesSummaryExpires() throws InterruptedException {
+        init();
+
+        final int numDuplicates = 50;
+
+        Log.setCoalesceDuplicates("LogTest", true);
+
+        for (int i = 0; i < numDuplicates; i++) {
+            Log.d("LogTest", "testLogCoalesceDuplicatesSummaryExpires");
+        }
+
+        Thread.sleep(Log.DUPLICATE_SUMMARY_MILLIS + 500);
+
+        assertTrue("The repeat summary was not written",
+                Log.readLog().contains("[DEBUG] LogTest last message repeated " + (numDuplicates - 1) + " times ("));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and duplicates are coalesced for a tag
+     * When I log the same entry many times and Log is destroyed as soon as they have been taken
+     * from the queue
+     * Then the repeat summary is in the log file that Log was writing
+     */
+    public void testLogCoalesceDuplicatesDestroyed() throws IOException, InterruptedException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+        Log.init(storage, new LogConfig.Builder().build());
+
+        final int numDuplicates = 50;
+
+        Log.setCoalesceDuplicates("LogTest", true);
+
+        for (int i = 0; i < numDuplicates; i++) {
+            Log.d("LogTest", "testLogCoalesceDuplicatesDestroyed");
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Log.getStats().getFiltered() < numDuplicates - 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Log.destroy();
+
+        InputStream inputStream = storage.openInput(Log.FILENAME);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            log.write(buffer, 0, read);
+        }
+        inputStream.close();
+
+        assertTrue("The repeat summary was lost", log.toString("UTF-8").contains(
+                "[DEBUG] LogTest last message repeated " + (numDuplicates - 1) + " times ("));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and duplicates are coalesced for another tag
+     * When I log the same entry many times with my tag
+     * Then the log contains every entry
+     */
+    public void testLogCoalesceDuplicatesOtherTag() {
+        init();
+
+        final int numDuplicates = 50;
+
+        Log.setCoalesceDuplicates("OtherTag", true);
+
+        for (int i = 0; i < numDuplicates; i++) {
+            Log.d("LogTest", "testLogCoalesceDuplicatesOtherTag");
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertEquals("Entries with a tag that isn't coalesced were dropped", numDuplicates,
+                countOccurrences(log, "testLogCoalesceDuplicatesOtherTag"));
+        assertFalse("A repeat summary was written for a tag that isn't coalesced", log.contains("last message repeated"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log, the caller's location is captured from WARN
+     * up, and for a tag at every priority but not for another
+     * When I log entries at several priorities with each tag, plainly and with a LogBuilder
+     * Then the entries that the location is captured for end with the line they were logged on,
+     * and the others are written as usual
+     */
+    public void testLogCallerLocation() {
+        init();
+
+        Log.setCallerLocation(Log.WARN);
+        Log.setCallerLocation("Located", true);
+        Log.setCallerLocation("NotLocated", false);
+
+        String location = LogTests.class.getName() + ".testLogCallerLocation(LogTests.java:";
+        int line = new Throwable().getStackTrace()[0].getLineNumber();
+        Log.d("LogTest", "debug");
+        Log.w("LogTest", "warning");
+        Log.e("LogTest").msg("error").kv("built", true).log();
+        Log.d("Located", "debug");
+        Log.e("NotLocated", "error");
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String newLine = System.getProperty("line.separator");
+        String log = Log.readLog();
+
+        assertTrue(log, log.contains("[DEBUG] LogTest debug" + newLine));
+        assertTrue(log, log.contains("[WARNING] LogTest warning " + location + (line + 2) + ")" + newLine));
+        assertTrue(log, log.contains("[ERROR] LogTest error built=true " + location + (line + 3) + ")" + newLine));
+        assertTrue(log, log.contains("[DEBUG] Located debug " + location + (line + 4) + ")" + newLine));
+        assertTrue(log, log.contains("[ERROR] NotLocated error" + newLine));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and the caller's location is captured for one
+     * in every four entries
+     * When I log twenty entries from the same line
+     * Then five of them have the location
+     */
+    public void testLogCallerLocationSampled() {
+        init();
+
+        Log.setCallerLocation(Log.VERBOSE);
+        Log.setCallerLocationSampling(4);
+
+        for (int i = 0; i < 20; i++) {
+            Log.i("LogTest", "testLogCallerLocationSampled");
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertEquals(20, countOccurrences(log, "[INFO] LogTest testLogCallerLocationSampled"));
+        assertEquals(5, countOccurrences(log, "testLogCallerLocationSampled " + LogTests.class.getName() +
+                ".testLogCallerLocationSampled(LogTests.java:"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with a Context
+     * When the system signals that the UI is hidden, and then that memory is running low
+     * Then Log is only under memory pressure after the second signal, and entries logged after it
+     * are all written in small batches
+     */
+    public void testLogTrimMemory() {
+        Log.mSdkInt = Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+        init();
+
+        ArgumentCaptor<ComponentCallbacks> callbacks = ArgumentCaptor.forClass(ComponentCallbacks.class);
+        verify(mMockContext).registerComponentCallbacks(callbacks.capture());
+        ComponentCallbacks2 memoryCallbacks = (ComponentCallbacks2) callbacks.getValue();
+
+        memoryCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertFalse("Hiding the UI was taken as memory pressure", Log.isUnderMemoryPressure());
+
+        memoryCallbacks.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue("Log is not under memory pressure", Log.isUnderMemoryPressure());
+
+        int numEntries = 2000;
+        for (int i = 0; i < numEntries; i++) {
+            Log.d("LogTest", "testLogTrimMemory " + i);
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        LogStats stats = Log.getStats();
+        assertEquals("Entries were lost", numEntries, stats.getWritten());
+        assertTrue("A batch was too large: " + stats.getBatchSizes(),
+                stats.getBatchSizes().getMax() <= Log.MEMORY_PRESSURE_BATCH_ENTRIES);
+    }
+
+    /**
+     * Scenario:
+     * Given the device is on an API level before 14
+     * When Log is initialized with a Context
+     * Then it doesn't register for memory signals, and still acts on them when the app passes
+     * them on itself
+     */
+    public void testLogTrimMemoryBeforeApi14() {
+        Log.mSdkInt = Build.VERSION_CODES.HONEYCOMB_MR2;
+        init();
+
+        verify(mMockContext, never()).registerComponentCallbacks(any(ComponentCallbacks.class));
+
+        Log.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue("Log is not under memory pressure", Log.isUnderMemoryPressure());
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with a Context and memory is under pressure
+     * When Log is destroyed
+     * Then its callbacks are unregistered and it is no longer under memory pressure
+     */
+    public void testLogTrimMemoryUnregistered() {
+        Log.mSdkInt = Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+        init();
+
+        ArgumentCaptor<ComponentCallbacks> callbacks = ArgumentCaptor.forClass(ComponentCallbacks.class);
+        verify(mMockContext).registerComponentCallbacks(callbacks.capture());
+        callbacks.getValue().onLowMemory();
+        assertTrue("Log is not under memory pressure", Log.isUnderMemoryPressure());
+
+        Log.destroy();
+
+        verify(mMockContext).unregisterComponentCallbacks(callbacks.getValue());
+        assertFalse("Log is still under memory pressure", Log.isUnderMemoryPressure());
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and the app is in the background
+     * When I log several entries below ERROR, and then an ERROR
+     * Then the entries below ERROR are held back until the ERROR is logged, which is written
+     * promptly along with them, and the write thread only wakes up a few times in the background
+     */
+    public void testLogBackground() throws InterruptedException {
+        init();
+
+        Log.onBackground();
+        for (int i = 0; i < 10; i++) {
+            Log.d("LogTest", "testLogBackground " + i);
+            Log.w("LogTest", "testLogBackground warning " + i);
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        assertFalse("An entry below ERROR was written in the background", Log.readLog().contains("testLogBackground"));
+
+        Log.e("LogTest", "testLogBackground error");
+        String log = awaitLogContains("testLogBackground error");
+
+        assertTrue("The held back entries were not written: " + log, log.contains("testLogBackground 9"));
+        assertTrue("The held back entries were not written: " + log, log.contains("testLogBackground warning 9"));
+        assertTrue("The held back entries were not written before the error: " + log,
+                log.indexOf("testLogBackground warning 9") < log.indexOf("testLogBackground error"));
+
+        LogStats stats = Log.getStats();
+        assertTrue("The write thread woke up too often: " + stats, stats.getWakeups(true) <= 3);
+        assertTrue("The time in the background was not counted: " + stats, stats.getModeMillis(true) >= 400);
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and the app is in the background
+     * When I log an entry below ERROR, and the app comes to the foreground
+     * Then the entry is written once the app is in the foreground
+     */
+    public void testLogForeground() throws InterruptedException {
+        init();
+
+        Log.onBackground();
+        Log.i("LogTest", "testLogForeground");
+        Thread.sleep(200);
+        assertFalse("An entry below ERROR was written in the background", Log.readLog().contains("testLogForeground"));
+
+        Log.onForeground();
+        awaitLogContains("testLogForeground");
+    }
+
+    /**
+     * Wait for a String to be written to the log, for less time than the write thread holds
+     * entries back in the background.
+     *
+     * @param target The String to wait for.
+     * @return The log once it contains target.
+     */
+    private static String awaitLogContains(String target) throws InterruptedException {
+        long end = System.currentTimeMillis() + 2000;
+        String log;
+        while (!(log = Log.readLog()).contains(target)) {
+            assertTrue("Not written: " + target, System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+        return log;
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with the default entry size policy and I have some entries logged
+     * When I log an entry with more lines than the log keeps
+     * Then the entry is truncated with a marker, and the entries before it are kept
+     */
+    public void testLogOversizedEntryTruncated() {
+        Log.init(new MemoryLogStorage());
+
+        for (int i = 0; i < 50; i++) {
+            Log.i("LogTest", "entry " + i + ";");
+        }
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < Log.CIRCULAR_BUFFER_SIZE * 2; i++) {
+            message.append("line ").append(i).append('\n');
+        }
+        Log.e("LogTest", message.toString());
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+        assertTrue("The entries before the oversized entry were not kept", log.contains(" entry 0;") && log.contains(" entry 49;"));
+        assertTrue("The oversized entry was not truncated", log.contains("line 199 [truncated "));
+        assertFalse("The oversized entry was written past its limit", log.contains("line 200"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with an entry size policy that chunks entries, up to 3 chunks
+     * When I log an entry that fits in 2 chunks and one that doesn't fit in 3
+     * Then the first is written whole as 2 linked entries, and the second as 3 linked entries
+     * with a marker for what was left out
+     */
+    public void testLogOversizedEntryChunked() {
+        Log.init(new MemoryLogStorage(), new LogConfig.Builder()
+                .setEntrySizePolicy(new EntrySizePolicy.Builder()
+                        .setMaxChars(1024)
+                        .setOverflow(EntrySizePolicy.CHUNK)
+                        .setMaxChunks(3)
+                        .build())
+                .build());
+
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            message.append(i % 10);
+        }
+        String twoChunks = message.substring(0, 1500);
+        Log.i("LogTest", twoChunks);
+        Log.w("LogTest", message.toString());
+        Log.waitUntilFinishedWriting();
+
+        StringBuilder chunks = new StringBuilder();
+        String[] lines = Log.readLog().split("\n");
+        assertEquals("The entries were not written as 5 chunks", 5, lines.length);
+        for (int i = 0; i < 2; i++) {
+            String marker = (i + 1) + "/2] ";
+            assertTrue("Chunk " + marker + " is missing: " + lines[i], lines[i].contains("[INFO] LogTest [#") && lines[i].contains(marker));
+            assertTrue("A chunk is longer than the limit", lines[i].length() <= 1024);
+            chunks.append(lines[i].substring(lines[i].indexOf(marker) + marker.length()));
+        }
+        assertEquals("The chunks do not add up to the entry", twoChunks, chunks.toString());
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Chunk " + (i + 1) + "/3 is missing: " + lines[2 + i], lines[2 + i].contains("[WARNING] LogTest [#") &&
+                    lines[2 + i].contains((i + 1) + "/3] "));
+        }
+        assertTrue("The last chunk has no marker for what was left out", lines[4].endsWith(" chars]"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with an entry size policy that writes oversized entries to the
+     * payload file, kept to 4 KiB
+     * When I log several entries that are too long
+     * Then the log has each entry truncated with a marker that points to the payload file, the
+     * payload file has the whole of the last entry, and it is kept within its size
+     */
+    public void testLogOversizedEntryPayloadFile() throws IOException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+        Log.init(storage, new LogConfig.Builder()
+                .setEntrySizePolicy(new EntrySizePolicy.Builder()
+                        .setMaxChars(1024)
+                        .setOverflow(EntrySizePolicy.PAYLOAD_FILE)
+                        .setMaxPayloadFileBytes(4096)
+                        .build())
+                .build());
+
+        String payload = null;
+        for (int i = 0; i < 3; i++) {
+            StringBuilder message = new StringBuilder("payload ").append(i).append(':');
+            while (message.length() < 3000) {
+                message.append(" 0123456789");
+            }
+            payload = message.toString();
+            Log.i("LogTest", payload);
+        }
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+        assertEquals("The entries were not truncated", 3, countOccurrences(log, " chars, #"));
+        assertTrue("The marker doesn't name the payload file", log.contains(" in fxtrade_log.payloads]\n"));
+        assertFalse("The payload file was read as part of the log", log.contains(payload));
+
+        InputStream inputStream = storage.openInput("fxtrade_log.payloads");
+        String payloads;
+        try {
+            byte[] buffer = new byte[(int) storage.length("fxtrade_log.payloads")];
+            assertEquals(buffer.length, inputStream.read(buffer));
+            payloads = new String(buffer);
+        } finally {
+            inputStream.close();
+        }
+        assertTrue("The payload file is larger than its limit", payloads.length() <= 4096);
+        assertTrue("The payload file doesn't have the last entry", payloads.contains("[INFO] LogTest [#") && payloads.endsWith(payload + "\n"));
+        assertFalse("The payload file kept the oldest entry", payloads.contains("payload 0:"));
+
+        Log.clearLog();
+        Log.waitUntilFinishedWriting();
+        assertEquals("Clearing the log left the payload file", 0, storage.length("fxtrade_log.payloads"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with a partition for a quiet tag
+     * When I log a few entries with the quiet tag, then more entries with a noisy tag than the
+     * log keeps
+     * Then the quiet tag's entries are kept, readLog(tag) reads only its partition, and readLog()
+     * merges both
+     */
+    public void testLogTagPartitions() throws InterruptedException {
+        Log.init(new MemoryLogStorage(), new LogConfig.Builder()
+                .setTagPartitions(new TagPartitions.Builder()
+                        .partition("network", 100, "Network", "PriceStream")
+                        .build())
+                .build());
+
+        for (int i = 0; i < 5; i++) {
+            Log.i("Network", "quiet " + i + ";");
+        }
+        // Keep the timestamps of the tags apart, so that the order they are merged in is known
+        Thread.sleep(5);
+        for (int i = 0; i < Log.CIRCULAR_BUFFER_SIZE + 100; i++) {
+            Log.d("Noisy", "noisy " + i + ";");
+        }
+        Thread.sleep(5);
+        Log.w("PriceStream", "quiet 5;");
+
+        // Wait until all writing finishes, including the final trim
+        Log.waitUntilFinishedWriting();
+
+        String partition = Log.readLog("Network");
+        assertEquals("The partition doesn't have every entry of its tags: " + partition, 6, countOccurrences(partition, " quiet "));
+        assertEquals("The partition has entries of another tag", 0, countOccurrences(partition, "Noisy"));
+        assertEquals("The tags share a partition", partition, Log.readLog("PriceStream"));
+
+        String rest = Log.readLog("Noisy");
+        assertEquals("The log file was not trimmed on its own", Log.CIRCULAR_BUFFER_SIZE, countOccurrences(rest, "[DEBUG] Noisy "));
+        assertEquals("The log file has entries of a partition", 0, countOccurrences(rest, " quiet "));
+
+        String log = Log.readLog();
+        assertEquals("The whole log doesn't have every entry", Log.CIRCULAR_BUFFER_SIZE + 6, countOccurrences(log, "\n"));
+        assertTrue("The partitions were not merged by timestamp", log.indexOf(" quiet 4;") < log.indexOf(" noisy 100;") &&
+                log.indexOf(" noisy " + (Log.CIRCULAR_BUFFER_SIZE + 99) + ";") < log.indexOf(" quiet 5;"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with a partition that keeps 10 lines
+     * When I log more entries than that with the partition's tag
+     * Then the partition keeps only the newest 10, and the rest of the log is empty
+     */
+    public void testLogTagPartitionTrimmed() {
+        Log.init(new MemoryLogStorage(), new LogConfig.Builder()
+                .setTagPartitions(new TagPartitions.Builder()
+                        .partition("network", 10, "Network")
+                        .build())
+                .build());
+
+        assertEquals("An empty partition was not read as empty", "", Log.readLog("Network"));
+        for (int i = 0; i < 30; i++) {
+            Log.i("Network", "entry " + i + ";");
+        }
+        Log.waitUntilFinishedWriting();
+
+        String partition = Log.readLog("Network");
+        assertEquals("The partition was not trimmed to its size", 10, countOccurrences(partition, " entry "));
+        assertTrue("The newest entries were not kept", partition.contains(" entry 20;") && partition.contains(" entry 29;"));
+        assertEquals("Entries of the partition were kept in the log file", "", Log.readLog("Other"));
+
+        try {
+            new TagPartitions.Builder().partition("network", 10, "Network").partition("other", 10, "Network");
+            fail("A tag was put in two partitions");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        try {
+            new LogConfig.Builder()
+                    .setTagPartitions(new TagPartitions.Builder().build())
+                    .setRetentionPolicy(new RetentionPolicy.Builder().build())
+                    .build();
+            fail("Tag partitions were allowed with a retention policy");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When I log some entries and call Log.flush
+     * Then it returns true once the entries are written, long before the write thread stops
+     */
+    public void testLogFlush() {
+        init();
+
+        for (int i = 0; i < 100; i++) {
+            Log.d("LogTest", "testLogFlush " + i);
+        }
+        long start = System.currentTimeMillis();
+        assertTrue("The entries were not flushed", Log.flush(5000));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("The last entry was not written", Log.readLog().contains("testLogFlush 99"));
+        // The write thread keeps running for a second after its last write
+        assertTrue("Flushing waited " + elapsed + "ms", elapsed < 500);
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and the app is in the background
+     * When I log an entry below ERROR and call Log.flush
+     * Then the entry is written straight away rather than held back until its deadline
+     */
+    public void testLogFlushBackground() {
+        init();
+
+        Log.onBackground();
+        Log.d("LogTest", "testLogFlushBackground");
+        long start = System.currentTimeMillis();
+        assertTrue("The entry was not flushed", Log.flush(5000));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("The entry was not written", Log.readLog().contains("testLogFlushBackground"));
+        assertTrue("Flushing waited " + elapsed + "ms", elapsed < 500);
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with a file in the file system and I have an empty log
+     * When I log an entry and call Log.flush, asking for the log to be synced
+     * Then it returns true and the entry is in the log file
+     */
+    public void testLogFlushSync() {
+        init();
+
+        Log.e("LogTest", "testLogFlushSync");
+        assertTrue("The entry was not flushed", Log.flush(5000, true));
+
+        assertTrue("The entry was not written", Log.readLog().contains("testLogFlushSync"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is uninitialized
+     * When I call Log.flush
+     * Then it returns false
+     */
+    public void testLogFlushUninitialized() {
+        assertFalse("Log.flush succeeded without Log.init", Log.flush(100));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When I log entries with different priorities
+     * Then the stats count each entry as enqueued and written, and record the write
+     */
+    public void testLogStats() {
+        init();
+
+        Log.d("LogTest", "testLogStats");
+        Log.d("LogTest", "testLogStats");
+        Log.e("LogTest", "testLogStats");
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        LogStats stats = Log.getStats();
+
+        assertEquals("Debug entries were not counted as enqueued", 2, stats.getEnqueued(Log.DEBUG));
+        assertEquals("Error entries were not counted as enqueued", 1, stats.getEnqueued(Log.ERROR));
+        assertEquals("Entries were not counted as written", 3, stats.getWritten());
+        assertEquals("Written entries were counted as queued", 0, stats.getQueueDepth());
+        assertEquals("Bytes written does not match the log file size", Log.getLogFile().length(), stats.getBytesWritten());
+        assertEquals("Batch sizes do not add up to the entries written", 3, stats.getBatchSizes().getSum());
+        assertTrue("Writes were not timed", stats.getWriteMicros().getCount() > 0);
+        assertTrue("Trims were not counted", stats.getTrimCount() > 0);
+        assertTrue("Write thread starts were not counted", stats.getWriteThreadStarts() > 0);
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and duplicates are coalesced for a tag
+     * When I log the same entry many times with that tag
+     * Then the stats count the duplicates as filtered
+     */
+    public void testLogStatsFiltered() {
+        init();
+
+        final int numDuplicates = 20;
+
+        Log.setCoalesceDuplicates("LogTest", true);
+
+        for (int i = 0; i < numDuplicates; i++) {
+            Log.i("LogTest", "testLogStatsFiltered");
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        LogStats stats = Log.getStats();
+
+        assertEquals("The first entry was not counted as written", 1, stats.getWritten(Log.INFO));
+        assertEquals("Duplicates were not counted as filtered", numDuplicates - 1, stats.getFiltered(Log.INFO));
+        assertEquals("Filtered entries were counted as queued", 0, stats.getQueueDepth());
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and another thread holds the file lock
+     * When I log a bunch of entries
+     * Then each call returns without waiting for the lock and the entries are written once the
+     * lock is released
+     */
+    public void testLogDoesNotBlockOnFileLock() throws InterruptedException {
+        init();
+
+        final int numTimesToLog = 100;
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // Hold the file lock the way a long trim or read would
+        Thread lockThread = new Thread() {
+            @Override
+            public void run() {
+                Log.getFileLock().lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    Log.getFileLock().unlock();
+                }
+            }
+        };
+        lockThread.start();
+        assertTrue("The file lock was not acquired", locked.await(5, TimeUnit.SECONDS));
+
+        // Log from a thread of its own so that a blocked call can't hang the test
+        Thread logThread = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < numTimesToLog; i++) {
+                    Log.i("LogTest", "testLogDoesNotBlockOnFileLock " + i);
+                }
+            }
+        };
+        logThread.start();
+        logThread.join(1000);
+
+        boolean blocked = logThread.isAlive();
+        release.countDown();
+        lockThread.join();
+        logThread.join();
+
+        assertFalse("Logging blocked while the file lock was held", blocked);
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertEquals("Not every entry was written after the lock was released", numTimesToLog,
+                countOccurrences(log, "testLogDoesNotBlockOnFileLock"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with framed records and I have an empty log
+     * When I log more than Log.CIRCULAR_BUFFER_SIZE entries that each span several lines
+     * Then the log is trimmed to the last Log.CIRCULAR_BUFFER_SIZE entries, none of them split up
+     */
+    public void testLogFramedRecordsTrimsEntries() {
+        Log.init(new MemoryLogStorage(), new LogConfig.Builder().setFramedRecords(true).build());
+
+        final int numEntries = Log.CIRCULAR_BUFFER_SIZE + 50;
+
+        for (int i = 0; i < numEntries; i++) {
+            Log.e("LogTest", "entry " + i + ";\nsecond line\nthird line");
+        }
+
+        // Wait until all writing finishes, including the final trim
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertEquals("The log was not trimmed by entries", Log.CIRCULAR_BUFFER_SIZE,
+                countOccurrences(log, "[ERROR] LogTest entry "));
+        assertEquals("An entry was split up", Log.CIRCULAR_BUFFER_SIZE,
+                countOccurrences(log, ";\nsecond line\nthird line"));
+        assertFalse("The oldest entries were kept", log.contains(" entry 49;"));
+        assertTrue("The newest entries were not kept", log.contains(" entry 50;") && log.contains(" entry " + (numEntries - 1) + ";"));
+    }
+
+    /**
+     * Scenario:
+     * Given I have a log of framed records whose last batch was cut short by a crash
+     * When I call Log.init with the same storage and log another entry
+     * Then the torn batch is discarded and the new entry follows the entries before it
+     */
+    public void testLogFramedRecordsRecoversTornWrite() throws IOException {
+        MemoryLogStorage storage = new MemoryLogStorage();
+        LogConfig config = new LogConfig.Builder().setFramedRecords(true).build();
+
+        Log.init(storage, config);
+        Log.i("LogTest", "before the crash");
+        Log.waitUntilFinishedWriting();
+        Log.destroy();
+
+        // Leave half of a batch at the end of the file
+        String torn = "torn entry\n";
+        byte[] bytes = LogRecords.encodeBatch(torn, new int[]{torn.length()}, 1);
+        OutputStream outputStream = storage.openOutput(Log.RECORDS_FILENAME);
+        outputStream.write(bytes, 0, bytes.length / 2);
+        outputStream.close();
+
+        Log.init(storage, config);
+        Log.i("LogTest", "after the crash");
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+
+        assertTrue("The complete batch was not kept", log.contains("[INFO] LogTest before the crash"));
+        assertTrue("The new entry was not readable", log.contains("[INFO] LogTest after the crash"));
+        assertFalse("The torn batch was kept", log.contains("torn"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and a LogListener is registered
+     * When I log a few entries
+     * Then the listener is given each entry as it appears in the log, in order
+     */
+    public void testLogListener() throws InterruptedException {
+        init();
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch receivedAll = new CountDownLatch(3);
+        LogListener listener = new LogListener() {
+            @Override
+            public void onEntriesLogged(List<String> entries) {
+                for (String entry : entries) {
+                    received.add(entry);
+                    receivedAll.countDown();
+                }
+            }
+
+            @Override
+            public void onEntriesDropped(int numEntries) {
+                fail("Entries were dropped");
+            }
+        };
+
+        Log.addLogListener(listener);
+        try {
+            Log.i("LogTest", "testLogListener 1");
+            Log.w("LogTest", "testLogListener 2");
+            Log.e("LogTest", "testLogListener 3");
+
+            assertTrue("The listener was not given every entry", receivedAll.await(5, TimeUnit.SECONDS));
+        } finally {
+            Log.removeLogListener(listener);
+        }
+
+        assertEquals(3, received.size());
+        assertTrue(received.get(0).endsWith("[INFO] LogTest testLogListener 1"));
+        assertTrue(received.get(1).endsWith("[WARNING] LogTest testLogListener 2"));
+        assertTrue(received.get(2).endsWith("[ERROR] LogTest testLogListener 3"));
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        String log = Log.readLog();
+        for (String entry : received) {
+            assertTrue("The listener was given an entry that is not in the log: " + entry, log.contains(entry));
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized, I have an empty log and a LogListener that is stuck is registered
+     * When I log more entries than the listener's buffer holds
+     * Then the entries are still written, and once the listener is unstuck every entry has either
+     * been given to it or counted as dropped
+     */
+    public void testLogListenerSlow() throws InterruptedException {
+        init();
+
+        final int numEntries = LogListenerDispatcher.BUFFER_SIZE * 3;
+        final CountDownLatch unstuck = new CountDownLatch(1);
+        final AtomicInteger numReceived = new AtomicInteger();
+        final AtomicInteger numDropped = new AtomicInteger();
+        LogListener listener = new LogListener() {
+            @Override
+            public void onEntriesLogged(List<String> entries) {
+                try {
+                    unstuck.await();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                numReceived.addAndGet(entries.size());
+            }
+
+            @Override
+            public void onEntriesDropped(int numEntries) {
+                numDropped.addAndGet(numEntries);
+            }
+        };
+
+        Log.addLogListener(listener);
+        try {
+            for (int i = 0; i < numEntries; i++) {
+                Log.d("LogTest", "testLogListenerSlow " + i);
+            }
+
+            // Wait until all writing finishes, while the listener is stuck
+            Log.waitUntilFinishedWriting();
+
+            assertEquals("The entries were not written while the listener was stuck", numEntries,
+                    Log.getStats().getWritten());
+
+            unstuck.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (numReceived.get() + numDropped.get() < numEntries && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            Log.removeLogListener(listener);
+        }
+
+        assertTrue("No entries were dropped", numDropped.get() > 0);
+        assertEquals("Entries were neither given to the listener nor dropped", numEntries,
+                numReceived.get() + numDropped.get());
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with striped buffers and I have an empty log
+     * When several threads each log more entries than their buffer holds, all at once
+     * Then every entry is written, and each thread's entries are in the order they were logged
+     */
+    public void testLogStripedBuffers() throws InterruptedException {
+        Log.init(new ContextLogStorage(mMockContext), new LogConfig.Builder().setStripedBuffers(true).build());
+        Log.clearLog();
+        Log.waitUntilFinishedWriting();
+
+        final int numThreads = 4;
+        final int numEntries = StripedEntryQueue.STRIPE_CAPACITY * 3;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < numEntries; i++) {
+                        Log.d("LogTest", "testLogStripedBuffers " + id + " " + i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        assertEquals("Entries were lost", numThreads * numEntries, Log.getStats().getWritten());
+
+        int[] last = new int[numThreads];
+        Arrays.fill(last, -1);
+        for (String line : Log.readLog().split(System.getProperty("line.separator"))) {
+            String[] words = line.substring(line.indexOf("testLogStripedBuffers ")).split(" ");
+            int id = Integer.parseInt(words[1]);
+            int i = Integer.parseInt(words[2]);
+            assertTrue("Entries from a thread were out of order at " + line, i > last[id]);
+            last[id] = i;
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When I log entries one at a time with pauses in between
+     * Then each entry is written straight away, rather than when the write thread next polls
+     */
+    public void testLogWritesStraightAwayWhenIdle() throws InterruptedException {
+        init();
+
+        for (int i = 0; i < 10; i++) {
+            Log.d("LogTest", "testLogWritesStraightAwayWhenIdle " + i);
+            Thread.sleep(50);
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        LogStats stats = Log.getStats();
+        assertEquals(10, stats.getWritten());
+        assertEquals("The entries were not written one at a time", 10, stats.getBatchSizes().getCount());
+        assertTrue("An entry waited too long to be written: " + stats.getLatencyMillis(),
+                stats.getLatencyMillis().getMax() < 50);
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with limits on the size of a batch and I have an empty log
+     * When I log many entries at once
+     * Then every entry is written, in batches no larger than the limits
+     */
+    public void testLogMaxBatchSize() {
+        Log.init(new ContextLogStorage(mMockContext), new LogConfig.Builder()
+                .setMaxBatchEntries(20)
+                .setMaxBatchChars(20 * Log.Entry.APPROXIMATE_LENGTH_PER_ENTRY)
+                .build());
+        Log.clearLog();
+        Log.waitUntilFinishedWriting();
+
+        int numEntries = 2000;
+        for (int i = 0; i < numEntries; i++) {
+            Log.d("LogTest", "testLogMaxBatchSize " + i);
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        LogStats stats = Log.getStats();
+        assertEquals("Entries were lost", numEntries, stats.getWritten());
+        assertTrue("A batch was too large: " + stats.getBatchSizes(), stats.getBatchSizes().getMax() <= 20);
+        assertTrue("The log did not end with the last entry",
+                Log.readLog().endsWith("testLogMaxBatchSize " + (numEntries - 1) + System.getProperty("line.separator")));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and I have an empty log
+     * When I log entries faster than they can be written
+     * Then they are written in batches of many entries, and no entry waits longer than the
+     * longest latency that was set, plus the time to write
+     */
+    public void testLogBatchesUnderLoad() throws InterruptedException {
+        Log.init(new ContextLogStorage(mMockContext), new LogConfig.Builder()
+                .setMaxBatchLatencyMillis(100)
+                .build());
+        Log.clearLog();
+        Log.waitUntilFinishedWriting();
+
+        int numEntries = 20000;
+        for (int i = 0; i < numEntries; i++) {
+            Log.d("LogTest", "testLogBatchesUnderLoad " + i);
+            if (i % 500 == 0) {
+                Thread.sleep(1);
+            }
+        }
+
+        // Wait until all writing finishes
+        Log.waitUntilFinishedWriting();
+
+        LogStats stats = Log.getStats();
+        assertEquals("Entries were lost", numEntries, stats.getWritten());
+        assertTrue("The entries were not batched: " + stats.getBatchSizes(), stats.getBatchSizes().getMean() >= 20);
+        assertTrue("An entry waited too long to be written: " + stats.getLatencyMillis(),
+                stats.getLatencyMillis().getPercentile(99) <= 1000);
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with small batches and I have an empty log
+     * When I log an error while a large backlog of verbose entries is waiting to be written
+     * Then the error is written before the backlog is, and no entry is lost
+     */
+    public void testLogErrorDoesNotWaitBehindBacklog() throws InterruptedException {
+        Log.init(new ContextLogStorage(mMockContext), new LogConfig.Builder()
+                .setMaxBatchEntries(10)
+                .build());
+        Log.clearLog();
+        Log.waitUntilFinishedWriting();
+
+        final CountDownLatch errorWritten = new CountDownLatch(1);
+        final long[] queueDepthWhenWritten = new long[1];
+        LogListener listener = new LogListener() {
+            @Override
+            public void onEntriesLogged(List<String> entries) {
+                for (String entry : entries) {
+                    if (entry.contains("[ERROR] LogTest testLogErrorDoesNotWaitBehindBacklog") &&
+                            errorWritten.getCount() > 0) {
+                        queueDepthWhenWritten[0] = Log.getStats().getQueueDepth();
+                        errorWritten.countDown();
+                    }
+                }
+            }
+
+            @Override
+            public void onEntriesDropped(int numEntries) {
+            }
+        };
+
+        Log.addLogListener(listener);
+        try {
+            int numEntries = 20000;
+            for (int i = 0; i < numEntries; i++) {
+                Log.v("LogTest", "testLogErrorDoesNotWaitBehindBacklog " + i);
+            }
+            Log.e("LogTest", "testLogErrorDoesNotWaitBehindBacklog");
+
+            assertTrue("The error was not written", errorWritten.await(5, TimeUnit.SECONDS));
+            assertTrue("The error waited for the backlog", queueDepthWhenWritten[0] > 0);
+
+            Log.waitUntilFinishedWriting();
+            assertEquals("Entries were lost", numEntries + 1, Log.getStats().getWritten());
+        } finally {
+            Log.removeLogListener(listener);
+        }
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized with an entry in the log and readLog is in the middle of reading it
+     * When I log more entries
+     * Then they are written while the read goes on, and the read returns the log as it was when
+     * it started
+     */
+    public void testLogReadDoesNotBlockWriter() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread[] readThread = new Thread[1];
+        final String[] readResult = new String[1];
+        MemoryLogStorage storage = new MemoryLogStorage() {
+            @Override
+            public synchronized InputStream openInput(String name) throws FileNotFoundException {
+                InputStream inputStream = super.openInput(name);
+                if (Thread.currentThread() != readThread[0]) {
+                    return inputStream;
+                }
+
+                // Stall the read until the test lets it go on
+                return new FilterInputStream(inputStream) {
+                    @Override
+                    public int read(byte[] buffer, int offset, int count) throws IOException {
+                        reading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return super.read(buffer, offset, count);
+                    }
+                };
+            }
+        };
+
+        Log.init(storage);
+        Log.i("LogTest", "testLogReadDoesNotBlockWriter before");
+        Log.waitUntilFinishedWriting();
+
+        readThread[0] = new Thread() {
+            @Override
+            public void run() {
+                readResult[0] = Log.readLog();
+            }
+        };
+        readThread[0].start();
+        try {
+            assertTrue("The read did not start", reading.await(5, TimeUnit.SECONDS));
+
+            int numEntries = 100;
+            for (int i = 0; i < numEntries; i++) {
+                Log.i("LogTest", "testLogReadDoesNotBlockWriter after " + i);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (Log.getStats().getWritten() < numEntries + 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("The write thread waited for the read", numEntries + 1, Log.getStats().getWritten());
+        } finally {
+            release.countDown();
+            readThread[0].join();
+        }
+
+        assertTrue("The read lost the log", readResult[0].contains("[INFO] LogTest testLogReadDoesNotBlockWriter before"));
+        assertFalse("The read saw entries written after it started", readResult[0].contains("after"));
+        assertTrue("The entries written during the read are missing",
+                Log.readLog().contains("[INFO] LogTest testLogReadDoesNotBlockWriter after 99"));
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and its write thread is in the middle of writing a batch
+     * When I initialize Log again
+     * Then the old write thread stops without failing, and what I log next is written to the new log
+     */
+    public void testLogReinitWhileWriting() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread[] writeThread = new Thread[1];
+        final Thread testThread = Thread.currentThread();
+        MemoryLogStorage storage = new MemoryLogStorage() {
+            @Override
+            public synchronized OutputStream openOutput(String name) {
+                // Stall the first write until the test lets it go on, even if it is interrupted
+                if (Thread.currentThread() != testThread && writeThread[0] == null) {
+                    writeThread[0] = Thread.currentThread();
+                    writing.countDown();
+                    boolean interrupted = false;
+                    while (release.getCount() > 0) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.openOutput(name);
+            }
+        };
+
+        final List<Throwable> uncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                uncaught.add(throwable);
+            }
+        });
+        try {
+            Log.init(storage, new LogConfig.Builder().build());
+            Log.i("LogTest", "testLogReinitWhileWriting before");
+            assertTrue("The batch was not written", writing.await(5, TimeUnit.SECONDS));
+
+            // Initialize again from another thread, since it waits for the batch in flight
+            Thread initThread = new Thread() {
+                @Override
+                public void run() {
+                    Log.init(new MemoryLogStorage(), new LogConfig.Builder().build());
+                }
+            };
+            initThread.start();
+            initThread.join(100);
+            release.countDown();
+            initThread.join(5000);
+            assertFalse("Initializing again did not finish", initThread.isAlive());
+            writeThread[0].join(5000);
+            assertFalse("The old write thread did not stop", writeThread[0].isAlive());
+
+            Log.i("LogTest", "testLogReinitWhileWriting after");
+            Log.flush(5000);
+        } finally {
+            release.countDown();
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+
+        assertTrue("A write thread failed: " + uncaught, uncaught.isEmpty());
+        String log = Log.readLog();
+        assertTrue("The entry logged after initializing again is missing",
+                log.contains("[INFO] LogTest testLogReinitWhileWriting after"));
+        assertFalse("The old write thread wrote to the new log", log.contains("before"));
+    }
 }
@@ -0,0 +1,372 @@
+package com.oanda.logging;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Testing class for com.oanda.logging.LogUploader, against an HTTP server on this machine that
+ * stands in for the endpoint.
+ */
+public class LogUploaderTests extends TestCase {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private HttpServer mServer;
+    private URL mEndpoint;
+    private MemoryLogStorage mSpool;
+    private LogUploader mUploader;
+
+    /**
+     * The sequence number and decompressed body of each chunk the server accepted, the status
+     * codes that it responds to the next requests with before it starts accepting them, and
+     * whether it responds 503 to every request. Guarded by this.
+     */
+    private final List<Long> mSequences = new ArrayList<Long>();
+    private final List<String> mBodies = new ArrayList<String>();
+    private final List<Integer> mFailures = new ArrayList<Integer>();
+    private final List<Long> mRequestTimes = new ArrayList<Long>();
+    private boolean mDown = false;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int responseCode = 200;
+                String body = gunzip(exchange.getRequestBody());
+                long sequence = Long.parseLong(exchange.getRequestHeaders().getFirst(LogUploader.SEQUENCE_HEADER));
+                synchronized (LogUploaderTests.this) {
+                    mRequestTimes.add(System.currentTimeMillis());
+                    if (mDown) {
+                        responseCode = 503;
+                    } else if (!mFailures.isEmpty()) {
+                        responseCode = mFailures.remove(0);
+                    } else if (body.equals("rejected\n")) {
+                        responseCode = 400;
+                    } else if (!mSequences.contains(sequence)) {
+                        // A chunk can be sent again if the response to it was lost, as an
+                        // endpoint should, only take it once
+                        assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                        mSequences.add(sequence);
+                        mBodies.add(body);
+                    }
+                    LogUploaderTests.this.notifyAll();
+                }
+                exchange.sendResponseHeaders(responseCode, -1);
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+        mEndpoint = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/upload");
+        mSpool = new MemoryLogStorage();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        if (mUploader != null) {
+            mUploader.stop();
+        }
+        mServer.stop(0);
+        Log.destroy();
+    }
+
+    /**
+     * Scenario:
+     * Given Log is initialized and a LogUploader is started
+     * When I log some entries and flush the uploader
+     * Then the endpoint receives the entries in one compressed chunk, and the spool is left
+     * with nothing to upload
+     */
+    public void testUpload() throws InterruptedException {
+        Log.init(new MemoryLogStorage());
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool).build();
+        mUploader.start();
+
+        Log.i("LogUploaderTests", "first");
+        Log.e("LogUploaderTests", "second");
+        Log.waitUntilFinishedWriting();
+        // The entries reach the uploader on the listener's thread, after they are written
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mSpool.length(LogUploader.CURRENT_NAME) > 0 &&
+                        mSpool.length(LogUploader.CURRENT_NAME) == Log.readLog().length();
+            }
+        });
+        mUploader.flush();
+        awaitAccepted(1);
+
+        assertEquals(Arrays.asList(1L), mSequences);
+        assertEquals(Log.readLog(), mBodies.get(0));
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mUploader.getNumUploaded() == 1 && mUploader.getNumPending() == 0;
+            }
+        });
+        assertEquals(Arrays.asList(LogUploader.ACKED_NAME), Arrays.asList(mSpool.list()));
+    }
+
+    /**
+     * Scenario:
+     * Given the endpoint fails the first three uploads
+     * When a chunk is sealed
+     * Then the uploader retries with a wait that doubles after each failure, and the chunk is
+     * uploaded once the endpoint recovers
+     */
+    public void testRetryWithBackoff() throws InterruptedException {
+        synchronized (this) {
+            mFailures.addAll(Arrays.asList(503, 500, 429));
+        }
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool)
+                .setBackoffMillis(100, 1000)
+                .build();
+        mUploader.start();
+
+        mUploader.onEntriesLogged(Arrays.asList("entry"));
+        mUploader.flush();
+        awaitAccepted(1);
+
+        assertEquals(Arrays.asList("entry\n"), mBodies);
+        synchronized (this) {
+            // More if a response was lost, which is retried the same way
+            assertTrue(mRequestTimes.size() >= 4);
+            for (int i = 1; i < 4; i++) {
+                long waited = mRequestTimes.get(i) - mRequestTimes.get(i - 1);
+                long backoff = 100L << (i - 1);
+                assertTrue("Retry " + i + " came after " + waited + "ms", waited >= backoff - 10);
+            }
+        }
+        assertEquals(0, mUploader.getNumDroppedChunks());
+    }
+
+    /**
+     * Scenario:
+     * Given the endpoint redirects the first upload
+     * When a chunk is sealed
+     * Then the chunk is retried rather than dropped, and uploaded once the redirect goes away
+     */
+    public void testRedirectRetried() throws InterruptedException {
+        synchronized (this) {
+            mFailures.add(302);
+        }
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool)
+                .setBackoffMillis(10, 50)
+                .build();
+        mUploader.start();
+
+        mUploader.onEntriesLogged(Arrays.asList("entry"));
+        mUploader.flush();
+        awaitAccepted(1);
+
+        assertEquals(Arrays.asList("entry\n"), mBodies);
+        assertEquals(0, mUploader.getNumDroppedChunks());
+    }
+
+    /**
+     * Scenario:
+     * Given a seal that failed part way through left part of a chunk in the spool
+     * When the chunk with that sequence number is sealed
+     * Then the chunk replaces what was left, and is uploaded intact
+     */
+    public void testSealReplacesPartialChunk() throws IOException, InterruptedException {
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool).build();
+        mUploader.start();
+
+        OutputStream outputStream = mSpool.openOutput(LogUploader.chunkName(1));
+        try {
+            outputStream.write(new byte[]{0x1f, (byte) 0x8b, 8});
+        } finally {
+            outputStream.close();
+        }
+        mUploader.onEntriesLogged(Arrays.asList("entry"));
+        mUploader.flush();
+        awaitAccepted(1);
+
+        assertEquals(Arrays.asList(1L), mSequences);
+        assertEquals(Arrays.asList("entry\n"), mBodies);
+    }
+
+    /**
+     * Scenario:
+     * Given the endpoint rejects a chunk with a 400
+     * When the chunk and another after it are uploaded
+     * Then the rejected chunk is dropped instead of being retried, and the next one is uploaded
+     */
+    public void testRejectedChunkDropped() throws InterruptedException {
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool).build();
+        mUploader.start();
+
+        mUploader.onEntriesLogged(Arrays.asList("rejected"));
+        mUploader.flush();
+        mUploader.onEntriesLogged(Arrays.asList("accepted"));
+        mUploader.flush();
+        awaitAccepted(1);
+
+        assertEquals(Arrays.asList(2L), mSequences);
+        assertEquals(Arrays.asList("accepted\n"), mBodies);
+        assertEquals(1, mUploader.getNumDroppedChunks());
+    }
+
+    /**
+     * Scenario:
+     * Given an uploader acknowledged one chunk, sealed another that the endpoint was down for,
+     * and collected entries that weren't sealed, and then stopped
+     * When another uploader is started with the same spool and the endpoint is back
+     * Then it uploads the unacknowledged chunk and then the unsealed entries, and never the
+     * acknowledged chunk again
+     */
+    public void testResumeAfterRestart() throws InterruptedException {
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool)
+                .setBackoffMillis(10, 50)
+                .build();
+        mUploader.start();
+        mUploader.onEntriesLogged(Arrays.asList("acknowledged"));
+        mUploader.flush();
+        awaitAccepted(1);
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mUploader.getNumUploaded() == 1;
+            }
+        });
+
+        final int numRequests;
+        synchronized (this) {
+            mDown = true;
+            numRequests = mRequestTimes.size();
+        }
+        mUploader.onEntriesLogged(Arrays.asList("failed"));
+        mUploader.flush();
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                synchronized (LogUploaderTests.this) {
+                    return mRequestTimes.size() > numRequests;
+                }
+            }
+        });
+        mUploader.onEntriesLogged(Arrays.asList("unsealed"));
+        mUploader.stop();
+
+        synchronized (this) {
+            mDown = false;
+        }
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool).build();
+        mUploader.start();
+        awaitAccepted(3);
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), mSequences);
+        assertEquals(Arrays.asList("acknowledged\n", "failed\n", "unsealed\n"), mBodies);
+    }
+
+    /**
+     * Scenario:
+     * Given the endpoint is down and the spool holds little more than one chunk
+     * When several chunks are sealed and then the endpoint comes back
+     * Then the oldest chunks were dropped to keep the spool within its limit, and the newest is
+     * uploaded
+     */
+    public void testSpoolBounded() throws InterruptedException {
+        synchronized (this) {
+            mDown = true;
+        }
+        mUploader = new LogUploader.Builder(mEndpoint, mSpool)
+                .setMaxChunkBytes(512)
+                .setMaxSpoolBytes(300)
+                .setBackoffMillis(10, 50)
+                .build();
+        mUploader.start();
+
+        for (int chunk = 0; chunk < 5; chunk++) {
+            List<String> entries = new ArrayList<String>();
+            for (int i = 0; i < 20; i++) {
+                entries.add("chunk " + chunk + " entry " + i + " " + Math.random());
+            }
+            mUploader.onEntriesLogged(entries);
+        }
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mUploader.getNumDroppedChunks() == 4;
+            }
+        });
+        assertEquals(1, mUploader.getNumPending());
+
+        synchronized (this) {
+            mDown = false;
+        }
+        waitFor(new Condition() {
+            @Override
+            public boolean isMet() {
+                return mUploader.getNumPending() == 0;
+            }
+        });
+
+        // The first chunk may have been sent before it was dropped, but none of the others
+        synchronized (this) {
+            int index = mSequences.indexOf(5L);
+            assertTrue("The newest chunk wasn't uploaded: " + mSequences, index >= 0);
+            assertTrue(mBodies.get(index).startsWith("chunk 4 entry 0 "));
+            for (long sequence : mSequences) {
+                assertTrue("A dropped chunk was uploaded: " + mSequences, sequence == 1 || sequence == 5);
+            }
+        }
+    }
+
+    /**
+     * Wait until the server has accepted a number of chunks.
+     */
+    private synchronized void awaitAccepted(int numChunks) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mSequences.size() < numChunks) {
+            long remaining = end - System.currentTimeMillis();
+            assertTrue("Only " + mSequences.size() + " chunks were uploaded", remaining > 0);
+            wait(remaining);
+        }
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.isMet()) {
+            assertTrue("Timed out", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String gunzip(InputStream inputStream) throws IOException {
+        InputStream gzipInputStream = new GZIPInputStream(inputStream);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = gzipInputStream.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+}
@@ -0,0 +1,124 @@
+package com.oanda.logging;
+
+import android.content.Context;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * LogStorage that keeps its files in the application's private files directory, using the file
+ * methods of a {@link Context}. This is the storage used by {@link Log#init(Context)}.
+ */
+public class ContextLogStorage implements LogStorage {
+
+    /**
+     * The size of the buffer used when copying a file.
+     */
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final Context mContext;
+
+    /**
+     * @param context A context that provides access to the file system.
+     */
+    public ContextLogStorage(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public InputStream openInput(String name) throws FileNotFoundException {
+        return mContext.openFileInput(name);
+    }
+
+    @Override
+    public OutputStream openOutput(String name) throws FileNotFoundException {
+        return mContext.openFileOutput(name, Context.MODE_APPEND);
+    }
+
+    @Override
+    public long length(String name) {
+        File file = mContext.getFileStreamPath(name);
+        return file != null ? file.length() : 0;
+    }
+
+    /**
+     * Copies the part of the file that is kept to a temporary file with the name '~' + name, then
+     * replaces the file with the temporary file.
+     */
+    @Override
+    public void truncateHead(String name, long numBytes) throws IOException {
+        String tempName = '~' + name;
+
+        // Make sure that we don't append to what was left of an earlier, failed truncate
+        mContext.deleteFile(tempName);
+
+        InputStream inputStream = openInput(name);
+        try {
+            OutputStream outputStream = openOutput(tempName);
+            try {
+                // Skip the bytes being removed
+                long remaining = numBytes;
+                while (remaining > 0) {
+                    long skipped = inputStream.skip(remaining);
+                    if (skipped <= 0) {
+                        // We reached the end of the file while skipping, so there's nothing to copy
+                        break;
+                    }
+                    remaining -= skipped;
+                }
+
+                // Copy the rest of the file
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, read);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        // Create a File representation of the temp file and the permanent file
+        File tempFile = mContext.getFileStreamPath(tempName);
+        String parent = tempFile.getParent();
+        File permanentFile = new File(parent != null ? parent : "", name);
+
+        mContext.deleteFile(name);
+        // Rename the temp file to the permanent file
+        if (!tempFile.renameTo(permanentFile)) {
+            throw new IOException("Could not rename " + tempFile + " to " + permanentFile);
+        }
+    }
+
+    @Override
+    public void truncateTail(String name, long length) throws IOException {
+        FileLogStorage.truncateTail(mContext.getFileStreamPath(name), length);
+    }
+
+    @Override
+    public boolean delete(String name) {
+        return mContext.deleteFile(name);
+    }
+
+    @Override
+    public String[] list() {
+        String[] names = mContext.fileList();
+        return names != null ? names : new String[0];
+    }
+
+    @Override
+    public Closeable lock(String name) throws IOException {
+        return FileLogStorage.lock(mContext.getFileStreamPath(name));
+    }
+
+    @Override
+    public File getFile(String name) {
+        return mContext.getFileStreamPath(name);
+    }
+}
@@ -0,0 +1,260 @@
+package com.oanda.logging;
+
+/**
+ * Limits on the size of a single entry, so that one huge message or stack trace, such as a full
+ * JSON response, can't push the rest of the history out of the log. Create one with a
+ * {@link Builder} and pass it to {@link LogConfig.Builder#setEntrySizePolicy(EntrySizePolicy)}:
+ * <pre>
+ * new EntrySizePolicy.Builder()
+ *         .setMaxChars(8 * 1024)
+ *         .setMaxLines(50)
+ *         .setOverflow(EntrySizePolicy.PAYLOAD_FILE)
+ *         .build();
+ * </pre>
+ * An entry is oversized when its message is longer than the most characters, or when the entry as
+ * written has more characters or lines than the most allowed. Its message and stack trace are
+ * then cut to fit, and what doesn't fit is handled according to the overflow:
+ * <ul>
+ * <li>{@link #TRUNCATE}: left out, with a marker that says how much was left out.</li>
+ * <li>{@link #CHUNK}: written as continuation entries that follow the first, each marked with the
+ * same number and its place, such as [#17 2/3], up to a number of chunks, after which the rest is
+ * left out.</li>
+ * <li>{@link #PAYLOAD_FILE}: left out of the log, with a marker that names the entry's number, and
+ * the whole message and stack trace are appended to the payload file, which is kept in the same
+ * storage as the log and named after it, such as fxtrade_log.payloads. The payload file is kept
+ * to a size by removing its oldest bytes.</li>
+ * </ul>
+ * The write thread's batch only ever holds the part of an entry that is written to the log, so it
+ * stays bounded however large a message is.
+ */
+public final class EntrySizePolicy {
+
+    /**
+     * Leave out what doesn't fit, with a marker.
+     */
+    public static final int TRUNCATE = 0;
+
+    /**
+     * Write what doesn't fit as continuation entries.
+     */
+    public static final int CHUNK = 1;
+
+    /**
+     * Write the whole message and stack trace to the payload file.
+     */
+    public static final int PAYLOAD_FILE = 2;
+
+    /**
+     * The policy that Log uses unless another is set.
+     */
+    public static final EntrySizePolicy DEFAULT = new Builder().build();
+
+    /**
+     * The characters that are kept free of an entry's message for its marker.
+     */
+    static final int MARKER_CHARS = 64;
+
+    private final int mMaxChars;
+    private final int mMaxLines;
+    private final int mOverflow;
+    private final int mMaxChunks;
+    private final long mMaxPayloadFileBytes;
+
+    private EntrySizePolicy(Builder builder) {
+        mMaxChars = builder.mMaxChars;
+        mMaxLines = builder.mMaxLines;
+        mOverflow = builder.mOverflow;
+        mMaxChunks = builder.mMaxChunks;
+        mMaxPayloadFileBytes = builder.mMaxPayloadFileBytes;
+    }
+
+    /**
+     * @return The most characters in an entry.
+     */
+    public int getMaxChars() {
+        return mMaxChars;
+    }
+
+    /**
+     * @return The most lines in an entry.
+     */
+    public int getMaxLines() {
+        return mMaxLines;
+    }
+
+    /**
+     * @return What is done with the part of an entry that doesn't fit: {@link #TRUNCATE},
+     * {@link #CHUNK} or {@link #PAYLOAD_FILE}.
+     */
+    public int getOverflow() {
+        return mOverflow;
+    }
+
+    /**
+     * @return The most entries, including the first, that an oversized entry is written as with
+     * {@link #CHUNK}.
+     */
+    public int getMaxChunks() {
+        return mMaxChunks;
+    }
+
+    /**
+     * @return The most bytes that the payload file is kept to with {@link #PAYLOAD_FILE}.
+     */
+    public long getMaxPayloadFileBytes() {
+        return mMaxPayloadFileBytes;
+    }
+
+    /**
+     * @param length The number of characters in an entry's text.
+     * @return True if the text may have more lines than the most allowed, and has to be counted.
+     */
+    boolean mayHaveTooManyLines(int length) {
+        return length >= mMaxLines;
+    }
+
+    /**
+     * Whether part of a CharSequence, such as an entry in the write thread's batch, is longer
+     * than the most characters or has more lines than the most allowed. A newline at its end
+     * doesn't start another line.
+     *
+     * @param text  The CharSequence.
+     * @param start The index of the first character of the part.
+     * @param end   The index after the last character of the part.
+     * @return True if the part is oversized.
+     */
+    boolean isOversized(CharSequence text, int start, int end) {
+        if (end - start > mMaxChars) {
+            return true;
+        }
+        if (!mayHaveTooManyLines(end - start)) {
+            return false;
+        }
+
+        int lines = 1;
+        for (int i = start; i < end - 1; i++) {
+            if (text.charAt(i) == '\n' && ++lines > mMaxLines) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds where the next piece of an oversized message ends, so that it has no more than the
+     * most characters less room for its marker, and no more than the most lines.
+     *
+     * @param text  The message.
+     * @param start The index that the piece starts at.
+     * @return The index after the last character of the piece. The newline that ends the piece's
+     * last line, if it ends there, is not part of it.
+     */
+    int pieceEnd(String text, int start) {
+        int end = Math.min(text.length(), start + mMaxChars - MARKER_CHARS);
+        int lines = 1;
+        for (int i = text.indexOf('\n', start); i >= 0 && i < end; i = text.indexOf('\n', i + 1)) {
+            if (++lines > mMaxLines) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Builds an EntrySizePolicy. By default, entries are truncated past 32 KiB or 200 lines.
+     */
+    public static final class Builder {
+
+        private int mMaxChars = 32 * 1024;
+        private int mMaxLines = 200;
+        private int mOverflow = TRUNCATE;
+        private int mMaxChunks = 16;
+        private long mMaxPayloadFileBytes = 1024 * 1024;
+
+        /**
+         * Sets the most characters in an entry. 32 KiB by default.
+         *
+         * @param maxChars The most characters, at least 4 times MARKER_CHARS.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxChars is less than 4 times MARKER_CHARS.
+         */
+        public Builder setMaxChars(int maxChars) {
+            if (maxChars < 4 * MARKER_CHARS) {
+                throw new IllegalArgumentException("maxChars must be at least " + 4 * MARKER_CHARS + ": " + maxChars);
+            }
+            mMaxChars = maxChars;
+            return this;
+        }
+
+        /**
+         * Sets the most lines in an entry, including the lines of its stack trace. 200 by
+         * default.
+         *
+         * @param maxLines The most lines, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxLines is less than 1.
+         */
+        public Builder setMaxLines(int maxLines) {
+            if (maxLines < 1) {
+                throw new IllegalArgumentException("maxLines must be at least 1: " + maxLines);
+            }
+            mMaxLines = maxLines;
+            return this;
+        }
+
+        /**
+         * Sets what is done with the part of an entry that doesn't fit. {@link #TRUNCATE} by
+         * default.
+         *
+         * @param overflow {@link #TRUNCATE}, {@link #CHUNK} or {@link #PAYLOAD_FILE}.
+         * @return This Builder.
+         * @throws IllegalArgumentException If overflow is not one of those.
+         */
+        public Builder setOverflow(int overflow) {
+            if (overflow != TRUNCATE && overflow != CHUNK && overflow != PAYLOAD_FILE) {
+                throw new IllegalArgumentException("Unknown overflow: " + overflow);
+            }
+            mOverflow = overflow;
+            return this;
+        }
+
+        /**
+         * Sets the most entries, including the first, that an oversized entry is written as with
+         * {@link #CHUNK}. 16 by default.
+         *
+         * @param maxChunks The most entries, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxChunks is less than 1.
+         */
+        public Builder setMaxChunks(int maxChunks) {
+            if (maxChunks < 1) {
+                throw new IllegalArgumentException("maxChunks must be at least 1: " + maxChunks);
+            }
+            mMaxChunks = maxChunks;
+            return this;
+        }
+
+        /**
+         * Sets the most bytes that the payload file is kept to with {@link #PAYLOAD_FILE}. A
+         * message and stack trace larger than this are cut to it. 1 MiB by default.
+         *
+         * @param maxPayloadFileBytes The most bytes, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxPayloadFileBytes is less than 1.
+         */
+        public Builder setMaxPayloadFileBytes(long maxPayloadFileBytes) {
+            if (maxPayloadFileBytes < 1) {
+                throw new IllegalArgumentException("maxPayloadFileBytes must be at least 1: " + maxPayloadFileBytes);
+            }
+            mMaxPayloadFileBytes = maxPayloadFileBytes;
+            return this;
+        }
+
+        /**
+         * @return An EntrySizePolicy with the limits that have been set.
+         */
+        public EntrySizePolicy build() {
+            return new EntrySizePolicy(this);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.oanda.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * LogStorage that keeps its files in a directory using java.io and NIO directly, without an
+ * android.content.Context. Useful outside of an app's private files directory, and for running
+ * Log on a plain JVM.
+ */
+public class FileLogStorage implements LogStorage {
+
+    private final File mDirectory;
+
+    /**
+     * @param directory The directory to keep the files in. It is created if it does not exist.
+     */
+    public FileLogStorage(File directory) {
+        mDirectory = directory;
+        mDirectory.mkdirs();
+    }
+
+    @Override
+    public InputStream openInput(String name) throws FileNotFoundException {
+        return new FileInputStream(getFile(name));
+    }
+
+    @Override
+    public OutputStream openOutput(String name) throws FileNotFoundException {
+        return new FileOutputStream(getFile(name), true);
+    }
+
+    @Override
+    public long length(String name) {
+        return getFile(name).length();
+    }
+
+    /**
+     * Transfers the part of the file that is kept to a temporary file with the name '~' + name
+     * using FileChannel.transferTo, which avoids copying through the Java heap where the platform
+     * supports it, then renames the temporary file over the file.
+     */
+    @Override
+    public void truncateHead(String name, long numBytes) throws IOException {
+        File file = getFile(name);
+        File tempFile = getFile('~' + name);
+
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(tempFile);
+            try {
+                FileChannel source = inputStream.getChannel();
+                FileChannel target = outputStream.getChannel();
+
+                long size = source.size();
+                for (long position = numBytes; position < size; ) {
+                    position += source.transferTo(position, size - position, target);
+                }
+            } finally {
+                outputStream.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        // Renaming over an existing file fails on some platforms, so fall back to deleting first
+        if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+            throw new IOException("Could not rename " + tempFile + " to " + file);
+        }
+    }
+
+    @Override
+    public void truncateTail(String name, long length) throws IOException {
+        truncateTail(getFile(name), length);
+    }
+
+    /**
+     * Shortens a file in place with RandomAccessFile.setLength().
+     *
+     * @param file   The file to shorten.
+     * @param length The length to shorten the file to.
+     * @throws IOException If the file could not be shortened.
+     */
+    static void truncateTail(File file, long length) throws IOException {
+        if (length < file.length()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(length);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String name) {
+        return getFile(name).delete();
+    }
+
+    @Override
+    public String[] list() {
+        String[] names = mDirectory.list();
+        return names != null ? names : new String[0];
+    }
+
+    @Override
+    public Closeable lock(String name) throws IOException {
+        return lock(getFile(name));
+    }
+
+    /**
+     * Takes an exclusive FileChannel lock on a file, which other processes respect.
+     *
+     * @param file The file to lock. It is created if it does not exist.
+     * @return Releases the lock when closed.
+     * @throws IOException If the lock could not be taken, including if another thread in this
+     *                     process holds it.
+     */
+    static Closeable lock(File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        final FileLock fileLock;
+        try {
+            fileLock = randomAccessFile.getChannel().lock();
+        } catch (OverlappingFileLockException e) {
+            randomAccessFile.close();
+            IOException e2 = new IOException(e.toString());
+            e2.initCause(e);
+            throw e2;
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+
+        return new Closeable() {
+            @Override
+            public void close() throws IOException {
+                try {
+                    fileLock.release();
+                } finally {
+                    randomAccessFile.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public File getFile(String name) {
+        return new File(mDirectory, name);
+    }
+}
@@ -0,0 +1,71 @@
+package com.oanda.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with a fixed set of buckets. Recording a value costs a short scan over the bucket
+ * bounds and an atomic increment; nothing is allocated.
+ * <p/>
+ * Bucket i counts the values that are greater than bound i - 1 and less than or equal to bound i.
+ * An extra last bucket counts the values greater than the last bound.
+ */
+final class Histogram {
+
+    /**
+     * Bucket bounds for counts, such as the number of entries in a batch.
+     */
+    static final long[] COUNT_BOUNDS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096};
+
+    /**
+     * Bucket bounds for durations in microseconds, from 50us to 1s.
+     */
+    static final long[] MICROS_BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000,
+            100000, 250000, 500000, 1000000};
+
+    /**
+     * Bucket bounds for durations in milliseconds, from 1ms to 10s.
+     */
+    static final long[] MILLIS_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    private final long[] mUpperBounds;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param upperBounds The inclusive upper bound of each bucket, in increasing order.
+     */
+    Histogram(long[] upperBounds) {
+        mUpperBounds = upperBounds;
+        mCounts = new AtomicLongArray(upperBounds.length + 1);
+    }
+
+    /**
+     * Records a value in its bucket.
+     *
+     * @param value The value to record.
+     */
+    void record(long value) {
+        int bucket = 0;
+        while (bucket < mUpperBounds.length && value > mUpperBounds[bucket]) {
+            bucket++;
+        }
+        mCounts.incrementAndGet(bucket);
+        mSum.addAndGet(value);
+
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) ;
+    }
+
+    /**
+     * @return An immutable copy of the current state of the histogram.
+     */
+    LogStats.Distribution snapshot() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new LogStats.Distribution(mUpperBounds, counts, mSum.get(), mMax.get());
+    }
+}
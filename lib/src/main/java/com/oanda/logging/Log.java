@@ -1,22 +1,32 @@
 package com.oanda.logging;
 
+import android.content.ComponentCallbacks;
 import android.content.Context;
+import android.os.Build;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.LineNumberReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -27,11 +37,13 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p/>
  * <p>Note: If an entry contains more lines than Log.CIRCULAR_BUFFER_SIZE, then it is possible that
  * the entry will eventually be split up, since the circular buffer implemented in this class limits
- * the number of lines in the log file, rather than the number of entries.</p>
+ * the number of lines in the log file, rather than the number of entries. Keeping the log file as
+ * framed records (see {@link LogConfig.Builder#setFramedRecords(boolean)}) limits the number of
+ * entries instead.</p>
  * <p>Whenever a Log request is made, it gets added to a buffer that gets appended to the log file
- * on a dedicated thread. When readLog() is called, it must wait for the read/write lock to be
- * released by the write thread. This means that these calls will be delayed until the write thread
- * completes its current write job.</p>
+ * on a dedicated thread. When readLog() is called, it waits for the write thread to finish its
+ * current write job, takes a snapshot of where the log ends, and reads up to there while the write
+ * thread carries on, so a long read never holds up writing.</p>
  * <p>All writing to the file system is done on a separate thread than the one that invoked the
  * Log, which means that the writing will not be completed immediately when the function returns;
  * it will finish some time afterwards.</p>
@@ -63,6 +75,10 @@ import java.util.concurrent.locks.ReentrantLock;
  * another buffer allocation and copy, and even more pressure on the gc.
  * That means that if your log message is filtered out, you might be doing
  * significant work and incurring significant overhead.
+ * <p/>
+ * <p>A structured entry such as
+ * <pre>Log.v(TAG).kv("index", i).log();</pre>
+ * avoids this, since the caller doesn't build the string. See {@link LogBuilder}.</p>
  */
 public class Log {
 
@@ -101,26 +117,166 @@ public class Log {
      */
     static final int CIRCULAR_BUFFER_SIZE = 500;
 
+    /**
+     * The number of milliseconds between file trims while the write thread runs, to make sure that
+     * the file does not get too big.
+     */
+    static final long TRIM_FILE_MILLIS = 1000;
+
+    /**
+     * The longest amount of time that a run of coalesced duplicate entries can last before its
+     * summary is written, whether or not anything is logged after it. Duplicates after that start
+     * a new run.
+     */
+    static final long DUPLICATE_SUMMARY_MILLIS = 5000;
+
+    /**
+     * The lowest priority of the entries that are queued separately from the rest, so that they
+     * never wait behind a backlog of less important entries.
+     */
+    static final int HIGH_PRIORITY = WARN;
+
     /**
      * The name of the log file.
      */
     static final String FILENAME = "fxtrade_log.txt";
 
     /**
-     * The name of the temporary file to use while removing a "chunk".
+     * The name of the temporary file that ContextLogStorage uses while trimming the log file.
      */
     static final String TEMP_FILENAME = '~' + FILENAME;
 
+    /**
+     * The name of the log file when it is kept as framed records.
+     */
+    static final String RECORDS_FILENAME = "fxtrade_log.records";
+
+    /**
+     * The name of the file that processes lock while trimming or clearing their segments of the
+     * log.
+     */
+    static final String LOCK_FILENAME = "fxtrade_log.lock";
+
+    /**
+     * The size of the buffer used when scanning through the log file.
+     */
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * The levels of ComponentCallbacks2.onTrimMemory() that Log acts on, copied from
+     * ComponentCallbacks2, which is only there from API level 14.
+     */
+    private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+
+    /**
+     * The API level that Log is running on. Tests, which run against stubs where it is 0, set it
+     * themselves.
+     */
+    static int mSdkInt = Build.VERSION.SDK_INT;
+
     /**
      * The system's newline String
      */
     private static final String mNewLine = System.getProperty("line.separator");
 
     /**
-     * A SimpleDateFormat object used to create a timestamp for each entry.
+     * Per-tag overrides for whether runs of identical consecutive entries are coalesced by the
+     * write thread. Tags without an override use mCoalesceDuplicatesByDefault.
+     */
+    private static final ConcurrentHashMap<String, Boolean> mCoalesceDuplicateTags =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Whether runs of identical consecutive entries are coalesced for tags that have no override.
+     */
+    private static volatile boolean mCoalesceDuplicatesByDefault = false;
+
+    /**
+     * The most caller locations kept in mCallerLocations before it is cleared.
+     */
+    private static final int MAX_CALLER_LOCATIONS = 1024;
+
+    /**
+     * Per-tag overrides for whether the caller's location is captured. Tags without an override
+     * use mCallerLocationPriority. mHasCallerLocationTags is set once an override is added, so that
+     * the map isn't looked up for every entry until then.
+     */
+    private static final ConcurrentHashMap<String, Boolean> mCallerLocationTags =
+            new ConcurrentHashMap<String, Boolean>();
+    private static volatile boolean mHasCallerLocationTags = false;
+
+    /**
+     * The lowest priority that the caller's location is captured for, for tags that have no
+     * override. Above ASSERT when capturing is off.
+     */
+    private static volatile int mCallerLocationPriority = Integer.MAX_VALUE;
+
+    /**
+     * The caller's location is captured for one in this many of the entries it is enabled for.
+     */
+    private static volatile int mCallerLocationSampling = 1;
+    private static final AtomicInteger mCallerLocationCount = new AtomicInteger();
+
+    /**
+     * The location written for each call site, such as com.example.Foo.bar(Foo.java:12), so that
+     * each is only built once. Filled by the write thread.
+     */
+    private static final ConcurrentHashMap<StackTraceElement, String> mCallerLocations =
+            new ConcurrentHashMap<StackTraceElement, String>();
+
+    /**
+     * How long memory is taken to be under pressure after the system last said that it was, since
+     * it doesn't say when the pressure has passed.
+     */
+    static final long MEMORY_PRESSURE_MILLIS = 30000;
+
+    /**
+     * The most entries in a batch while memory is under pressure.
+     */
+    static final int MEMORY_PRESSURE_BATCH_ENTRIES = 50;
+
+    /**
+     * Until when memory is under pressure, in terms of System.currentTimeMillis(), or 0 if it
+     * hasn't been.
+     */
+    private static volatile long mMemoryPressureUntil = 0;
+
+    /**
+     * The callbacks registered by init(Context) to hear about memory pressure, and the Context
+     * that they are registered with, or null if none are registered.
+     */
+    private static ComponentCallbacks mMemoryCallbacks;
+    private static Context mMemoryCallbacksContext;
+
+    /**
+     * Whether the app is in the background, as last signalled by onBackground() and
+     * onForeground(), in which case the write thread wakes up less often.
+     */
+    private static volatile boolean mBackground = false;
+
+    /**
+     * When the log file was last trimmed, in terms of System.currentTimeMillis().
+     */
+    private static volatile long mLastTrimMillis = 0;
+
+    /**
+     * The limits on the size of a single entry, and the file that the whole of an oversized entry
+     * is written to with EntrySizePolicy.PAYLOAD_FILE.
      */
-    private static final SimpleDateFormat mSimpleDateFormat =
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSZ", Locale.US);
+    private static EntrySizePolicy mEntrySizePolicy = EntrySizePolicy.DEFAULT;
+    private static String mPayloadFileName;
+
+    /**
+     * The number given to the last oversized entry, which its markers refer to.
+     */
+    private static final AtomicInteger mLastOversizedId = new AtomicInteger();
+
+    /**
+     * The threads that pass newly written entries on to each LogListener.
+     */
+    private static final CopyOnWriteArrayList<LogListenerDispatcher> mListeners =
+            new CopyOnWriteArrayList<LogListenerDispatcher>();
 
     /**
      * The lock for file I/O operations
@@ -128,10 +284,35 @@ public class Log {
     private static ReentrantLock mFileLock;
 
     /**
-     * The queue of entries that will be written to file by the write thread
+     * The queue of entries that will be written to file by the write thread. Only holds entries
+     * below HIGH_PRIORITY
      */
     private static ConcurrentLinkedQueue<Entry> mEntryQueue;
 
+    /**
+     * The queue of entries of HIGH_PRIORITY or above, which the write thread takes before any
+     * others
+     */
+    private static ConcurrentLinkedQueue<Entry> mHighPriorityQueue;
+
+    /**
+     * The per-thread buffers that entries are added to instead of mEntryQueue, which then only
+     * takes the entries that don't fit, or null if striped buffers aren't used
+     */
+    private static StripedEntryQueue mStripedQueue;
+
+    /**
+     * The limits on a batch of entries written at once. See {@link LogConfig.Builder}
+     */
+    private static int mMaxBatchEntries;
+    private static int mMaxBatchChars;
+    private static long mMaxBatchLatencyMillis;
+
+    /**
+     * The counters and histograms that are reported by getStats()
+     */
+    private static LogMetrics mMetrics;
+
     /**
      * Used to signal that the write thread has ended
      */
@@ -145,15 +326,60 @@ public class Log {
     private static AtomicBoolean mRequestedClearLog;
 
     /**
-     * Context that provides access to the file system. Should be a reference to the
-     * application's main activity.
+     * The tickets of flush(): the last one taken by a caller, the last one taken by a caller that
+     * asked for the log to be synced, and the last one that the write thread has finished, which
+     * means that everything logged before it was taken has been written. Written while holding
+     * mFlushLock, which callers wait on for their tickets.
+     */
+    private static volatile long mLastFlushTicket = 0;
+    private static long mLastSyncTicket = 0;
+    private static volatile long mFlushedTicket = 0;
+    private static final Object mFlushLock = new Object();
+
+    /**
+     * The storage that the log file is kept in.
+     */
+    private static LogStorage mStorage;
+
+    /**
+     * Whether the log file is kept as framed records rather than plain text.
+     */
+    private static boolean mFramedRecords;
+
+    /**
+     * The layout that the write thread formats each entry with.
+     */
+    private static LogLayout mLayout = LogLayout.DEFAULT;
+
+    /**
+     * The name of this process's segment of the log in mStorage, which depends on its format and
+     * on the name of the process.
+     */
+    private static String mFileName;
+
+    /**
+     * The partitions that the entries of chosen tags are kept in instead of mFileName, and the
+     * names of their files in mStorage, or null if there are none.
      */
-    private static Context mContext;
+    private static TagPartitions mTagPartitions;
+    private static String[] mPartitionFileNames;
 
     /**
      * The dedicated thread for writing new entries to the log file.
      */
-    private static WriteThread mWriteThread;
+    private static volatile WriteThread mWriteThread;
+
+    /**
+     * Counted down once the log file has been recovered and trimmed after init, which happens on
+     * the write thread if init was asynchronous. Nothing reads or writes the file before then.
+     */
+    private static CountDownLatch mFilePrepared;
+
+    /**
+     * The chunks that this process's segment is kept as, or null if the segment is kept as one
+     * file trimmed to CIRCULAR_BUFFER_SIZE lines.
+     */
+    private static LogRetention mRetention;
 
     /**
      * Whether or not the init method has been successfully called.
@@ -174,36 +400,143 @@ public class Log {
      * Calling this function also trims the log down to the correct size if, for some reason,
      * it has exceeded its maximum buffer size.
      *
+     * Log also registers with the application for {@link #onTrimMemory(int)}, until it is
+     * initialized again.
+     *
      * @param context A context that provides access to the file system. A reference to the app's
      *                main activity will do.
      * @return A boolean representing the success of the initialization
      */
     public static synchronized boolean init(Context context) {
+        boolean initialized = init(context != null ? new ContextLogStorage(context) : null);
+        if (initialized) {
+            registerMemoryCallbacks(context);
+        }
+        return initialized;
+    }
+
+    /**
+     * Initialize Log for use, keeping the log file in the given storage instead of the app's
+     * private files directory. See {@link #init(Context)}.
+     *
+     * @param storage The storage to keep the log file in.
+     * @return A boolean representing the success of the initialization
+     */
+    public static synchronized boolean init(LogStorage storage) {
+        return init(storage, new LogConfig.Builder().build());
+    }
+
+    /**
+     * Initialize Log for use with the given options. See {@link #init(Context)}.
+     * <p/>
+     * If the log file is kept as framed records, this also removes a batch of entries that was
+     * only partly written when the app last stopped, by checking the end of the file. With
+     * {@link LogConfig.Builder#setAsyncInit(boolean)}, that and trimming the file are left to the
+     * write thread, and this returns without touching the file.
+     *
+     * @param storage The storage to keep the log file in.
+     * @param config  The options to use.
+     * @return A boolean representing the success of the initialization
+     */
+    public static synchronized boolean init(LogStorage storage, LogConfig config) {
+        long startNanos = System.nanoTime();
+
         // Destroy the previously initialized Log to ensure that we have new instances
         destroy();
 
-        if (context == null) {
+        if (storage == null) {
             return false;
         }
 
         mFileLock = new ReentrantLock();
         mEntryQueue = new ConcurrentLinkedQueue<Entry>();
+        mHighPriorityQueue = new ConcurrentLinkedQueue<Entry>();
+        mStripedQueue = config.isStripedBuffers() ? new StripedEntryQueue(mEntryQueue) : null;
+        mMaxBatchEntries = config.getMaxBatchEntries();
+        mMaxBatchChars = config.getMaxBatchChars();
+        mMaxBatchLatencyMillis = config.getMaxBatchLatencyMillis();
         mWriteThreadRunning = new AtomicBoolean(false);
         mRequestedClearLog = new AtomicBoolean(false);
-        mContext = context;
+        mMetrics = new LogMetrics(mBackground);
+        mStorage = storage;
+        mFramedRecords = config.isFramedRecords();
+        mLayout = config.getLayout();
+        mFileName = LogSegments.segmentName(config.getProcessName(), mFramedRecords);
+        mEntrySizePolicy = config.getEntrySizePolicy();
+        mPayloadFileName = LogSegments.payloadName(mFileName);
+        mTagPartitions = config.getTagPartitions();
+        mPartitionFileNames = null;
+        if (mTagPartitions != null) {
+            mPartitionFileNames = new String[mTagPartitions.getNumPartitions()];
+            for (int i = 0; i < mPartitionFileNames.length; i++) {
+                mPartitionFileNames[i] = LogSegments.partitionName(mFileName, mTagPartitions.getName(i));
+            }
+        }
+        mRetention = config.getRetentionPolicy() != null ?
+                new LogRetention(mStorage, mFileName, mFramedRecords, config.getRetentionPolicy()) : null;
+        mFilePrepared = new CountDownLatch(1);
 
         mInitialized = true;
 
         // The first action once initialized must be to ensure that the file is the correct length
+        if (config.isAsyncInit()) {
+            // The write thread does it before writing anything, and entries logged until then
+            // wait in the queue
+            startWriteThread(false);
+        } else {
+            prepareFile();
+        }
+
+        mMetrics.onInit(System.nanoTime() - startNanos);
+        return mInitialized;
+    }
+
+    /**
+     * Removes a torn batch of records from the end of the log file, trims the file to size and
+     * lets anything waiting for the file go ahead.
+     */
+    private static void prepareFile() {
+        long startNanos = System.nanoTime();
+        CountDownLatch filePrepared = mFilePrepared;
+        LogMetrics metrics = mMetrics;
         mFileLock.lock();
         try {
+            if (mRetention != null) {
+                // Find the chunks that were written before, recovering them if they are records
+                mRetention.load(System.currentTimeMillis());
+            } else if (mFramedRecords) {
+                try {
+                    // Throw away a batch that was torn by a crash, so that new batches follow the
+                    // last complete one
+                    LogRecords.recover(mStorage, mFileName);
+                } catch (IOException ioException) {
+                    // There is nothing to recover if the file doesn't exist or can't be read
+                }
+            }
+
             // Make sure the file is the correct length
             trimFileToSize();
         } finally {
             mFileLock.unlock();
+            filePrepared.countDown();
         }
+        metrics.onFilePrepared(System.nanoTime() - startNanos);
+    }
 
-        return mInitialized;
+    /**
+     * Blocks until the log file has been prepared after init. Returns straight away unless init
+     * was asynchronous and the write thread hasn't got to it yet.
+     */
+    private static void awaitFilePrepared() {
+        CountDownLatch filePrepared = mFilePrepared;
+        if (filePrepared != null) {
+            try {
+                filePrepared.await();
+            } catch (InterruptedException e) {
+                // Keep the interrupt for the caller and go ahead without the file being ready
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
@@ -211,17 +544,53 @@ public class Log {
      * Also stops the write thread if running.
      */
     static void destroy() {
+        unregisterMemoryCallbacks();
+        mMemoryPressureUntil = 0;
+
+        // Stop the write thread before letting go of anything that it uses, so that a batch in
+        // flight isn't written with half of this Log and half of the next. The thread is let go
+        // of before it is interrupted, so that it can tell it was stopped by destroy() and not
+        // trim a log that is no longer there
+        WriteThread writeThread = mWriteThread;
+        mWriteThread = null;
+        if (writeThread != null) {
+            writeThread.interrupt();
+            if (writeThread != Thread.currentThread()) {
+                try {
+                    writeThread.join();
+                } catch (InterruptedException e) {
+                    // Keep the interrupt for the caller
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
         mFileLock = null;
         mEntryQueue = null;
+        mHighPriorityQueue = null;
+        mStripedQueue = null;
         mWriteThreadRunning = null;
         mRequestedClearLog = null;
-        mContext = null;
+        mMetrics = null;
+        mStorage = null;
+        mFileName = null;
+        mRetention = null;
+        mLayout = LogLayout.DEFAULT;
+        mEntrySizePolicy = EntrySizePolicy.DEFAULT;
+        mPayloadFileName = null;
+        mTagPartitions = null;
+        mPartitionFileNames = null;
         mInitialized = false;
 
-        if (mWriteThread != null) {
-            mWriteThread.interrupt();
+        // Don't leave readers waiting for a file that will never be prepared, or callers of
+        // flush() waiting for entries that will never be written
+        if (mFilePrepared != null) {
+            mFilePrepared.countDown();
+        }
+        mFilePrepared = null;
+        synchronized (mFlushLock) {
+            mFlushLock.notifyAll();
         }
-        mWriteThread = null;
     }
 
     /**
@@ -394,6 +763,66 @@ public class Log {
         return ret;
     }
 
+    /**
+     * Start building a structured {@link #VERBOSE} log message of key-value fields. See
+     * {@link LogBuilder}.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @return The calling thread's LogBuilder. Call {@link LogBuilder#log()} on it to log the entry.
+     */
+    public static LogBuilder v(String tag) {
+        return LogBuilder.obtain(VERBOSE, tag);
+    }
+
+    /**
+     * Start building a structured {@link #DEBUG} log message of key-value fields. See
+     * {@link LogBuilder}.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @return The calling thread's LogBuilder. Call {@link LogBuilder#log()} on it to log the entry.
+     */
+    public static LogBuilder d(String tag) {
+        return LogBuilder.obtain(DEBUG, tag);
+    }
+
+    /**
+     * Start building a structured {@link #INFO} log message of key-value fields. See
+     * {@link LogBuilder}.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @return The calling thread's LogBuilder. Call {@link LogBuilder#log()} on it to log the entry.
+     */
+    public static LogBuilder i(String tag) {
+        return LogBuilder.obtain(INFO, tag);
+    }
+
+    /**
+     * Start building a structured {@link #WARN} log message of key-value fields. See
+     * {@link LogBuilder}.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @return The calling thread's LogBuilder. Call {@link LogBuilder#log()} on it to log the entry.
+     */
+    public static LogBuilder w(String tag) {
+        return LogBuilder.obtain(WARN, tag);
+    }
+
+    /**
+     * Start building a structured {@link #ERROR} log message of key-value fields. See
+     * {@link LogBuilder}.
+     *
+     * @param tag Used to identify the source of a log message.  It usually identifies
+     *            the class or activity where the log call occurs.
+     * @return The calling thread's LogBuilder. Call {@link LogBuilder#log()} on it to log the entry.
+     */
+    public static LogBuilder e(String tag) {
+        return LogBuilder.obtain(ERROR, tag);
+    }
+
     /**
      * Checks to see whether or not a log for the specified tag is loggable at the specified level.
      * <p/>
@@ -443,456 +872,1554 @@ public class Log {
     }
 
     /**
-     * Get a reference to the log as a File.
+     * Logs a structured entry built by a LogBuilder. Once Log is initialized, an entry with fields
+     * is passed on to android.util.Log by the write thread when it formats the entry, so that the
+     * fields are only rendered off the calling thread, and are then released. Any other entry is
+     * passed on to android.util.Log on the calling thread, like every other call.
      *
-     * @return A reference to the log as a File.
+     * @param priority The priority/type of this log message.
+     * @param tag      Used to identify the source of a log message.
+     * @param msg      The message, or null.
+     * @param tr       An exception to log, or null.
+     * @param fields   The fields of the entry, or null if it has none.
      */
-    public static File getLogFile() {
+    static void println(int priority, String tag, String msg, Throwable tr, LogFields fields) {
+        Entry entry = new Entry(System.currentTimeMillis(), priority, tag, msg, tr, fields);
+        if (fields == null || !mInitialized) {
+            entry.printToAndroidLog();
+        }
         if (mInitialized) {
-            // Return a File representing the FILENAME in the getFileStreamPath() directory
-            return mContext.getFileStreamPath(FILENAME);
-        } else {
-            return null;
+            addEntryToStack(entry);
+        } else if (fields != null) {
+            fields.release();
         }
     }
 
     /**
-     * Gets a String representation of the log.
+     * Sets whether runs of identical consecutive entries (same priority, tag and message, and no
+     * Throwable) are coalesced for tags that don't have their own setting. When coalescing, the
+     * write thread writes the first entry of a run, followed by a single
+     * "last message repeated N times (first..last)" entry once the run ends or has lasted longer
+     * than DUPLICATE_SUMMARY_MILLIS. Coalescing is off by default.
+     * <p/>
+     * This setting is kept across calls to init().
      *
-     * @return The contents of the log as a String. If an IOException occurs, returns what could be
-     * read, plus the text from the IOException. If Log.init has not been called, returns an empty
-     * String.
+     * @param coalesce True to coalesce duplicate entries, false to write every entry.
      */
-    public static String readLog() {
-        if (mInitialized) {
-            // Give the StringBuilder an approximate size of the file
-            StringBuilder stringBuilder = new StringBuilder(CIRCULAR_BUFFER_SIZE * Entry.APPROXIMATE_LENGTH_PER_ENTRY);
-
-            mFileLock.lock();
-            try {
-                try {
-                    // Read the entire file and append it to the StringBuilder
-                    BufferedReader bufferedReader = getBufferedReader(FILENAME);
-
-                    String currentLine;
-                    // Step through the file line by line and add each line to the StringBuilder
-                    while ((currentLine = bufferedReader.readLine()) != null) {
-                        stringBuilder.append(currentLine).append(mNewLine);
-                    }
-
-                    bufferedReader.close();
-                } catch (IOException ioException) {
-                    // If there was a failure in reading the log file
-                    // Return what we have so far plus the stack trace
-                    return stringBuilder.append(getStackTraceString(ioException)).toString();
-                }
-            } finally {
-                mFileLock.unlock();
-            }
-
-            // Return the built String
-            return stringBuilder.toString();
-        } else {
-            // Return and empty String if Log is not initialized
-            return "";
-        }
+    public static void setCoalesceDuplicates(boolean coalesce) {
+        mCoalesceDuplicatesByDefault = coalesce;
     }
 
     /**
-     * Clears the log.
+     * Sets whether runs of identical consecutive entries are coalesced for a single tag,
+     * overriding the value set with {@link #setCoalesceDuplicates(boolean)}.
      *
-     * @return True if the request to clear the log was processed, false otherwise (if Log.init()
-     * wasn't called)
+     * @param tag      The tag to apply the setting to.
+     * @param coalesce True to coalesce duplicate entries with this tag, false to write every entry.
      */
-    public static boolean clearLog() {
-        if (mInitialized) {
-            // Make mRequestedClearLog true while we clear the queue. This causes the write thread to
-            // cancel writing what it has received from the queue.
-            mRequestedClearLog.set(true);
-            mEntryQueue.clear();
-
-            // Start the write thread if it's not already started
-            startWriteThread();
+    public static void setCoalesceDuplicates(String tag, boolean coalesce) {
+        if (tag != null) {
+            mCoalesceDuplicateTags.put(tag, coalesce);
         }
-
-        return mInitialized;
     }
 
     /**
-     * This method will block the current thread until the writing thread has caught up by clearing
-     * its buffer of entries to add. NOTE: this method waits until the write thread has been killed,
-     * which does not happen until some time after the last write operation. This is because the
-     * write thread has a timeout time that prevents the creation of a new thread for a Log call
-     * that might happen a short time later.
+     * Removes all of the per-tag coalescing settings and turns off coalescing by default.
      */
-    static void waitUntilFinishedWriting() {
-        if (mInitialized) {
-            if (mWriteThread != null && mWriteThreadRunning.get()) {
-                try {
-                    mWriteThread.join();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    static void resetCoalesceDuplicates() {
+        mCoalesceDuplicateTags.clear();
+        mCoalesceDuplicatesByDefault = false;
     }
 
     /**
-     * Get a Reader to represent the specified file.
+     * Whether runs of identical consecutive entries with the given tag should be coalesced.
      *
-     * @param fileName The name of the file to open.
-     * @return A Reader representing the file.
-     * @throws FileNotFoundException If the file could not be opened or if Log is not initialized
+     * @param tag The tag of the entry.
+     * @return True if duplicate entries with this tag should be coalesced.
      */
-    static Reader getReader(String fileName) throws FileNotFoundException {
-        if (mInitialized) {
-            return new InputStreamReader(mContext.openFileInput(fileName));
-        } else {
-            throw new FileNotFoundException("Log not initialized");
-        }
+    private static boolean shouldCoalesceDuplicates(String tag) {
+        Boolean coalesce = tag != null ? mCoalesceDuplicateTags.get(tag) : null;
+        return coalesce != null ? coalesce : mCoalesceDuplicatesByDefault;
     }
 
     /**
-     * Get a BufferedReader to represent the specified file.
+     * Sets the lowest priority that the location of the call to Log, such as
+     * com.example.Foo.bar(Foo.java:12), is captured and written with each entry for, for tags that
+     * don't have their own setting. Capturing is off by default.
+     * <p/>
+     * Only a Throwable is created on the calling thread; its stack trace is resolved by the write
+     * thread, and the location written for each call site is only built once. Creating the
+     * Throwable still walks the calling thread's stack, so this is meant for the less frequent
+     * priorities, such as {@link #WARN} and above. See also {@link #setCallerLocationSampling(int)}.
+     * <p/>
+     * This setting is kept across calls to init().
      *
-     * @param fileName The name of the file to open.
-     * @return A BufferedReader representing the file.
-     * @throws FileNotFoundException If the file could not be opened or if Log is not initialized
+     * @param minPriority The lowest priority to capture the caller's location for, or a priority
+     *                    above {@link #ASSERT}, such as Integer.MAX_VALUE, to turn capturing off.
      */
-    private static BufferedReader getBufferedReader(String fileName) throws FileNotFoundException {
-        return new BufferedReader(getReader(fileName));
+    public static void setCallerLocation(int minPriority) {
+        mCallerLocationPriority = minPriority;
     }
 
     /**
-     * Get a Writer to represent the specified file.
+     * Sets whether the location of the call to Log is captured for a single tag, at every priority,
+     * overriding the priority set with {@link #setCallerLocation(int)}.
      *
-     * @param fileName The name of the file to open.
-     * @return A Writer representing the file.
-     * @throws FileNotFoundException If the file could not be opened or if Log is not initialized
+     * @param tag     The tag to apply the setting to.
+     * @param capture True to capture the caller's location for entries with this tag, false not to.
      */
-    static Writer getWriter(String fileName) throws FileNotFoundException {
-        if (mInitialized) {
-            return new OutputStreamWriter(mContext.openFileOutput(fileName, Context.MODE_APPEND));
-        } else {
-            throw new FileNotFoundException("Log not initialized");
+    public static void setCallerLocation(String tag, boolean capture) {
+        if (tag != null) {
+            mCallerLocationTags.put(tag, capture);
+            mHasCallerLocationTags = true;
         }
     }
 
     /**
-     * Get a BufferedWriter to represent the specified file.
+     * Captures the caller's location for only one in every so many of the entries that it is
+     * enabled for, to bound its cost when those entries are frequent. Every entry is captured by
+     * default.
+     * <p/>
+     * This setting is kept across calls to init().
      *
-     * @param fileName The name of the file to open.
-     * @return A BufferedWriter representing the file.
-     * @throws FileNotFoundException If the file could not be opened or if Log is not initialized
+     * @param interval Capture one entry in this many; 1 or less to capture every entry.
      */
-    private static BufferedWriter getBufferedWriter(String fileName) throws FileNotFoundException {
-        return new BufferedWriter(getWriter(fileName));
+    public static void setCallerLocationSampling(int interval) {
+        mCallerLocationSampling = Math.max(interval, 1);
     }
 
     /**
-     * This method starts the write thread if it is stopped. This method should be called if the
-     * write thread needs to be started to execute the items that have been queued up for it.
+     * Removes all of the per-tag caller location settings, turns capturing off by default and
+     * captures every entry again.
      */
-    private static void startWriteThread() {
-        // If the executor has not been created yet or if it has been terminated
-        if (mWriteThread == null || !mWriteThread.isAlive()) {
-            // Wait until we have the lock to prevent multiple threads from running this at the same time
-            mFileLock.lock();
-            try {
-                // Check again after we acquire the lock
-                if (mWriteThread == null || !mWriteThread.isAlive()) {
-                    mWriteThreadRunning.set(true);
-                    mWriteThread = new WriteThread();
-                    mWriteThread.start();
-                }
-            } finally {
-                mFileLock.unlock();
-            }
-        }
+    static void resetCallerLocation() {
+        mCallerLocationTags.clear();
+        mHasCallerLocationTags = false;
+        mCallerLocationPriority = Integer.MAX_VALUE;
+        mCallerLocationSampling = 1;
     }
 
     /**
-     * Handles adding new entries to the stack to be written to the log file by the write thread.
+     * Whether the caller's location should be captured for an entry.
      *
-     * @param priority The priority/type of this log message.
-     * @param tag      Used to identify the source of a log message.  It usually identifies
-     *                 the class or activity where the log call occurs.
-     * @param msg      The message you would like logged.
+     * @param priority The priority of the entry.
+     * @param tag      The tag of the entry.
+     * @return True if the caller's location should be captured.
      */
-    private static void addEntryToStack(int priority, String tag, String msg) {
-        addEntryToStack(priority, tag, msg, null);
+    private static boolean shouldCaptureCallerLocation(int priority, String tag) {
+        Boolean capture = tag != null && mHasCallerLocationTags ? mCallerLocationTags.get(tag) : null;
+        if (capture != null ? !capture : priority < mCallerLocationPriority) {
+            return false;
+        }
+
+        int sampling = mCallerLocationSampling;
+        return sampling == 1 || mCallerLocationCount.getAndIncrement() % sampling == 0;
     }
 
     /**
-     * Handles adding new entries to the stack to be written to the log file by the write thread.
+     * Finds the location of the call to Log in a stack trace captured within Log, building it the
+     * first time the call site is seen. Called by the write thread.
      *
-     * @param priority The priority/type of this log message.
-     * @param tag      Used to identify the source of a log message.  It usually identifies
-     *                 the class or activity where the log call occurs.
-     * @param tr       An exception to log.
+     * @param callerStack A Throwable created while the entry was being added.
+     * @return The location, such as com.example.Foo.bar(Foo.java:12), or null if the stack trace
+     * has no frame outside of Log.
      */
-    private static void addEntryToStack(int priority, String tag, Throwable tr) {
-        addEntryToStack(priority, tag, null, tr);
+    private static String resolveCallerLocation(Throwable callerStack) {
+        for (StackTraceElement element : callerStack.getStackTrace()) {
+            String className = element.getClassName();
+            if (className.equals(Log.class.getName()) || className.equals(LogBuilder.class.getName())) {
+                continue;
+            }
+
+            String location = mCallerLocations.get(element);
+            if (location == null) {
+                if (mCallerLocations.size() >= MAX_CALLER_LOCATIONS) {
+                    mCallerLocations.clear();
+                }
+                location = element.toString();
+                mCallerLocations.put(element, location);
+            }
+            return location;
+        }
+        return null;
     }
 
     /**
-     * Handles adding new entries to the stack to be written to the log file by the write thread.
+     * Tells Log that the system is short of memory, as ComponentCallbacks2.onTrimMemory() is
+     * told. Log registers for this itself when it is initialized with a Context on API level 14
+     * and up; otherwise, call this from the app's own callbacks.
+     * <p/>
+     * At ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE and above, other than
+     * ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN, Log writes the entries waiting in its
+     * queue straight away and drops its cache of caller locations. For MEMORY_PRESSURE_MILLIS
+     * after that, the write thread writes smaller batches without waiting for them to fill up,
+     * readLog() doesn't size its buffer for a full log ahead of time, and the log file is only
+     * trimmed once the write thread runs out of entries, so that the file is let past its size
+     * rather than copied while memory is short. Afterwards, Log goes back to its usual settings.
      *
-     * @param priority The priority/type of this log message.
-     * @param tag      Used to identify the source of a log message.  It usually identifies
-     *                 the class or activity where the log call occurs.
-     * @param msg      The message you would like logged.
-     * @param tr       An exception to log.
+     * @param level The level passed to onTrimMemory().
      */
-    private static void addEntryToStack(int priority, String tag, String msg, Throwable tr) {
-        long now = System.currentTimeMillis();
+    public static void onTrimMemory(int level) {
+        if (level < TRIM_MEMORY_RUNNING_MODERATE || level == TRIM_MEMORY_UI_HIDDEN) {
+            return;
+        }
 
-        Entry currentEntry = new Entry(now, priority, tag, msg, tr);
+        mMemoryPressureUntil = System.currentTimeMillis() + MEMORY_PRESSURE_MILLIS;
+        mCallerLocations.clear();
 
-        // Add the entry to the queue to be written
-        mEntryQueue.add(currentEntry);
+        if (mInitialized && !isQueueEmpty()) {
+            startWriteThread(true);
+        }
+    }
 
-        // Start the write thread if it's not already started
-        startWriteThread();
+    /**
+     * @return True if the system has said that it is short of memory within the last
+     * MEMORY_PRESSURE_MILLIS.
+     */
+    static boolean isUnderMemoryPressure() {
+        long until = mMemoryPressureUntil;
+        return until != 0 && System.currentTimeMillis() < until;
     }
 
     /**
-     * This method handles writing new entries to the log file. This method must only be called from
-     * a thread that has acquired the mFileLock.
+     * Tells Log that the app has come to the foreground, such as from an Activity's onStart().
+     * The write thread goes back to writing entries as soon as they are logged, and writes the
+     * batch that it was holding back straight away.
+     * <p/>
+     * The app is taken to be in the foreground until {@link #onBackground()} is called. This
+     * setting is kept across calls to init().
      */
-    private static void writeToFile(String currentEntries) {
-        try {
-            // If we've been provided with a context and we've successfully initialized
-            if (mContext != null && mInitialized && !"".equals(currentEntries)) {
-                // Open the file to write to
-                // Will create a file if it's not found
-                BufferedWriter bufferedWriter = getBufferedWriter(FILENAME);
-                bufferedWriter.write(currentEntries);
+    public static void onForeground() {
+        mBackground = false;
 
-                // We don't need a newLine() here because we're already appending a newline after
-                // calling buildEntry()
-                bufferedWriter.close();
-            }
-        } catch (IOException ioException) {
-            // We've already made sure that init() was successful, which requires the log
-            // file to be opened, so we can ignore this exception.
+        LogMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onModeChanged(false);
+        }
+        WriteThread writeThread = mWriteThread;
+        if (writeThread != null) {
+            writeThread.wake(true);
         }
     }
 
     /**
-     * Handles trimming the log file to the correct size to keep the circular buffer intact. This
-     * method must only be called from a thread that has acquired the mFileLock.
+     * Tells Log that the app has gone to the background, such as from the last Activity's
+     * onStop(). Until {@link #onForeground()} is called, the write thread wakes up less often:
+     * <ul>
+     * <li>Entries below {@link #ERROR} don't wake it. It holds them for up to
+     * WriteThread.BACKGROUND_BATCH_LATENCY_MILLIS, or the longest batch latency set in LogConfig
+     * if that is longer, and writes them in one batch.</li>
+     * <li>{@link #ERROR} and {@link #ASSERT} entries still wake it, and are written straight away
+     * with the entries held back before them.</li>
+     * <li>The log file is trimmed at most every WriteThread.BACKGROUND_TRIM_FILE_MILLIS, rather
+     * than each time the write thread stops.</li>
+     * </ul>
+     * The number of times the write thread wakes up in each mode is in {@link LogStats}.
+     * <p/>
+     * This setting is kept across calls to init().
      */
-    private static void trimFileToSize() {
-        try {
-            // Open the log file to read the number of lines
-            LineNumberReader lineNumberReader = new LineNumberReader(getReader(FILENAME));
+    public static void onBackground() {
+        mBackground = true;
 
-            // Skip by CIRCULAR_BUFFER_SIZE lines
-            // While there's still stuff to skip
-            while (lineNumberReader.skip(CIRCULAR_BUFFER_SIZE) > 0) ;
+        LogMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onModeChanged(true);
+        }
+    }
 
-            // Get the number of lines
-            int numLines = lineNumberReader.getLineNumber();
-            lineNumberReader.close();
+    /**
+     * @param priority The priority of an entry.
+     * @return True if the entry should wake the write thread even while it is waiting for its
+     * batch to fill up: {@link #ERROR} and above in the background, HIGH_PRIORITY and above in the
+     * foreground.
+     */
+    private static boolean isUrgent(int priority) {
+        return priority >= (mBackground ? ERROR : HIGH_PRIORITY);
+    }
 
-            // If we exceed CIRCULAR_BUFFER_SIZE, trim it down to be below CIRCULAR_BUFFER_SIZE
-            if (numLines >= CIRCULAR_BUFFER_SIZE) {
-                // Determine how many extra lines we have
-                // Our target # of lines is 1 chunk less than CIRCULAR_BUFFER_SIZE
-                int diff = numLines - CIRCULAR_BUFFER_SIZE;
+    /**
+     * Registers MemoryCallbacks with the application of the given Context, replacing the ones
+     * registered before. Does nothing before API level 14, where there are no ComponentCallbacks2
+     * to register; the app can still call onTrimMemory() itself.
+     *
+     * @param context The Context that Log was initialized with.
+     */
+    private static void registerMemoryCallbacks(Context context) {
+        unregisterMemoryCallbacks();
+        if (mSdkInt < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
 
-                removeLines(diff);
-            }
-        } catch (IOException ioException) {
-            // We shouldn't do anything here, since the IOException gives no feedback on whether
-            // we could access the file system - it only tells us "FileNotFound". Thus we don't know
-            // if the file does not exist or if we don't have access to the file system.
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
         }
+        ComponentCallbacks callbacks = new MemoryCallbacks();
+        applicationContext.registerComponentCallbacks(callbacks);
+        mMemoryCallbacks = callbacks;
+        mMemoryCallbacksContext = applicationContext;
     }
 
     /**
-     * Removes numLines lines from the beginning of the file with the name FILENAME.
-     * To do this, a temporary file is used.
-     * <p/>
-     * This method must only be called from a thread that has acquired the mFileLock.
+     * Unregisters the MemoryCallbacks registered by init(Context), if there are any.
      */
-    private static void removeLines(int numLinesToRemove) {
-        try {
-            boolean eofEarly = false;
+    private static void unregisterMemoryCallbacks() {
+        if (mMemoryCallbacks != null) {
+            mMemoryCallbacksContext.unregisterComponentCallbacks(mMemoryCallbacks);
+            mMemoryCallbacks = null;
+            mMemoryCallbacksContext = null;
+        }
+    }
 
-            // Create a BufferedReader to read the existing file, and a BufferedWriter to write to
-            // a temporary file
-            BufferedReader bufferedReader = getBufferedReader(FILENAME);
+    /**
+     * Registers a listener to be given entries as they are written to the log file, instead of
+     * reading the whole log again to find new entries. The listener is called on a thread of its
+     * own; see {@link LogListener}. Registering a listener that is already registered does nothing.
+     * <p/>
+     * Listeners are kept across calls to init().
+     *
+     * @param listener The listener to register.
+     */
+    public static void addLogListener(LogListener listener) {
+        if (listener == null) {
+            return;
+        }
 
-            // Read and discard the first numLines lines
-            for (int i = 0; i < numLinesToRemove && !eofEarly; i++) {
-                // If we get to the end of the file while still discarding lines
-                if (bufferedReader.readLine() == null) {
-                    // We reached the end of the file, so we won't need to read any lines later
-                    // Don't do any more reading/writing operations, just delete the whole file
-                    eofEarly = true;
+        synchronized (mListeners) {
+            for (LogListenerDispatcher dispatcher : mListeners) {
+                if (dispatcher.getListener() == listener) {
+                    return;
                 }
             }
 
-            BufferedWriter bufferedWriter = getBufferedWriter(TEMP_FILENAME);
+            LogListenerDispatcher dispatcher = new LogListenerDispatcher(listener);
+            dispatcher.start();
+            mListeners.add(dispatcher);
+        }
+    }
 
-            // If we didn't reach the end of file when we were ignoring lines
-            if (!eofEarly) {
-                String currentLine;
-                // Step through the rest of the file and write each line to the temporary file
-                while ((currentLine = bufferedReader.readLine()) != null) {
-                    bufferedWriter.write(currentLine);
-                    bufferedWriter.newLine();
+    /**
+     * Unregisters a listener. Entries that are still waiting to be given to it are discarded, but
+     * a call to it that is in progress is allowed to finish.
+     *
+     * @param listener The listener to unregister.
+     */
+    public static void removeLogListener(LogListener listener) {
+        synchronized (mListeners) {
+            for (LogListenerDispatcher dispatcher : mListeners) {
+                if (dispatcher.getListener() == listener) {
+                    mListeners.remove(dispatcher);
+                    dispatcher.shutdown();
+                    return;
                 }
             }
+        }
+    }
 
-            // Close the writer and reader
-            bufferedWriter.close();
-            bufferedReader.close();
-        } catch (IOException ioException) {
-            // Do nothing here, since we can't do anything if we fail in reading from the files
+    /**
+     * Get a snapshot of the counters and distributions that describe what Log has done since it
+     * was initialized, such as the number of entries written per priority, the sizes of the
+     * batches written to the log file and the time spent writing and trimming it.
+     *
+     * @return A snapshot of the statistics, or null if Log is not initialized.
+     */
+    public static LogStats getStats() {
+        if (mInitialized) {
+            return mMetrics.snapshot();
+        } else {
+            return null;
         }
+    }
 
-        // Create a File representation of the temp file and the permanent file
-        File tempFile = mContext.getFileStreamPath(TEMP_FILENAME);
-        String parent = tempFile.getParent();
-        File permanentFile = new File(parent != null ? parent : "", FILENAME);
+    /**
+     * Get a reference to the log as a File. If the log file is kept as framed records, the File
+     * is in that binary format; use {@link #readLog()} to get the log as text. If the app logs
+     * from more than one process, the File only has this process's entries; use
+     * {@link #exportLog(Writer)} to get the entries of every process.
+     *
+     * @return A reference to the log as a File, or null if Log is not initialized, its storage
+     * is not on the file system, or it is kept in several files because of a
+     * {@link RetentionPolicy}. With {@link TagPartitions}, the file doesn't have the entries of
+     * the tags that are in partitions.
+     */
+    public static File getLogFile() {
+        if (mInitialized) {
+            awaitFilePrepared();
 
-        mContext.deleteFile(FILENAME);
-        // Rename the temp file to the permanent file
-        tempFile.renameTo(permanentFile);
+            // Return a File representing the log file in the storage, unless the log is kept
+            // in chunks
+            return mRetention == null ? mStorage.getFile(mFileName) : null;
+        } else {
+            return null;
+        }
     }
 
     /**
-     * This method performs the file operations to clear the log file. This method must only be
-     * called from a thread that has acquired the mFileLock.
+     * Gets a String representation of the log. If the app logs from more than one process, the
+     * entries of every process are merged by their timestamps, and so are the entries of every
+     * partition (see {@link LogConfig.Builder#setTagPartitions(TagPartitions)}).
+     *
+     * @return The contents of the log as a String. If an IOException occurs, returns what could be
+     * read, plus the text from the IOException. If Log.init has not been called, returns an empty
+     * String.
      */
-    private static void clearFile() {
-        mContext.deleteFile(FILENAME);
+    public static String readLog() {
+        return readSegments(null, true);
+    }
 
-        try {
-            // Re-create the file, but leave it empty
-            BufferedWriter bufferedWriter = getBufferedWriter(FILENAME);
-            bufferedWriter.close();
-        } catch (IOException ioException) {
-            // Do nothing here because if there was an error in re-creating the file
-            // then there's nothing we can do
-        }
+    /**
+     * Gets a String representation of the partition of the log that a tag's entries are kept in
+     * (see {@link LogConfig.Builder#setTagPartitions(TagPartitions)}), without reading the rest of
+     * the log. The partition has the entries of every tag in it. For a tag that isn't in a
+     * partition, this is the entries of every tag that isn't in one.
+     *
+     * @param tag The tag.
+     * @return The contents of the partition as a String, which is empty if nothing has been
+     * written to it yet. If an IOException occurs, returns what could be read, plus the text from
+     * the IOException. If Log.init has not been called, returns an empty String.
+     */
+    public static String readLog(String tag) {
+        TagPartitions tagPartitions = mTagPartitions;
+        int partition = tagPartitions != null ? tagPartitions.getPartition(tag) : -1;
+        return readSegments(partition >= 0 ? tagPartitions.getName(partition) : null, false);
     }
 
     /**
-     * Stores the information about each log entry so that a StringBuilder can build the entry later
-     * (from the write thread). By doing this, it eliminates the use of StringBuilder on the
-     * caller's thread.
+     * Reads the segments of the log, merging them by timestamp if there are several.
+     *
+     * @param partition     The name of the partition to read, or null for the entries that
+     *                      aren't in a partition.
+     * @param allPartitions True to read every partition and the rest of the log.
+     * @return The contents of the segments as a String, as readLog() returns them.
      */
-    private static final class Entry {
+    private static String readSegments(String partition, boolean allPartitions) {
+        if (mInitialized) {
+            // Give the StringBuilder an approximate size of the file, unless memory is short, in
+            // which case it only grows as far as it has to
+            StringBuilder stringBuilder = new StringBuilder(isUnderMemoryPressure() ? READ_BUFFER_SIZE :
+                    CIRCULAR_BUFFER_SIZE * Entry.APPROXIMATE_LENGTH_PER_ENTRY);
 
-        static final int APPROXIMATE_LENGTH_PER_ENTRY = 150;
+            awaitFilePrepared();
 
-        private long timestamp;
-        private int priority;
-        private String tag;
-        private String msg;
-        private Throwable tr;
+            // Hold the lock only while capturing where each segment ends, and read them after
+            // releasing it, so that the write thread can carry on writing in the meantime
+            String[] segments;
+            InputStream[] inputStreams;
+            mFileLock.lock();
+            try {
+                segments = LogSegments.list(mStorage, mFramedRecords);
+                if (!allPartitions) {
+                    segments = filterPartition(segments, partition);
+                }
+                inputStreams = LogSegments.openSnapshot(mStorage, segments);
+            } finally {
+                mFileLock.unlock();
+            }
 
-        public Entry(long timestamp, int priority, String tag, String msg, Throwable tr) {
-            this.timestamp = timestamp;
-            this.priority = priority;
-            this.tag = tag;
-            this.msg = msg;
-            this.tr = tr;
-        }
+            String fileName = partition != null ? LogSegments.partitionName(mFileName, partition) : mFileName;
+            try {
+                // Merge the segments if other processes or partitions have written any
+                if (segments.length > 1 || (segments.length == 1 && !segments[0].equals(fileName))) {
+                    LogSegments.merge(inputStreams, mFramedRecords, mNewLine, stringBuilder);
+                    return stringBuilder.toString();
+                }
+                if (segments.length == 0 || inputStreams[0] == null) {
+                    // A partition isn't started until something is written to it
+                    if (partition != null) {
+                        return "";
+                    }
+                    throw new FileNotFoundException(mFileName);
+                }
 
-        /**
-         * Append all of the information stored in this Entry to the StringBuilder parameter.
-         *
-         * @param stringBuilder The StringBuilder that all of the information contained
-         *                      in this Entry will be appended to.
-         */
-        public void appendToStringBuilder(StringBuilder stringBuilder, Date date) {
-            // Append each piece of information
-            date.setTime(timestamp);
-            stringBuilder.append(mSimpleDateFormat.format(date));
+                if (mFramedRecords) {
+                    readRecords(inputStreams[0], stringBuilder);
+                    return stringBuilder.toString();
+                }
 
-            // Append the priority
-            stringBuilder.append(" [");
-            switch (priority) {
-                case VERBOSE:
-                    stringBuilder.append("VERBOSE");
-                    break;
-                case DEBUG:
-                    stringBuilder.append("DEBUG");
-                    break;
-                case INFO:
-                    stringBuilder.append("INFO");
-                    break;
-                default:
-                case WARN:
-                    stringBuilder.append("WARNING");
-                    break;
-                case ERROR:
-                    stringBuilder.append("ERROR");
-                    break;
-                case ASSERT:
-                    stringBuilder.append("ASSERT");
-                    break;
-            }
-            stringBuilder.append(']');
+                // Read the entire file and append it to the StringBuilder
+                BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStreams[0]));
 
-            // Append the tag, message and throwable
-            if (tag != null) {
-                stringBuilder.append(' ').append(tag);
-            }
-            if (msg != null) {
-                stringBuilder.append(' ').append(msg);
+                String currentLine;
+                // Step through the file line by line and add each line to the StringBuilder
+                while ((currentLine = bufferedReader.readLine()) != null) {
+                    stringBuilder.append(currentLine).append(mNewLine);
+                }
+            } catch (IOException ioException) {
+                // If there was a failure in reading the log file
+                // Return what we have so far plus the stack trace
+                return stringBuilder.append(getStackTraceString(ioException)).toString();
+            } finally {
+                try {
+                    LogSegments.close(inputStreams);
+                } catch (IOException ioException) {
+                    // The log has already been read
+                }
             }
-            if (tr != null) {
-                // As per android.util.Log format
-                stringBuilder.append(mNewLine).append(getStackTraceString(tr));
+
+            // Return the built String
+            return stringBuilder.toString();
+        } else {
+            // Return and empty String if Log is not initialized
+            return "";
+        }
+    }
+
+    /**
+     * @param segments  The names of segments.
+     * @param partition The name of a partition, or null for the segments that aren't partitions.
+     * @return The segments that belong to the partition, of every process.
+     */
+    private static String[] filterPartition(String[] segments, String partition) {
+        List<String> filtered = new ArrayList<String>(segments.length);
+        for (String segment : segments) {
+            String segmentPartition = LogSegments.getPartition(segment);
+            if (partition == null ? segmentPartition == null : partition.equals(segmentPartition)) {
+                filtered.add(segment);
             }
         }
+        return filtered.toArray(new String[filtered.size()]);
     }
 
     /**
-     * A separate thread to handle writing to the log file. When the thread has had no work to do
-     * for THREAD_KEEP_ALIVE_MILLIS milliseconds, it kills itself.
+     * Writes the whole log as text, with the entries of every process that logs merged by their
+     * timestamps. Unlike readLog(), the log doesn't need to fit in memory, which makes this
+     * suitable for sharing the log.
+     *
+     * @param writer Where to write the log. It is not closed.
+     * @return True if the log was written, false if Log.init() wasn't called.
+     * @throws IOException If the log could not be read or written.
      */
-    private static final class WriteThread extends Thread {
+    public static boolean exportLog(Writer writer) throws IOException {
+        if (mInitialized) {
+            awaitFilePrepared();
 
-        /**
-         * The number of milliseconds after not receiving any new logs before the thread kills
-         * itself. This will affect the amount of taken before waitUntilFinishedWriting() returns,
-         * so this shouldn't be too long of a delay.
-         */
-        private static final long THREAD_KEEP_ALIVE_MILLIS = 1000;
+            // Capture the log while holding the lock, but write it out after releasing it
+            InputStream[] inputStreams;
+            mFileLock.lock();
+            try {
+                inputStreams = LogSegments.openSnapshot(mStorage, LogSegments.list(mStorage, mFramedRecords));
+            } finally {
+                mFileLock.unlock();
+            }
 
-        /**
-         * The number of milliseconds between file trims to make sure that the file does not get
-         * too big.
-         */
-        private static final long TRIM_FILE_MILLIS = 1000;
+            try {
+                LogSegments.merge(inputStreams, mFramedRecords, mNewLine, writer);
+            } finally {
+                LogSegments.close(inputStreams);
+            }
+        }
 
-        /**
-         * The amount of time to sleep for before polling for work to do if there is currently no
-         * work to be done. The larger this value is, the more this thread will write in chunks
-         */
-        private static final long NO_WORK_SLEEP_MILLIS = 200;
+        return mInitialized;
+    }
 
-        /**
-         * The time, in terms of System.currentTimeMillis() that the thread started
-         */
-        private long mLastTrimTime = 0;
+    /**
+     * Appends the text of each record in the log file to a StringBuilder, stopping at the first
+     * damaged record.
+     *
+     * @param inputStream   The log file.
+     * @param stringBuilder The StringBuilder to append to.
+     * @throws IOException If the log file could not be read.
+     */
+    private static void readRecords(InputStream inputStream, StringBuilder stringBuilder) throws IOException {
+        LogRecords.Scanner scanner = new LogRecords.Scanner(inputStream);
+        String text;
+        while (scanner.next() && (text = scanner.readPayload()) != null) {
+            stringBuilder.append(text);
+        }
+    }
 
-        /**
-         * The time, in terms of System.currentTimeMillis() of the last write to the log file.
-         */
-        private long mLastWriteTime = 0;
+    /**
+     * Clears the log.
+     *
+     * @return True if the request to clear the log was processed, false otherwise (if Log.init()
+     * wasn't called)
+     */
+    public static boolean clearLog() {
+        if (mInitialized) {
+            // Make mRequestedClearLog true while we clear the queue. This causes the write thread to
+            // cancel writing what it has received from the queue.
+            mRequestedClearLog.set(true);
 
-        /**
-         * A Date object used to format timestamps for each entry.
-         */
-        private final Date mDate = new Date();
+            // Empty the queue, counting what is discarded
+            if (mStripedQueue != null) {
+                List<Entry> entries = new ArrayList<Entry>();
+                mStripedQueue.drainTo(entries);
+                for (Entry entry : entries) {
+                    mMetrics.onDropped(entry.priority, 1);
+                }
+            }
+            Entry entry;
+            while ((entry = mEntryQueue.poll()) != null) {
+                mMetrics.onDropped(entry.priority, 1);
+            }
+            while ((entry = mHighPriorityQueue.poll()) != null) {
+                mMetrics.onDropped(entry.priority, 1);
+            }
+
+            // Start the write thread if it's not already started
+            startWriteThread(true);
+        }
+
+        return mInitialized;
+    }
+
+    /**
+     * Waits until everything logged before this call has been written to the log file, such as
+     * before uploading the log or in a shutdown hook. Returns as soon as the write thread has
+     * written the entries that were waiting, without waiting for the thread to stop, so it takes
+     * about as long as writing them does. The entries are written straight away even if the
+     * write thread would otherwise hold them back to write them with others, such as while the
+     * app is in the background.
+     *
+     * @param timeoutMillis The longest to wait, in milliseconds.
+     * @return True if everything logged before this call was written, false if Log is not
+     * initialized, or was destroyed, or the calling thread was interrupted, before then, or if it
+     * took longer than timeoutMillis.
+     */
+    public static boolean flush(long timeoutMillis) {
+        return flush(timeoutMillis, false);
+    }
+
+    /**
+     * Waits until everything logged before this call has been written to the log file, like
+     * {@link #flush(long)}, and optionally until the log's files have been synced to disk as well,
+     * so that the entries survive the device losing power. Syncing can take tens of milliseconds
+     * on some devices, so only ask for it when it matters, such as before the process is killed.
+     * Files in a storage that isn't backed by the file system are never synced.
+     *
+     * @param timeoutMillis The longest to wait, in milliseconds.
+     * @param sync          True to also wait until the log's files have been synced to disk.
+     * @return True if everything logged before this call was written, and synced if asked,
+     * within timeoutMillis, false otherwise.
+     */
+    public static boolean flush(long timeoutMillis, boolean sync) {
+        if (!mInitialized) {
+            return false;
+        }
+
+        long ticket;
+        synchronized (mFlushLock) {
+            ticket = ++mLastFlushTicket;
+            if (sync) {
+                mLastSyncTicket = ticket;
+            }
+        }
+        startWriteThread(true);
+
+        long end = System.currentTimeMillis() + timeoutMillis;
+        synchronized (mFlushLock) {
+            while (mFlushedTicket < ticket) {
+                long remaining = end - System.currentTimeMillis();
+                if (!mInitialized || remaining <= 0) {
+                    return false;
+                }
+                try {
+                    mFlushLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if a caller of flush() is waiting for the write thread.
+     */
+    private static boolean isFlushPending() {
+        return mLastFlushTicket > mFlushedTicket;
+    }
+
+    /**
+     * Syncs this process's files in the storage to disk, if they are backed by the file system.
+     * This method must only be called from a thread that has acquired the mFileLock.
+     */
+    private static void syncFiles() {
+        List<String> names = mRetention != null ? mRetention.getChunkNames() : new ArrayList<String>();
+        if (mRetention == null) {
+            names.add(mFileName);
+        }
+        if (mPartitionFileNames != null) {
+            names.addAll(Arrays.asList(mPartitionFileNames));
+        }
+        names.add(mPayloadFileName);
+
+        for (String name : names) {
+            // Don't create a file just to sync it
+            if (mStorage.length(name) == 0) {
+                continue;
+            }
+            try {
+                OutputStream outputStream = mStorage.openOutput(name);
+                try {
+                    // Syncing any descriptor of a file syncs everything written to it
+                    if (outputStream instanceof FileOutputStream) {
+                        ((FileOutputStream) outputStream).getFD().sync();
+                    }
+                } finally {
+                    outputStream.close();
+                }
+            } catch (IOException ioException) {
+                // The file was written, it just may not be on disk yet
+            }
+        }
+    }
+
+    /**
+     * This method will block the current thread until the writing thread has caught up by clearing
+     * its buffer of entries to add. NOTE: this method waits until the write thread has been killed,
+     * which does not happen until some time after the last write operation. This is because the
+     * write thread has a timeout time that prevents the creation of a new thread for a Log call
+     * that might happen a short time later. Use {@link #flush(long)} to wait only for the entries
+     * to be written; this is for tests that also depend on the trim that the thread ends with.
+     */
+    static void waitUntilFinishedWriting() {
+        if (mInitialized) {
+            // A new write thread may have been started by the time the last one finishes
+            WriteThread writeThread;
+            while ((writeThread = mWriteThread) != null && mWriteThreadRunning.get()) {
+                try {
+                    writeThread.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The lock that guards the log file, or null if Log is not initialized.
+     */
+    static ReentrantLock getFileLock() {
+        return mFileLock;
+    }
+
+    /**
+     * Get a Reader to represent the specified file.
+     *
+     * @param fileName The name of the file to open.
+     * @return A Reader representing the file.
+     * @throws FileNotFoundException If the file could not be opened or if Log is not initialized
+     */
+    static Reader getReader(String fileName) throws FileNotFoundException {
+        if (mInitialized) {
+            return new InputStreamReader(mStorage.openInput(fileName));
+        } else {
+            throw new FileNotFoundException("Log not initialized");
+        }
+    }
+
+    /**
+     * Get a Writer to represent the specified file.
+     *
+     * @param fileName The name of the file to open.
+     * @return A Writer representing the file.
+     * @throws FileNotFoundException If the file could not be opened or if Log is not initialized
+     */
+    static Writer getWriter(String fileName) throws FileNotFoundException {
+        if (mInitialized) {
+            return new OutputStreamWriter(mStorage.openOutput(fileName));
+        } else {
+            throw new FileNotFoundException("Log not initialized");
+        }
+    }
+
+    /**
+     * This method starts the write thread if it is stopped. This method should be called if the
+     * write thread needs to be started to execute the items that have been queued up for it.
+     *
+     * @param urgent True to also wake the write thread if it is waiting for a batch to fill up.
+     */
+    private static void startWriteThread(boolean urgent) {
+        // Only the caller that flips the flag starts a thread, so this never waits on mFileLock,
+        // which the write thread and readLog() can hold for the length of a file operation
+        if (!mWriteThreadRunning.get() && mWriteThreadRunning.compareAndSet(false, true)) {
+            WriteThread writeThread = new WriteThread(mWriteThreadRunning, mEntryQueue, mHighPriorityQueue,
+                    mStripedQueue, mRequestedClearLog, mFileLock, mFilePrepared, mMetrics);
+            mWriteThread = writeThread;
+            writeThread.start();
+            mMetrics.onWriteThreadStarted();
+        } else {
+            // The write thread may be waiting for entries
+            WriteThread writeThread = mWriteThread;
+            if (writeThread != null) {
+                writeThread.wake(urgent);
+            }
+        }
+    }
+
+    /**
+     * Handles adding new entries to the stack to be written to the log file by the write thread.
+     *
+     * @param priority The priority/type of this log message.
+     * @param tag      Used to identify the source of a log message.  It usually identifies
+     *                 the class or activity where the log call occurs.
+     * @param msg      The message you would like logged.
+     */
+    private static void addEntryToStack(int priority, String tag, String msg) {
+        addEntryToStack(priority, tag, msg, null);
+    }
+
+    /**
+     * Handles adding new entries to the stack to be written to the log file by the write thread.
+     *
+     * @param priority The priority/type of this log message.
+     * @param tag      Used to identify the source of a log message.  It usually identifies
+     *                 the class or activity where the log call occurs.
+     * @param tr       An exception to log.
+     */
+    private static void addEntryToStack(int priority, String tag, Throwable tr) {
+        addEntryToStack(priority, tag, null, tr);
+    }
+
+    /**
+     * Handles adding new entries to the stack to be written to the log file by the write thread.
+     *
+     * @param priority The priority/type of this log message.
+     * @param tag      Used to identify the source of a log message.  It usually identifies
+     *                 the class or activity where the log call occurs.
+     * @param msg      The message you would like logged.
+     * @param tr       An exception to log.
+     */
+    private static void addEntryToStack(int priority, String tag, String msg, Throwable tr) {
+        long now = System.currentTimeMillis();
+
+        addEntryToStack(new Entry(now, priority, tag, msg, tr));
+    }
+
+    /**
+     * Handles adding a new entry to the stack to be written to the log file by the write thread.
+     *
+     * @param currentEntry The entry to add.
+     */
+    private static void addEntryToStack(Entry currentEntry) {
+        // Stamp the entry so that the write thread can merge the queues in the order entries
+        // were added
+        currentEntry.setSequence(System.nanoTime());
+        if (shouldCaptureCallerLocation(currentEntry.priority, currentEntry.tag)) {
+            currentEntry.setCallerStack(new Throwable());
+        }
+
+        // Add the entry to the queue to be written
+        boolean highPriority = currentEntry.priority >= HIGH_PRIORITY;
+        if (highPriority) {
+            mHighPriorityQueue.add(currentEntry);
+        } else if (mStripedQueue != null) {
+            mStripedQueue.add(currentEntry);
+        } else {
+            mEntryQueue.add(currentEntry);
+        }
+        mMetrics.onEnqueued(currentEntry.priority);
+
+        // Start the write thread if it's not already started
+        startWriteThread(isUrgent(currentEntry.priority));
+    }
+
+    /**
+     * @return True if no entries are waiting for the write thread.
+     */
+    private static boolean isQueueEmpty() {
+        return mHighPriorityQueue.isEmpty() && mEntryQueue.isEmpty() &&
+                (mStripedQueue == null || mStripedQueue.isEmpty());
+    }
+
+    /**
+     * This method handles writing new entries to the log file. This method must only be called from
+     * a thread that has acquired the mFileLock.
+     *
+     * @param currentEntries The text of the entries, one after the other.
+     * @param entryEnds      The index in currentEntries just after the end of each entry, used to
+     *                       write each entry as a record if the log file is kept as framed records.
+     * @param entryPriorities The priority of each entry, used to write it to the chunk of its tier
+     *                        if there is a retention policy.
+     * @param entryPartitions The partition of each entry, or -1 if it isn't in one, used to write
+     *                        it to its partition's file if there are tag partitions.
+     * @param numEntries     The number of entries in currentEntries.
+     * @return The number of bytes written to the file.
+     */
+    private static int writeToFile(String currentEntries, int[] entryEnds, int[] entryPriorities,
+                                   int[] entryPartitions, int numEntries) {
+        try {
+            if (mRetention != null && mInitialized && !"".equals(currentEntries)) {
+                return writeToChunks(currentEntries, entryEnds, entryPriorities, numEntries);
+            }
+            if (mTagPartitions != null && mInitialized && !"".equals(currentEntries)) {
+                return writeToPartitions(currentEntries, entryEnds, entryPartitions, numEntries);
+            }
+
+            // If we've been provided with storage and we've successfully initialized
+            if (mStorage != null && mInitialized && !"".equals(currentEntries)) {
+                // Encode the entries up front so that they go to the file in a single write, and
+                // so that we know how many bytes were written
+                byte[] bytes = encodeEntries(currentEntries, entryEnds, numEntries);
+
+                // Open the file to write to
+                // Will create a file if it's not found
+                OutputStream outputStream = mStorage.openOutput(mFileName);
+                try {
+                    // We don't need a newline here because we're already appending a newline
+                    // after each entry
+                    outputStream.write(bytes);
+                } finally {
+                    outputStream.close();
+                }
+
+                return bytes.length;
+            }
+        } catch (IOException ioException) {
+            // We've already made sure that init() was successful, which requires the log
+            // file to be opened, so we can ignore this exception.
+        }
+
+        return 0;
+    }
+
+    /**
+     * Appends entries to the files of their partitions, and the rest to the log file. This method
+     * must only be called from a thread that has acquired the mFileLock.
+     *
+     * @return The number of bytes written.
+     * @throws IOException If a file could not be appended to.
+     */
+    private static int writeToPartitions(String currentEntries, int[] entryEnds, int[] entryPartitions,
+                                         int numEntries) throws IOException {
+        int numBytes = 0;
+
+        // The entries that aren't in a partition come first, as -1
+        for (int partition = -1; partition < mPartitionFileNames.length; partition++) {
+            for (byte[] bytes : encodeGroup(currentEntries, entryEnds, entryPartitions, numEntries, partition,
+                    Long.MAX_VALUE)) {
+                OutputStream outputStream = mStorage.openOutput(partition < 0 ? mFileName :
+                        mPartitionFileNames[partition]);
+                try {
+                    outputStream.write(bytes);
+                } finally {
+                    outputStream.close();
+                }
+                numBytes += bytes.length;
+            }
+        }
+
+        return numBytes;
+    }
+
+    /**
+     * Appends entries to the chunks of their tiers, and deletes chunks if that takes the log past
+     * its total. A tier's entries are split into pieces of no more than a chunk's size, so that a
+     * large batch is spread over several chunks rather than starting one that is over the total
+     * on its own. This method must only be called from a thread that has acquired the mFileLock.
+     *
+     * @return The number of bytes written.
+     * @throws IOException If a chunk could not be appended to.
+     */
+    private static int writeToChunks(String currentEntries, int[] entryEnds, int[] entryPriorities,
+                                     int numEntries) throws IOException {
+        long now = System.currentTimeMillis();
+        int numBytes = 0;
+        int[] entryTiers = new int[numEntries];
+        for (int i = 0; i < numEntries; i++) {
+            entryTiers[i] = mRetention.getTier(entryPriorities[i]);
+        }
+
+        for (int tier = 0; tier < mRetention.getNumTiers(); tier++) {
+            for (byte[] bytes : encodeGroup(currentEntries, entryEnds, entryTiers, numEntries, tier,
+                    mRetention.getChunkBytes())) {
+                mRetention.append(tier, bytes, now);
+                numBytes += bytes.length;
+            }
+        }
+
+        // Keep the log within its total between trims
+        if (mRetention.isOverBudget()) {
+            mRetention.apply(now);
+        }
+
+        return numBytes;
+    }
+
+    /**
+     * Encodes the entries of a batch that have a key, such as their tier or partition, so that
+     * they can be written to a file of their own. They are split on entry boundaries into pieces
+     * of no more than maxBytes, unless a single entry is larger.
+     *
+     * @param currentEntries The text of the entries, one after the other.
+     * @param entryEnds      The index in currentEntries just after the end of each entry.
+     * @param entryKeys      The key of each entry.
+     * @param numEntries     The number of entries in currentEntries.
+     * @param key            The key of the entries to encode.
+     * @param maxBytes       The most bytes that a piece should take up.
+     * @return The pieces, in the order of their entries, or none if no entry has the key.
+     */
+    private static List<byte[]> encodeGroup(String currentEntries, int[] entryEnds, int[] entryKeys,
+                                            int numEntries, int key, long maxBytes) {
+        List<byte[]> pieces = new ArrayList<byte[]>(1);
+        StringBuilder groupEntries = null;
+        int[] groupEnds = null;
+        int numGroupEntries = 0;
+        long groupBytes = mFramedRecords ? LogRecords.FOOTER_SIZE : 0;
+
+        int start = 0;
+        for (int i = 0; i < numEntries; i++) {
+            if (entryKeys[i] == key) {
+                int entryBytes = LogRecords.utf8Length(currentEntries, start, entryEnds[i]) +
+                        (mFramedRecords ? LogRecords.HEADER_SIZE : 0);
+                if (groupEntries == null) {
+                    groupEntries = new StringBuilder(currentEntries.length() - start);
+                    groupEnds = new int[numEntries - i];
+                } else if (numGroupEntries > 0 && groupBytes + entryBytes > maxBytes) {
+                    pieces.add(encodeEntries(groupEntries.toString(), groupEnds, numGroupEntries));
+                    groupEntries.setLength(0);
+                    numGroupEntries = 0;
+                    groupBytes = mFramedRecords ? LogRecords.FOOTER_SIZE : 0;
+                }
+                groupEntries.append(currentEntries, start, entryEnds[i]);
+                groupEnds[numGroupEntries++] = groupEntries.length();
+                groupBytes += entryBytes;
+            }
+            start = entryEnds[i];
+        }
+
+        if (numGroupEntries > 0) {
+            pieces.add(encodeEntries(groupEntries.toString(), groupEnds, numGroupEntries));
+        }
+        return pieces;
+    }
+
+    /**
+     * @param text       The text of the entries, one after the other.
+     * @param entryEnds  The index in text just after the end of each entry.
+     * @param numEntries The number of entries in text.
+     * @return The bytes to append to a file of the log, as records if it is kept as framed
+     * records.
+     */
+    private static byte[] encodeEntries(String text, int[] entryEnds, int numEntries) {
+        return mFramedRecords ? LogRecords.encodeBatch(text, entryEnds, numEntries) : text.getBytes();
+    }
+
+    /**
+     * Handles trimming the log file to the correct size to keep the circular buffer intact. This
+     * method must only be called from the write thread, or before it has started, since nothing
+     * else may append to the log file while it is counted. The mFileLock is only held while the
+     * file is shortened, so that readers wait for that and not for the count.
+     * <p/>
+     * If the log file is kept as framed records, this counts and removes whole entries instead of
+     * lines, jumping from one record to the next without reading the entries' text. With a
+     * retention policy, this deletes the chunks that the policy no longer keeps instead.
+     */
+    static void trimFileToSize() {
+        long startNanos = System.nanoTime();
+        int linesRemoved = 0;
+
+        try {
+            // Keep other processes from clearing the log while this segment is rewritten
+            Closeable processLock = mStorage.lock(LOCK_FILENAME);
+            try {
+                if (mRetention != null) {
+                    mFileLock.lock();
+                    try {
+                        mRetention.apply(System.currentTimeMillis());
+                    } finally {
+                        mFileLock.unlock();
+                    }
+                } else {
+                    if (mPartitionFileNames == null) {
+                        linesRemoved = trimSegment(mFileName, CIRCULAR_BUFFER_SIZE);
+                    } else {
+                        // Each partition is kept to its own size. Any of them, or the log file,
+                        // may not have been started yet
+                        if (mStorage.length(mFileName) > 0) {
+                            linesRemoved = trimSegment(mFileName, CIRCULAR_BUFFER_SIZE);
+                        }
+                        for (int i = 0; i < mPartitionFileNames.length; i++) {
+                            if (mStorage.length(mPartitionFileNames[i]) > 0) {
+                                linesRemoved += trimSegment(mPartitionFileNames[i], mTagPartitions.getMaxLines(i));
+                            }
+                        }
+                    }
+                }
+            } finally {
+                processLock.close();
+            }
+        } catch (IOException ioException) {
+            // We shouldn't do anything here, since the IOException gives no feedback on whether
+            // we could access the file system - it only tells us "FileNotFound". Thus we don't know
+            // if the file does not exist or if we don't have access to the file system.
+        }
+
+        mLastTrimMillis = System.currentTimeMillis();
+        LogMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onTrimmed(linesRemoved, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Trims this process's segment of the log, or one of its partitions, to a number of lines, or
+     * entries if it is kept as framed records. This method must only be called from a thread that
+     * has acquired the lock on LOCK_FILENAME, and that nothing else appends to the segment from.
+     *
+     * @param fileName The name of the segment's file.
+     * @param maxLines The number of lines to keep, CIRCULAR_BUFFER_SIZE for the log file.
+     * @return The number of lines removed.
+     * @throws IOException If the segment could not be read or shortened.
+     */
+    private static int trimSegment(String fileName, int maxLines) throws IOException {
+        // Remember where each of the last lines starts while counting the lines, so that the
+        // file only needs to be read once. lineStarts[i % lineStarts.length] is the offset
+        // just after the (i + 1)th newline.
+        long[] lineStarts = new long[maxLines + 1];
+        int numLines = 0;
+        long offset = 0;
+
+        // Open the log file to read the number of lines
+        InputStream inputStream = mStorage.openInput(fileName);
+        try {
+            if (mFramedRecords) {
+                // Each record counts as a line
+                LogRecords.Scanner scanner = new LogRecords.Scanner(inputStream);
+                while (scanner.next()) {
+                    lineStarts[numLines % lineStarts.length] = scanner.getEndOffset();
+                    numLines++;
+                }
+            } else {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    for (int i = 0; i < read; i++) {
+                        if (buffer[i] == '\n') {
+                            lineStarts[numLines % lineStarts.length] = offset + i + 1;
+                            numLines++;
+                        }
+                    }
+                    offset += read;
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        // If we exceed maxLines, trim it down to maxLines
+        if (numLines > maxLines) {
+            // Determine how many extra lines we have
+            int diff = numLines - maxLines;
+
+            // Keep everything after the newline that ends the last extra line. Readers that have
+            // already opened the file keep reading what was there
+            mFileLock.lock();
+            try {
+                mStorage.truncateHead(fileName, lineStarts[(diff - 1) % lineStarts.length]);
+            } finally {
+                mFileLock.unlock();
+            }
+            return diff;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Removes numLines lines from the beginning of the log file, or numLines entries if it is kept
+     * as framed records.
+     * <p/>
+     * This method must only be called from a thread that has acquired the mFileLock.
+     */
+    static void removeLines(int numLinesToRemove) {
+        try {
+            Closeable processLock = mStorage.lock(LOCK_FILENAME);
+            try {
+                removeLinesFromSegment(numLinesToRemove);
+            } finally {
+                processLock.close();
+            }
+        } catch (IOException ioException) {
+            // Do nothing here, since we can't do anything if we fail in reading from the files
+        }
+    }
+
+    /**
+     * Removes numLines lines, or entries, from the beginning of this process's segment of the log.
+     * This method must only be called from a thread that has acquired the mFileLock and the lock
+     * on LOCK_FILENAME.
+     */
+    private static void removeLinesFromSegment(int numLinesToRemove) throws IOException {
+        long offset = 0;
+        int numLinesFound = 0;
+
+        // Find the offset just after the newline that ends the last line to remove
+        InputStream inputStream = mStorage.openInput(mFileName);
+        try {
+            if (mFramedRecords) {
+                LogRecords.Scanner scanner = new LogRecords.Scanner(inputStream);
+                while (numLinesFound < numLinesToRemove && scanner.next()) {
+                    offset = scanner.getEndOffset();
+                    numLinesFound++;
+                }
+                // Anything after the last record can't be read, so it goes too
+                if (numLinesFound < numLinesToRemove) {
+                    offset = Long.MAX_VALUE;
+                }
+            } else {
+                byte[] buffer = new byte[READ_BUFFER_SIZE];
+                int read;
+                while (numLinesFound < numLinesToRemove && (read = inputStream.read(buffer)) != -1) {
+                    int i = 0;
+                    while (i < read && numLinesFound < numLinesToRemove) {
+                        if (buffer[i++] == '\n') {
+                            numLinesFound++;
+                        }
+                    }
+                    offset += i;
+                }
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        // If we got to the end of the file while still discarding lines, this empties the file
+        mStorage.truncateHead(mFileName, offset);
+    }
+
+    /**
+     * This method performs the file operations to clear the log file. This method must only be
+     * called from a thread that has acquired the mFileLock.
+     */
+    private static void clearFile() {
+        // Clear the segments of every process, and keep them from trimming while they're deleted
+        try {
+            Closeable processLock = mStorage.lock(LOCK_FILENAME);
+            try {
+                for (String segment : LogSegments.list(mStorage, mFramedRecords)) {
+                    mStorage.delete(segment);
+                }
+            } finally {
+                processLock.close();
+            }
+        } catch (IOException ioException) {
+            // Clear this process's segment at least
+            mStorage.delete(mFileName);
+        }
+        mStorage.delete(mPayloadFileName);
+
+        if (mRetention != null) {
+            // The chunks are started again as entries are written
+            mRetention.reset();
+            return;
+        }
+
+        try {
+            // Re-create the file, but leave it empty
+            mStorage.openOutput(mFileName).close();
+        } catch (IOException ioException) {
+            // Do nothing here because if there was an error in re-creating the file
+            // then there's nothing we can do
+        }
+    }
+
+    /**
+     * Stores the information about each log entry so that a StringBuilder can build the entry later
+     * (from the write thread). By doing this, it eliminates the use of StringBuilder on the
+     * caller's thread.
+     */
+    static final class Entry {
+
+        static final int APPROXIMATE_LENGTH_PER_ENTRY = 150;
+
+        private long timestamp;
+        private int priority;
+        private String tag;
+        private String msg;
+        private Throwable tr;
+        private LogFields fields;
+
+        /**
+         * When the entry was queued, in terms of System.nanoTime().
+         */
+        private long sequence;
+
+        /**
+         * A Throwable created on the calling thread to find the caller's location from, or null
+         * if it wasn't captured.
+         */
+        private Throwable callerStack;
+
+        public Entry(long timestamp, int priority, String tag, String msg, Throwable tr) {
+            this(timestamp, priority, tag, msg, tr, null);
+        }
+
+        public Entry(long timestamp, int priority, String tag, String msg, Throwable tr, LogFields fields) {
+            this.timestamp = timestamp;
+            this.priority = priority;
+            this.tag = tag;
+            this.msg = msg;
+            this.tr = tr;
+            this.fields = fields;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        void setSequence(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void setCallerStack(Throwable callerStack) {
+            this.callerStack = callerStack;
+        }
+
+        /**
+         * Whether this Entry would produce the same line as another Entry, ignoring the timestamp.
+         * Entries with a Throwable or fields are never considered duplicates.
+         *
+         * @param other The Entry to compare against.
+         * @return True if both entries have the same priority, tag and message, and no Throwable
+         * or fields.
+         */
+        public boolean isDuplicateOf(Entry other) {
+            return tr == null && other.tr == null && fields == null && other.fields == null &&
+                    priority == other.priority &&
+                    (tag == null ? other.tag == null : tag.equals(other.tag)) &&
+                    (msg == null ? other.msg == null : msg.equals(other.msg));
+        }
+
+        /**
+         * Append all of the information stored in this Entry to the StringBuilder parameter.
+         *
+         * @param stringBuilder The StringBuilder that all of the information contained
+         *                      in this Entry will be appended to.
+         * @param layout        The layout to format the information with.
+         */
+        public void appendTo(StringBuilder stringBuilder, LogLayout layout) {
+            String location = callerStack != null ? resolveCallerLocation(callerStack) : null;
+            layout.append(stringBuilder, timestamp, priority, tag, msg, fields, location, tr);
+        }
+
+        /**
+         * Passes this Entry on to android.util.Log, with its fields after the message.
+         */
+        public void printToAndroidLog() {
+            if (fields == null && tr == null && msg != null) {
+                android.util.Log.println(priority, tag, msg);
+                return;
+            }
+
+            StringBuilder stringBuilder = new StringBuilder(APPROXIMATE_LENGTH_PER_ENTRY);
+            if (msg != null) {
+                stringBuilder.append(msg);
+            }
+            if (fields != null) {
+                if (msg != null) {
+                    stringBuilder.append(' ');
+                }
+                fields.appendTo(stringBuilder);
+            }
+            if (tr != null) {
+                stringBuilder.append('\n').append(getStackTraceString(tr));
+            }
+            android.util.Log.println(priority, tag, stringBuilder.toString());
+        }
+    }
+
+    /**
+     * A separate thread to handle writing to the log file. When the thread has had no work to do
+     * for THREAD_KEEP_ALIVE_MILLIS milliseconds, it kills itself.
+     * <p/>
+     * While there is nothing to write, the thread parks until the next log call wakes it, and
+     * writes that entry straight away. When entries arrive faster than they are written, it waits
+     * a little for each batch to fill up, up to the limits on a batch's size and on how long its
+     * oldest entry may wait.
+     * <p/>
+     * Entries of HIGH_PRIORITY or above are queued separately and taken first, so that an error
+     * never waits behind a backlog of verbose entries. Each batch is merged in the order that its
+     * entries were logged, but lower priority entries that didn't fit in the batch with a high
+     * priority entry are written after it.
+     * <p/>
+     * While the app is in the background, only entries of ERROR and above wake the thread, and it
+     * waits for each batch until its oldest entry's deadline; see {@link Log#onBackground()}.
+     */
+    private static final class WriteThread extends Thread {
+
+        /**
+         * The number of milliseconds after not receiving any new logs before the thread kills
+         * itself. This will affect the amount of taken before waitUntilFinishedWriting() returns,
+         * so this shouldn't be too long of a delay.
+         */
+        private static final long THREAD_KEEP_ALIVE_MILLIS = 1000;
+
+        /**
+         * The longest that an entry below ERROR waits to be written while the app is in the
+         * background, unless the config allows longer.
+         */
+        static final long BACKGROUND_BATCH_LATENCY_MILLIS = 10000;
+
+        /**
+         * The number of milliseconds between file trims while the app is in the background.
+         */
+        static final long BACKGROUND_TRIM_FILE_MILLIS = 60000;
+
+        /**
+         * The shortest time to wait for more entries before writing a batch, once entries arrive
+         * faster than they are written. Waits double from here while that lasts.
+         */
+        static final long MIN_LINGER_NANOS = 1000000;
+
+        /**
+         * The flag and queues of the Log that this thread was started for. This thread keeps its
+         * own references, since destroy() clears Log's and a later init() replaces them, and a
+         * thread that is still running must neither fail on the first nor change the second.
+         */
+        private final AtomicBoolean mRunning;
+        private final ConcurrentLinkedQueue<Entry> mEntries;
+        private final ConcurrentLinkedQueue<Entry> mHighPriorityEntries;
+        private final StripedEntryQueue mStripedEntries;
+        private final AtomicBoolean mClearRequested;
+
+        /**
+         * The lock on the log file, the latch that is counted down once it has been prepared and
+         * the metrics of the Log that this thread was started for, kept for the same reason.
+         * destroy() waits for this thread to stop before it lets go of the storage and the rest of
+         * the configuration, which the static methods that this thread calls read.
+         */
+        private final ReentrantLock mLock;
+        private final CountDownLatch mFilePreparedLatch;
+        private final LogMetrics mThreadMetrics;
+
+        /**
+         * The time, in terms of System.currentTimeMillis() that the thread started
+         */
+        private long mLastTrimTime = 0;
+
+        /**
+         * The time, in terms of System.currentTimeMillis() of the last write to the log file.
+         */
+        private long mLastWriteTime = 0;
+
+        /**
+         * The entries taken from mStripedEntries that haven't been appended yet, from
+         * mDrainedIndex on.
+         */
+        private final ArrayList<Entry> mDrained = new ArrayList<Entry>();
+        private int mDrainedIndex = 0;
+
+        /**
+         * The next entry below HIGH_PRIORITY to be written, taken from the queue but not yet
+         * appended because a high priority entry came before it or the batch was full.
+         */
+        private Entry mNextEntry;
+
+        /**
+         * The number of entries of HIGH_PRIORITY or above in the batch that is being built.
+         */
+        private int mBatchHighPriority = 0;
+
+        /**
+         * The most entries that the batch being built may have: mMaxBatchEntries, or fewer while
+         * memory is under pressure.
+         */
+        private int mBatchEntriesLimit = mMaxBatchEntries;
+
+        /**
+         * Whether this thread is waiting for entries, so that the next log call should wake it.
+         */
+        private volatile boolean mParked = false;
+
+        /**
+         * Whether this thread is waiting for its batch to fill up, so that the next high priority
+         * log call should wake it.
+         */
+        private volatile boolean mLingering = false;
+
+        /**
+         * How long to wait for more entries before writing a batch. Zero while entries are
+         * written as fast as they arrive, so that they are written straight away, and longer
+         * while they arrive faster, so that they are written in larger batches.
+         */
+        private long mLingerNanos = 0;
+
+        /**
+         * The number of entries of each priority in the batch that is being built.
+         */
+        private final int[] mBatchCounts = new int[ASSERT + 1];
+
+        /**
+         * The timestamps of the entries in the batch that is being built, used to record how
+         * long each entry waited to be written. Grows to fit the largest batch.
+         */
+        private long[] mBatchTimestamps = new long[64];
+
+        /**
+         * The number of entries in the batch that is being built.
+         */
+        private int mBatchSize = 0;
+
+        /**
+         * The index in the batch's StringBuilder just after the end of each entry, including
+         * summaries of duplicates, so that each can be written as a record. Grows to fit the
+         * largest batch.
+         */
+        private int[] mEntryEnds = new int[64];
+
+        /**
+         * The priority of each entry in mEntryEnds, used to write each to its tier's chunk.
+         */
+        private int[] mEntryPriorities = new int[64];
+
+        /**
+         * The partition of each entry in mEntryEnds, or -1 if it isn't in one, used to write each
+         * to its partition's file.
+         */
+        private int[] mEntryPartitions = new int[64];
+
+        /**
+         * The number of entries in mEntryEnds.
+         */
+        private int mNumEntryEnds = 0;
+
+        /**
+         * The last entry that was written, used to detect runs of duplicate entries.
+         */
+        private Entry mLastEntry;
+
+        /**
+         * The number of duplicates of mLastEntry that have been dropped since it was written or
+         * since the last summary.
+         */
+        private int mRepeatCount = 0;
+
+        /**
+         * The timestamps of the first and last duplicates in the current run.
+         */
+        private long mFirstRepeatTime, mLastRepeatTime;
+
+        /**
+         * @param running             The flag that is true while this thread runs, which it clears
+         *                            when it stops.
+         * @param entries             The queue of entries below HIGH_PRIORITY.
+         * @param highPriorityEntries The queue of entries of HIGH_PRIORITY and above.
+         * @param stripedEntries      The per-thread buffers of entries below HIGH_PRIORITY, or null
+         *                            if entries are added to the queue instead.
+         * @param clearRequested      The flag that is true while the log is requested to be
+         *                            cleared.
+         * @param fileLock            The lock on the log file.
+         * @param filePrepared        The latch that is counted down once the log file has been
+         *                            prepared.
+         * @param metrics             The metrics to report this thread's work to.
+         */
+        WriteThread(AtomicBoolean running, ConcurrentLinkedQueue<Entry> entries,
+                    ConcurrentLinkedQueue<Entry> highPriorityEntries, StripedEntryQueue stripedEntries,
+                    AtomicBoolean clearRequested, ReentrantLock fileLock, CountDownLatch filePrepared,
+                    LogMetrics metrics) {
+            mRunning = running;
+            mEntries = entries;
+            mHighPriorityEntries = highPriorityEntries;
+            mStripedEntries = stripedEntries;
+            mClearRequested = clearRequested;
+            mLock = fileLock;
+            mFilePreparedLatch = filePrepared;
+            mThreadMetrics = metrics;
+        }
 
         /**
          * Record the time that the thread starts for last trim and write time
@@ -913,77 +2440,717 @@ public class Log {
          */
         @Override
         public void run() {
-            // While we haven't been interrupted and we still want to keep this thread alive
-            while (!isInterrupted() && mWriteThreadRunning.get()) {
-                // Trim the file to size every TRIM_FILE_MILLIS while the thread runs
-                if (System.currentTimeMillis() - mLastTrimTime > TRIM_FILE_MILLIS) {
-                    trimFileToSize();
+            onWakeup();
+
+            boolean finished = false;
+            try {
+                writeEntries();
+                finished = true;
+            } finally {
+                // If this thread died, let the next log call start another one
+                if (!finished) {
+                    mRunning.set(false);
+                }
+            }
+        }
+
+        /**
+         * Writes entries from the queue to the log file until this thread is interrupted or has
+         * had nothing to do for THREAD_KEEP_ALIVE_MILLIS.
+         */
+        private void writeEntries() {
+            // After an asynchronous init, the file has to be prepared before it is written to
+            if (mFilePreparedLatch.getCount() > 0) {
+                prepareFile();
+                mLastTrimTime = System.currentTimeMillis();
+            }
+
+            // While we haven't been interrupted or replaced and we still want to keep this thread
+            // alive
+            while (!isInterrupted() && mWriteThread == this && mRunning.get()) {
+                // Everything logged before this ticket was taken is in the queues by now, so it
+                // is finished once they are empty
+                long flushTicket = mLastFlushTicket;
+
+                // Trim the file to size every TRIM_FILE_MILLIS while the thread runs, unless
+                // memory is under pressure, in which case it waits until the thread stops
+                if (System.currentTimeMillis() - mLastTrimTime > trimFileMillis()) {
+                    if (!isUnderMemoryPressure()) {
+                        trimFileToSize();
+                    }
                     mLastTrimTime = System.currentTimeMillis();
                 }
 
-                if (mRequestedClearLog.get()) {
+                if (mClearRequested.get()) {
                     // We need to wait for the lock before we can clear the file
-                    mFileLock.lock();
+                    mLock.lock();
                     try {
                         // Clear the log file
                         clearFile();
                     } finally {
-                        mFileLock.unlock();
+                        mLock.unlock();
+                    }
+
+                    // Runs of duplicates don't carry over into the cleared log
+                    mLastEntry = null;
+                    mRepeatCount = 0;
+
+                    // Neither do entries that were taken from the queue before the clear
+                    if (mNextEntry != null) {
+                        mThreadMetrics.onDropped(mNextEntry.priority, 1);
+                        mNextEntry = null;
+                    }
+                    Entry entry;
+                    while ((entry = pollEntry()) != null) {
+                        mThreadMetrics.onDropped(entry.priority, 1);
                     }
 
                     // The clear request is done
-                    mRequestedClearLog.set(false);
-                } else if (!mEntryQueue.isEmpty()) {
+                    mClearRequested.set(false);
+                } else if (hasQueuedEntries()) {
                     // If we still have entries to write
 
+                    // While memory is under pressure, keep batches small and write them as soon
+                    // as possible
+                    boolean memoryPressure = isUnderMemoryPressure();
+                    mBatchEntriesLimit = memoryPressure ? Math.min(mMaxBatchEntries, MEMORY_PRESSURE_BATCH_ENTRIES) :
+                            mMaxBatchEntries;
+                    if (memoryPressure && mDrainedIndex == mDrained.size()) {
+                        mDrained.clear();
+                        mDrained.trimToSize();
+                    }
+
                     // Give the StringBuilder an approximate size
-                    StringBuilder stringBuilder = new StringBuilder(mEntryQueue.size() * Entry.APPROXIMATE_LENGTH_PER_ENTRY);
-                    Entry currentEntry;
-
-                    boolean requestedClearLog;
-                    // If the log isn't requested to be cleared and we have more entries to take off
-                    while (!(requestedClearLog = mRequestedClearLog.get()) &&
-                            (currentEntry = mEntryQueue.poll()) != null) {
-                        // Keep appending entries from the queue
-                        currentEntry.appendToStringBuilder(stringBuilder, mDate);
-                        stringBuilder.append(mNewLine);
+                    StringBuilder stringBuilder = new StringBuilder(Math.min(numQueuedEntries(), mBatchEntriesLimit) *
+                            Entry.APPROXIMATE_LENGTH_PER_ENTRY);
+
+                    // Keep appending entries from the queue, dropping duplicates, until the batch
+                    // is full, the queue is empty or the log is requested to be cleared
+                    boolean requestedClearLog = fillBatch(stringBuilder);
+
+                    // While entries arrive faster than they are written, wait for more to make
+                    // the write worth its while, but not past the oldest entry's deadline, and
+                    // not at all if an urgent entry is waiting to be written. In the background,
+                    // always wait until the deadline
+                    boolean background = mBackground;
+                    if (!requestedClearLog && !memoryPressure && (mLingerNanos > 0 || background) &&
+                            !isBatchFull(stringBuilder) && mBatchSize > 0 && !hasUrgentEntry(background) &&
+                            !isFlushPending()) {
+                        long deadlineMillis = mBatchTimestamps[0] + (background ?
+                                Math.max(mMaxBatchLatencyMillis, BACKGROUND_BATCH_LATENCY_MILLIS) : mMaxBatchLatencyMillis);
+                        long waitNanos = (deadlineMillis - System.currentTimeMillis()) * 1000000;
+                        if (!background) {
+                            waitNanos = Math.min(mLingerNanos, waitNanos);
+                        }
+                        if (waitNanos > 0) {
+                            mLingering = true;
+                            if (!isUrgentEntryQueued(background) && !isFlushPending()) {
+                                LockSupport.parkNanos(this, waitNanos);
+                                onWakeup();
+                            }
+                            mLingering = false;
+                            requestedClearLog = fillBatch(stringBuilder);
+                        }
+                    }
+
+                    // Don't let a long run of duplicates go unreported
+                    if (mRepeatCount > 0 && mLastRepeatTime - mFirstRepeatTime >= DUPLICATE_SUMMARY_MILLIS) {
+                        appendRepeatSummary(stringBuilder);
                     }
 
                     // Write to the file as long as the polling ended successfully (didn't end due
                     // to a clear request). This way, there are no unexpected writes to a file that
                     // has just been cleared
                     if (!requestedClearLog) {
-                        mFileLock.lock();
-                        try {
-                            // Write the entry to file
-                            writeToFile(stringBuilder.toString());
-                        } finally {
-                            mFileLock.unlock();
-                        }
+                        long startNanos = System.nanoTime();
+
+                        // Write the entry to file
+                        int numBytes = writeBatch(stringBuilder);
 
+                        mThreadMetrics.onBatchWritten(countBatch(true), numBytes, System.nanoTime() - startNanos);
                         mLastWriteTime = System.currentTimeMillis();
+
+                        // If more entries arrived while this batch was written, wait longer for the
+                        // next batch to fill up, otherwise go back to writing straight away
+                        if (hasQueuedEntries()) {
+                            mLingerNanos = Math.min(Math.max(mLingerNanos * 2, MIN_LINGER_NANOS),
+                                    mMaxBatchLatencyMillis * 1000000);
+                        } else {
+                            mLingerNanos = mLingerNanos / 2 < MIN_LINGER_NANOS ? 0 : mLingerNanos / 2;
+                        }
+                    } else {
+                        countBatch(false);
+                        mNumEntryEnds = 0;
                     }
+                    mBatchHighPriority = 0;
+                } else if (flushTicket > mFlushedTicket) {
+                    // Duplicates logged before the flush are written as well, as their summary
+                    if (mRepeatCount > 0) {
+                        writeRepeatSummary();
+                    }
+                    finishFlush(flushTicket);
+                } else if (mRepeatCount > 0 &&
+                        System.currentTimeMillis() - mFirstRepeatTime >= DUPLICATE_SUMMARY_MILLIS) {
+                    // A run of duplicates isn't held back past its time just because nothing has
+                    // been logged after it
+                    writeRepeatSummary();
                 } else if ((System.currentTimeMillis() - mLastWriteTime) >
                         THREAD_KEEP_ALIVE_MILLIS) {
-                    // Make sure that when we finish writing to the file, it's the correct size
-                    trimFileToSize();
+                    // The run of duplicates ends with this thread
+                    if (mRepeatCount > 0) {
+                        writeRepeatSummary();
+                    }
+
+                    // Make sure that when we finish writing to the file, it's the correct size,
+                    // unless the app is in the background and the file was trimmed lately
+                    if (!mBackground || System.currentTimeMillis() - mLastTrimMillis >= BACKGROUND_TRIM_FILE_MILLIS) {
+                        trimFileToSize();
+                    }
                     // If we don't have anything to do on this thread and we timed out
-                    mWriteThreadRunning.set(false);
+                    mRunning.set(false);
+
+                    // An entry may have been queued after the queue was checked but before the
+                    // flag was cleared, in which case its caller saw this thread as running and
+                    // didn't start another. Keep going unless a caller has started one since, in
+                    // which case that thread takes over
+                    if ((!areQueuesEmpty() || mClearRequested.get() || isFlushPending()) &&
+                            mRunning.compareAndSet(false, true)) {
+                        mLastWriteTime = System.currentTimeMillis();
+                    } else {
+                        break;
+                    }
                 } else {
-                    // Sleep for a little while so that when there is nothing to do we don't hog
-                    // the CPU
-                    try {
-                        Thread.sleep(NO_WORK_SLEEP_MILLIS);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                    // Wait until an entry is logged, or until it's time to trim, to write the
+                    // summary of a run of duplicates or to stop, so that when there is nothing to
+                    // do we don't hog the CPU
+                    long now = System.currentTimeMillis();
+                    long waitMillis = Math.min(THREAD_KEEP_ALIVE_MILLIS - (now - mLastWriteTime),
+                            trimFileMillis() - (now - mLastTrimTime)) + 1;
+                    if (mRepeatCount > 0) {
+                        waitMillis = Math.min(waitMillis, DUPLICATE_SUMMARY_MILLIS - (now - mFirstRepeatTime));
+                    }
+
+                    // The next entry after a pause is written straight away
+                    mLingerNanos = 0;
+
+                    // Check the queue again after announcing that we're parked, since an entry
+                    // logged before then didn't try to wake this thread
+                    mParked = true;
+                    if (areQueuesEmpty() && !mClearRequested.get() && !isFlushPending()) {
+                        LockSupport.parkNanos(this, Math.max(waitMillis, 1) * 1000000);
+                        onWakeup();
                     }
+                    mParked = false;
                 }
             }
 
-            // If the thread was interrupted, trim the file to size before terminating the thread
-            if (isInterrupted()) {
+            // Write the summary of a pending run of duplicates before stopping, even if this
+            // thread was stopped by destroy(), which waits for it before letting go of the log
+            if (mRepeatCount > 0 && !mClearRequested.get()) {
+                writeRepeatSummary();
+            }
+
+            // If the thread was interrupted, trim the file to size before terminating the thread,
+            // unless Log was destroyed
+            if (isInterrupted() && mWriteThread == this) {
                 trimFileToSize();
             }
         }
+
+        /**
+         * Lets the callers of flush() that took a ticket up to this one know that what they
+         * logged before has been written, after syncing the log's files if any of them asked.
+         *
+         * @param flushTicket The last ticket taken before the queues were found empty.
+         */
+        private void finishFlush(long flushTicket) {
+            boolean sync;
+            synchronized (mFlushLock) {
+                sync = mLastSyncTicket > mFlushedTicket;
+            }
+            if (sync) {
+                mLock.lock();
+                try {
+                    syncFiles();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+
+            synchronized (mFlushLock) {
+                mFlushedTicket = Math.max(mFlushedTicket, flushTicket);
+                mFlushLock.notifyAll();
+            }
+        }
+
+        /**
+         * Wakes this thread if it is waiting for entries, unless the app is in the background and
+         * the entry isn't urgent, in which case it waits to be written with the next batch.
+         *
+         * @param urgent True to also wake this thread if it is waiting for its batch to fill up.
+         */
+        void wake(boolean urgent) {
+            if ((mParked && (urgent || !mBackground)) || (urgent && mLingering)) {
+                mParked = false;
+                mLingering = false;
+                LockSupport.unpark(this);
+            }
+        }
+
+        /**
+         * @return How often to trim the log file while this thread runs.
+         */
+        private long trimFileMillis() {
+            return mBackground ? BACKGROUND_TRIM_FILE_MILLIS : TRIM_FILE_MILLIS;
+        }
+
+        /**
+         * @param background Whether the app is in the background.
+         * @return True if the batch being built has an urgent entry: one of ERROR or above in the
+         * background, or of HIGH_PRIORITY or above in the foreground.
+         */
+        private boolean hasUrgentEntry(boolean background) {
+            return background ? mBatchCounts[ERROR] + mBatchCounts[ASSERT] > 0 : mBatchHighPriority > 0;
+        }
+
+        /**
+         * @param background Whether the app is in the background.
+         * @return True if an urgent entry is waiting in the high priority queue.
+         */
+        private boolean isUrgentEntryQueued(boolean background) {
+            if (!background) {
+                return !mHighPriorityEntries.isEmpty();
+            }
+            for (Entry entry : mHighPriorityEntries) {
+                if (entry.priority >= ERROR) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Counts this thread starting or waking up from waiting.
+         */
+        private void onWakeup() {
+            mThreadMetrics.onWakeup();
+        }
+
+        /**
+         * Appends entries from the queues to the batch until they are empty or the batch is full,
+         * merging the queues in the order that entries were logged. High priority entries have a
+         * batch's worth of room of their own, so they are taken even when the batch is already
+         * full of other entries.
+         *
+         * @param stringBuilder The StringBuilder of the batch.
+         * @return True if appending stopped because the log was requested to be cleared.
+         */
+        private boolean fillBatch(StringBuilder stringBuilder) {
+            while (true) {
+                if (mClearRequested.get()) {
+                    return true;
+                }
+
+                Entry highPriorityEntry = mBatchHighPriority < mBatchEntriesLimit ? mHighPriorityEntries.peek() : null;
+                if (mNextEntry == null && !isBatchFull(stringBuilder)) {
+                    mNextEntry = pollEntry();
+                }
+                Entry entry = isBatchFull(stringBuilder) ? null : mNextEntry;
+
+                if (highPriorityEntry != null &&
+                        (entry == null || highPriorityEntry.getSequence() - entry.getSequence() <= 0)) {
+                    mHighPriorityEntries.poll();
+                    mBatchHighPriority++;
+                    appendEntry(stringBuilder, highPriorityEntry);
+                } else if (entry != null) {
+                    mNextEntry = null;
+                    appendEntry(stringBuilder, entry);
+                } else {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @param stringBuilder The StringBuilder of the batch.
+         * @return True if the batch has as many entries or characters as a batch may have.
+         */
+        private boolean isBatchFull(StringBuilder stringBuilder) {
+            return mNumEntryEnds >= mBatchEntriesLimit || stringBuilder.length() >= mMaxBatchChars;
+        }
+
+        /**
+         * @return True if there are entries waiting to be written. With striped buffers, this
+         * takes them from the buffers if none are left from the last time.
+         */
+        private boolean hasQueuedEntries() {
+            if (mNextEntry != null || !mHighPriorityEntries.isEmpty()) {
+                return true;
+            }
+            if (mStripedEntries == null) {
+                return !mEntries.isEmpty();
+            }
+            return mDrainedIndex < mDrained.size() || drainStripedQueue() > 0;
+        }
+
+        /**
+         * @return True if no entries are waiting in this thread's queues.
+         */
+        private boolean areQueuesEmpty() {
+            return mHighPriorityEntries.isEmpty() && mEntries.isEmpty() &&
+                    (mStripedEntries == null || mStripedEntries.isEmpty());
+        }
+
+        /**
+         * @return Roughly the number of entries waiting to be written.
+         */
+        private int numQueuedEntries() {
+            return mStripedEntries == null ? mEntries.size() : mDrained.size() - mDrainedIndex;
+        }
+
+        /**
+         * Takes the next entry to be written. With striped buffers, entries are taken from the
+         * buffers in batches, merged in the order that they were logged.
+         *
+         * @return The entry, or null if there are none waiting.
+         */
+        private Entry pollEntry() {
+            if (mStripedEntries == null) {
+                return mEntries.poll();
+            }
+            if (mDrainedIndex == mDrained.size() && drainStripedQueue() == 0) {
+                return null;
+            }
+            Entry entry = mDrained.get(mDrainedIndex);
+            mDrained.set(mDrainedIndex++, null);
+            return entry;
+        }
+
+        /**
+         * Replaces the entries in mDrained, which must all have been taken, with the ones waiting
+         * in the striped buffers.
+         *
+         * @return The number of entries taken from the buffers.
+         */
+        private int drainStripedQueue() {
+            mDrained.clear();
+            mDrainedIndex = 0;
+            return mStripedEntries.drainTo(mDrained);
+        }
+
+        /**
+         * Appends an entry to the StringBuilder, unless it is a duplicate of the last entry and its
+         * tag is set to coalesce duplicates, in which case it is only counted. A pending summary
+         * of duplicates is appended before the first entry that ends the run.
+         *
+         * @param stringBuilder The StringBuilder to append to.
+         * @param entry         The entry to append.
+         */
+        private void appendEntry(StringBuilder stringBuilder, Entry entry) {
+            // An entry's fields are rendered here, for logcat as well as for the file
+            if (entry.fields != null) {
+                entry.printToAndroidLog();
+            }
+
+            if (mLastEntry != null && shouldCoalesceDuplicates(entry.tag) && entry.isDuplicateOf(mLastEntry)) {
+                mThreadMetrics.onFiltered(entry.priority);
+                if (mRepeatCount == 0) {
+                    mFirstRepeatTime = entry.timestamp;
+                }
+                mRepeatCount++;
+                mLastRepeatTime = entry.timestamp;
+                return;
+            }
+
+            if (mRepeatCount > 0) {
+                appendRepeatSummary(stringBuilder);
+            }
+
+            // Only format an entry whose message alone is too long in pieces, so that the batch
+            // never has to hold all of it
+            EntrySizePolicy policy = mEntrySizePolicy;
+            int start = stringBuilder.length();
+            if (entry.msg != null && entry.msg.length() > policy.getMaxChars()) {
+                appendOversized(stringBuilder, entry, policy);
+            } else {
+                entry.appendTo(stringBuilder, mLayout);
+                if (policy.isOversized(stringBuilder, start, stringBuilder.length())) {
+                    stringBuilder.setLength(start);
+                    appendOversized(stringBuilder, entry, policy);
+                } else {
+                    endEntry(stringBuilder, entry.priority, entry.tag);
+                }
+            }
+            mBatchCounts[LogMetrics.index(entry.priority)]++;
+            if (mBatchSize == mBatchTimestamps.length) {
+                long[] timestamps = new long[mBatchSize * 2];
+                System.arraycopy(mBatchTimestamps, 0, timestamps, 0, mBatchSize);
+                mBatchTimestamps = timestamps;
+            }
+            mBatchTimestamps[mBatchSize++] = entry.timestamp;
+            mLastEntry = entry;
+
+            // The entry's LogBuilder can have its fields back. mLastEntry still has them, but an
+            // entry with fields is only compared to others by whether it has any
+            if (entry.fields != null) {
+                entry.fields.release();
+            }
+        }
+
+        /**
+         * Appends an entry that is larger than the EntrySizePolicy allows, with its message and
+         * stack trace cut to fit, and handles the rest according to the policy's overflow.
+         *
+         * @param stringBuilder The StringBuilder of the batch.
+         * @param entry         The oversized entry.
+         * @param policy        The limits on the size of an entry.
+         */
+        private void appendOversized(StringBuilder stringBuilder, Entry entry, EntrySizePolicy policy) {
+            String text = entry.msg != null ? entry.msg : "";
+            if (entry.tr != null) {
+                text = (entry.msg != null ? text + mNewLine : "") + getStackTraceString(entry.tr);
+            }
+
+            int end = policy.pieceEnd(text, 0);
+            if (end == text.length()) {
+                // Only the rest of the entry, such as its fields, took it past the limits
+                entry.appendTo(stringBuilder, mLayout);
+                endEntry(stringBuilder, entry.priority, entry.tag);
+                return;
+            }
+
+            int id = mLastOversizedId.incrementAndGet();
+            switch (policy.getOverflow()) {
+                case EntrySizePolicy.CHUNK:
+                    int[] pieceEnds = new int[policy.getMaxChunks()];
+                    int numPieces = 0;
+                    for (int start = 0; start < text.length() && numPieces < pieceEnds.length; numPieces++) {
+                        pieceEnds[numPieces] = policy.pieceEnd(text, start);
+                        start = nextPieceStart(text, pieceEnds[numPieces]);
+                    }
+
+                    int start = 0;
+                    for (int i = 0; i < numPieces; i++) {
+                        StringBuilder piece = new StringBuilder(pieceEnds[i] - start + EntrySizePolicy.MARKER_CHARS)
+                                .append("[#").append(id).append(' ').append(i + 1).append('/').append(numPieces)
+                                .append("] ").append(text, start, pieceEnds[i]);
+                        start = nextPieceStart(text, pieceEnds[i]);
+                        if (i == numPieces - 1 && start < text.length()) {
+                            appendTruncated(piece, text.length() - start).append(']');
+                        }
+                        appendPiece(stringBuilder, entry, piece.toString(), i == 0);
+                    }
+                    break;
+                case EntrySizePolicy.PAYLOAD_FILE:
+                    writePayload(entry, id, text, policy);
+                    appendPiece(stringBuilder, entry, appendTruncated(new StringBuilder(text.substring(0, end)),
+                            text.length() - end).append(", #").append(id).append(" in ").append(mPayloadFileName)
+                            .append(']').toString(), true);
+                    break;
+                case EntrySizePolicy.TRUNCATE:
+                default:
+                    appendPiece(stringBuilder, entry, appendTruncated(new StringBuilder(text.substring(0, end)),
+                            text.length() - end).append(']').toString(), true);
+                    break;
+            }
+        }
+
+        /**
+         * @param text     An oversized message.
+         * @param pieceEnd The end of a piece of it.
+         * @return Where the next piece starts, after the newline that ended the last, if it did.
+         */
+        private int nextPieceStart(String text, int pieceEnd) {
+            return pieceEnd < text.length() && text.charAt(pieceEnd) == '\n' ? pieceEnd + 1 : pieceEnd;
+        }
+
+        /**
+         * Appends a marker for the part of a message that was left out, without its closing
+         * bracket.
+         *
+         * @param message  The message.
+         * @param numChars The number of characters that were left out.
+         * @return The message.
+         */
+        private StringBuilder appendTruncated(StringBuilder message, int numChars) {
+            return message.append(" [truncated ").append(numChars).append(" chars");
+        }
+
+        /**
+         * Appends a piece of an oversized entry as an entry of its own.
+         *
+         * @param stringBuilder The StringBuilder of the batch.
+         * @param entry         The oversized entry.
+         * @param message       The piece's message.
+         * @param first         Whether this is the first piece, which has the entry's fields and
+         *                      caller's location.
+         */
+        private void appendPiece(StringBuilder stringBuilder, Entry entry, String message, boolean first) {
+            Entry piece = new Entry(entry.timestamp, entry.priority, entry.tag, message, null,
+                    first ? entry.fields : null);
+            if (first) {
+                piece.setCallerStack(entry.callerStack);
+            }
+            piece.appendTo(stringBuilder, mLayout);
+            endEntry(stringBuilder, entry.priority, entry.tag);
+        }
+
+        /**
+         * Appends the whole message and stack trace of an oversized entry to the payload file,
+         * after a line with the rest of the entry and its number, and keeps the file to its size.
+         * The entry's marker is written to the log even if this fails.
+         *
+         * @param entry  The oversized entry.
+         * @param id     The number of the entry.
+         * @param text   The entry's message and stack trace.
+         * @param policy The limits on the size of an entry.
+         */
+        private void writePayload(Entry entry, int id, String text, EntrySizePolicy policy) {
+            StringBuilder header = new StringBuilder(Entry.APPROXIMATE_LENGTH_PER_ENTRY);
+            new Entry(entry.timestamp, entry.priority, entry.tag, "[#" + id + "]", null, entry.fields)
+                    .appendTo(header, mLayout);
+            try {
+                Writer writer = new OutputStreamWriter(mStorage.openOutput(mPayloadFileName));
+                try {
+                    writer.append(header).append(mNewLine);
+                    writer.write(text, 0, (int) Math.min(text.length(), policy.getMaxPayloadFileBytes()));
+                    writer.write(mNewLine);
+                } finally {
+                    writer.close();
+                }
+
+                long excess = mStorage.length(mPayloadFileName) - policy.getMaxPayloadFileBytes();
+                if (excess > 0) {
+                    mStorage.truncateHead(mPayloadFileName, excess);
+                }
+            } catch (IOException ioException) {
+                // The payload is lost, but the entry's marker still says how much of it there was
+            }
+        }
+
+        /**
+         * Ends the entry that was just appended to the StringBuilder with a newline and remembers
+         * where it ends, its priority and its partition.
+         *
+         * @param stringBuilder The StringBuilder of the batch.
+         * @param priority      The priority of the entry.
+         * @param tag           The tag of the entry.
+         */
+        private void endEntry(StringBuilder stringBuilder, int priority, String tag) {
+            stringBuilder.append(mNewLine);
+            if (mNumEntryEnds == mEntryEnds.length) {
+                int[] entryEnds = new int[mNumEntryEnds * 2];
+                System.arraycopy(mEntryEnds, 0, entryEnds, 0, mNumEntryEnds);
+                mEntryEnds = entryEnds;
+                int[] entryPriorities = new int[mNumEntryEnds * 2];
+                System.arraycopy(mEntryPriorities, 0, entryPriorities, 0, mNumEntryEnds);
+                mEntryPriorities = entryPriorities;
+                int[] entryPartitions = new int[mNumEntryEnds * 2];
+                System.arraycopy(mEntryPartitions, 0, entryPartitions, 0, mNumEntryEnds);
+                mEntryPartitions = entryPartitions;
+            }
+            TagPartitions tagPartitions = mTagPartitions;
+            mEntryPartitions[mNumEntryEnds] = tagPartitions != null ? tagPartitions.getPartition(tag) : -1;
+            mEntryPriorities[mNumEntryEnds] = priority;
+            mEntryEnds[mNumEntryEnds++] = stringBuilder.length();
+        }
+
+        /**
+         * Writes the batch that was just built to the log file, then hands its entries to the
+         * listeners.
+         *
+         * @param stringBuilder The StringBuilder of the batch.
+         * @return The number of bytes written to the file.
+         */
+        private int writeBatch(StringBuilder stringBuilder) {
+            String entries = stringBuilder.toString();
+            try {
+                int numBytes;
+                mLock.lock();
+                try {
+                    numBytes = writeToFile(entries, mEntryEnds, mEntryPriorities, mEntryPartitions, mNumEntryEnds);
+                } finally {
+                    mLock.unlock();
+                }
+
+                if (numBytes > 0 && !mListeners.isEmpty()) {
+                    List<String> entryList = new ArrayList<String>(mNumEntryEnds);
+                    int start = 0;
+                    for (int i = 0; i < mNumEntryEnds; i++) {
+                        entryList.add(entries.substring(start, mEntryEnds[i] - mNewLine.length()));
+                        start = mEntryEnds[i];
+                    }
+                    for (LogListenerDispatcher dispatcher : mListeners) {
+                        dispatcher.offer(entryList);
+                    }
+                }
+
+                return numBytes;
+            } finally {
+                mNumEntryEnds = 0;
+            }
+        }
+
+        /**
+         * Reports the entries in the batch that was just built as written or dropped, and resets
+         * the counts for the next batch.
+         *
+         * @param written True if the batch was written to the log file, false if it was discarded.
+         * @return The number of entries in the batch.
+         */
+        private int countBatch(boolean written) {
+            if (written) {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < mBatchSize; i++) {
+                    mThreadMetrics.onEntryLatency(now - mBatchTimestamps[i]);
+                }
+            }
+            mBatchSize = 0;
+
+            int numEntries = 0;
+            for (int priority = 0; priority < mBatchCounts.length; priority++) {
+                int count = mBatchCounts[priority];
+                if (count > 0) {
+                    if (written) {
+                        mThreadMetrics.onWritten(priority, count);
+                    } else {
+                        mThreadMetrics.onDropped(priority, count);
+                    }
+                    numEntries += count;
+                    mBatchCounts[priority] = 0;
+                }
+            }
+            return numEntries;
+        }
+
+        /**
+         * Writes a summary of the current run of duplicates on its own and starts a new run.
+         */
+        private void writeRepeatSummary() {
+            StringBuilder stringBuilder = new StringBuilder(Entry.APPROXIMATE_LENGTH_PER_ENTRY);
+            appendRepeatSummary(stringBuilder);
+            writeBatch(stringBuilder);
+        }
+
+        /**
+         * Appends a summary of the current run of duplicates to the StringBuilder and starts a new
+         * run. Following duplicates of mLastEntry are still coalesced.
+         *
+         * @param stringBuilder The StringBuilder to append to.
+         */
+        private void appendRepeatSummary(StringBuilder stringBuilder) {
+            StringBuilder summary = new StringBuilder(64);
+            summary.append("last message repeated ").append(mRepeatCount).append(" times (");
+            LogLayout.appendTimestamp(summary, mFirstRepeatTime);
+            summary.append("..");
+            LogLayout.appendTimestamp(summary, mLastRepeatTime);
+            summary.append(')');
+
+            new Entry(mLastRepeatTime, mLastEntry.priority, mLastEntry.tag, summary.toString(), null)
+                    .appendTo(stringBuilder, mLayout);
+            endEntry(stringBuilder, mLastEntry.priority, mLastEntry.tag);
+
+            mRepeatCount = 0;
+        }
     }
 }
@@ -0,0 +1,228 @@
+package com.oanda.logging;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Builds a structured entry of key-value fields, so that values such as order ids, prices and
+ * latencies don't have to be concatenated into the message. Get one from {@link Log#v(String)},
+ * {@link Log#d(String)}, {@link Log#i(String)}, {@link Log#w(String)} or {@link Log#e(String)}:
+ * <pre>
+ * Log.i(TAG).msg("Order filled").kv("orderId", id).kv("px", 1.2345).kv("ms", 17L).log();
+ * </pre>
+ * which is written to the log as:
+ * <pre>
+ * 2015-01-20 15:36:53.123-0500 [INFO] TAG Order filled orderId=1234 px=1.2345 ms=17
+ * </pre>
+ * <p/>
+ * Each thread reuses the same LogBuilder, and primitive values are stored without boxing, so
+ * building an entry doesn't build any Strings. The fields are handed to the entry rather than
+ * copied, and the write thread gives them back once it has formatted them, so that a thread that
+ * keeps logging allocates nothing for them. Once Log is initialized, the write thread also passes
+ * an entry with fields on to android.util.Log when it formats it, so that the calling thread
+ * never formats them. Such an entry is in logcat a little later than the caller's other entries,
+ * and not at all if it is discarded before it is written, such as by {@link Log#clearLog()}. A
+ * LogBuilder must not be kept or used again after {@link #log()}.
+ */
+public final class LogBuilder {
+
+    /**
+     * The number of fields that a new LogBuilder makes room for.
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final ThreadLocal<LogBuilder> mBuilders = new ThreadLocal<LogBuilder>() {
+        @Override
+        protected LogBuilder initialValue() {
+            return new LogBuilder();
+        }
+    };
+
+    private LogFields mFields = new LogFields(INITIAL_CAPACITY, this);
+
+    /**
+     * The fields that have been given back, pushed by whichever thread released them and taken all
+     * at once by the thread that this LogBuilder belongs to, which then reuses them from
+     * mRecycledTaken. There are as many as this thread had entries waiting to be written at once,
+     * since each of those had fields of its own.
+     */
+    private final AtomicReference<LogFields> mRecycled = new AtomicReference<LogFields>();
+    private LogFields mRecycledTaken;
+
+    private int mPriority;
+    private String mTag;
+    private String mMsg;
+    private Throwable mTr;
+
+    /**
+     * Whether this LogBuilder has been handed out and log() hasn't been called yet.
+     */
+    private boolean mBuilding = false;
+
+    private LogBuilder() {
+    }
+
+    /**
+     * Get the calling thread's LogBuilder, ready to build a new entry.
+     *
+     * @param priority The priority/type of the entry.
+     * @param tag      Used to identify the source of a log message.
+     * @return The LogBuilder.
+     */
+    static LogBuilder obtain(int priority, String tag) {
+        LogBuilder builder = mBuilders.get();
+        if (builder.mBuilding) {
+            // An entry is being built while another one is, such as when a value passed to kv()
+            // logs, or the last one was never logged. Leave that one alone
+            builder = new LogBuilder();
+            mBuilders.set(builder);
+        }
+
+        builder.mBuilding = true;
+        builder.mPriority = priority;
+        builder.mTag = tag;
+        return builder;
+    }
+
+    /**
+     * Sets the message, which comes before the fields.
+     *
+     * @param msg The message you would like logged.
+     * @return This LogBuilder.
+     */
+    public LogBuilder msg(String msg) {
+        mMsg = msg;
+        return this;
+    }
+
+    /**
+     * Sets an exception to log after the fields.
+     *
+     * @param tr An exception to log.
+     * @return This LogBuilder.
+     */
+    public LogBuilder tr(Throwable tr) {
+        mTr = tr;
+        return this;
+    }
+
+    /**
+     * Adds a field with a String value.
+     *
+     * @param key   The key of the field.
+     * @param value The value of the field.
+     * @return This LogBuilder.
+     */
+    public LogBuilder kv(String key, String value) {
+        mFields.add(key, LogFields.TYPE_STRING, 0, value);
+        return this;
+    }
+
+    /**
+     * Adds a field with a long value.
+     *
+     * @param key   The key of the field.
+     * @param value The value of the field.
+     * @return This LogBuilder.
+     */
+    public LogBuilder kv(String key, long value) {
+        mFields.add(key, LogFields.TYPE_LONG, value, null);
+        return this;
+    }
+
+    /**
+     * Adds a field with an int value.
+     *
+     * @param key   The key of the field.
+     * @param value The value of the field.
+     * @return This LogBuilder.
+     */
+    public LogBuilder kv(String key, int value) {
+        mFields.add(key, LogFields.TYPE_LONG, value, null);
+        return this;
+    }
+
+    /**
+     * Adds a field with a double value.
+     *
+     * @param key   The key of the field.
+     * @param value The value of the field.
+     * @return This LogBuilder.
+     */
+    public LogBuilder kv(String key, double value) {
+        mFields.add(key, LogFields.TYPE_DOUBLE, Double.doubleToRawLongBits(value), null);
+        return this;
+    }
+
+    /**
+     * Adds a field with a boolean value.
+     *
+     * @param key   The key of the field.
+     * @param value The value of the field.
+     * @return This LogBuilder.
+     */
+    public LogBuilder kv(String key, boolean value) {
+        mFields.add(key, LogFields.TYPE_BOOLEAN, value ? 1 : 0, null);
+        return this;
+    }
+
+    /**
+     * Logs the entry that was built. This LogBuilder must not be used again afterwards.
+     */
+    public void log() {
+        int priority = mPriority;
+        String tag = mTag;
+        String msg = mMsg;
+        Throwable tr = mTr;
+        LogFields fields = null;
+        if (mFields.size() > 0) {
+            // The entry keeps the fields until they have been formatted
+            fields = mFields;
+            mFields = obtainFields();
+        }
+
+        // Reset before logging, so that this can be handed out again by then
+        mTag = null;
+        mMsg = null;
+        mTr = null;
+        mBuilding = false;
+
+        Log.println(priority, tag, msg, tr, fields);
+    }
+
+    /**
+     * @return Fields that have been given back, or new ones if there are none.
+     */
+    private LogFields obtainFields() {
+        if (mRecycledTaken == null) {
+            mRecycledTaken = mRecycled.getAndSet(null);
+            if (mRecycledTaken == null) {
+                return new LogFields(INITIAL_CAPACITY, this);
+            }
+        }
+
+        LogFields fields = mRecycledTaken;
+        mRecycledTaken = fields.mNextRecycled;
+        fields.mNextRecycled = null;
+        return fields;
+    }
+
+    /**
+     * Takes back fields that this LogBuilder handed to an entry, once they have been cleared. May
+     * be called from any thread.
+     *
+     * @param fields The fields.
+     */
+    void recycle(LogFields fields) {
+        // While memory is short, let them be collected, so that the fields kept after a burst of
+        // entries are used up rather than replaced
+        if (Log.isUnderMemoryPressure()) {
+            return;
+        }
+
+        LogFields head;
+        do {
+            head = mRecycled.get();
+            fields.mNextRecycled = head;
+        } while (!mRecycled.compareAndSet(head, fields));
+    }
+}
@@ -0,0 +1,338 @@
+package com.oanda.logging;
+
+/**
+ * Options that are fixed when Log is initialized, such as the format of the log file. Create one
+ * with a {@link Builder} and pass it to {@link Log#init(LogStorage, LogConfig)}.
+ * <pre>
+ * Log.init(new ContextLogStorage(context), new LogConfig.Builder()
+ *         .setFramedRecords(true)
+ *         .build());
+ * </pre>
+ */
+public final class LogConfig {
+
+    private final boolean mFramedRecords;
+    private final String mProcessName;
+    private final boolean mStripedBuffers;
+    private final int mMaxBatchEntries;
+    private final int mMaxBatchChars;
+    private final long mMaxBatchLatencyMillis;
+    private final boolean mAsyncInit;
+    private final RetentionPolicy mRetentionPolicy;
+    private final LogLayout mLayout;
+    private final EntrySizePolicy mEntrySizePolicy;
+    private final TagPartitions mTagPartitions;
+
+    private LogConfig(Builder builder) {
+        mFramedRecords = builder.mFramedRecords;
+        mProcessName = builder.mProcessName;
+        mStripedBuffers = builder.mStripedBuffers;
+        mMaxBatchEntries = builder.mMaxBatchEntries;
+        mMaxBatchChars = builder.mMaxBatchChars;
+        mMaxBatchLatencyMillis = builder.mMaxBatchLatencyMillis;
+        mAsyncInit = builder.mAsyncInit;
+        mRetentionPolicy = builder.mRetentionPolicy;
+        mLayout = builder.mLayout;
+        mEntrySizePolicy = builder.mEntrySizePolicy;
+        mTagPartitions = builder.mTagPartitions;
+    }
+
+    /**
+     * @return Whether the log file is kept as framed records. See
+     * {@link Builder#setFramedRecords(boolean)}.
+     */
+    public boolean isFramedRecords() {
+        return mFramedRecords;
+    }
+
+    /**
+     * @return The name of the process that this process's segment of the log is named after, or
+     * null for the main process. See {@link Builder#setProcessName(String)}.
+     */
+    public String getProcessName() {
+        return mProcessName;
+    }
+
+    /**
+     * @return Whether each thread queues its entries in a buffer of its own. See
+     * {@link Builder#setStripedBuffers(boolean)}.
+     */
+    public boolean isStripedBuffers() {
+        return mStripedBuffers;
+    }
+
+    /**
+     * @return The most entries written to the log file at once. See
+     * {@link Builder#setMaxBatchEntries(int)}.
+     */
+    public int getMaxBatchEntries() {
+        return mMaxBatchEntries;
+    }
+
+    /**
+     * @return The most characters written to the log file at once. See
+     * {@link Builder#setMaxBatchChars(int)}.
+     */
+    public int getMaxBatchChars() {
+        return mMaxBatchChars;
+    }
+
+    /**
+     * @return The longest that an entry waits for its batch to fill up. See
+     * {@link Builder#setMaxBatchLatencyMillis(long)}.
+     */
+    public long getMaxBatchLatencyMillis() {
+        return mMaxBatchLatencyMillis;
+    }
+
+    /**
+     * @return Whether init() leaves preparing the log file to the write thread. See
+     * {@link Builder#setAsyncInit(boolean)}.
+     */
+    public boolean isAsyncInit() {
+        return mAsyncInit;
+    }
+
+    /**
+     * @return The rules for how long entries are kept, or null to keep the last
+     * {@link Log#CIRCULAR_BUFFER_SIZE} lines. See
+     * {@link Builder#setRetentionPolicy(RetentionPolicy)}.
+     */
+    public RetentionPolicy getRetentionPolicy() {
+        return mRetentionPolicy;
+    }
+
+    /**
+     * @return The layout that entries are written in. See {@link Builder#setLayout(LogLayout)}.
+     */
+    public LogLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * @return The limits on the size of a single entry. See
+     * {@link Builder#setEntrySizePolicy(EntrySizePolicy)}.
+     */
+    public EntrySizePolicy getEntrySizePolicy() {
+        return mEntrySizePolicy;
+    }
+
+    /**
+     * @return The partitions that the entries of chosen tags are kept in, or null to keep every
+     * entry in the log file. See {@link Builder#setTagPartitions(TagPartitions)}.
+     */
+    public TagPartitions getTagPartitions() {
+        return mTagPartitions;
+    }
+
+    /**
+     * Builds a LogConfig. Options that aren't set keep their defaults, which match the behaviour
+     * of {@link Log#init(LogStorage)}.
+     */
+    public static final class Builder {
+
+        private boolean mFramedRecords = false;
+        private String mProcessName = null;
+        private boolean mStripedBuffers = false;
+        private int mMaxBatchEntries = 1000;
+        private int mMaxBatchChars = 64 * 1024;
+        private long mMaxBatchLatencyMillis = 200;
+        private boolean mAsyncInit = false;
+        private RetentionPolicy mRetentionPolicy = null;
+        private LogLayout mLayout = LogLayout.DEFAULT;
+        private EntrySizePolicy mEntrySizePolicy = EntrySizePolicy.DEFAULT;
+        private TagPartitions mTagPartitions = null;
+
+        /**
+         * Sets whether the log file is kept as framed records instead of plain text. Each entry is
+         * written as a record of its length, a CRC32 checksum and the entry's text, and each batch
+         * of records ends with a footer. This lets the log be trimmed by entries rather than by
+         * lines, and lets init() find and discard a write that was torn by a crash by checking
+         * only the end of the file.
+         * <p/>
+         * Framed records are kept in a different file from the plain text log, so switching
+         * formats starts a new log. {@link Log#readLog()} returns the same text for either format.
+         * Off by default.
+         *
+         * @param framedRecords True to keep the log file as framed records.
+         * @return This Builder.
+         */
+        public Builder setFramedRecords(boolean framedRecords) {
+            mFramedRecords = framedRecords;
+            return this;
+        }
+
+        /**
+         * Sets the name of this process, for apps that log from more than one process. Each
+         * process appends to a segment of the log of its own, so processes never write to the
+         * same file, and {@link Log#readLog()} merges the segments of every process by timestamp.
+         * <p/>
+         * Leave this unset in the main process, which keeps the log file it has always had. In
+         * other processes set it to something that identifies the process, such as "sync" for a
+         * process declared as ":sync" in the manifest. Characters other than letters, digits,
+         * '.', '_' and '-' are left out of the segment's file name.
+         *
+         * @param processName The name of this process, or null for the main process.
+         * @return This Builder.
+         */
+        public Builder setProcessName(String processName) {
+            mProcessName = processName;
+            return this;
+        }
+
+        /**
+         * Sets whether each thread that logs queues its entries in a buffer of its own, rather
+         * than all threads adding to one shared queue. This keeps threads that log at the same
+         * time from slowing each other down, at the cost of a buffer of 1024 entries for each
+         * thread that logs. The write thread merges the buffers in the order that entries were
+         * logged. Entries that don't fit in a thread's buffer go to the shared queue, so none are
+         * lost.
+         * <p/>
+         * Worth turning on when several threads log heavily at once. Off by default.
+         *
+         * @param stripedBuffers True to give each thread a buffer of its own.
+         * @return This Builder.
+         */
+        public Builder setStripedBuffers(boolean stripedBuffers) {
+            mStripedBuffers = stripedBuffers;
+            return this;
+        }
+
+        /**
+         * Sets the most entries that the write thread writes to the log file at once. Entries
+         * beyond that are left for the next write. 1000 by default.
+         *
+         * @param maxBatchEntries The most entries in a batch, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxBatchEntries is less than 1.
+         */
+        public Builder setMaxBatchEntries(int maxBatchEntries) {
+            if (maxBatchEntries < 1) {
+                throw new IllegalArgumentException("maxBatchEntries must be at least 1: " + maxBatchEntries);
+            }
+            mMaxBatchEntries = maxBatchEntries;
+            return this;
+        }
+
+        /**
+         * Sets roughly the most characters of text that the write thread writes to the log file at
+         * once. A batch stops growing once it has reached this size, so the last entry may take
+         * it past it. 64 KiB by default.
+         *
+         * @param maxBatchChars The most characters in a batch, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxBatchChars is less than 1.
+         */
+        public Builder setMaxBatchChars(int maxBatchChars) {
+            if (maxBatchChars < 1) {
+                throw new IllegalArgumentException("maxBatchChars must be at least 1: " + maxBatchChars);
+            }
+            mMaxBatchChars = maxBatchChars;
+            return this;
+        }
+
+        /**
+         * Sets the longest that the write thread holds back an entry to write it with others.
+         * When entries arrive no faster than they are written, each is written straight away.
+         * When they arrive faster, the write thread waits longer and longer for each batch to fill
+         * up, so that there are fewer, larger writes, but never past this long after the oldest
+         * entry in the batch was logged. 200 milliseconds by default.
+         *
+         * @param maxBatchLatencyMillis The longest to hold back an entry, in milliseconds.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxBatchLatencyMillis is negative.
+         */
+        public Builder setMaxBatchLatencyMillis(long maxBatchLatencyMillis) {
+            if (maxBatchLatencyMillis < 0) {
+                throw new IllegalArgumentException("maxBatchLatencyMillis must not be negative: " + maxBatchLatencyMillis);
+            }
+            mMaxBatchLatencyMillis = maxBatchLatencyMillis;
+            return this;
+        }
+
+        /**
+         * Sets whether init() returns straight away and leaves preparing the log file, which is
+         * recovering a torn batch of records and trimming the file to size, to the write thread.
+         * This keeps file I/O off the thread that initializes Log, usually the main thread while
+         * the app starts. Entries logged in the meantime are queued and written once the file is
+         * ready, and {@link Log#readLog()} waits until then.
+         * <p/>
+         * {@link LogStats#getInitMicros()} and {@link LogStats#getPrepareMicros()} show what init
+         * costs the caller and the write thread. Off by default.
+         *
+         * @param asyncInit True to prepare the log file on the write thread.
+         * @return This Builder.
+         */
+        public Builder setAsyncInit(boolean asyncInit) {
+            mAsyncInit = asyncInit;
+            return this;
+        }
+
+        /**
+         * Sets rules for how long entries are kept by priority, and how much space the log may
+         * take up, in place of keeping the last {@link Log#CIRCULAR_BUFFER_SIZE} lines. This
+         * process's log is then kept in several files, which {@link Log#readLog()} and
+         * {@link Log#exportLog(java.io.Writer)} merge, so {@link Log#getLogFile()} returns null.
+         * None by default.
+         *
+         * @param retentionPolicy The rules, or null to keep the last lines.
+         * @return This Builder.
+         */
+        public Builder setRetentionPolicy(RetentionPolicy retentionPolicy) {
+            mRetentionPolicy = retentionPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the layout that entries are written in, such as {@link LogLayout#jsonLines()} or
+         * one compiled with {@link LogLayout#pattern(String)}. Entries written in another layout
+         * before are read back as they are. {@link LogLayout#DEFAULT} by default.
+         *
+         * @param layout The layout, or null for the default.
+         * @return This Builder.
+         */
+        public Builder setLayout(LogLayout layout) {
+            mLayout = layout != null ? layout : LogLayout.DEFAULT;
+            return this;
+        }
+
+        /**
+         * Sets the limits on the size of a single entry, and what is done with the part of an
+         * oversized entry that doesn't fit, such as a message that holds a whole server response.
+         * {@link EntrySizePolicy#DEFAULT} by default, which truncates entries past 32 KiB or 200
+         * lines.
+         *
+         * @param entrySizePolicy The limits, or null for the default.
+         * @return This Builder.
+         */
+        public Builder setEntrySizePolicy(EntrySizePolicy entrySizePolicy) {
+            mEntrySizePolicy = entrySizePolicy != null ? entrySizePolicy : EntrySizePolicy.DEFAULT;
+            return this;
+        }
+
+        /**
+         * Sets partitions that the entries of chosen tags are kept in, each in a file of its own
+         * that is trimmed to its own number of lines, instead of in the log file with every other
+         * entry. {@link Log#readLog(String)} reads a single partition. Can't be used with a
+         * {@link RetentionPolicy}. None by default.
+         *
+         * @param tagPartitions The partitions, or null to keep every entry in the log file.
+         * @return This Builder.
+         */
+        public Builder setTagPartitions(TagPartitions tagPartitions) {
+            mTagPartitions = tagPartitions;
+            return this;
+        }
+
+        /**
+         * @return A LogConfig with the options that have been set.
+         * @throws IllegalStateException If both tag partitions and a retention policy are set.
+         */
+        public LogConfig build() {
+            if (mTagPartitions != null && mRetentionPolicy != null) {
+                throw new IllegalStateException("Tag partitions can't be used with a retention policy");
+            }
+            return new LogConfig(this);
+        }
+    }
+}
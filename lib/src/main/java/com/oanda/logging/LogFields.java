@@ -0,0 +1,240 @@
+package com.oanda.logging;
+
+/**
+ * The key-value fields of a structured entry, kept in their typed form until the write thread
+ * renders them. Primitive values are stored in a long[] so that adding them never boxes, and a
+ * LogBuilder's fields are handed to the entry and given back to it once they have been rendered,
+ * so that a steady stream of entries doesn't allocate any.
+ * {@link LogLayout}s get them read-only.
+ */
+public final class LogFields {
+
+    public static final byte TYPE_STRING = 0;
+    public static final byte TYPE_LONG = 1;
+    public static final byte TYPE_DOUBLE = 2;
+    public static final byte TYPE_BOOLEAN = 3;
+
+    /**
+     * The key of each field at 2 * i, and its value at 2 * i + 1 if it is a String.
+     */
+    private String[] mStrings;
+
+    /**
+     * The value of each field that is a primitive. Doubles are stored as their raw long bits and
+     * booleans as 0 or 1.
+     */
+    private long[] mValues;
+
+    private byte[] mTypes;
+    private int mSize = 0;
+
+    /**
+     * The LogBuilder that these fields are given back to once they have been rendered, or null if
+     * they aren't reused.
+     */
+    private final LogBuilder mOwner;
+
+    /**
+     * The next of the owner's fields that are ready to be reused, while these are among them.
+     */
+    LogFields mNextRecycled;
+
+    /**
+     * @param capacity The number of fields to make room for. More are made room for as needed.
+     */
+    LogFields(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * @param capacity The number of fields to make room for. More are made room for as needed.
+     * @param owner    The LogBuilder to give these back to once they have been rendered.
+     */
+    LogFields(int capacity, LogBuilder owner) {
+        mStrings = new String[capacity * 2];
+        mValues = new long[capacity];
+        mTypes = new byte[capacity];
+        mOwner = owner;
+    }
+
+    /**
+     * @return The number of fields.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index The index of a field, from 0 to size() - 1.
+     * @return The key of the field.
+     */
+    public String getKey(int index) {
+        return mStrings[index * 2];
+    }
+
+    /**
+     * @param index The index of a field.
+     * @return The type of the field's value, one of the TYPE_ constants.
+     */
+    public byte getType(int index) {
+        return mTypes[index];
+    }
+
+    /**
+     * @param index The index of a field of TYPE_STRING.
+     * @return The value of the field, which may be null.
+     */
+    public String getString(int index) {
+        return mStrings[index * 2 + 1];
+    }
+
+    /**
+     * @param index The index of a field of TYPE_LONG.
+     * @return The value of the field.
+     */
+    public long getLong(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * @param index The index of a field of TYPE_DOUBLE.
+     * @return The value of the field.
+     */
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(mValues[index]);
+    }
+
+    /**
+     * @param index The index of a field of TYPE_BOOLEAN.
+     * @return The value of the field.
+     */
+    public boolean getBoolean(int index) {
+        return mValues[index] != 0;
+    }
+
+    /**
+     * Adds a field.
+     *
+     * @param key    The key of the field.
+     * @param type   One of the TYPE_ constants.
+     * @param value  The value if it is a primitive, otherwise ignored.
+     * @param string The value if it is a String, otherwise null.
+     */
+    void add(String key, byte type, long value, String string) {
+        if (mSize == mTypes.length) {
+            int capacity = mSize * 2;
+            String[] strings = new String[capacity * 2];
+            System.arraycopy(mStrings, 0, strings, 0, mSize * 2);
+            mStrings = strings;
+            long[] values = new long[capacity];
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            mValues = values;
+            byte[] types = new byte[capacity];
+            System.arraycopy(mTypes, 0, types, 0, mSize);
+            mTypes = types;
+        }
+
+        mStrings[mSize * 2] = key;
+        mStrings[mSize * 2 + 1] = string;
+        mValues[mSize] = value;
+        mTypes[mSize] = type;
+        mSize++;
+    }
+
+    /**
+     * Removes every field, so that this can be reused.
+     */
+    void clear() {
+        // Let go of the Strings so that a reused LogFields doesn't keep them from being collected
+        for (int i = 0; i < mSize * 2; i++) {
+            mStrings[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Clears these fields and gives them back to the LogBuilder that they came from, once nothing
+     * will read them again. Fields that are never released are left to be collected.
+     */
+    void release() {
+        clear();
+        if (mOwner != null) {
+            mOwner.recycle(this);
+        }
+    }
+
+    /**
+     * Appends the fields as text, such as: orderId=1234 px=1.2345 note="two words". String
+     * values are quoted if they are empty or contain a space, '=' or '"', or characters that
+     * would break the line.
+     *
+     * @param stringBuilder The StringBuilder to append to.
+     */
+    public void appendTo(StringBuilder stringBuilder) {
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                stringBuilder.append(' ');
+            }
+            stringBuilder.append(getKey(i)).append('=');
+            switch (mTypes[i]) {
+                case TYPE_LONG:
+                    stringBuilder.append(getLong(i));
+                    break;
+                case TYPE_DOUBLE:
+                    stringBuilder.append(getDouble(i));
+                    break;
+                case TYPE_BOOLEAN:
+                    stringBuilder.append(getBoolean(i));
+                    break;
+                default:
+                case TYPE_STRING:
+                    appendString(stringBuilder, getString(i));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Appends a String value, quoting and escaping it if it needs to be.
+     */
+    private static void appendString(StringBuilder stringBuilder, String value) {
+        if (value == null) {
+            stringBuilder.append("null");
+            return;
+        }
+
+        boolean quote = value.length() == 0;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '=' || c == '"';
+        }
+        if (!quote) {
+            stringBuilder.append(value);
+            return;
+        }
+
+        stringBuilder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    stringBuilder.append('\\').append(c);
+                    break;
+                case '\n':
+                    stringBuilder.append("\\n");
+                    break;
+                case '\r':
+                    stringBuilder.append("\\r");
+                    break;
+                case '\t':
+                    stringBuilder.append("\\t");
+                    break;
+                default:
+                    stringBuilder.append(c);
+                    break;
+            }
+        }
+        stringBuilder.append('"');
+    }
+}
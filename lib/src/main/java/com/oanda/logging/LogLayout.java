@@ -0,0 +1,528 @@
+package com.oanda.logging;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Formats each entry as it is written to the log. Pass one to
+ * {@link LogConfig.Builder#setLayout(LogLayout)}:
+ * <pre>
+ * Log.init(new ContextLogStorage(context), new LogConfig.Builder()
+ *         .setLayout(LogLayout.jsonLines())
+ *         .build());
+ * </pre>
+ * {@link #pattern(String)} compiles a pattern into a list of writers once, so that formatting an
+ * entry only runs through the list. {@link #jsonLines()} writes each entry as a JSON object on a
+ * line of its own. Subclasses can format entries any other way; they are called on the write
+ * thread, one entry at a time.
+ * <p/>
+ * Every layout must begin each entry with its timestamp, as {@link #appendTimestamp} writes it,
+ * since a plain text log is split back into entries by the lines that begin with one, and the
+ * entries of several processes are merged by it. {@link #pattern(String)} only takes patterns
+ * that begin with %d. The JSON Lines layout begins with {"time":" followed by the timestamp,
+ * which is also recognized.
+ */
+public abstract class LogLayout {
+
+    /**
+     * The layout that the log is written in unless another is set, such as:
+     * 2015-01-20 15:36:53.123-0500 [INFO] MyTag The message
+     * followed by the caller's location, if it was captured; see {@link Log#setCallerLocation(int)}.
+     */
+    public static final LogLayout DEFAULT = pattern("%d [%p] %t %m %l%e");
+
+    /**
+     * The beginning of each entry in the JSON Lines layout, which its timestamp follows.
+     */
+    static final String JSON_TIME_PREFIX = "{\"time\":\"";
+
+    private static final String NEW_LINE = System.getProperty("line.separator");
+
+    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss.SSSZ";
+
+    /**
+     * The name of each priority, indexed by priority.
+     */
+    private static final String[] PRIORITY_NAMES = {
+            null, null, "VERBOSE", "DEBUG", "INFO", "WARNING", "ERROR", "ASSERT"
+    };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The minute that the last timestamp was in, which the next timestamp is likely to be in as
+     * well. Replaced rather than modified, so that it can be shared between threads.
+     */
+    private static Minute mMinute;
+
+    /**
+     * Appends an entry to the StringBuilder, without the newline that ends it.
+     *
+     * @param stringBuilder The StringBuilder to append to.
+     * @param timestamp     The time of the entry, in milliseconds since the epoch.
+     * @param priority      The priority of the entry, normally one of the constants in Log.
+     * @param tag           The tag of the entry, or null.
+     * @param message       The message of the entry, or null.
+     * @param fields        The fields of a structured entry, or null.
+     * @param location      The location of the call to Log, such as
+     *                      com.example.Foo.bar(Foo.java:12), or null if it wasn't captured.
+     * @param tr            The Throwable of the entry, or null.
+     */
+    public abstract void append(StringBuilder stringBuilder, long timestamp, int priority, String tag,
+                                String message, LogFields fields, String location, Throwable tr);
+
+    /**
+     * Compiles a pattern into a layout. The pattern must begin with %d, since the log is split
+     * back into entries by the timestamps at the beginning of their first lines, and is text with
+     * these conversions:
+     * <ul>
+     * <li>%d: the timestamp, such as 2015-01-20 15:36:53.123-0500.</li>
+     * <li>%p: the priority, such as INFO or WARNING.</li>
+     * <li>%t: the tag.</li>
+     * <li>%m: the message, followed by the fields of a structured entry.</li>
+     * <li>%l: the location of the call to Log, such as com.example.Foo.bar(Foo.java:12), if it was
+     * captured.</li>
+     * <li>%e: the stack trace of the entry's Throwable, on the lines after the entry.</li>
+     * <li>%n: a newline.</li>
+     * <li>%%: a percent sign.</li>
+     * </ul>
+     * A space before %t, %m or %l is left out along with the tag, message or location if the entry
+     * doesn't have one. Every entry ends with a newline, so a %n at the end of the pattern is left out too.
+     *
+     * @param pattern The pattern, such as "%d %p %t %m%n".
+     * @return The layout.
+     * @throws IllegalArgumentException If the pattern doesn't begin with %d, or has a conversion
+     *                                  that isn't one of the above.
+     */
+    public static LogLayout pattern(String pattern) {
+        return new PatternLayout(pattern);
+    }
+
+    /**
+     * @return A layout that writes each entry as a JSON object on a line of its own, such as:
+     * {"time":"2015-01-20 15:36:53.123-0500","level":"INFO","tag":"MyTag","message":"The message"}
+     * The tag, message, the fields of a structured entry as an object of their own, with their
+     * types kept, the caller's location as "location" and the stack trace of the entry's Throwable
+     * as "exception" are left out if the entry doesn't have them.
+     */
+    public static LogLayout jsonLines() {
+        return JsonLinesLayout.INSTANCE;
+    }
+
+    /**
+     * Appends a timestamp in the format that the log is merged by, such as
+     * 2015-01-20 15:36:53.123-0500, in the default time zone. Timestamps in the same minute as the
+     * last one only append digits to a prefix and suffix that are kept for the minute.
+     *
+     * @param stringBuilder The StringBuilder to append to.
+     * @param millis        The time, in milliseconds since the epoch.
+     */
+    public static void appendTimestamp(StringBuilder stringBuilder, long millis) {
+        Minute minute = mMinute;
+        if (minute == null || millis < minute.mStartMillis || millis >= minute.mStartMillis + 60000) {
+            minute = new Minute(millis);
+            mMinute = minute;
+        }
+        if (minute.mPrefix == null) {
+            // The time zone's offset isn't a whole number of minutes at this time
+            stringBuilder.append(new SimpleDateFormat(TIMESTAMP_FORMAT, Locale.US).format(new Date(millis)));
+            return;
+        }
+
+        int offset = (int) (millis - minute.mStartMillis);
+        int seconds = offset / 1000;
+        int fraction = offset % 1000;
+        stringBuilder.append(minute.mPrefix)
+                .append((char) ('0' + seconds / 10))
+                .append((char) ('0' + seconds % 10))
+                .append('.')
+                .append((char) ('0' + fraction / 100))
+                .append((char) ('0' + fraction / 10 % 10))
+                .append((char) ('0' + fraction % 10))
+                .append(minute.mSuffix);
+    }
+
+    /**
+     * @param priority A priority, normally one of the constants in Log.
+     * @return The name that the priority is written as, such as WARNING. Priorities that aren't
+     * one of the constants are written as {@link Log#WARN}.
+     */
+    public static String getPriorityName(int priority) {
+        return PRIORITY_NAMES[LogMetrics.index(priority)];
+    }
+
+    /**
+     * Appends a String as a quoted JSON string. A String that is all printable ASCII with nothing
+     * to escape, which is the usual case, is appended in one go.
+     *
+     * @param stringBuilder The StringBuilder to append to.
+     * @param value         The String, or null to append null.
+     */
+    public static void appendJsonString(StringBuilder stringBuilder, String value) {
+        if (value == null) {
+            stringBuilder.append("null");
+            return;
+        }
+
+        int length = value.length();
+        int clean = 0;
+        while (clean < length) {
+            char c = value.charAt(clean);
+            if (c < ' ' || c > '~' || c == '"' || c == '\\') {
+                break;
+            }
+            clean++;
+        }
+
+        stringBuilder.append('"');
+        if (clean == length) {
+            // Appending a whole String copies it at once, where part of one is copied by char
+            stringBuilder.append(value).append('"');
+            return;
+        }
+        stringBuilder.append(value, 0, clean);
+        for (int i = clean; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    stringBuilder.append('\\').append(c);
+                    break;
+                case '\n':
+                    stringBuilder.append("\\n");
+                    break;
+                case '\r':
+                    stringBuilder.append("\\r");
+                    break;
+                case '\t':
+                    stringBuilder.append("\\t");
+                    break;
+                default:
+                    if (c < ' ') {
+                        stringBuilder.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        // Everything else, including non-ASCII, is valid in a JSON string as is
+                        stringBuilder.append(c);
+                    }
+                    break;
+            }
+        }
+        stringBuilder.append('"');
+    }
+
+    /**
+     * The parts of the timestamps in a minute that stay the same.
+     */
+    private static final class Minute {
+
+        final long mStartMillis;
+
+        /**
+         * The date, hour and minute, and the time zone's offset, or null if the time zone's
+         * offset isn't a whole number of minutes so the seconds aren't the same as UTC's.
+         */
+        final String mPrefix;
+        final String mSuffix;
+
+        Minute(long millis) {
+            long remainder = millis % 60000;
+            if (remainder < 0) {
+                remainder += 60000;
+            }
+            mStartMillis = millis - remainder;
+
+            // Such as 2015-01-20 15:36:00.000-0500
+            String start = new SimpleDateFormat(TIMESTAMP_FORMAT, Locale.US).format(new Date(mStartMillis));
+            int seconds = start.length() - 11;
+            if (start.startsWith("00.000", seconds)) {
+                mPrefix = start.substring(0, seconds);
+                mSuffix = start.substring(seconds + 6);
+            } else {
+                mPrefix = null;
+                mSuffix = null;
+            }
+        }
+    }
+
+    /**
+     * Appends one part of an entry.
+     */
+    private interface FieldWriter {
+
+        void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                    LogFields fields, String location, Throwable tr);
+    }
+
+    /**
+     * A layout compiled from a pattern into a FieldWriter for each conversion and each run of
+     * text between them.
+     */
+    private static final class PatternLayout extends LogLayout {
+
+        private final FieldWriter[] mWriters;
+
+        PatternLayout(String pattern) {
+            // Anything before the timestamp would keep the log from being split back into entries,
+            // and the entries of several segments from being merged by time
+            if (!pattern.startsWith("%d")) {
+                throw new IllegalArgumentException("Pattern doesn't begin with %d: " + pattern);
+            }
+
+            List<FieldWriter> writers = new ArrayList<FieldWriter>();
+            StringBuilder text = new StringBuilder();
+            int length = pattern.length();
+            for (int i = 0; i < length; i++) {
+                char c = pattern.charAt(i);
+                if (c != '%') {
+                    text.append(c);
+                    continue;
+                }
+                if (++i == length) {
+                    throw new IllegalArgumentException("Pattern ends with %: " + pattern);
+                }
+
+                char conversion = pattern.charAt(i);
+                if (conversion == '%') {
+                    text.append('%');
+                    continue;
+                }
+                if (conversion == 'n') {
+                    if (i + 1 < length) {
+                        text.append(NEW_LINE);
+                    }
+                    continue;
+                }
+
+                boolean spaceBefore = (conversion == 't' || conversion == 'm' || conversion == 'l') &&
+                        text.length() > 0 && text.charAt(text.length() - 1) == ' ';
+                if (spaceBefore) {
+                    text.setLength(text.length() - 1);
+                }
+                if (text.length() > 0) {
+                    writers.add(new TextWriter(text.toString()));
+                    text.setLength(0);
+                }
+
+                switch (conversion) {
+                    case 'd':
+                        writers.add(new TimestampWriter());
+                        break;
+                    case 'p':
+                        writers.add(new PriorityWriter());
+                        break;
+                    case 't':
+                        writers.add(new TagWriter(spaceBefore));
+                        break;
+                    case 'm':
+                        writers.add(new MessageWriter(spaceBefore));
+                        break;
+                    case 'l':
+                        writers.add(new LocationWriter(spaceBefore));
+                        break;
+                    case 'e':
+                        writers.add(new ThrowableWriter());
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown conversion %" + conversion + ": " + pattern);
+                }
+            }
+            if (text.length() > 0) {
+                writers.add(new TextWriter(text.toString()));
+            }
+
+            mWriters = writers.toArray(new FieldWriter[writers.size()]);
+        }
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            for (FieldWriter writer : mWriters) {
+                writer.append(stringBuilder, timestamp, priority, tag, message, fields, location, tr);
+            }
+        }
+    }
+
+    private static final class TextWriter implements FieldWriter {
+
+        private final String mText;
+
+        TextWriter(String text) {
+            mText = text;
+        }
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            stringBuilder.append(mText);
+        }
+    }
+
+    private static final class TimestampWriter implements FieldWriter {
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            appendTimestamp(stringBuilder, timestamp);
+        }
+    }
+
+    private static final class PriorityWriter implements FieldWriter {
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            stringBuilder.append(getPriorityName(priority));
+        }
+    }
+
+    private static final class TagWriter implements FieldWriter {
+
+        private final boolean mSpaceBefore;
+
+        TagWriter(boolean spaceBefore) {
+            mSpaceBefore = spaceBefore;
+        }
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            if (tag != null) {
+                if (mSpaceBefore) {
+                    stringBuilder.append(' ');
+                }
+                stringBuilder.append(tag);
+            }
+        }
+    }
+
+    private static final class MessageWriter implements FieldWriter {
+
+        private final boolean mSpaceBefore;
+
+        MessageWriter(boolean spaceBefore) {
+            mSpaceBefore = spaceBefore;
+        }
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            if (message != null) {
+                if (mSpaceBefore) {
+                    stringBuilder.append(' ');
+                }
+                stringBuilder.append(message);
+            }
+            if (fields != null) {
+                if (mSpaceBefore || message != null) {
+                    stringBuilder.append(' ');
+                }
+                fields.appendTo(stringBuilder);
+            }
+        }
+    }
+
+    private static final class LocationWriter implements FieldWriter {
+
+        private final boolean mSpaceBefore;
+
+        LocationWriter(boolean spaceBefore) {
+            mSpaceBefore = spaceBefore;
+        }
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            if (location != null) {
+                if (mSpaceBefore) {
+                    stringBuilder.append(' ');
+                }
+                stringBuilder.append(location);
+            }
+        }
+    }
+
+    private static final class ThrowableWriter implements FieldWriter {
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            if (tr != null) {
+                // As per android.util.Log format
+                stringBuilder.append(NEW_LINE).append(Log.getStackTraceString(tr));
+            }
+        }
+    }
+
+    /**
+     * Writes each entry as a JSON object, with the timestamp first so that the entries can be
+     * merged by time.
+     */
+    private static final class JsonLinesLayout extends LogLayout {
+
+        static final JsonLinesLayout INSTANCE = new JsonLinesLayout();
+
+        @Override
+        public void append(StringBuilder stringBuilder, long timestamp, int priority, String tag, String message,
+                           LogFields fields, String location, Throwable tr) {
+            stringBuilder.append(JSON_TIME_PREFIX);
+            appendTimestamp(stringBuilder, timestamp);
+            stringBuilder.append("\",\"level\":\"").append(getPriorityName(priority)).append('"');
+            if (tag != null) {
+                stringBuilder.append(",\"tag\":");
+                appendJsonString(stringBuilder, tag);
+            }
+            if (message != null) {
+                stringBuilder.append(",\"message\":");
+                appendJsonString(stringBuilder, message);
+            }
+            if (fields != null) {
+                stringBuilder.append(",\"fields\":{");
+                for (int i = 0; i < fields.size(); i++) {
+                    if (i > 0) {
+                        stringBuilder.append(',');
+                    }
+                    appendJsonString(stringBuilder, fields.getKey(i));
+                    stringBuilder.append(':');
+                    appendJsonValue(stringBuilder, fields, i);
+                }
+                stringBuilder.append('}');
+            }
+            if (location != null) {
+                stringBuilder.append(",\"location\":");
+                appendJsonString(stringBuilder, location);
+            }
+            if (tr != null) {
+                stringBuilder.append(",\"exception\":");
+                appendJsonString(stringBuilder, Log.getStackTraceString(tr));
+            }
+            stringBuilder.append('}');
+        }
+
+        private static void appendJsonValue(StringBuilder stringBuilder, LogFields fields, int index) {
+            switch (fields.getType(index)) {
+                case LogFields.TYPE_LONG:
+                    stringBuilder.append(fields.getLong(index));
+                    break;
+                case LogFields.TYPE_DOUBLE:
+                    double value = fields.getDouble(index);
+                    if (Double.isNaN(value) || Double.isInfinite(value)) {
+                        // JSON has no numbers for these
+                        stringBuilder.append('"').append(value).append('"');
+                    } else {
+                        stringBuilder.append(value);
+                    }
+                    break;
+                case LogFields.TYPE_BOOLEAN:
+                    stringBuilder.append(fields.getBoolean(index));
+                    break;
+                default:
+                case LogFields.TYPE_STRING:
+                    appendJsonString(stringBuilder, fields.getString(index));
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.oanda.logging;
+
+import java.util.List;
+
+/**
+ * Receives entries as they are written to the log file, for example to show a live tail of the
+ * log in the app. Register one with {@link Log#addLogListener(LogListener)}.
+ * <p/>
+ * Each listener is called on a thread of its own, never on the thread that logged the entries or
+ * on the thread that writes the log file, so a slow listener can't hold up either of them. Entries
+ * wait for the listener in a buffer of LogListenerDispatcher.BUFFER_SIZE entries; if the listener
+ * falls further behind than that, the newest entries are dropped and counted instead. UI code
+ * needs to move the entries to the main thread itself, for example with a Handler.
+ */
+public interface LogListener {
+
+    /**
+     * Called with entries that have been written to the log file, oldest first.
+     *
+     * @param entries The text of each entry, as it appears in the log file without the newline
+     *                that ends it. The list can't be modified.
+     */
+    void onEntriesLogged(List<String> entries);
+
+    /**
+     * Called when entries were dropped because this listener fell too far behind. The entries
+     * that are passed to onEntriesLogged() after this were written after the dropped ones.
+     *
+     * @param numEntries The number of entries that were dropped.
+     */
+    void onEntriesDropped(int numEntries);
+}
@@ -0,0 +1,120 @@
+package com.oanda.logging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The thread that calls a LogListener. The write thread hands it entries with offer(), which never
+ * waits for the listener, and it passes them on in batches as fast as the listener takes them.
+ */
+final class LogListenerDispatcher extends Thread {
+
+    /**
+     * The largest number of entries that can be waiting for the listener. Entries that arrive when
+     * the buffer is full are dropped.
+     */
+    static final int BUFFER_SIZE = 1000;
+
+    private final LogListener mListener;
+
+    /**
+     * Guards the fields below. A lock of its own rather than this, since Thread.join() waits on
+     * this, and a notify() meant for run() could wake a thread joining this one instead.
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * The entries waiting for the listener. Guarded by mLock.
+     */
+    private List<String> mPending = new ArrayList<String>();
+
+    /**
+     * The number of entries dropped since the listener was last told. Guarded by mLock.
+     */
+    private int mNumDropped = 0;
+
+    /**
+     * Whether removeLogListener() has been called for the listener. Guarded by mLock.
+     */
+    private boolean mStopped = false;
+
+    /**
+     * @param listener The listener to call.
+     */
+    LogListenerDispatcher(LogListener listener) {
+        super("LogListenerDispatcher");
+        setDaemon(true);
+        mListener = listener;
+    }
+
+    /**
+     * @return The listener that this thread calls.
+     */
+    LogListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Queues entries for the listener, dropping the ones that don't fit in the buffer.
+     *
+     * @param entries The entries that were just written.
+     */
+    void offer(List<String> entries) {
+        synchronized (mLock) {
+            int numToAdd = Math.min(entries.size(), BUFFER_SIZE - mPending.size());
+            mPending.addAll(entries.subList(0, numToAdd));
+            mNumDropped += entries.size() - numToAdd;
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Stops calling the listener. Entries that are still waiting are not delivered.
+     */
+    void shutdown() {
+        synchronized (mLock) {
+            mStopped = true;
+            mLock.notify();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<String> entries;
+            int numDropped;
+
+            synchronized (mLock) {
+                while (!mStopped && mPending.isEmpty() && mNumDropped == 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mStopped) {
+                    return;
+                }
+
+                // Take everything that is waiting, so that offer() starts on an empty buffer
+                entries = mPending;
+                mPending = new ArrayList<String>();
+                numDropped = mNumDropped;
+                mNumDropped = 0;
+            }
+
+            try {
+                if (!entries.isEmpty()) {
+                    mListener.onEntriesLogged(Collections.unmodifiableList(entries));
+                }
+                if (numDropped > 0) {
+                    mListener.onEntriesDropped(numDropped);
+                }
+            } catch (RuntimeException e) {
+                // A broken listener shouldn't stop later entries from being delivered
+                e.printStackTrace();
+            }
+        }
+    }
+}
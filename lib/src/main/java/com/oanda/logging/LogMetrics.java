@@ -0,0 +1,219 @@
+package com.oanda.logging;
+
+/**
+ * The live counters and histograms that describe what the logging pipeline is doing. Callers'
+ * threads only touch the striped counters; everything else is recorded from the write thread or
+ * while holding the file lock. Use {@link #snapshot()} to get a {@link LogStats} that can be
+ * inspected.
+ */
+final class LogMetrics {
+
+    private final StripedCounter[] mEnqueued = newCounters();
+    private final StripedCounter[] mWritten = newCounters();
+    private final StripedCounter[] mDropped = newCounters();
+    private final StripedCounter[] mFiltered = newCounters();
+
+    private final StripedCounter mBytesWritten = new StripedCounter();
+    private final StripedCounter mTrims = new StripedCounter();
+    private final StripedCounter mLinesTrimmed = new StripedCounter();
+    private final StripedCounter mWriteThreadStarts = new StripedCounter();
+    private final StripedCounter mForegroundWakeups = new StripedCounter();
+    private final StripedCounter mBackgroundWakeups = new StripedCounter();
+
+    private final Histogram mBatchSizes = new Histogram(Histogram.COUNT_BOUNDS);
+    private final Histogram mWriteMicros = new Histogram(Histogram.MICROS_BOUNDS);
+    private final Histogram mTrimMicros = new Histogram(Histogram.MICROS_BOUNDS);
+    private final Histogram mLatencyMillis = new Histogram(Histogram.MILLIS_BOUNDS);
+
+    private volatile long mInitMicros = -1;
+    private volatile long mPrepareMicros = -1;
+
+    /**
+     * Whether the app is in the background, when it went into its current mode, in terms of
+     * System.currentTimeMillis(), and the time it spent in each mode before that. The times are
+     * guarded by this.
+     */
+    private volatile boolean mBackground;
+    private long mModeStartMillis;
+    private long mForegroundMillis = 0;
+    private long mBackgroundMillis = 0;
+
+    /**
+     * @param background Whether the app is in the background to begin with.
+     */
+    LogMetrics(boolean background) {
+        mBackground = background;
+        mModeStartMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Called when an entry has been added to the queue.
+     *
+     * @param priority The priority of the entry.
+     */
+    void onEnqueued(int priority) {
+        mEnqueued[index(priority)].increment();
+    }
+
+    /**
+     * Called when an entry has been taken off the queue and written to the log file.
+     *
+     * @param priority The priority of the entry.
+     * @param count    The number of entries with that priority.
+     */
+    void onWritten(int priority, int count) {
+        mWritten[index(priority)].add(count);
+    }
+
+    /**
+     * Called when an entry has been taken off the queue and discarded without being written,
+     * such as when the log is cleared.
+     *
+     * @param priority The priority of the entry.
+     * @param count    The number of entries with that priority.
+     */
+    void onDropped(int priority, int count) {
+        mDropped[index(priority)].add(count);
+    }
+
+    /**
+     * Called when an entry has been taken off the queue and intentionally left out of the log
+     * file, such as a coalesced duplicate.
+     *
+     * @param priority The priority of the entry.
+     */
+    void onFiltered(int priority) {
+        mFiltered[index(priority)].increment();
+    }
+
+    /**
+     * Called after a batch of entries has been written to the log file.
+     *
+     * @param numEntries The number of entries in the batch.
+     * @param numBytes   The number of bytes written.
+     * @param nanos      The time that the write took.
+     */
+    void onBatchWritten(int numEntries, long numBytes, long nanos) {
+        mBatchSizes.record(numEntries);
+        mBytesWritten.add(numBytes);
+        mWriteMicros.record(nanos / 1000);
+    }
+
+    /**
+     * Called for each entry in a batch once the batch has been written to the log file.
+     *
+     * @param millis The time between the entry being logged and it being in the log file.
+     */
+    void onEntryLatency(long millis) {
+        mLatencyMillis.record(millis);
+    }
+
+    /**
+     * Called after the log file has been checked and, if needed, trimmed.
+     *
+     * @param linesRemoved The number of lines removed from the file.
+     * @param nanos        The time that the trim took.
+     */
+    void onTrimmed(int linesRemoved, long nanos) {
+        mTrims.increment();
+        mLinesTrimmed.add(linesRemoved);
+        mTrimMicros.record(nanos / 1000);
+    }
+
+    /**
+     * Called when a new write thread is started.
+     */
+    void onWriteThreadStarted() {
+        mWriteThreadStarts.increment();
+    }
+
+    /**
+     * Called when the write thread starts, or wakes up from waiting for entries or for its batch
+     * to fill up.
+     */
+    void onWakeup() {
+        (mBackground ? mBackgroundWakeups : mForegroundWakeups).increment();
+    }
+
+    /**
+     * Called when the app goes to the foreground or the background.
+     *
+     * @param background Whether the app is now in the background.
+     */
+    synchronized void onModeChanged(boolean background) {
+        if (background == mBackground) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (mBackground) {
+            mBackgroundMillis += now - mModeStartMillis;
+        } else {
+            mForegroundMillis += now - mModeStartMillis;
+        }
+        mModeStartMillis = now;
+        mBackground = background;
+    }
+
+    /**
+     * Called when init() returns.
+     *
+     * @param nanos The time that init() took on the caller's thread.
+     */
+    void onInit(long nanos) {
+        mInitMicros = nanos / 1000;
+    }
+
+    /**
+     * Called once the log file has been checked, recovered and trimmed after init(), whether
+     * that happened on the caller's thread or on the write thread.
+     *
+     * @param nanos The time that preparing the file took.
+     */
+    void onFilePrepared(long nanos) {
+        mPrepareMicros = nanos / 1000;
+    }
+
+    /**
+     * @return An immutable copy of the current values.
+     */
+    LogStats snapshot() {
+        long foregroundMillis;
+        long backgroundMillis;
+        synchronized (this) {
+            long current = System.currentTimeMillis() - mModeStartMillis;
+            foregroundMillis = mForegroundMillis + (mBackground ? 0 : current);
+            backgroundMillis = mBackgroundMillis + (mBackground ? current : 0);
+        }
+
+        return new LogStats(sums(mEnqueued), sums(mWritten), sums(mDropped), sums(mFiltered),
+                mBytesWritten.sum(), mTrims.sum(), mLinesTrimmed.sum(), mWriteThreadStarts.sum(),
+                mForegroundWakeups.sum(), mBackgroundWakeups.sum(), foregroundMillis, backgroundMillis,
+                mBatchSizes.snapshot(), mWriteMicros.snapshot(), mTrimMicros.snapshot(),
+                mLatencyMillis.snapshot(), mInitMicros, mPrepareMicros);
+    }
+
+    /**
+     * Map a priority to its index in the per-priority counters. Unknown priorities are counted
+     * as {@link Log#WARN}, which is also how they are written to the log file.
+     */
+    static int index(int priority) {
+        return priority >= Log.VERBOSE && priority <= Log.ASSERT ? priority : Log.WARN;
+    }
+
+    private static StripedCounter[] newCounters() {
+        StripedCounter[] counters = new StripedCounter[Log.ASSERT + 1];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new StripedCounter();
+        }
+        return counters;
+    }
+
+    private static long[] sums(StripedCounter[] counters) {
+        long[] sums = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            sums[i] = counters[i].sum();
+        }
+        return sums;
+    }
+}
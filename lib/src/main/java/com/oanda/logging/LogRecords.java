@@ -0,0 +1,417 @@
+package com.oanda.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the framed record format of the log file that is used when
+ * {@link LogConfig#isFramedRecords()} is set.
+ * <p/>
+ * Each entry is a record made up of the length of its payload, the CRC32 of its payload and the
+ * payload itself, which is the entry's text encoded as UTF-8. Each batch of records that the write
+ * thread writes at once is followed by a footer made up of FOOTER_MARKER, the length of the batch
+ * and the CRC32 of those two values. The integers are big-endian. Record lengths are never
+ * negative and FOOTER_MARKER is, so a reader can tell records and footers apart, and can skip from
+ * one record to the next without looking at the payloads.
+ * <p/>
+ * Since a batch goes to the file in a single write, a crash can only tear the last batch. The
+ * footer lets {@link #recover(LogStorage, String)} find the end of the last complete batch by
+ * checking the end of the file, without reading the rest of it.
+ */
+final class LogRecords {
+
+    /**
+     * The first integer of a footer. The first byte, 0xFF, never appears in UTF-8 text.
+     */
+    static final int FOOTER_MARKER = 0xFFB47C0D;
+
+    /**
+     * The number of bytes in a record before its payload.
+     */
+    static final int HEADER_SIZE = 8;
+
+    /**
+     * The number of bytes in a footer.
+     */
+    static final int FOOTER_SIZE = 12;
+
+    /**
+     * The number of bytes at the end of the file that recover() looks through for a footer at
+     * first. It looks through four times as many each time it doesn't find one.
+     */
+    private static final int RECOVERY_WINDOW_SIZE = 8192;
+
+    private LogRecords() {
+    }
+
+    /**
+     * Counts the bytes that part of some text takes up in UTF-8, without encoding it.
+     *
+     * @param text  The text.
+     * @param start The index of the first character to count.
+     * @param end   The index just after the last character to count.
+     * @return The number of bytes.
+     */
+    static int utf8Length(CharSequence text, int start, int end) {
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a batch of entries as records followed by a footer.
+     *
+     * @param text       The text of the entries, one after the other.
+     * @param recordEnds The index in text just after the end of each entry.
+     * @param numRecords The number of entries in text.
+     * @return The bytes to append to the log file.
+     */
+    static byte[] encodeBatch(String text, int[] recordEnds, int numRecords) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() + numRecords * HEADER_SIZE + FOOTER_SIZE);
+        DataOutputStream output = new DataOutputStream(bytes);
+        CRC32 crc = new CRC32();
+
+        try {
+            int start = 0;
+            for (int i = 0; i < numRecords; i++) {
+                byte[] payload = text.substring(start, recordEnds[i]).getBytes("UTF-8");
+                crc.reset();
+                crc.update(payload);
+
+                output.writeInt(payload.length);
+                output.writeInt((int) crc.getValue());
+                output.write(payload);
+
+                start = recordEnds[i];
+            }
+
+            int batchLength = bytes.size();
+            output.writeInt(FOOTER_MARKER);
+            output.writeInt(batchLength);
+            output.writeInt(footerChecksum(crc, batchLength));
+        } catch (IOException ioException) {
+            // ByteArrayOutputStream doesn't throw, and every JVM supports UTF-8
+            throw new IllegalStateException(ioException);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Finds the end of the last complete batch in a file and removes anything after it, which
+     * can only be a batch that was torn by a crash. Only the end of the file is read: the last
+     * batch if it is complete, or the torn bytes and the batch before them if it isn't.
+     *
+     * @param storage The storage that the file is kept in.
+     * @param name    The name of the file.
+     * @return The number of bytes removed.
+     * @throws IOException If the file could not be read or shortened.
+     */
+    static long recover(LogStorage storage, String name) throws IOException {
+        long length = storage.length(name);
+        long validLength = findValidLength(storage, name, length);
+        if (validLength < length) {
+            storage.truncateTail(name, validLength);
+        }
+        return length - validLength;
+    }
+
+    /**
+     * Looks backwards from the end of a file for a footer that ends a complete batch.
+     *
+     * @return The offset just after the footer, or 0 if there is no complete batch.
+     */
+    private static long findValidLength(LogStorage storage, String name, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        long searched = length;
+
+        for (long windowSize = RECOVERY_WINDOW_SIZE; searched > 0; windowSize *= 4) {
+            long windowStart = Math.max(0, length - windowSize);
+            byte[] window = readRange(storage, name, windowStart, (int) (length - windowStart));
+
+            // Look at each offset that a footer could start at that hasn't been looked at yet
+            int last = (int) (Math.min(searched - 1, length - FOOTER_SIZE) - windowStart);
+            for (int i = last; i >= 0; i--) {
+                if (readInt(window, i) == FOOTER_MARKER) {
+                    int batchLength = readInt(window, i + 4);
+                    long footerOffset = windowStart + i;
+                    if (batchLength >= 0 && readInt(window, i + 8) == footerChecksum(crc, batchLength) &&
+                            isValidBatch(storage, name, footerOffset, batchLength, crc)) {
+                        return footerOffset + FOOTER_SIZE;
+                    }
+                }
+            }
+            searched = windowStart;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Whether the bytes before a footer are complete records that add up to the batch length.
+     * If trimming has removed the beginning of the batch, the records left at the beginning of
+     * the file are checked instead.
+     */
+    private static boolean isValidBatch(LogStorage storage, String name, long footerOffset, int batchLength,
+                                        CRC32 crc) throws IOException {
+        long batchStart = Math.max(0, footerOffset - batchLength);
+        byte[] batch = readRange(storage, name, batchStart, (int) (footerOffset - batchStart));
+
+        int offset = 0;
+        while (offset < batch.length) {
+            if (batch.length - offset < HEADER_SIZE) {
+                return false;
+            }
+            int payloadLength = readInt(batch, offset);
+            if (payloadLength < 0 || payloadLength > batch.length - offset - HEADER_SIZE) {
+                return false;
+            }
+            crc.reset();
+            crc.update(batch, offset + HEADER_SIZE, payloadLength);
+            if ((int) crc.getValue() != readInt(batch, offset + 4)) {
+                return false;
+            }
+            offset += HEADER_SIZE + payloadLength;
+        }
+        return true;
+    }
+
+    /**
+     * The checksum stored in a footer, which covers FOOTER_MARKER and the batch length.
+     */
+    private static int footerChecksum(CRC32 crc, int batchLength) {
+        byte[] bytes = new byte[8];
+        writeInt(bytes, 0, FOOTER_MARKER);
+        writeInt(bytes, 4, batchLength);
+        crc.reset();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads part of a file into an array.
+     */
+    private static byte[] readRange(LogStorage storage, String name, long start, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        DataInputStream input = new DataInputStream(storage.openInput(name));
+        try {
+            skipFully(input, start);
+            input.readFully(bytes);
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Skips bytes in a stream, throwing EOFException if the end is reached first.
+     */
+    private static void skipFully(InputStream input, long numBytes) throws IOException {
+        while (numBytes > 0) {
+            long skipped = input.skip(numBytes);
+            if (skipped <= 0) {
+                // skip() can return 0 before the end, so only read() can tell us that it's the end
+                if (input.read() == -1) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            numBytes -= skipped;
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 |
+                (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Steps through the records in a file from its beginning, skipping footers. Payloads are
+     * only read and checked when they are asked for; otherwise they are skipped over.
+     * <pre>
+     * while (scanner.next()) {
+     *     String text = scanner.readPayload();
+     * }
+     * </pre>
+     */
+    static final class Scanner {
+
+        private final InputStream mInput;
+        private final CRC32 mCrc = new CRC32();
+
+        /**
+         * The bytes read from mInput that haven't been stepped over yet are those from mPosition
+         * to mLimit. mBufferOffset is the offset in the file of mBuffer[0].
+         */
+        private final byte[] mBuffer = new byte[8192];
+        private int mPosition = 0;
+        private int mLimit = 0;
+        private long mBufferOffset = 0;
+
+        private int mLength;
+        private int mChecksum;
+        private boolean mPayloadUnread = false;
+
+        /**
+         * @param inputStream A stream of the file from its beginning. It is not closed by the
+         *                    Scanner.
+         */
+        Scanner(InputStream inputStream) {
+            mInput = inputStream;
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return True if there is a record, false if the end of the file or a damaged record was
+         * reached.
+         * @throws IOException If the file could not be read.
+         */
+        boolean next() throws IOException {
+            if (mPayloadUnread) {
+                mPayloadUnread = false;
+                if (!skip(mLength)) {
+                    return false;
+                }
+            }
+
+            while (true) {
+                if (!fill(HEADER_SIZE)) {
+                    // The end of the file, or a record cut short
+                    return false;
+                }
+
+                int header = readInt(mBuffer, mPosition);
+                if (header == FOOTER_MARKER) {
+                    if (!skip(FOOTER_SIZE)) {
+                        return false;
+                    }
+                } else if (header < 0) {
+                    // A damaged record
+                    return false;
+                } else {
+                    mLength = header;
+                    mChecksum = readInt(mBuffer, mPosition + 4);
+                    mPosition += HEADER_SIZE;
+                    mPayloadUnread = true;
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return The offset in the file just after the current record.
+         */
+        long getEndOffset() {
+            return mBufferOffset + mPosition + (mPayloadUnread ? mLength : 0);
+        }
+
+        /**
+         * Reads the payload of the current record.
+         *
+         * @return The text of the record, or null if its checksum doesn't match.
+         * @throws IOException If the file could not be read, including if it ends in the middle of
+         *                     the payload.
+         */
+        String readPayload() throws IOException {
+            byte[] payload = new byte[mLength];
+
+            // Take what is already buffered, then read the rest straight from the stream
+            int buffered = Math.min(mLength, mLimit - mPosition);
+            System.arraycopy(mBuffer, mPosition, payload, 0, buffered);
+            mPosition += buffered;
+            for (int offset = buffered; offset < mLength; ) {
+                int read = mInput.read(payload, offset, mLength - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+                mBufferOffset += read;
+            }
+            mPayloadUnread = false;
+
+            mCrc.reset();
+            mCrc.update(payload);
+            if ((int) mCrc.getValue() != mChecksum) {
+                return null;
+            }
+            return new String(payload, "UTF-8");
+        }
+
+        /**
+         * Makes sure that at least numBytes are buffered after mPosition.
+         *
+         * @return False if the file ends first.
+         */
+        private boolean fill(int numBytes) throws IOException {
+            if (mLimit - mPosition >= numBytes) {
+                return true;
+            }
+
+            // Move what is left to the start of the buffer, then read after it
+            int remaining = mLimit - mPosition;
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, remaining);
+            mBufferOffset += mPosition;
+            mPosition = 0;
+            mLimit = remaining;
+
+            while (mLimit < numBytes) {
+                int read = mInput.read(mBuffer, mLimit, mBuffer.length - mLimit);
+                if (read == -1) {
+                    return false;
+                }
+                mLimit += read;
+            }
+            return true;
+        }
+
+        /**
+         * Steps over bytes, using the buffer when they are in it and skipping in the stream when
+         * they aren't.
+         *
+         * @return False if the file ends first.
+         */
+        private boolean skip(long numBytes) throws IOException {
+            int buffered = mLimit - mPosition;
+            if (numBytes <= buffered) {
+                mPosition += numBytes;
+                return true;
+            }
+
+            mBufferOffset += mLimit;
+            mPosition = 0;
+            mLimit = 0;
+            try {
+                skipFully(mInput, numBytes - buffered);
+            } catch (EOFException e) {
+                return false;
+            }
+            mBufferOffset += numBytes - buffered;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.oanda.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps this process's segment of the log as chunks, one file at a time for each tier of a
+ * {@link RetentionPolicy}, and applies the policy by deleting whole chunks. A chunk is named after
+ * the segment, the lowest priority of its tier and the time that it was started, such as
+ * fxtrade_log+E+1421786213123.txt, and is appended to until it is a tier's chunk age old or a
+ * chunk's size, when the tier starts another.
+ * <p/>
+ * Every chunk is in order of time, so {@link LogSegments#merge} reads the chunks back as one log.
+ * Only the write thread, or init() before it starts, uses a LogRetention, so it isn't thread
+ * safe.
+ */
+final class LogRetention {
+
+    /**
+     * The letter that names the tier whose lowest priority is each priority.
+     */
+    private static final String PRIORITY_LETTERS = "??VDIWEA";
+
+    private final LogStorage mStorage;
+    private final RetentionPolicy mPolicy;
+    private final boolean mFramedRecords;
+
+    /**
+     * The segment that the chunks belong to, and its name before and after the extension.
+     */
+    private final String mSegmentName;
+    private final String mStem;
+    private final String mExtension;
+
+    /**
+     * The chunks of each tier, oldest first. The last one is appended to.
+     */
+    private final List<List<Chunk>> mTiers;
+
+    private long mTotalBytes = 0;
+
+    /**
+     * @param storage       The storage that the log is kept in.
+     * @param segmentName   The name of this process's segment.
+     * @param framedRecords Whether the segment is kept as framed records.
+     * @param policy        The rules to keep the entries by.
+     */
+    LogRetention(LogStorage storage, String segmentName, boolean framedRecords, RetentionPolicy policy) {
+        mStorage = storage;
+        mPolicy = policy;
+        mFramedRecords = framedRecords;
+        mSegmentName = segmentName;
+        int extension = segmentName.lastIndexOf('.');
+        mStem = segmentName.substring(0, extension);
+        mExtension = segmentName.substring(extension);
+
+        mTiers = new ArrayList<List<Chunk>>(policy.getNumTiers());
+        for (int i = 0; i < policy.getNumTiers(); i++) {
+            mTiers.add(new ArrayList<Chunk>());
+        }
+    }
+
+    /**
+     * Finds the chunks that are already in the storage. A chunk of a tier that the policy no
+     * longer has is kept with the tier that its priority now falls in. The segment itself, if it
+     * was written before there was a policy, is kept as the oldest chunk of the highest tier,
+     * since its entries aren't split by priority and its errors should be kept as long as any.
+     * Its other entries are kept that long too, unless the total needs the room once the lower
+     * tiers are down to the chunks they are appending to.
+     * If the chunks are framed records, a batch that was torn by a crash is removed from the end
+     * of the last chunk of each tier.
+     *
+     * @param now The current time, which is taken as the time of the last entry of each tier,
+     *            since it isn't known.
+     */
+    void load(long now) {
+        reset();
+
+        String[] names = mStorage.list();
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.equals(mSegmentName)) {
+                mTiers.get(mTiers.size() - 1).add(0, new Chunk(name, 0, mStorage.length(name)));
+                continue;
+            }
+
+            // Names are the stem, '+', a priority letter, '+', the start time and the extension
+            if (!name.startsWith(mStem) || !name.endsWith(mExtension) ||
+                    name.length() < mStem.length() + 5 + mExtension.length() ||
+                    name.charAt(mStem.length()) != '+' || name.charAt(mStem.length() + 2) != '+') {
+                continue;
+            }
+            int priority = PRIORITY_LETTERS.indexOf(name.charAt(mStem.length() + 1));
+            long startMillis;
+            try {
+                startMillis = Long.parseLong(name.substring(mStem.length() + 3, name.length() - mExtension.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (priority < Log.VERBOSE) {
+                continue;
+            }
+
+            List<Chunk> chunks = mTiers.get(mPolicy.getTier(priority));
+            Chunk chunk = new Chunk(name, startMillis, mStorage.length(name));
+            int index = chunks.size();
+            while (index > 0 && chunks.get(index - 1).mStartMillis > startMillis) {
+                index--;
+            }
+            chunks.add(index, chunk);
+        }
+
+        for (List<Chunk> chunks : mTiers) {
+            // Each chunk ends by the time the next one started
+            for (int i = 0; i < chunks.size(); i++) {
+                chunks.get(i).mEndMillis = i + 1 < chunks.size() ? chunks.get(i + 1).mStartMillis : now;
+            }
+
+            if (mFramedRecords && !chunks.isEmpty()) {
+                Chunk last = chunks.get(chunks.size() - 1);
+                try {
+                    last.mBytes -= LogRecords.recover(mStorage, last.mName);
+                } catch (IOException ioException) {
+                    // There is nothing to recover if the chunk can't be read
+                }
+            }
+            for (Chunk chunk : chunks) {
+                mTotalBytes += chunk.mBytes;
+            }
+        }
+    }
+
+    /**
+     * Forgets every chunk, such as after they have all been deleted.
+     */
+    void reset() {
+        for (List<Chunk> chunks : mTiers) {
+            chunks.clear();
+        }
+        mTotalBytes = 0;
+    }
+
+    /**
+     * @param priority The priority of an entry.
+     * @return The index of the tier that the entry is kept in.
+     */
+    int getTier(int priority) {
+        return mPolicy.getTier(priority);
+    }
+
+    /**
+     * @return The number of tiers.
+     */
+    int getNumTiers() {
+        return mPolicy.getNumTiers();
+    }
+
+    /**
+     * @return The most bytes that a chunk takes before another is started, unless a single
+     * entry is larger.
+     */
+    long getChunkBytes() {
+        return mPolicy.getChunkBytes();
+    }
+
+    /**
+     * @return The names of every chunk, such as to sync them to disk.
+     */
+    List<String> getChunkNames() {
+        List<String> names = new ArrayList<String>();
+        for (List<Chunk> chunks : mTiers) {
+            for (Chunk chunk : chunks) {
+                names.add(chunk.mName);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Appends bytes to the chunk that a tier is appending to, starting another chunk first if
+     * that one is old or large enough. The bytes should be no more than getChunkBytes(), unless
+     * they are a single entry, since they all go to one chunk.
+     *
+     * @param tier  The index of the tier.
+     * @param bytes The bytes to append.
+     * @param now   The current time.
+     * @throws IOException If the chunk could not be appended to.
+     */
+    void append(int tier, byte[] bytes, long now) throws IOException {
+        List<Chunk> chunks = mTiers.get(tier);
+        Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || now - chunk.mStartMillis >= mPolicy.getChunkMillis(tier) ||
+                (chunk.mBytes > 0 && chunk.mBytes + bytes.length > mPolicy.getChunkBytes()) ||
+                chunk.mName.equals(mSegmentName)) {
+            // Never reuse a name, in case the clock went back
+            long startMillis = chunk == null ? now : Math.max(now, chunk.mStartMillis + 1);
+            chunk = new Chunk(chunkName(tier, startMillis), startMillis, 0);
+            chunks.add(chunk);
+        }
+
+        OutputStream outputStream = mStorage.openOutput(chunk.mName);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+        chunk.mBytes += bytes.length;
+        chunk.mEndMillis = Math.max(chunk.mEndMillis, now);
+        mTotalBytes += bytes.length;
+    }
+
+    /**
+     * @return True if the chunks take up more than the policy's total.
+     */
+    boolean isOverBudget() {
+        return mTotalBytes > mPolicy.getMaxTotalBytes();
+    }
+
+    /**
+     * Deletes the chunks whose entries are all older than their tier's age, then the oldest
+     * chunks of the lowest tiers until the chunks fit in the policy's total. The chunk that each
+     * tier is appending to is never deleted to fit the total, since it has the tier's newest
+     * entries, so the log can be over its total by that much if the total is that small.
+     *
+     * @param now The current time.
+     * @return The number of bytes deleted.
+     */
+    long apply(long now) {
+        long bytesDeleted = 0;
+        for (int tier = 0; tier < mTiers.size(); tier++) {
+            List<Chunk> chunks = mTiers.get(tier);
+            long oldestMillis = now - mPolicy.getMaxAgeMillis(tier);
+            while (!chunks.isEmpty() && chunks.get(0).mEndMillis < oldestMillis) {
+                bytesDeleted += delete(chunks);
+            }
+        }
+
+        for (int tier = 0; tier < mTiers.size() && isOverBudget(); tier++) {
+            List<Chunk> chunks = mTiers.get(tier);
+            while (!chunks.isEmpty() && isOverBudget() && !isAppendedTo(chunks, 0)) {
+                bytesDeleted += delete(chunks);
+            }
+        }
+
+        return bytesDeleted;
+    }
+
+    /**
+     * @return True if a chunk is the one that its tier appends to. The segment itself never is,
+     * since a new chunk is started rather than append to it.
+     */
+    private boolean isAppendedTo(List<Chunk> chunks, int index) {
+        return index == chunks.size() - 1 && !chunks.get(index).mName.equals(mSegmentName);
+    }
+
+    /**
+     * Deletes the oldest chunk of a tier.
+     *
+     * @return The number of bytes deleted.
+     */
+    private long delete(List<Chunk> chunks) {
+        Chunk chunk = chunks.remove(0);
+        mStorage.delete(chunk.mName);
+        mTotalBytes -= chunk.mBytes;
+        return chunk.mBytes;
+    }
+
+    /**
+     * @return The name of a chunk of a tier that was started at startMillis.
+     */
+    private String chunkName(int tier, long startMillis) {
+        return mStem + '+' + PRIORITY_LETTERS.charAt(mPolicy.getTierPriority(tier)) + '+' + startMillis + mExtension;
+    }
+
+    /**
+     * One file of a tier.
+     */
+    private static final class Chunk {
+
+        final String mName;
+        final long mStartMillis;
+
+        /**
+         * The size of the file, and the latest time that an entry in it can have.
+         */
+        long mBytes;
+        long mEndMillis;
+
+        Chunk(String name, long startMillis, long bytes) {
+            mName = name;
+            mStartMillis = startMillis;
+            mBytes = bytes;
+            mEndMillis = startMillis;
+        }
+    }
+}
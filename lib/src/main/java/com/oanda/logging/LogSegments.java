@@ -0,0 +1,464 @@
+package com.oanda.logging;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Names, finds and merges the segments of the log. Each process that logs appends to a segment of
+ * its own (see {@link LogConfig.Builder#setProcessName(String)}): the main process to the log
+ * file, fxtrade_log.txt, and other processes to files named after them, such as
+ * fxtrade_log-sync.txt. Framed records are kept in .records files named the same way. With a
+ * {@link RetentionPolicy}, a segment is kept as chunks named after it instead (see
+ * {@link LogRetention}), which are listed and merged like segments, and with {@link TagPartitions},
+ * the entries of chosen tags are kept in partitions named after it, such as
+ * fxtrade_log=network.txt, which are too.
+ * <p/>
+ * Reading the whole log merges the entries of every segment by their timestamps, which begin each
+ * entry in the default layout and follow {"time":" in the JSON Lines layout (see
+ * {@link LogLayout}). Each segment is already in order, so this is a k-way merge that keeps one
+ * entry from each segment in memory.
+ */
+final class LogSegments {
+
+    /**
+     * The length of an entry's timestamp, such as "2015-01-20 15:36:53.123-0500".
+     */
+    private static final int TIMESTAMP_LENGTH = 28;
+
+    private LogSegments() {
+    }
+
+    /**
+     * Get the name of a process's segment.
+     *
+     * @param processName  The name of the process, or null for the main process.
+     * @param framedRecords Whether the segment is kept as framed records.
+     * @return The name of the segment's file.
+     */
+    static String segmentName(String processName, boolean framedRecords) {
+        String fileName = framedRecords ? Log.RECORDS_FILENAME : Log.FILENAME;
+        if (processName == null) {
+            return fileName;
+        }
+
+        StringBuilder suffix = new StringBuilder(processName.length() + 1).append('-');
+        for (int i = 0; i < processName.length(); i++) {
+            char c = processName.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                    c == '.' || c == '_' || c == '-') {
+                suffix.append(c);
+            }
+        }
+
+        int extension = fileName.lastIndexOf('.');
+        return fileName.substring(0, extension) + suffix + fileName.substring(extension);
+    }
+
+    /**
+     * Get the name of a partition of a segment.
+     *
+     * @param segmentName The name of the segment's file.
+     * @param partition   The name of the partition.
+     * @return The name of the partition's file.
+     */
+    static String partitionName(String segmentName, String partition) {
+        int extension = segmentName.lastIndexOf('.');
+        return segmentName.substring(0, extension) + '=' + partition + segmentName.substring(extension);
+    }
+
+    /**
+     * Get the partition that a segment's file belongs to. Process names and chunk names never
+     * have an '=' in them.
+     *
+     * @param name The name of the segment's file.
+     * @return The name of the partition, or null if the file isn't a partition.
+     */
+    static String getPartition(String name) {
+        int start = name.indexOf('=');
+        return start >= 0 ? name.substring(start + 1, name.lastIndexOf('.')) : null;
+    }
+
+    /**
+     * Get the name of the file that the whole of oversized entries are written to for a segment
+     * (see {@link EntrySizePolicy#PAYLOAD_FILE}), such as fxtrade_log.payloads. It isn't listed as
+     * a segment.
+     *
+     * @param segmentName The name of the segment's file.
+     * @return The name of the payload file.
+     */
+    static String payloadName(String segmentName) {
+        int extension = segmentName.lastIndexOf('.');
+        return segmentName.substring(0, extension) + ".payloads";
+    }
+
+    /**
+     * Get the names of the segments in a storage.
+     *
+     * @param storage       The storage that the log is kept in.
+     * @param framedRecords Whether to look for segments kept as framed records rather than text.
+     * @return The names of the segments, sorted.
+     */
+    static String[] list(LogStorage storage, boolean framedRecords) {
+        String fileName = framedRecords ? Log.RECORDS_FILENAME : Log.FILENAME;
+        int extension = fileName.lastIndexOf('.');
+        String prefix = fileName.substring(0, extension) + '-';
+        String chunkPrefix = fileName.substring(0, extension) + '+';
+        String partitionPrefix = fileName.substring(0, extension) + '=';
+        String suffix = fileName.substring(extension);
+
+        List<String> segments = new ArrayList<String>();
+        for (String name : storage.list()) {
+            if (name.equals(fileName) || ((name.startsWith(prefix) || name.startsWith(chunkPrefix) ||
+                    name.startsWith(partitionPrefix)) &&
+                    name.endsWith(suffix) && name.length() > prefix.length() + suffix.length())) {
+                segments.add(name);
+            }
+        }
+
+        String[] names = segments.toArray(new String[segments.size()]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Opens the segments as they are now. Each stream ends at the length that its segment has
+     * when it is opened, so it doesn't see what is appended afterwards, and keeps its bytes if the
+     * segment is trimmed or deleted (see {@link LogStorage}). Opening the segments while holding
+     * the lock that writes to them take gives a consistent snapshot of the log that can be read
+     * after the lock is released.
+     *
+     * @param storage The storage that the log is kept in.
+     * @param names   The names of the segments.
+     * @return A stream of each segment, or null for a segment that doesn't exist. Close them
+     * with {@link #close(InputStream[])}.
+     */
+    static InputStream[] openSnapshot(LogStorage storage, String[] names) {
+        InputStream[] inputStreams = new InputStream[names.length];
+        for (int i = 0; i < names.length; i++) {
+            try {
+                // Take the length first, since nothing is appended to the segment between the
+                // two unless another process owns it, in which case the stream stops short
+                long length = storage.length(names[i]);
+                inputStreams[i] = new SnapshotInputStream(storage.openInput(names[i]), length);
+            } catch (FileNotFoundException e) {
+                // The segment was deleted since it was listed
+            }
+        }
+        return inputStreams;
+    }
+
+    /**
+     * Closes the streams of a snapshot.
+     *
+     * @param inputStreams The streams from {@link #openSnapshot(LogStorage, String[])}.
+     * @throws IOException If a stream could not be closed.
+     */
+    static void close(InputStream[] inputStreams) throws IOException {
+        for (InputStream inputStream : inputStreams) {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Appends the entries of several segments to out, ordered by their timestamps. Entries with
+     * the same timestamp keep the order of their segments in names. Segments that don't exist
+     * are left out.
+     *
+     * @param storage       The storage that the log is kept in.
+     * @param names         The names of the segments.
+     * @param framedRecords Whether the segments are kept as framed records.
+     * @param newLine       The newline to end each line of text with.
+     * @param out           Where to append the merged entries.
+     * @throws IOException If a segment could not be read, or out could not be appended to.
+     */
+    static void merge(LogStorage storage, String[] names, boolean framedRecords, String newLine,
+                      Appendable out) throws IOException {
+        InputStream[] inputStreams = openSnapshot(storage, names);
+        try {
+            merge(inputStreams, framedRecords, newLine, out);
+        } finally {
+            close(inputStreams);
+        }
+    }
+
+    /**
+     * Appends the entries of several segments to out, ordered by their timestamps. Entries with
+     * the same timestamp keep the order of their segments in inputStreams.
+     *
+     * @param inputStreams  A stream of each segment, or null for a segment that doesn't exist.
+     *                      They are read to the end but not closed.
+     * @param framedRecords Whether the segments are kept as framed records.
+     * @param newLine       The newline to end each line of text with.
+     * @param out           Where to append the merged entries.
+     * @throws IOException If a segment could not be read, or out could not be appended to.
+     */
+    static void merge(InputStream[] inputStreams, boolean framedRecords, String newLine,
+                      Appendable out) throws IOException {
+        PriorityQueue<Source> sources = new PriorityQueue<Source>(Math.max(1, inputStreams.length), new Comparator<Source>() {
+            @Override
+            public int compare(Source lhs, Source rhs) {
+                if (lhs.mTimestamp != rhs.mTimestamp) {
+                    return lhs.mTimestamp < rhs.mTimestamp ? -1 : 1;
+                }
+                return lhs.mIndex - rhs.mIndex;
+            }
+        });
+
+        for (int i = 0; i < inputStreams.length; i++) {
+            if (inputStreams[i] == null) {
+                continue;
+            }
+            Source source = framedRecords ? new RecordSource(i, inputStreams[i]) :
+                    new TextSource(i, inputStreams[i], newLine);
+            if (source.advance()) {
+                sources.add(source);
+            }
+        }
+
+        // Take the oldest entry, then put its segment back with its next entry
+        Source source;
+        while ((source = sources.poll()) != null) {
+            out.append(source.mText);
+            if (source.advance()) {
+                sources.add(source);
+            }
+        }
+    }
+
+    /**
+     * Get the time of an entry from the timestamp at its beginning, or just after the
+     * {"time":" that begins an entry in the JSON Lines layout.
+     *
+     * @param text The text of the entry.
+     * @return The time in milliseconds since the epoch, or Long.MIN_VALUE if text doesn't begin
+     * with a timestamp.
+     */
+    static long parseTimestamp(CharSequence text) {
+        int start = startsWith(text, LogLayout.JSON_TIME_PREFIX) ? LogLayout.JSON_TIME_PREFIX.length() : 0;
+        if (text.length() < start + TIMESTAMP_LENGTH || text.charAt(start + 4) != '-' ||
+                text.charAt(start + 7) != '-' || text.charAt(start + 10) != ' ' ||
+                text.charAt(start + 13) != ':' || text.charAt(start + 16) != ':' ||
+                text.charAt(start + 19) != '.' ||
+                (text.charAt(start + 23) != '+' && text.charAt(start + 23) != '-')) {
+            return Long.MIN_VALUE;
+        }
+
+        int year = parseDigits(text, start, 4);
+        int month = parseDigits(text, start + 5, 2);
+        int day = parseDigits(text, start + 8, 2);
+        int hour = parseDigits(text, start + 11, 2);
+        int minute = parseDigits(text, start + 14, 2);
+        int second = parseDigits(text, start + 17, 2);
+        int millis = parseDigits(text, start + 20, 3);
+        int offsetHours = parseDigits(text, start + 24, 2);
+        int offsetMinutes = parseDigits(text, start + 26, 2);
+        if ((year | month | day | hour | minute | second | millis | offsetHours | offsetMinutes) < 0) {
+            return Long.MIN_VALUE;
+        }
+
+        // Count the days since 1970-01-01 in the proleptic Gregorian calendar, with years starting
+        // in March so that the leap day comes last
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        long offsetMillis = (offsetHours * 60 + offsetMinutes) * 60000L;
+        if (text.charAt(start + 23) == '-') {
+            offsetMillis = -offsetMillis;
+        }
+
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis - offsetMillis;
+    }
+
+    private static boolean startsWith(CharSequence text, String prefix) {
+        if (text.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number made up of the digits, or -1 if any of the characters isn't a digit.
+     */
+    private static int parseDigits(CharSequence text, int start, int length) {
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    /**
+     * The entries of one segment, one at a time.
+     */
+    private abstract static class Source {
+
+        /**
+         * The position of the segment in the list being merged.
+         */
+        final int mIndex;
+
+        /**
+         * The text of the current entry, including the newline that ends it, and its time.
+         */
+        String mText;
+        long mTimestamp;
+
+        Source(int index) {
+            mIndex = index;
+        }
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return False if there are no more entries.
+         */
+        abstract boolean advance() throws IOException;
+    }
+
+    /**
+     * The entries of a plain text segment. An entry is a line that begins with a timestamp and
+     * the lines after it that don't, such as a stack trace.
+     */
+    private static final class TextSource extends Source {
+
+        private final BufferedReader mReader;
+        private final String mNewLine;
+        private final StringBuilder mEntry = new StringBuilder(Log.Entry.APPROXIMATE_LENGTH_PER_ENTRY);
+
+        /**
+         * The first line of the next entry, or null at the end of the segment.
+         */
+        private String mNextLine;
+
+        TextSource(int index, InputStream inputStream, String newLine) throws IOException {
+            super(index);
+            mReader = new BufferedReader(new InputStreamReader(inputStream));
+            mNewLine = newLine;
+            mNextLine = mReader.readLine();
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            if (mNextLine == null) {
+                return false;
+            }
+
+            mEntry.setLength(0);
+            mEntry.append(mNextLine).append(mNewLine);
+            mTimestamp = parseTimestamp(mNextLine);
+
+            while ((mNextLine = mReader.readLine()) != null && parseTimestamp(mNextLine) == Long.MIN_VALUE) {
+                mEntry.append(mNextLine).append(mNewLine);
+            }
+
+            mText = mEntry.toString();
+            return true;
+        }
+    }
+
+    /**
+     * The entries of a framed records segment, one per record.
+     */
+    private static final class RecordSource extends Source {
+
+        private final LogRecords.Scanner mScanner;
+
+        RecordSource(int index, InputStream inputStream) {
+            super(index);
+            mScanner = new LogRecords.Scanner(inputStream);
+        }
+
+        @Override
+        boolean advance() throws IOException {
+            try {
+                if (!mScanner.next() || (mText = mScanner.readPayload()) == null) {
+                    return false;
+                }
+            } catch (EOFException e) {
+                // The process that owns the segment is in the middle of writing to it
+                return false;
+            }
+            mTimestamp = parseTimestamp(mText);
+            return true;
+        }
+    }
+
+    /**
+     * A stream of a segment that ends at the length the segment had when it was opened.
+     */
+    private static final class SnapshotInputStream extends FilterInputStream {
+
+        private long mRemaining;
+
+        SnapshotInputStream(InputStream inputStream, long length) {
+            super(inputStream);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = super.read();
+            if (read != -1) {
+                mRemaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+            if (read > 0) {
+                mRemaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(Math.min(count, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.oanda.logging;
+
+/**
+ * An immutable snapshot of the counters and distributions that describe the behaviour of Log
+ * since it was initialized. Get one with {@link Log#getStats()}.
+ * <p/>
+ * Per-priority values are indexed by the priority constants in Log, such as {@link Log#DEBUG}.
+ * Entries logged with a priority that isn't one of those constants are counted as
+ * {@link Log#WARN}.
+ * <p/>
+ * The values are read one after the other while logging continues, so they are not exactly
+ * consistent with each other; for example, getQueueDepth() can be off by the number of entries
+ * that were logged while the snapshot was taken.
+ */
+public final class LogStats {
+
+    private final long[] mEnqueued;
+    private final long[] mWritten;
+    private final long[] mDropped;
+    private final long[] mFiltered;
+    private final long mBytesWritten;
+    private final long mTrimCount;
+    private final long mLinesTrimmed;
+    private final long mWriteThreadStarts;
+    private final long mForegroundWakeups;
+    private final long mBackgroundWakeups;
+    private final long mForegroundMillis;
+    private final long mBackgroundMillis;
+    private final Distribution mBatchSizes;
+    private final Distribution mWriteMicros;
+    private final Distribution mTrimMicros;
+    private final Distribution mLatencyMillis;
+    private final long mInitMicros;
+    private final long mPrepareMicros;
+
+    LogStats(long[] enqueued, long[] written, long[] dropped, long[] filtered, long bytesWritten,
+             long trimCount, long linesTrimmed, long writeThreadStarts, long foregroundWakeups,
+             long backgroundWakeups, long foregroundMillis, long backgroundMillis, Distribution batchSizes,
+             Distribution writeMicros, Distribution trimMicros, Distribution latencyMillis,
+             long initMicros, long prepareMicros) {
+        mEnqueued = enqueued;
+        mWritten = written;
+        mDropped = dropped;
+        mFiltered = filtered;
+        mBytesWritten = bytesWritten;
+        mTrimCount = trimCount;
+        mLinesTrimmed = linesTrimmed;
+        mWriteThreadStarts = writeThreadStarts;
+        mForegroundWakeups = foregroundWakeups;
+        mBackgroundWakeups = backgroundWakeups;
+        mForegroundMillis = foregroundMillis;
+        mBackgroundMillis = backgroundMillis;
+        mBatchSizes = batchSizes;
+        mWriteMicros = writeMicros;
+        mTrimMicros = trimMicros;
+        mLatencyMillis = latencyMillis;
+        mInitMicros = initMicros;
+        mPrepareMicros = prepareMicros;
+    }
+
+    /**
+     * @param priority The priority of the entries to count.
+     * @return The number of entries with the priority that have been queued to be written.
+     */
+    public long getEnqueued(int priority) {
+        return mEnqueued[LogMetrics.index(priority)];
+    }
+
+    /**
+     * @return The number of entries that have been queued to be written.
+     */
+    public long getEnqueued() {
+        return total(mEnqueued);
+    }
+
+    /**
+     * @param priority The priority of the entries to count.
+     * @return The number of entries with the priority that have been written to the log file.
+     */
+    public long getWritten(int priority) {
+        return mWritten[LogMetrics.index(priority)];
+    }
+
+    /**
+     * @return The number of entries that have been written to the log file.
+     */
+    public long getWritten() {
+        return total(mWritten);
+    }
+
+    /**
+     * @param priority The priority of the entries to count.
+     * @return The number of entries with the priority that were discarded before being written,
+     * such as by a call to {@link Log#clearLog()}.
+     */
+    public long getDropped(int priority) {
+        return mDropped[LogMetrics.index(priority)];
+    }
+
+    /**
+     * @return The number of entries that were discarded before being written.
+     */
+    public long getDropped() {
+        return total(mDropped);
+    }
+
+    /**
+     * @param priority The priority of the entries to count.
+     * @return The number of entries with the priority that were intentionally not written, such
+     * as coalesced duplicates.
+     */
+    public long getFiltered(int priority) {
+        return mFiltered[LogMetrics.index(priority)];
+    }
+
+    /**
+     * @return The number of entries that were intentionally not written.
+     */
+    public long getFiltered() {
+        return total(mFiltered);
+    }
+
+    /**
+     * @return The approximate number of entries waiting to be written.
+     */
+    public long getQueueDepth() {
+        return Math.max(0, getEnqueued() - getWritten() - getDropped() - getFiltered());
+    }
+
+    /**
+     * @return The number of bytes appended to the log file.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return The number of times the log file has been checked and, if needed, trimmed.
+     */
+    public long getTrimCount() {
+        return mTrimCount;
+    }
+
+    /**
+     * @return The number of lines removed from the log file by trimming.
+     */
+    public long getLinesTrimmed() {
+        return mLinesTrimmed;
+    }
+
+    /**
+     * @return The number of times a write thread has been started.
+     */
+    public long getWriteThreadStarts() {
+        return mWriteThreadStarts;
+    }
+
+    /**
+     * @param background True for the time that the app was in the background, false for the time
+     *                   that it was in the foreground; see {@link Log#onBackground()}.
+     * @return The number of times the write thread started or woke up from waiting.
+     */
+    public long getWakeups(boolean background) {
+        return background ? mBackgroundWakeups : mForegroundWakeups;
+    }
+
+    /**
+     * @param background True for the background, false for the foreground.
+     * @return The time that the app spent in the background or the foreground, in milliseconds.
+     */
+    public long getModeMillis(boolean background) {
+        return background ? mBackgroundMillis : mForegroundMillis;
+    }
+
+    /**
+     * @param background True for the background, false for the foreground.
+     * @return The average number of times per minute that the write thread started or woke up
+     * while the app was in the background or the foreground, or 0 if it hasn't been.
+     */
+    public double getWakeupsPerMinute(boolean background) {
+        long millis = getModeMillis(background);
+        return millis > 0 ? getWakeups(background) * 60000.0 / millis : 0;
+    }
+
+    /**
+     * @return The distribution of the number of entries written to the log file at once.
+     */
+    public Distribution getBatchSizes() {
+        return mBatchSizes;
+    }
+
+    /**
+     * @return The distribution of the time it takes to write a batch to the log file, in
+     * microseconds.
+     */
+    public Distribution getWriteMicros() {
+        return mWriteMicros;
+    }
+
+    /**
+     * @return The distribution of the time it takes to check and trim the log file, in
+     * microseconds.
+     */
+    public Distribution getTrimMicros() {
+        return mTrimMicros;
+    }
+
+    /**
+     * @return The distribution of the time from an entry being logged until it has been written
+     * to the log file, in milliseconds.
+     */
+    public Distribution getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    /**
+     * @return The time that {@link Log#init(LogStorage, LogConfig)} took on the thread that
+     * called it, in microseconds, or -1 if it hasn't returned yet.
+     */
+    public long getInitMicros() {
+        return mInitMicros;
+    }
+
+    /**
+     * @return The time it took to check, recover and trim the log file after init, in
+     * microseconds, or -1 if that hasn't finished yet. With
+     * {@link LogConfig.Builder#setAsyncInit(boolean)} this happens on the write thread rather than
+     * in init().
+     */
+    public long getPrepareMicros() {
+        return mPrepareMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "LogStats{enqueued=" + getEnqueued() +
+                ", written=" + getWritten() +
+                ", dropped=" + getDropped() +
+                ", filtered=" + getFiltered() +
+                ", queueDepth=" + getQueueDepth() +
+                ", bytesWritten=" + mBytesWritten +
+                ", trimCount=" + mTrimCount +
+                ", linesTrimmed=" + mLinesTrimmed +
+                ", writeThreadStarts=" + mWriteThreadStarts +
+                ", foregroundWakeups=" + mForegroundWakeups +
+                ", backgroundWakeups=" + mBackgroundWakeups +
+                ", foregroundMillis=" + mForegroundMillis +
+                ", backgroundMillis=" + mBackgroundMillis +
+                ", batchSizes=" + mBatchSizes +
+                ", writeMicros=" + mWriteMicros +
+                ", trimMicros=" + mTrimMicros +
+                ", latencyMillis=" + mLatencyMillis +
+                ", initMicros=" + mInitMicros +
+                ", prepareMicros=" + mPrepareMicros +
+                '}';
+    }
+
+    private static long total(long[] values) {
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    /**
+     * An immutable snapshot of a histogram with fixed buckets. Bucket i counts the values that
+     * are greater than the upper bound of bucket i - 1 and less than or equal to its own upper
+     * bound. The last bucket has no upper bound.
+     */
+    public static final class Distribution {
+
+        private final long[] mUpperBounds;
+        private final long[] mCounts;
+        private final long mSum;
+        private final long mMax;
+
+        Distribution(long[] upperBounds, long[] counts, long sum, long max) {
+            mUpperBounds = upperBounds;
+            mCounts = counts;
+            mSum = sum;
+            mMax = max;
+        }
+
+        /**
+         * @return The number of buckets, including the last, unbounded one.
+         */
+        public int getBucketCount() {
+            return mCounts.length;
+        }
+
+        /**
+         * @param bucket The index of the bucket.
+         * @return The inclusive upper bound of the bucket, or Long.MAX_VALUE for the last bucket.
+         */
+        public long getUpperBound(int bucket) {
+            return bucket < mUpperBounds.length ? mUpperBounds[bucket] : Long.MAX_VALUE;
+        }
+
+        /**
+         * @param bucket The index of the bucket.
+         * @return The number of values recorded in the bucket.
+         */
+        public long getCount(int bucket) {
+            return mCounts[bucket];
+        }
+
+        /**
+         * @return The number of values recorded.
+         */
+        public long getCount() {
+            return total(mCounts);
+        }
+
+        /**
+         * @return The sum of the values recorded.
+         */
+        public long getSum() {
+            return mSum;
+        }
+
+        /**
+         * @return The largest value recorded, or 0 if nothing has been recorded.
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return The mean of the values recorded, or 0 if nothing has been recorded.
+         */
+        public double getMean() {
+            long count = getCount();
+            return count > 0 ? (double) mSum / count : 0;
+        }
+
+        /**
+         * Estimates a percentile from the buckets.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The upper bound of the bucket that contains the percentile, capped at the
+         * largest value recorded, or 0 if nothing has been recorded.
+         */
+        public long getPercentile(double percentile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank && mCounts[i] > 0) {
+                    return Math.min(getUpperBound(i), mMax);
+                }
+            }
+            return mMax;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + getCount() +
+                    ", mean=" + getMean() +
+                    ", p50=" + getPercentile(50) +
+                    ", p99=" + getPercentile(99) +
+                    ", max=" + mMax +
+                    '}';
+        }
+    }
+}
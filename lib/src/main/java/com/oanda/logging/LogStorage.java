@@ -0,0 +1,109 @@
+package com.oanda.logging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The storage that Log keeps its files in. Files are identified by simple names, the same way
+ * that {@link android.content.Context#openFileInput(String)} identifies them, and are only ever
+ * appended to, read from the beginning, shortened from either end or deleted.
+ * <p/>
+ * Log serializes its own access to the storage, so implementations don't need to be thread safe
+ * unless they are shared with other code. Streams opened with {@link #openInput(String)} must keep
+ * returning the bytes that were in the file when they were opened, up to at least the length at
+ * that time, even if the file is shortened or deleted while they are being read.
+ *
+ * @see ContextLogStorage
+ * @see FileLogStorage
+ * @see MemoryLogStorage
+ */
+public interface LogStorage {
+
+    /**
+     * Opens a file for reading from its beginning.
+     *
+     * @param name The name of the file.
+     * @return A stream of the file's contents.
+     * @throws FileNotFoundException If the file does not exist or could not be opened.
+     */
+    InputStream openInput(String name) throws FileNotFoundException;
+
+    /**
+     * Opens a file for appending, creating it if it does not exist.
+     *
+     * @param name The name of the file.
+     * @return A stream that appends to the end of the file.
+     * @throws FileNotFoundException If the file could not be opened.
+     */
+    OutputStream openOutput(String name) throws FileNotFoundException;
+
+    /**
+     * Get the length of a file.
+     *
+     * @param name The name of the file.
+     * @return The length of the file in bytes, or 0 if it does not exist.
+     */
+    long length(String name);
+
+    /**
+     * Removes bytes from the beginning of a file, keeping the rest.
+     *
+     * @param name     The name of the file.
+     * @param numBytes The number of bytes to remove. If this is at least the length of the file,
+     *                 the file is left empty.
+     * @throws IOException If the file could not be shortened.
+     */
+    void truncateHead(String name, long numBytes) throws IOException;
+
+    /**
+     * Removes bytes from the end of a file, keeping the first length bytes. Used to discard a
+     * write that was torn by a crash, before anything else has the file open, so streams that are
+     * already open don't need to keep their view of the file.
+     *
+     * @param name   The name of the file.
+     * @param length The length to shorten the file to. If this is at least the length of the
+     *               file, the file is left as it is.
+     * @throws IOException If the file could not be shortened.
+     */
+    void truncateTail(String name, long length) throws IOException;
+
+    /**
+     * Deletes a file.
+     *
+     * @param name The name of the file.
+     * @return True if the file was deleted, false if it did not exist or could not be deleted.
+     */
+    boolean delete(String name);
+
+    /**
+     * Get the names of the files in the storage.
+     *
+     * @return The names of the files, in no particular order.
+     */
+    String[] list();
+
+    /**
+     * Takes an exclusive lock that is shared with other processes using the same storage, waiting
+     * until it is available. Log only holds it while trimming or clearing the log, which rewrite
+     * or delete files that other processes read.
+     *
+     * @param name The name of the file to lock. It is created if it does not exist, and is not
+     *             otherwise used.
+     * @return Releases the lock when closed.
+     * @throws IOException If the lock could not be taken.
+     */
+    Closeable lock(String name) throws IOException;
+
+    /**
+     * Get the File that backs a file in the storage, so that it can be shared.
+     *
+     * @param name The name of the file.
+     * @return The File, which might not exist yet, or null if the storage is not backed by the
+     * file system.
+     */
+    File getFile(String name);
+}
@@ -0,0 +1,757 @@
+package com.oanda.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads the log to an HTTP endpoint as it is written. Entries are collected in a spool, a
+ * LogStorage of the uploader's own, and sealed into gzip-compressed chunks, which a thread of the
+ * uploader's own POSTs to the endpoint oldest first:
+ * <pre>
+ * LogUploader uploader = new LogUploader.Builder(new URL("https://logs.example.com/upload"),
+ *         new FileLogStorage(new File(context.getCacheDir(), "log-upload")))
+ *         .build();
+ * uploader.start();
+ * </pre>
+ * Each chunk is sent as the body of a POST with Content-Encoding: gzip, and its sequence number,
+ * which increases by one with each chunk, in the X-Log-Sequence header. A 2xx response
+ * acknowledges the chunk, which is then deleted. Other responses, including redirects, and I/O
+ * errors are retried with exponential backoff, except for 4xx responses other than 408 and 429,
+ * which mean the chunk will never be accepted, so it is dropped.
+ * <p/>
+ * The last acknowledged sequence number is kept in the spool, so after a restart the uploader
+ * carries on from the chunk after it, and entries that were collected but not sealed are sealed
+ * first. A chunk can be sent more than once if the app stops between the endpoint acknowledging it
+ * and the uploader recording that, so the endpoint should ignore sequence numbers it has seen.
+ * <p/>
+ * The uploader gets entries as a {@link LogListener}, on the listener's thread, so neither the
+ * threads that log nor the write thread ever wait for it. When the spool grows past its limit,
+ * such as while the endpoint is unreachable, the oldest chunks are dropped.
+ */
+public final class LogUploader implements LogListener {
+
+    /**
+     * The names of the spool's files: the entries that haven't been sealed yet, the acknowledged
+     * sequence numbers, one per line, and the prefix and suffix of each chunk.
+     */
+    static final String CURRENT_NAME = "upload-current.txt";
+    static final String ACKED_NAME = "upload-acked.txt";
+    static final String CHUNK_PREFIX = "upload-";
+    static final String CHUNK_SUFFIX = ".gz";
+
+    static final String SEQUENCE_HEADER = "X-Log-Sequence";
+
+    /**
+     * The length that the file of acknowledged sequence numbers is trimmed back to its last line
+     * at.
+     */
+    private static final long MAX_ACKED_BYTES = 4096;
+
+    private static final String NEW_LINE = "\n";
+    private static final String UTF_8 = "UTF-8";
+
+    private final URL mEndpoint;
+    private final LogStorage mSpool;
+    private final int mMaxChunkBytes;
+    private final long mMaxChunkAgeMillis;
+    private final long mMaxSpoolBytes;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final int mTimeoutMillis;
+
+    /**
+     * The sequence numbers of the sealed chunks that haven't been acknowledged, oldest first.
+     * Guarded by this, like every other field below.
+     */
+    private final List<Long> mChunks = new ArrayList<Long>();
+
+    private long mLastSequence = 0;
+    private long mLastAckedSequence = 0;
+
+    /**
+     * The sequence number of the chunk that the upload thread is sending, or 0 if none. It isn't
+     * dropped while it is sent, so that the endpoint never gets a chunk after it was dropped.
+     */
+    private long mSendingSequence = 0;
+
+    /**
+     * The size of the unsealed entries, and when the first of them was collected, in terms of
+     * System.currentTimeMillis().
+     */
+    private long mCurrentBytes = 0;
+    private long mCurrentStartMillis = 0;
+
+    /**
+     * The size of the sealed chunks.
+     */
+    private long mChunkBytes = 0;
+
+    /**
+     * How long to wait after the last failed attempt, and when the next attempt can be made.
+     */
+    private long mBackoffMillis = 0;
+    private long mNextAttemptMillis = 0;
+
+    private long mNumUploaded = 0;
+    private long mNumDroppedChunks = 0;
+    private long mNumDroppedEntries = 0;
+
+    private Thread mUploadThread;
+    private boolean mStopped = true;
+
+    private LogUploader(Builder builder) {
+        mEndpoint = builder.mEndpoint;
+        mSpool = builder.mSpool;
+        mMaxChunkBytes = builder.mMaxChunkBytes;
+        mMaxChunkAgeMillis = builder.mMaxChunkAgeMillis;
+        mMaxSpoolBytes = builder.mMaxSpoolBytes;
+        mInitialBackoffMillis = builder.mInitialBackoffMillis;
+        mMaxBackoffMillis = builder.mMaxBackoffMillis;
+        mTimeoutMillis = builder.mTimeoutMillis;
+    }
+
+    /**
+     * Picks up where the last uploader with this spool left off, starts the upload thread and
+     * registers with {@link Log#addLogListener(LogListener)}. Does nothing if already started.
+     */
+    public void start() {
+        synchronized (this) {
+            if (!mStopped) {
+                return;
+            }
+            mStopped = false;
+
+            load();
+
+            mUploadThread = new Thread("LogUploader") {
+                @Override
+                public void run() {
+                    uploadChunks();
+                }
+            };
+            mUploadThread.setDaemon(true);
+            mUploadThread.start();
+        }
+
+        Log.addLogListener(this);
+    }
+
+    /**
+     * Unregisters from Log and stops the upload thread. An upload in progress is abandoned and
+     * sent again after the next start(). Entries that haven't been sealed stay in the spool.
+     * <p/>
+     * Waits for the upload thread to finish, which can take up to the timeout if an upload is in
+     * progress, so that it never changes the spool once another uploader may be using it.
+     */
+    public void stop() {
+        Log.removeLogListener(this);
+
+        Thread uploadThread;
+        synchronized (this) {
+            mStopped = true;
+            uploadThread = mUploadThread;
+            mUploadThread = null;
+            notifyAll();
+        }
+        if (uploadThread != null) {
+            uploadThread.interrupt();
+            if (uploadThread != Thread.currentThread()) {
+                try {
+                    uploadThread.join();
+                } catch (InterruptedException e) {
+                    // Keep the interrupt for the caller and stop waiting
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Seals the entries collected so far into a chunk and uploads it without waiting for the
+     * chunk to fill up or age, such as before the app goes into the background.
+     */
+    public synchronized void flush() {
+        seal();
+        // Don't wait out a backoff either
+        mNextAttemptMillis = 0;
+        notifyAll();
+    }
+
+    @Override
+    public void onEntriesLogged(List<String> entries) {
+        StringBuilder stringBuilder = new StringBuilder(entries.size() * Log.Entry.APPROXIMATE_LENGTH_PER_ENTRY);
+        for (String entry : entries) {
+            stringBuilder.append(entry).append(NEW_LINE);
+        }
+        byte[] bytes = toUtf8(stringBuilder.toString());
+
+        synchronized (this) {
+            if (mStopped) {
+                return;
+            }
+            try {
+                write(CURRENT_NAME, bytes);
+            } catch (IOException ioException) {
+                mNumDroppedEntries += entries.size();
+                return;
+            }
+            if (mCurrentBytes == 0) {
+                mCurrentStartMillis = System.currentTimeMillis();
+            }
+            mCurrentBytes += bytes.length;
+
+            if (mCurrentBytes >= mMaxChunkBytes) {
+                seal();
+                notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onEntriesDropped(int numEntries) {
+        mNumDroppedEntries += numEntries;
+    }
+
+    /**
+     * @return The number of chunks that have been acknowledged by the endpoint.
+     */
+    public synchronized long getNumUploaded() {
+        return mNumUploaded;
+    }
+
+    /**
+     * @return The number of sealed chunks waiting to be uploaded.
+     */
+    public synchronized int getNumPending() {
+        return mChunks.size();
+    }
+
+    /**
+     * @return The number of chunks that were dropped, because the spool was full or the endpoint
+     * rejected them.
+     */
+    public synchronized long getNumDroppedChunks() {
+        return mNumDroppedChunks;
+    }
+
+    /**
+     * @return The number of entries that never made it into the spool, because the uploader fell
+     * behind or the spool couldn't be written.
+     */
+    public synchronized long getNumDroppedEntries() {
+        return mNumDroppedEntries;
+    }
+
+    /**
+     * Finds the chunks and the unsealed entries in the spool and the last acknowledged sequence
+     * number. Chunks up to that number are deleted, in case the uploader stopped before it could,
+     * and so are chunks that are damaged, which can only be the last one sealed if the app
+     * stopped while sealing it; the entries it was sealed from are still there to seal again.
+     */
+    private void load() {
+        mChunks.clear();
+        mChunkBytes = 0;
+        mLastAckedSequence = readLastAcked();
+        mLastSequence = mLastAckedSequence;
+        mSendingSequence = 0;
+
+        String[] names = mSpool.list();
+        Arrays.sort(names);
+        for (String name : names) {
+            long sequence = parseSequence(name);
+            if (sequence < 0) {
+                continue;
+            }
+            if (sequence <= mLastAckedSequence || !isComplete(name)) {
+                mSpool.delete(name);
+                continue;
+            }
+            mChunks.add(sequence);
+            mChunkBytes += mSpool.length(name);
+            mLastSequence = Math.max(mLastSequence, sequence);
+        }
+
+        mCurrentBytes = mSpool.length(CURRENT_NAME);
+        mCurrentStartMillis = System.currentTimeMillis();
+        if (mCurrentBytes > 0) {
+            // These entries waited for the last uploader to stop, so don't keep them waiting
+            seal();
+        }
+        mBackoffMillis = 0;
+        mNextAttemptMillis = 0;
+    }
+
+    /**
+     * The main loop of the upload thread: uploads the oldest chunk, waiting for one to be sealed
+     * and for backoffs to pass, until stop() is called.
+     */
+    private void uploadChunks() {
+        while (true) {
+            long sequence;
+            byte[] body;
+
+            synchronized (this) {
+                if (mStopped || Thread.currentThread() != mUploadThread) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                if (mCurrentBytes > 0 && now - mCurrentStartMillis >= mMaxChunkAgeMillis) {
+                    seal();
+                }
+
+                long waitMillis;
+                if (mChunks.isEmpty()) {
+                    waitMillis = mCurrentBytes > 0 ? mCurrentStartMillis + mMaxChunkAgeMillis - now : 0;
+                } else {
+                    waitMillis = mNextAttemptMillis - now;
+                }
+                if (mChunks.isEmpty() || waitMillis > 0) {
+                    try {
+                        // 0 waits until notified
+                        wait(Math.max(0, waitMillis));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+
+                sequence = mChunks.get(0);
+                try {
+                    body = read(chunkName(sequence));
+                } catch (IOException ioException) {
+                    // The chunk can't be read, so it can't ever be sent
+                    dropChunk(sequence);
+                    continue;
+                }
+                mSendingSequence = sequence;
+            }
+
+            int responseCode = post(sequence, body);
+
+            synchronized (this) {
+                // The uploader may have been stopped, and even started again, while the chunk was
+                // sent, in which case the spool isn't this thread's to change any more
+                if (mStopped || Thread.currentThread() != mUploadThread) {
+                    return;
+                }
+                mSendingSequence = 0;
+
+                // A redirect isn't followed for a POST, so it is retried until it goes away
+                boolean retry = responseCode < 200 || (responseCode >= 300 && responseCode < 400) ||
+                        responseCode == 408 || responseCode == 429 || responseCode >= 500;
+                if (retry) {
+                    mBackoffMillis = Math.min(mMaxBackoffMillis, mBackoffMillis == 0 ?
+                            mInitialBackoffMillis : mBackoffMillis * 2);
+                    mNextAttemptMillis = System.currentTimeMillis() + mBackoffMillis;
+
+                    // The spool may have grown past its limit while the chunk was sent
+                    trimSpool();
+                } else {
+                    mBackoffMillis = 0;
+                    mNextAttemptMillis = 0;
+                    if (responseCode < 300) {
+                        acknowledge(sequence);
+                    } else {
+                        dropChunk(sequence);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a chunk to the endpoint.
+     *
+     * @return The HTTP status code of the response, or -1 if there was none.
+     */
+    private int post(long sequence, byte[] body) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) mEndpoint.openConnection();
+            connection.setConnectTimeout(mTimeoutMillis);
+            connection.setReadTimeout(mTimeoutMillis);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty(SEQUENCE_HEADER, String.valueOf(sequence));
+            // Chunks are minutes apart, by which time a kept-alive connection has usually been
+            // closed by the endpoint, and a streamed POST can't be retried on a new one
+            connection.setRequestProperty("Connection", "close");
+            connection.setFixedLengthStreamingMode(body.length);
+
+            OutputStream outputStream = connection.getOutputStream();
+            try {
+                outputStream.write(body);
+            } finally {
+                outputStream.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+
+            // Read the response so that it is complete before the connection is closed
+            InputStream inputStream = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (inputStream != null) {
+                try {
+                    byte[] buffer = new byte[1024];
+                    while (inputStream.read(buffer) != -1) {
+                        // Discard the response
+                    }
+                } finally {
+                    inputStream.close();
+                }
+            }
+            return responseCode;
+        } catch (IOException ioException) {
+            return -1;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Compresses the unsealed entries into a chunk with the next sequence number, then makes
+     * room in the spool for it. Must be called while holding the lock on this.
+     */
+    private void seal() {
+        if (mCurrentBytes == 0) {
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) (mCurrentBytes / 4));
+            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed);
+            InputStream inputStream = mSpool.openInput(CURRENT_NAME);
+            try {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    gzipOutputStream.write(buffer, 0, read);
+                }
+            } finally {
+                inputStream.close();
+            }
+            gzipOutputStream.close();
+
+            long sequence = mLastSequence + 1;
+            byte[] bytes = compressed.toByteArray();
+            // An earlier seal that failed part way through may have left some of a chunk under
+            // this name, which appending to would make unreadable
+            mSpool.delete(chunkName(sequence));
+            write(chunkName(sequence), bytes);
+            mLastSequence = sequence;
+            mChunks.add(sequence);
+            mChunkBytes += bytes.length;
+        } catch (IOException ioException) {
+            // The entries are lost either way, so don't let them block the ones after them
+        }
+
+        mSpool.delete(CURRENT_NAME);
+        mCurrentBytes = 0;
+
+        trimSpool();
+    }
+
+    /**
+     * Drops the oldest chunks while the spool is over its limit, but never the newest one, nor
+     * the one being sent, which is dropped once it has failed if the spool is still over. Must be
+     * called while holding the lock on this.
+     */
+    private void trimSpool() {
+        int index = 0;
+        while (index < mChunks.size() - 1 && mChunkBytes > mMaxSpoolBytes) {
+            long sequence = mChunks.get(index);
+            if (sequence == mSendingSequence) {
+                index++;
+            } else {
+                dropChunk(sequence);
+            }
+        }
+    }
+
+    /**
+     * Records that the endpoint has acknowledged a chunk, then deletes it. Must be called while
+     * holding the lock on this.
+     */
+    private void acknowledge(long sequence) {
+        try {
+            // Keep only the last line once the file grows, so that it never has to be rewritten
+            long length = mSpool.length(ACKED_NAME);
+            if (length > MAX_ACKED_BYTES) {
+                byte[] acked = read(ACKED_NAME);
+                int lastLine = acked.length - 1;
+                while (lastLine > 0 && acked[lastLine - 1] != '\n') {
+                    lastLine--;
+                }
+                mSpool.truncateHead(ACKED_NAME, lastLine);
+            }
+            write(ACKED_NAME, toUtf8(sequence + NEW_LINE));
+        } catch (IOException ioException) {
+            // The chunk is sent again after a restart
+        }
+        mLastAckedSequence = sequence;
+        // A chunk that was dropped while it was sent has been counted already
+        if (removeChunk(sequence)) {
+            mNumUploaded++;
+        }
+    }
+
+    /**
+     * Deletes a chunk without it being acknowledged. Must be called while holding the lock on
+     * this.
+     */
+    private void dropChunk(long sequence) {
+        if (removeChunk(sequence)) {
+            mNumDroppedChunks++;
+        }
+    }
+
+    /**
+     * Deletes a chunk if it is still in the spool. Must be called while holding the lock on this.
+     *
+     * @return True if the chunk was deleted, false if it had been already.
+     */
+    private boolean removeChunk(long sequence) {
+        if (!mChunks.remove(Long.valueOf(sequence))) {
+            return false;
+        }
+        String name = chunkName(sequence);
+        mChunkBytes -= mSpool.length(name);
+        mSpool.delete(name);
+        return true;
+    }
+
+    /**
+     * @return The last sequence number in the file of acknowledged ones, or 0 if there is none.
+     */
+    private long readLastAcked() {
+        String[] lines;
+        try {
+            lines = new String(read(ACKED_NAME), UTF_8).split(NEW_LINE, -1);
+        } catch (IOException ioException) {
+            return 0;
+        }
+
+        // The last line may have been cut short, so take the last one that ends
+        for (int i = lines.length - 2; i >= 0; i--) {
+            try {
+                return Long.parseLong(lines[i]);
+            } catch (NumberFormatException e) {
+                // Try the line before
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return True if a chunk can be decompressed to its end.
+     */
+    private boolean isComplete(String name) {
+        try {
+            InputStream inputStream = new GZIPInputStream(mSpool.openInput(name));
+            try {
+                byte[] buffer = new byte[8192];
+                while (inputStream.read(buffer) != -1) {
+                    // Only checking
+                }
+            } finally {
+                inputStream.close();
+            }
+            return true;
+        } catch (IOException ioException) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The sequence number of a chunk from its name, or -1 if the name isn't a chunk's.
+     */
+    static long parseSequence(String name) {
+        if (!name.startsWith(CHUNK_PREFIX) || !name.endsWith(CHUNK_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(CHUNK_PREFIX.length(), name.length() - CHUNK_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The name of a chunk, padded so that chunks sort in order of their sequence numbers.
+     */
+    static String chunkName(long sequence) {
+        String digits = String.valueOf(sequence);
+        StringBuilder name = new StringBuilder(CHUNK_PREFIX);
+        for (int i = digits.length(); i < 19; i++) {
+            name.append('0');
+        }
+        return name.append(digits).append(CHUNK_SUFFIX).toString();
+    }
+
+    private byte[] read(String name) throws IOException {
+        InputStream inputStream = mSpool.openInput(name);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) mSpool.length(name));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void write(String name, byte[] bytes) throws IOException {
+        OutputStream outputStream = mSpool.openOutput(name);
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static byte[] toUtf8(String text) {
+        try {
+            return text.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Builds a LogUploader.
+     */
+    public static final class Builder {
+
+        private final URL mEndpoint;
+        private final LogStorage mSpool;
+        private int mMaxChunkBytes = 256 * 1024;
+        private long mMaxChunkAgeMillis = 60 * 1000;
+        private long mMaxSpoolBytes = 4 * 1024 * 1024;
+        private long mInitialBackoffMillis = 1000;
+        private long mMaxBackoffMillis = 5 * 60 * 1000;
+        private int mTimeoutMillis = 15 * 1000;
+
+        /**
+         * @param endpoint The URL to POST the chunks to.
+         * @param spool    The storage to keep the chunks in until they are uploaded. It must not
+         *                 be the storage that the log is kept in, or be used by anything else.
+         */
+        public Builder(URL endpoint, LogStorage spool) {
+            if (endpoint == null || spool == null) {
+                throw new IllegalArgumentException("endpoint and spool must not be null");
+            }
+            mEndpoint = endpoint;
+            mSpool = spool;
+        }
+
+        /**
+         * Sets how many bytes of entries, before compression, are collected before they are
+         * sealed into a chunk. 256 KiB by default.
+         *
+         * @param maxChunkBytes The most bytes in a chunk, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxChunkBytes is less than 1.
+         */
+        public Builder setMaxChunkBytes(int maxChunkBytes) {
+            if (maxChunkBytes < 1) {
+                throw new IllegalArgumentException("maxChunkBytes must be at least 1: " + maxChunkBytes);
+            }
+            mMaxChunkBytes = maxChunkBytes;
+            return this;
+        }
+
+        /**
+         * Sets how long entries are collected before they are sealed into a chunk, even if the
+         * chunk isn't full. One minute by default.
+         *
+         * @param maxChunkAgeMillis The longest to collect entries for, in milliseconds.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxChunkAgeMillis is negative.
+         */
+        public Builder setMaxChunkAgeMillis(long maxChunkAgeMillis) {
+            if (maxChunkAgeMillis < 0) {
+                throw new IllegalArgumentException("maxChunkAgeMillis must not be negative: " + maxChunkAgeMillis);
+            }
+            mMaxChunkAgeMillis = maxChunkAgeMillis;
+            return this;
+        }
+
+        /**
+         * Sets how many bytes of compressed chunks the spool keeps. The oldest chunks are dropped
+         * to make room for new ones, except one that is being sent, which is dropped if sending
+         * it fails. 4 MiB by default.
+         *
+         * @param maxSpoolBytes The most bytes in the spool, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxSpoolBytes is less than 1.
+         */
+        public Builder setMaxSpoolBytes(long maxSpoolBytes) {
+            if (maxSpoolBytes < 1) {
+                throw new IllegalArgumentException("maxSpoolBytes must be at least 1: " + maxSpoolBytes);
+            }
+            mMaxSpoolBytes = maxSpoolBytes;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait before retrying after the first failed upload, and the longest to
+         * wait between retries. The wait doubles after each failure in a row. One second and five
+         * minutes by default.
+         *
+         * @param initialBackoffMillis The first wait, in milliseconds, at least 1.
+         * @param maxBackoffMillis     The longest wait, in milliseconds, at least
+         *                             initialBackoffMillis.
+         * @return This Builder.
+         * @throws IllegalArgumentException If the waits are out of range.
+         */
+        public Builder setBackoffMillis(long initialBackoffMillis, long maxBackoffMillis) {
+            if (initialBackoffMillis < 1 || maxBackoffMillis < initialBackoffMillis) {
+                throw new IllegalArgumentException("Invalid backoff: " + initialBackoffMillis + ", " + maxBackoffMillis);
+            }
+            mInitialBackoffMillis = initialBackoffMillis;
+            mMaxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait to connect to the endpoint and for each read of its response. 15
+         * seconds by default.
+         *
+         * @param timeoutMillis The timeout, in milliseconds, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If timeoutMillis is less than 1.
+         */
+        public Builder setTimeoutMillis(int timeoutMillis) {
+            if (timeoutMillis < 1) {
+                throw new IllegalArgumentException("timeoutMillis must be at least 1: " + timeoutMillis);
+            }
+            mTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * @return A LogUploader with the options that have been set. Call
+         * {@link LogUploader#start()} to start it.
+         */
+        public LogUploader build() {
+            return new LogUploader(this);
+        }
+    }
+}
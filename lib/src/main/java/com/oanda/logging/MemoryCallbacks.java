@@ -0,0 +1,27 @@
+package com.oanda.logging;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+/**
+ * Passes the system's memory signals on to Log. ComponentCallbacks2 is only there from API level
+ * 14, so Log only loads this class after checking that it is running on 14 or later, and doesn't
+ * refer to it otherwise.
+ */
+final class MemoryCallbacks implements ComponentCallbacks2 {
+
+    @Override
+    public void onTrimMemory(int level) {
+        Log.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        Log.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // Nothing in the log depends on the configuration
+    }
+}
@@ -0,0 +1,152 @@
+package com.oanda.logging;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * LogStorage that keeps its files in memory. Nothing survives the process, so this is mostly
+ * useful for tests and for logs that are only ever read by the app itself.
+ * <p/>
+ * This class is thread safe.
+ */
+public class MemoryLogStorage implements LogStorage {
+
+    /**
+     * The contents of each file. Bytes are only ever added after a file's current length, and
+     * removing bytes replaces the array, so input streams can share the arrays without copying.
+     */
+    private final Map<String, Contents> mFiles = new HashMap<String, Contents>();
+
+    @Override
+    public synchronized InputStream openInput(String name) throws FileNotFoundException {
+        Contents contents = mFiles.get(name);
+        if (contents == null) {
+            throw new FileNotFoundException(name);
+        }
+        return new ByteArrayInputStream(contents.bytes, 0, contents.length);
+    }
+
+    @Override
+    public synchronized OutputStream openOutput(final String name) {
+        if (!mFiles.containsKey(name)) {
+            mFiles.put(name, new Contents(new byte[0], 0));
+        }
+
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) {
+                append(name, buffer, offset, count);
+            }
+        };
+    }
+
+    @Override
+    public synchronized long length(String name) {
+        Contents contents = mFiles.get(name);
+        return contents != null ? contents.length : 0;
+    }
+
+    @Override
+    public synchronized void truncateHead(String name, long numBytes) throws FileNotFoundException {
+        Contents contents = mFiles.get(name);
+        if (contents == null) {
+            throw new FileNotFoundException(name);
+        }
+
+        int start = (int) Math.min(numBytes, contents.length);
+        byte[] bytes = new byte[contents.length - start];
+        System.arraycopy(contents.bytes, start, bytes, 0, bytes.length);
+        mFiles.put(name, new Contents(bytes, bytes.length));
+    }
+
+    @Override
+    public synchronized void truncateTail(String name, long length) throws FileNotFoundException {
+        Contents contents = mFiles.get(name);
+        if (contents == null) {
+            throw new FileNotFoundException(name);
+        }
+
+        // Replace the array, since appending would overwrite the bytes that are removed
+        if (length < contents.length) {
+            byte[] bytes = new byte[(int) length];
+            System.arraycopy(contents.bytes, 0, bytes, 0, bytes.length);
+            mFiles.put(name, new Contents(bytes, bytes.length));
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String name) {
+        return mFiles.remove(name) != null;
+    }
+
+    @Override
+    public synchronized String[] list() {
+        return mFiles.keySet().toArray(new String[mFiles.size()]);
+    }
+
+    /**
+     * Nothing outside of this process can see the files, so there is nothing to lock.
+     *
+     * @return Does nothing when closed.
+     */
+    @Override
+    public Closeable lock(String name) {
+        return new Closeable() {
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * @return null, since the files are not on the file system.
+     */
+    @Override
+    public File getFile(String name) {
+        return null;
+    }
+
+    /**
+     * Append bytes to a file, creating it again if it was deleted while a stream was open.
+     */
+    private synchronized void append(String name, byte[] buffer, int offset, int count) {
+        Contents contents = mFiles.get(name);
+        if (contents == null) {
+            contents = new Contents(new byte[0], 0);
+            mFiles.put(name, contents);
+        }
+
+        if (contents.length + count > contents.bytes.length) {
+            // Grow into a new array so that open input streams keep their view of the old one
+            byte[] bytes = new byte[Math.max(contents.length + count, contents.bytes.length * 2)];
+            System.arraycopy(contents.bytes, 0, bytes, 0, contents.length);
+            contents.bytes = bytes;
+        }
+        System.arraycopy(buffer, offset, contents.bytes, contents.length, count);
+        contents.length += count;
+    }
+
+    /**
+     * The bytes of a file, of which the first length are in use.
+     */
+    private static final class Contents {
+        byte[] bytes;
+        int length;
+
+        Contents(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+}
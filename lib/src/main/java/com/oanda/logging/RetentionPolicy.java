@@ -0,0 +1,191 @@
+package com.oanda.logging;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rules for how long entries are kept, by priority, and how much space the log may take up in
+ * all. Create one with a {@link Builder} and pass it to
+ * {@link LogConfig.Builder#setRetentionPolicy(RetentionPolicy)}:
+ * <pre>
+ * new RetentionPolicy.Builder()
+ *         .keep(Log.VERBOSE, 1, TimeUnit.HOURS)
+ *         .keep(Log.INFO, 1, TimeUnit.DAYS)
+ *         .keep(Log.ERROR, 7, TimeUnit.DAYS)
+ *         .setMaxTotalBytes(4 * 1024 * 1024)
+ *         .build();
+ * </pre>
+ * Each call to keep() starts a tier of priorities that lasts until the next priority given to
+ * keep(), so here VERBOSE and DEBUG entries are kept for an hour, INFO and WARN entries for a day,
+ * and ERROR and ASSERT entries for a week. When the log takes up more than its total, the oldest
+ * entries of the lowest tier go first.
+ * <p/>
+ * Each tier is written to files of its own that are started every so often, and entries are
+ * removed by deleting whole files, so applying the rules never rewrites the log. As a result,
+ * entries can be kept for up to an eighth longer than their tier's age, and the log can be
+ * trimmed by up to a sixteenth of its total more than it has to be.
+ */
+public final class RetentionPolicy {
+
+    /**
+     * The smallest and largest that the files of a tier grow before another is started.
+     */
+    static final long MIN_CHUNK_BYTES = 1024;
+    static final long MAX_CHUNK_BYTES = 256 * 1024;
+
+    /**
+     * The lowest priority of each tier, in ascending order.
+     */
+    private final int[] mTierPriorities;
+
+    /**
+     * How long the entries of each tier are kept, in milliseconds.
+     */
+    private final long[] mMaxAgeMillis;
+
+    private final long mMaxTotalBytes;
+
+    private RetentionPolicy(Builder builder) {
+        int numTiers = 0;
+        for (long maxAgeMillis : builder.mMaxAgeMillis) {
+            if (maxAgeMillis != 0) {
+                numTiers++;
+            }
+        }
+
+        mTierPriorities = new int[numTiers];
+        mMaxAgeMillis = new long[numTiers];
+        int tier = 0;
+        for (int priority = 0; priority < builder.mMaxAgeMillis.length; priority++) {
+            if (builder.mMaxAgeMillis[priority] != 0) {
+                mTierPriorities[tier] = priority;
+                mMaxAgeMillis[tier] = builder.mMaxAgeMillis[priority];
+                tier++;
+            }
+        }
+        mMaxTotalBytes = builder.mMaxTotalBytes;
+    }
+
+    /**
+     * @return The number of tiers.
+     */
+    int getNumTiers() {
+        return mTierPriorities.length;
+    }
+
+    /**
+     * @param tier The index of the tier, from the lowest priorities to the highest.
+     * @return The lowest priority in the tier.
+     */
+    int getTierPriority(int tier) {
+        return mTierPriorities[tier];
+    }
+
+    /**
+     * Get the tier that entries of a priority are kept in. Priorities that aren't one of the
+     * constants in Log are kept as {@link Log#WARN}, which is also how they are written.
+     *
+     * @param priority The priority of the entries.
+     * @return The index of the tier.
+     */
+    int getTier(int priority) {
+        int index = LogMetrics.index(priority);
+        int tier = 0;
+        while (tier + 1 < mTierPriorities.length && mTierPriorities[tier + 1] <= index) {
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * @param tier The index of the tier.
+     * @return How long the entries of the tier are kept, in milliseconds.
+     */
+    long getMaxAgeMillis(int tier) {
+        return mMaxAgeMillis[tier];
+    }
+
+    /**
+     * @param tier The index of the tier.
+     * @return How long a file of the tier is appended to before another is started.
+     */
+    long getChunkMillis(int tier) {
+        return Math.max(1, mMaxAgeMillis[tier] / 8);
+    }
+
+    /**
+     * @return The most bytes that the log may take up.
+     */
+    public long getMaxTotalBytes() {
+        return mMaxTotalBytes;
+    }
+
+    /**
+     * @return How large a file of any tier grows before another is started.
+     */
+    long getChunkBytes() {
+        return Math.min(MAX_CHUNK_BYTES, Math.max(MIN_CHUNK_BYTES, mMaxTotalBytes / 16));
+    }
+
+    /**
+     * Builds a RetentionPolicy. With no rules, entries of every priority are kept until the log
+     * reaches its total.
+     */
+    public static final class Builder {
+
+        /**
+         * How long entries of each priority are kept if they start a tier, or 0 if they don't.
+         */
+        private final long[] mMaxAgeMillis = new long[Log.ASSERT + 1];
+
+        private long mMaxTotalBytes = 1024 * 1024;
+
+        public Builder() {
+            mMaxAgeMillis[Log.VERBOSE] = Long.MAX_VALUE;
+        }
+
+        /**
+         * Keeps entries of a priority, and of the priorities above it up to the next one given
+         * to keep(), for as long as the log has room for them and no longer than maxAge. Entries
+         * below the lowest priority given are kept until the log runs out of room.
+         *
+         * @param priority The lowest priority of the tier, such as {@link Log#ERROR}.
+         * @param maxAge   How long to keep the entries.
+         * @param unit     The unit of maxAge.
+         * @return This Builder.
+         * @throws IllegalArgumentException If priority isn't one of the constants in Log, or
+         *                                  maxAge isn't positive.
+         */
+        public Builder keep(int priority, long maxAge, TimeUnit unit) {
+            if (priority < Log.VERBOSE || priority > Log.ASSERT) {
+                throw new IllegalArgumentException("Unknown priority: " + priority);
+            }
+            if (maxAge <= 0) {
+                throw new IllegalArgumentException("maxAge must be positive: " + maxAge);
+            }
+            mMaxAgeMillis[priority] = Math.max(1, unit.toMillis(maxAge));
+            return this;
+        }
+
+        /**
+         * Sets the most bytes that this process's log may take up. 1 MiB by default.
+         *
+         * @param maxTotalBytes The most bytes, at least 1.
+         * @return This Builder.
+         * @throws IllegalArgumentException If maxTotalBytes is less than 1.
+         */
+        public Builder setMaxTotalBytes(long maxTotalBytes) {
+            if (maxTotalBytes < 1) {
+                throw new IllegalArgumentException("maxTotalBytes must be at least 1: " + maxTotalBytes);
+            }
+            mMaxTotalBytes = maxTotalBytes;
+            return this;
+        }
+
+        /**
+         * @return A RetentionPolicy with the rules that have been set.
+         */
+        public RetentionPolicy build() {
+            return new RetentionPolicy(this);
+        }
+    }
+}
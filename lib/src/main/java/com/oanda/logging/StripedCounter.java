@@ -0,0 +1,77 @@
+package com.oanda.logging;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its updates over several cells so that threads incrementing it at the
+ * same time rarely write to the same cache line. Reading the value sums the cells, which makes
+ * reads more expensive than updates; this is the right trade-off for counters that are updated on
+ * every log call and only read when a LogStats snapshot is taken.
+ * <p/>
+ * The sum is not an atomic snapshot: updates made while it is being computed may or may not be
+ * included.
+ */
+final class StripedCounter {
+
+    /**
+     * The number of longs between two cells, so that each cell sits on its own 64 byte cache line.
+     */
+    private static final int CELL_STRIDE = 8;
+
+    /**
+     * The number of cells. A power of two so that a thread's cell can be found with a mask.
+     */
+    private static final int NUM_CELLS;
+
+    static {
+        int cells = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        // Twice the number of processors keeps collisions between running threads unlikely
+        while (cells < processors * 2 && cells < 64) {
+            cells <<= 1;
+        }
+        NUM_CELLS = cells;
+    }
+
+    /**
+     * The cells, padded by CELL_STRIDE.
+     */
+    private final AtomicLongArray mCells = new AtomicLongArray(NUM_CELLS * CELL_STRIDE);
+
+    /**
+     * Adds one to the counter.
+     */
+    void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds a value to the counter.
+     *
+     * @param value The value to add.
+     */
+    void add(long value) {
+        mCells.getAndAdd(cellIndex(), value);
+    }
+
+    /**
+     * @return The sum of all of the cells.
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < NUM_CELLS; i++) {
+            sum += mCells.get(i * CELL_STRIDE);
+        }
+        return sum;
+    }
+
+    /**
+     * @return The index of the calling thread's cell in mCells.
+     */
+    private static int cellIndex() {
+        long id = Thread.currentThread().getId();
+        // Thread ids are sequential, so mix the bits to spread neighbouring threads apart
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return ((hash >>> 16) & (NUM_CELLS - 1)) * CELL_STRIDE;
+    }
+}
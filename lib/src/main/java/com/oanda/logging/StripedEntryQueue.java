@@ -0,0 +1,204 @@
+package com.oanda.logging;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A queue of entries where each thread that logs appends to a buffer of its own, so that threads
+ * logging at the same time don't all write to the head and tail of one shared queue. Each buffer
+ * is a ring with a single producer, its thread, and a single consumer, whoever holds the lock on
+ * this queue, so adding an entry takes no lock and no compare-and-set.
+ * <p/>
+ * Entries must be stamped with their sequence, System.nanoTime() when they were logged, before
+ * they are added, and drainTo() merges the buffers by that stamp. A thread whose buffer is full
+ * adds to a shared overflow queue instead, which is drained after the buffers so that none of a
+ * thread's entries are taken out of order.
+ */
+final class StripedEntryQueue {
+
+    /**
+     * The number of entries that each thread's buffer holds. A power of two so that an index in
+     * the ring can be found with a mask.
+     */
+    static final int STRIPE_CAPACITY = 1024;
+
+    /**
+     * Orders drained entries by the time they were added.
+     */
+    private static final Comparator<Log.Entry> SEQUENCE_ORDER = new Comparator<Log.Entry>() {
+        @Override
+        public int compare(Log.Entry lhs, Log.Entry rhs) {
+            long difference = lhs.getSequence() - rhs.getSequence();
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    };
+
+    /**
+     * The buffers of every thread that has logged and is still alive, or still has entries.
+     */
+    private final CopyOnWriteArrayList<Stripe> mStripes = new CopyOnWriteArrayList<Stripe>();
+
+    private final ThreadLocal<Stripe> mStripe = new ThreadLocal<Stripe>() {
+        @Override
+        protected Stripe initialValue() {
+            Stripe stripe = new Stripe(Thread.currentThread());
+            mStripes.add(stripe);
+            return stripe;
+        }
+    };
+
+    /**
+     * Where entries go when their thread's buffer is full.
+     */
+    private final Queue<Log.Entry> mOverflow;
+
+    /**
+     * @param overflow The queue to add entries to when their thread's buffer is full.
+     */
+    StripedEntryQueue(Queue<Log.Entry> overflow) {
+        mOverflow = overflow;
+    }
+
+    /**
+     * Adds an entry to the calling thread's buffer, or to the overflow queue if it is full.
+     *
+     * @param entry The entry to add.
+     */
+    void add(Log.Entry entry) {
+        if (!mStripe.get().offer(entry)) {
+            mOverflow.add(entry);
+        }
+    }
+
+    /**
+     * @return True if no thread has an entry waiting. Entries being added at the same time may
+     * or may not be seen.
+     */
+    boolean isEmpty() {
+        if (!mOverflow.isEmpty()) {
+            return false;
+        }
+        for (Stripe stripe : mStripes) {
+            if (!stripe.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes every entry that is waiting, ordered by when it was added.
+     *
+     * @param entries The list to add the entries to.
+     * @return The number of entries taken.
+     */
+    synchronized int drainTo(List<Log.Entry> entries) {
+        int start = entries.size();
+
+        // Drain the buffers before the overflow queue. An entry that overflowed was added before
+        // any later entry of its thread that made it into its buffer, so it is already in the
+        // overflow queue if that later entry is seen here
+        for (Stripe stripe : mStripes) {
+            stripe.drainTo(entries);
+            if (stripe.isAbandoned()) {
+                mStripes.remove(stripe);
+            }
+        }
+        Log.Entry entry;
+        while ((entry = mOverflow.poll()) != null) {
+            entries.add(entry);
+        }
+
+        int numDrained = entries.size() - start;
+        if (numDrained > 1) {
+            // Each buffer is already in order, which the sort takes advantage of
+            Collections.sort(entries.subList(start, entries.size()), SEQUENCE_ORDER);
+        }
+        return numDrained;
+    }
+
+    /**
+     * A ring buffer of one thread's entries.
+     */
+    private static final class Stripe {
+
+        /**
+         * The number of longs between the indices in mIndices, so that the one that the producer
+         * writes and the one that the consumer writes sit on different cache lines.
+         */
+        private static final int INDEX_STRIDE = 8;
+        private static final int TAIL = INDEX_STRIDE;
+        private static final int HEAD = INDEX_STRIDE * 2;
+
+        private final WeakReference<Thread> mOwner;
+        private final Log.Entry[] mBuffer = new Log.Entry[STRIPE_CAPACITY];
+
+        /**
+         * The number of entries ever added, at TAIL, and ever taken, at HEAD.
+         */
+        private final AtomicLongArray mIndices = new AtomicLongArray(INDEX_STRIDE * 3);
+
+        /**
+         * The producer's last view of the head, so that it only reads the consumer's index when
+         * the buffer looks full.
+         */
+        private long mCachedHead = 0;
+
+        Stripe(Thread owner) {
+            mOwner = new WeakReference<Thread>(owner);
+        }
+
+        /**
+         * Adds an entry. Must only be called by the owning thread.
+         *
+         * @return False if the buffer is full.
+         */
+        boolean offer(Log.Entry entry) {
+            long tail = mIndices.get(TAIL);
+            if (tail - mCachedHead == STRIPE_CAPACITY) {
+                mCachedHead = mIndices.get(HEAD);
+                if (tail - mCachedHead == STRIPE_CAPACITY) {
+                    return false;
+                }
+            }
+
+            mBuffer[(int) tail & (STRIPE_CAPACITY - 1)] = entry;
+            // Publish the entry to the consumer
+            mIndices.lazySet(TAIL, tail + 1);
+            return true;
+        }
+
+        /**
+         * Takes every entry in the buffer. Must only be called by one thread at a time.
+         */
+        void drainTo(List<Log.Entry> entries) {
+            long head = mIndices.get(HEAD);
+            long tail = mIndices.get(TAIL);
+            for (long i = head; i < tail; i++) {
+                int index = (int) i & (STRIPE_CAPACITY - 1);
+                entries.add(mBuffer[index]);
+                mBuffer[index] = null;
+            }
+            // Hand the slots back to the producer
+            mIndices.lazySet(HEAD, tail);
+        }
+
+        boolean isEmpty() {
+            return mIndices.get(HEAD) == mIndices.get(TAIL);
+        }
+
+        /**
+         * @return True if the owning thread has died and the buffer is empty, so that no entry
+         * will be added to it again.
+         */
+        boolean isAbandoned() {
+            Thread owner = mOwner.get();
+            return (owner == null || !owner.isAlive()) && isEmpty();
+        }
+    }
+}
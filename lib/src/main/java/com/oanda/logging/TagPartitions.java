@@ -0,0 +1,136 @@
+package com.oanda.logging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Routes the entries of chosen tags to partitions of the log, each kept in a file of its own and
+ * trimmed to a number of lines of its own, so that a noisy component can't push a quiet one's
+ * entries out of the log. Create them with a {@link Builder} and pass them to
+ * {@link LogConfig.Builder#setTagPartitions(TagPartitions)}:
+ * <pre>
+ * new TagPartitions.Builder()
+ *         .partition("network", 2000, "OkHttp", "PriceStream")
+ *         .partition("auth", 200, "Login")
+ *         .build();
+ * </pre>
+ * Entries of tags that aren't in a partition are kept in the log file, to
+ * {@link Log#CIRCULAR_BUFFER_SIZE} lines, as they are without partitions. {@link Log#readLog()}
+ * merges every partition with the rest of the log by timestamp, and {@link Log#readLog(String)}
+ * reads only the partition that a tag is in.
+ * <p/>
+ * A partition's file is named after the segment it belongs to, such as fxtrade_log=network.txt
+ * for the main process, and is started once an entry is written to it.
+ */
+public final class TagPartitions {
+
+    private final String[] mNames;
+    private final int[] mMaxLines;
+    private final Map<String, Integer> mPartitionsByTag;
+
+    private TagPartitions(Builder builder) {
+        mNames = builder.mNames.toArray(new String[builder.mNames.size()]);
+        mMaxLines = new int[mNames.length];
+        for (int i = 0; i < mMaxLines.length; i++) {
+            mMaxLines[i] = builder.mMaxLines.get(i);
+        }
+        mPartitionsByTag = new HashMap<String, Integer>(builder.mPartitionsByTag);
+    }
+
+    /**
+     * @return The number of partitions.
+     */
+    int getNumPartitions() {
+        return mNames.length;
+    }
+
+    /**
+     * @param partition The index of the partition.
+     * @return The name of the partition.
+     */
+    String getName(int partition) {
+        return mNames[partition];
+    }
+
+    /**
+     * @param partition The index of the partition.
+     * @return The most lines, or entries if the log is kept as framed records, that the
+     * partition keeps.
+     */
+    int getMaxLines(int partition) {
+        return mMaxLines[partition];
+    }
+
+    /**
+     * @param tag The tag of an entry.
+     * @return The index of the partition that the tag's entries are kept in, or -1 if they are
+     * kept in the log file.
+     */
+    int getPartition(String tag) {
+        Integer partition = tag != null ? mPartitionsByTag.get(tag) : null;
+        return partition != null ? partition : -1;
+    }
+
+    /**
+     * Builds TagPartitions.
+     */
+    public static final class Builder {
+
+        private final List<String> mNames = new ArrayList<String>();
+        private final List<Integer> mMaxLines = new ArrayList<Integer>();
+        private final Map<String, Integer> mPartitionsByTag = new HashMap<String, Integer>();
+
+        /**
+         * Adds a partition for a group of tags.
+         *
+         * @param name     The name of the partition, which its file is named after. Only letters,
+         *                 digits, '.', '_' and '-' are allowed.
+         * @param maxLines The most lines, or entries if the log is kept as framed records, that
+         *                 the partition keeps, at least 1.
+         * @param tags     The tags whose entries are kept in the partition.
+         * @return This Builder.
+         * @throws IllegalArgumentException If the name is empty, has other characters or is
+         *                                  already taken, if maxLines is less than 1, or if a tag
+         *                                  is already in a partition.
+         */
+        public Builder partition(String name, int maxLines, String... tags) {
+            if (name == null || name.length() == 0) {
+                throw new IllegalArgumentException("A partition must have a name");
+            }
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                        c == '.' || c == '_' || c == '-')) {
+                    throw new IllegalArgumentException("Invalid partition name: " + name);
+                }
+            }
+            if (mNames.contains(name)) {
+                throw new IllegalArgumentException("Partition already added: " + name);
+            }
+            if (maxLines < 1) {
+                throw new IllegalArgumentException("maxLines must be at least 1: " + maxLines);
+            }
+            for (String tag : tags) {
+                if (mPartitionsByTag.containsKey(tag)) {
+                    throw new IllegalArgumentException("Tag already in a partition: " + tag);
+                }
+            }
+
+            for (String tag : tags) {
+                mPartitionsByTag.put(tag, mNames.size());
+            }
+            mNames.add(name);
+            mMaxLines.add(maxLines);
+            return this;
+        }
+
+        /**
+         * @return TagPartitions with the partitions that have been added.
+         */
+        public TagPartitions build() {
+            return new TagPartitions(this);
+        }
+    }
+}